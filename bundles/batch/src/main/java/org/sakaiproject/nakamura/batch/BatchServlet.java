@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -29,6 +33,10 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -42,14 +50,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -66,11 +88,16 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {@ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "concurrent",
+            description = "If true, GET requests are made at the same time as the GET requests next to them. Any other request is made once the requests before it are complete. Results are still returned in request order."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
@@ -97,6 +124,51 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  protected static final String CONCURRENT_PARAMETER = "concurrent";
+
+  @Property(intValue = 10, label = "Concurrent Threads", description = "The number of threads making GET requests for batches that ask for concurrent requests.")
+  static final String CONCURRENT_THREADS = "batch.concurrent.threads";
+
+  @Property(intValue = 100, label = "Concurrent Queue", description = "The number of GET requests that may wait for a thread, further requests are made on the batch request thread.")
+  static final String CONCURRENT_QUEUE = "batch.concurrent.queue";
+
+  @Reference
+  transient SlingRequestProcessor requestProcessor;
+
+  @Reference
+  transient SlingRepository slingRepository;
+
+  @Reference
+  transient JcrResourceResolverFactory resourceResolverFactory;
+
+  private transient ThreadPoolExecutor executor;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = OsgiUtil.toInteger(props.get(CONCURRENT_THREADS), 10);
+    int queue = OsgiUtil.toInteger(props.get(CONCURRENT_QUEUE), 100);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    // a request that can not be queued, or that is made while deactivating, is made on
+    // the batch request thread so that its result is always available.
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queue), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Batch request " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            r.run();
+          }
+        });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    executor.shutdown();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -185,26 +257,153 @@ public class BatchServlet extends SlingAllMethodsServlet {
       return;
     }
 
-    // Loop over the requests and handle each one.
+    // Loop over the requests and handle each one. Each result is written to the client
+    // as soon as its request has been handled, so only one sub-response is held at a time.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter writer = response.getWriter();
     try {
-      StringWriter sw = new StringWriter();
-      JSONWriter write = new JSONWriter(sw);
+      JSONWriter write = new JSONWriter(writer);
       write.object();
       write.key("results");
       write.array();
 
-      for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+      if (executor != null
+          && Boolean.parseBoolean(request.getParameter(CONCURRENT_PARAMETER))) {
+        doConcurrentRequests(request, response, batchedRequests, write, writer);
+      } else {
+        for (RequestInfo r : batchedRequests) {
+          doRequest(request, response, r, write);
+          writer.flush();
+        }
       }
       write.endArray();
       write.endObject();
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-      response.getWriter().write(sw.getBuffer().toString());
     } catch (JSONException e) {
       LOGGER.warn("Failed to create a JSON response");
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to write JSON response");
+      if (!response.isCommitted()) {
+        response.reset();
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "Failed to write JSON response");
+      }
+    }
+  }
+
+  /**
+   * Make each GET request on the executor, as a request of its own with a session and
+   * resource resolver for the same user, and any other request on this thread once the
+   * requests before it are complete. Results are written in request order, each as soon
+   * as it and the ones before it are complete.
+   */
+  private void doConcurrentRequests(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      JSONWriter write, PrintWriter writer) throws JSONException {
+    Session session = request.getResourceResolver().adaptTo(Session.class);
+    Session adminSession = null;
+    LinkedList<SubRequest> pending = new LinkedList<SubRequest>();
+    try {
+      for (RequestInfo r : batchedRequests) {
+        Session userSession = null;
+        if (session != null && "GET".equals(r.getMethod())) {
+          try {
+            if (adminSession == null) {
+              adminSession = slingRepository.loginAdministrative(null); // usage checked and Ok
+            }
+            userSession = adminSession.impersonate(new SimpleCredentials(session
+                .getUserID(), new char[0]));
+          } catch (RepositoryException e) {
+            LOGGER.debug("Unable to make {} concurrently: {}", r.getUrl(), e.getMessage());
+          }
+        }
+        if (userSession != null) {
+          SubRequest subRequest = new SubRequest(request, response, r, userSession);
+          pending.add(subRequest);
+          subRequest.future = executor.submit(subRequest);
+          writeResults(pending, response, write, writer, false);
+        } else {
+          writeResults(pending, response, write, writer, true);
+          doRequest(request, response, r, write);
+          writer.flush();
+        }
+      }
+      writeResults(pending, response, write, writer, true);
+    } finally {
+      // requests still pending log out their own sessions once complete.
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Write the results of the pending requests in order, up to the first that is not
+   * complete, or all of them if wait is true. Cookies set by each request are added to
+   * the batch response here, on the batch request thread.
+   */
+  private void writeResults(LinkedList<SubRequest> pending,
+      SlingHttpServletResponse response, JSONWriter write, PrintWriter writer,
+      boolean wait) throws JSONException {
+    while (!pending.isEmpty() && (wait || pending.getFirst().future.isDone())) {
+      SubRequest subRequest = pending.getFirst();
+      boolean success;
+      try {
+        success = subRequest.future.get();
+      } catch (ExecutionException e) {
+        LOGGER.warn("Failed to make request " + subRequest.requestInfo.getUrl(),
+            e.getCause());
+        success = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        success = false;
+      }
+      if (success) {
+        subRequest.responseWrapper.addCookiesTo(response);
+        writeResponse(write, subRequest.responseWrapper, subRequest.requestInfo);
+      } else {
+        writeFailedRequest(write, subRequest.requestInfo);
+      }
+      pending.removeFirst();
+      writer.flush();
+    }
+  }
+
+  /**
+   * A GET request that is processed on its own, with its own session, and a response
+   * that does not touch the batch response.
+   */
+  private final class SubRequest implements Callable<Boolean> {
+    private final RequestInfo requestInfo;
+    private final SubRequestWrapper requestWrapper;
+    private final SubResponseWrapper responseWrapper;
+    private final Session session;
+    private Future<Boolean> future;
+
+    SubRequest(SlingHttpServletRequest request, SlingHttpServletResponse response,
+        RequestInfo requestInfo, Session session) {
+      this.requestInfo = requestInfo;
+      this.requestWrapper = new SubRequestWrapper(request, requestInfo);
+      this.responseWrapper = new SubResponseWrapper(response);
+      this.session = session;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.concurrent.Callable#call()
+     */
+    public Boolean call() throws Exception {
+      try {
+        LOGGER.debug("Processing request path='{}'", requestInfo.getUrl());
+        requestProcessor.processRequest(requestWrapper, responseWrapper,
+            resourceResolverFactory.getResourceResolver(session));
+        return true;
+      } catch (ServletException e) {
+        return false;
+      } catch (IOException e) {
+        return false;
+      } finally {
+        session.logout();
+      }
     }
   }
 
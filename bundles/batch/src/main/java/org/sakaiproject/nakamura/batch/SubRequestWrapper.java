@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A batched request that is processed as a request of its own, alongside other batched
+ * requests. It has its own attributes and character encoding, so that the request
+ * processor does not share state between sub-requests through the batch request, and a
+ * path without the query string.
+ */
+class SubRequestWrapper extends RequestWrapper {
+
+  private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+  private String characterEncoding;
+
+  SubRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+    super(request, requestInfo);
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Override
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(attributes.keySet());
+  }
+
+  @Override
+  public void setAttribute(String name, Object value) {
+    if (value == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, value);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    if (characterEncoding == null) {
+      return super.getCharacterEncoding();
+    }
+    return characterEncoding;
+  }
+
+  @Override
+  public void setCharacterEncoding(String env) {
+    characterEncoding = env;
+  }
+
+  @Override
+  public String getPathInfo() {
+    return getPathTranslated();
+  }
+
+  @Override
+  public String getRequestURI() {
+    return getPathTranslated();
+  }
+
+  @Override
+  public String getServletPath() {
+    return "";
+  }
+
+}
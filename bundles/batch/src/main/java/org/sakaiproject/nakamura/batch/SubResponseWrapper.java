@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.sakaiproject.nakamura.util.ResponseWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The response to a batched request that is processed on a thread of its own. Nothing is
+ * passed through to the batch response, which is in use by the batch request thread:
+ * cookies are held until the batch request thread adds them with {@link #addCookiesTo},
+ * and a redirect or locale only affects this response.
+ */
+class SubResponseWrapper extends ResponseWrapper {
+
+  private final List<Cookie> cookies = new ArrayList<Cookie>();
+  private Locale locale;
+
+  SubResponseWrapper(SlingHttpServletResponse response) {
+    super(response);
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) {
+    cookies.add(cookie);
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getResponseHeaders().get(name) != null;
+  }
+
+  @Override
+  public void sendRedirect(String location) {
+    setStatus(HttpServletResponse.SC_MOVED_TEMPORARILY);
+    setHeader("Location", location);
+  }
+
+  @Override
+  public Locale getLocale() {
+    if (locale == null) {
+      return super.getLocale();
+    }
+    return locale;
+  }
+
+  @Override
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+  }
+
+  @Override
+  public void setBufferSize(int size) {
+  }
+
+  /**
+   * Add the cookies set by the batched request to the batch response, from the thread
+   * that owns it.
+   *
+   * @param response
+   *          the batch response.
+   */
+  void addCookiesTo(HttpServletResponse response) {
+    for (Cookie cookie : cookies) {
+      response.addCookie(cookie);
+    }
+  }
+
+}
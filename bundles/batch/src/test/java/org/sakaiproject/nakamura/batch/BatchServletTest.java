@@ -17,24 +17,46 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.batch.BatchServlet.CONCURRENT_PARAMETER;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceResolverFactory;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
+import javax.jcr.Credentials;
+import javax.jcr.Session;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -80,4 +102,146 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testResultsAreWrittenInRequestOrder() throws Exception {
+    String json = "[{\"url\" : \"/foo/one\",\"method\" : \"GET\"},{\"url\" : \"/foo/two\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/foo/one")).thenReturn(resource);
+    when(resourceResolver.resolve(request, "/foo/two")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(response.getWriter()).thenReturn(writer);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(2, results.length());
+    assertEquals("/foo/one", results.getJSONObject(0).getString("url"));
+    assertEquals("/foo/two", results.getJSONObject(1).getString("url"));
+    assertEquals(200, results.getJSONObject(1).getInt("status"));
+  }
+
+  @Test
+  public void testConcurrentRequestsKeepRequestOrder() throws Exception {
+    String json = "[{\"url\" : \"/foo/one\",\"method\" : \"GET\"},{\"url\" : \"/foo/two\",\"method\" : \"POST\"},{\"url\" : \"/foo/three\",\"method\" : \"GET\"},{\"url\" : \"/foo/four?x=1\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(CONCURRENT_PARAMETER)).thenReturn("true");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    Session session = mock(Session.class);
+    Session adminSession = mock(Session.class);
+    Session userSession = mock(Session.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    when(session.getUserID()).thenReturn("ieb");
+    when(resourceResolver.resolve(request, "/foo/two")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(response.getWriter()).thenReturn(writer);
+
+    servlet.slingRepository = mock(SlingRepository.class);
+    when(servlet.slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    when(adminSession.impersonate(any(Credentials.class))).thenReturn(userSession);
+    servlet.resourceResolverFactory = mock(JcrResourceResolverFactory.class);
+    servlet.requestProcessor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        String path = ((HttpServletRequest) invocation.getArguments()[0]).getPathInfo();
+        if ("/foo/one".equals(path)) {
+          // the first request completes after the others have started.
+          Thread.sleep(200);
+        }
+        ((HttpServletResponse) invocation.getArguments()[1]).getWriter().write(path);
+        return null;
+      }
+    }).when(servlet.requestProcessor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+
+    servlet.activate(new HashMap<String, Object>());
+    try {
+      servlet.doPost(request, response);
+    } finally {
+      servlet.deactivate();
+    }
+    writer.flush();
+
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(4, results.length());
+    assertEquals("/foo/one", results.getJSONObject(0).getString("body"));
+    assertEquals("/foo/two", results.getJSONObject(1).getString("url"));
+    assertEquals("/foo/three", results.getJSONObject(2).getString("body"));
+    assertEquals("/foo/four", results.getJSONObject(3).getString("body"));
+    verify(userSession, times(3)).logout();
+    verify(adminSession).logout();
+  }
+
+  @Test
+  public void testConcurrentRequestsDoNotTouchTheBatchResponse() throws Exception {
+    String json = "[{\"url\" : \"/foo/one\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(CONCURRENT_PARAMETER)).thenReturn("true");
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Session session = mock(Session.class);
+    Session adminSession = mock(Session.class);
+    Session userSession = mock(Session.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    when(session.getUserID()).thenReturn("ieb");
+    when(response.getWriter()).thenReturn(writer);
+    final Thread batchThread = Thread.currentThread();
+    final List<Thread> cookieThreads = new ArrayList<Thread>();
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        cookieThreads.add(Thread.currentThread());
+        return null;
+      }
+    }).when(response).addCookie(any(Cookie.class));
+
+    servlet.slingRepository = mock(SlingRepository.class);
+    when(servlet.slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    when(adminSession.impersonate(any(Credentials.class))).thenReturn(userSession);
+    servlet.resourceResolverFactory = mock(JcrResourceResolverFactory.class);
+    servlet.requestProcessor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletResponse subResponse = (HttpServletResponse) invocation.getArguments()[1];
+        subResponse.addCookie(new Cookie("name", "value"));
+        subResponse.sendRedirect("/foo/two");
+        return null;
+      }
+    }).when(servlet.requestProcessor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+
+    servlet.activate(new HashMap<String, Object>());
+    try {
+      servlet.doPost(request, response);
+    } finally {
+      servlet.deactivate();
+    }
+    writer.flush();
+
+    JSONObject result = new JSONObject(baos.toString("UTF-8")).getJSONArray("results")
+        .getJSONObject(0);
+    assertEquals(302, result.getInt("status"));
+    assertEquals("/foo/two", result.getJSONObject("headers").getString("Location"));
+    verify(response, never()).sendRedirect(anyString());
+    assertEquals(1, cookieThreads.size());
+    assertSame(batchThread, cookieThreads.get(0));
+  }
+
 }
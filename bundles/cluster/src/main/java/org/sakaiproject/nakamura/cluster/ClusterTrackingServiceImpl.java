@@ -86,6 +86,14 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
+  @Property(name="unique-id-format", value = "legacy", description = "The format of cluster unique ids, legacy for the original variable length ids, compact for 64 bit ids encoded as 11 base 62 characters, generated without locking. Compact ids need fewer than 1024 servers in the cluster.")
+  protected static final String PROP_UNIQUE_ID_FORMAT = "unique-id-format";
+
+  /**
+   * The value of unique-id-format that selects compact ids.
+   */
+  protected static final String COMPACT_ID_FORMAT = "compact";
+
   /**
    * The Cache Manager service, injected.
    */
@@ -116,6 +124,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private int serverNumber;
   private String thisSecureUrl;
   private UniqueIdGenerator uniqueIdGenerator;
+  private boolean compactIds;
 
   /**
    * Constructor for testing purposes only.
@@ -140,6 +149,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
     Dictionary<String, Object> properties = ctx.getProperties();
     thisSecureUrl = (String) properties.get(PROP_SECURE_HOST_URL);
+    compactIds = COMPACT_ID_FORMAT.equals(properties.get(PROP_UNIQUE_ID_FORMAT));
 
     componentStartTime = String.valueOf(System.currentTimeMillis());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -148,6 +158,11 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     isActive = true;
     pingInstance();
     uniqueIdGenerator = new UniqueIdGenerator(serverNumber);
+    if (compactIds && serverNumber > UniqueIdGenerator.MAX_COMPACT_SERVER_ID) {
+      LOGGER.warn("Server number {} is too large for compact ids, using legacy ids",
+          serverNumber);
+      compactIds = false;
+    }
     isReady = true;
   }
 
@@ -480,6 +495,9 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueId()
    */
   public String getClusterUniqueId() {
+    if (compactIds) {
+      return uniqueIdGenerator.nextCompactId();
+    }
     return uniqueIdGenerator.nextId();
   }
 
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.CacheEvent;
+import org.sakaiproject.nakamura.api.memory.CacheEventListener;
+import org.sakaiproject.nakamura.api.memory.CacheEventTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Sends batches of cluster cache events to all app servers over a JMS topic. When this
+ * service is active the cache manager uses it for CLUSTERINVALIDATED and
+ * CLUSTERREPLICATED caches.
+ */
+@Component(immediate = true)
+@Service(value = CacheEventTransport.class)
+public class JmsCacheEventTransport implements CacheEventTransport, MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(JmsCacheEventTransport.class);
+
+  /**
+   * The topic batches are sent on.
+   */
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/cacheevents";
+
+  /**
+   * The message property holding the id of the sending node.
+   */
+  public static final String SOURCE_ID = "cacheEventSource";
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+
+  private final List<CacheEventListener> listeners = new CopyOnWriteArrayList<CacheEventListener>();
+  private Connection connection;
+  private Session sendSession;
+  private MessageProducer producer;
+
+  /**
+   * Connect to the topic. If that fails the component does not activate, so that it is
+   * not registered and the cache manager keeps using its loopback transport, rather than
+   * one that can not deliver.
+   *
+   * @param componentContext
+   * @throws JMSException
+   *           if the connection could not be made.
+   */
+  protected void activate(ComponentContext componentContext) throws JMSException {
+    try {
+      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+      Session receiveSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic receiveTopic = receiveSession.createTopic(TOPIC);
+      MessageConsumer consumer = receiveSession.createConsumer(receiveTopic);
+      consumer.setMessageListener(this);
+      sendSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      producer = sendSession.createProducer(sendSession.createTopic(TOPIC));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      connection.start();
+    } catch (JMSException e) {
+      LOGGER.error("Unable to connect the cluster cache event transport " + e.getMessage(),
+          e);
+      close();
+      throw e;
+    }
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    close();
+  }
+
+  private synchronized void close() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    sendSession = null;
+    producer = null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#send(java.lang.String,
+   *      java.util.List)
+   */
+  public synchronized void send(String sourceId, List<CacheEvent> events) {
+    if (producer == null) {
+      throw new IllegalStateException("JMS Cache Event Transport is not connected");
+    }
+    try {
+      ObjectMessage message = sendSession.createObjectMessage(new ArrayList<CacheEvent>(
+          events));
+      message.setStringProperty(SOURCE_ID, sourceId);
+      producer.send(message);
+    } catch (JMSException e) {
+      throw new IllegalStateException("Failed to send cache events " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  @SuppressWarnings("unchecked")
+  public void onMessage(Message message) {
+    try {
+      if (!(message instanceof ObjectMessage)) {
+        return;
+      }
+      String sourceId = message.getStringProperty(SOURCE_ID);
+      List<CacheEvent> events = (List<CacheEvent>) ((ObjectMessage) message).getObject();
+      for (CacheEventListener listener : listeners) {
+        listener.onCacheEvents(sourceId, events);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#addListener(org.sakaiproject.nakamura.api.memory.CacheEventListener)
+   */
+  public void addListener(CacheEventListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#removeListener(org.sakaiproject.nakamura.api.memory.CacheEventListener)
+   */
+  public void removeListener(CacheEventListener listener) {
+    listeners.remove(listener);
+  }
+
+}
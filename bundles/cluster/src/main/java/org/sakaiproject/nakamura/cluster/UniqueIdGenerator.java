@@ -4,9 +4,32 @@ import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UniqueIdGenerator {
 
+  /**
+   * The bits of a compact id given to the sequence within a ms.
+   */
+  private static final int SEQUENCE_BITS = 12;
+  /**
+   * The bits of a compact id given to the server number.
+   */
+  private static final int SERVER_BITS = 10;
+  /**
+   * The largest server number a compact id can hold.
+   */
+  public static final int MAX_COMPACT_SERVER_ID = (1 << SERVER_BITS) - 1;
+  /**
+   * The number of base 62 characters in a compact id, enough for any positive long.
+   */
+  public static final int COMPACT_ID_LENGTH = 11;
+  /**
+   * In ascii order so that compact ids sort in the same order as the numbers.
+   */
+  private static final char[] BASE62 = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+      .toCharArray();
+
   private Object lockObject = new Object();
   private long next = 0;
   private long epoch;
@@ -14,6 +37,11 @@ public class UniqueIdGenerator {
   private long micro = 0;
   private int serverId;
   private int rollover;
+  /**
+   * The time since the epoch shifted left over the sequence within that ms, for compact
+   * ids.
+   */
+  private AtomicLong compactState = new AtomicLong();
 
   public UniqueIdGenerator(int serverId) {
     this.serverId = serverId;
@@ -61,6 +89,81 @@ public class UniqueIdGenerator {
     return idNum;
   }
   
+  /**
+   * Get a 64 bit id without taking a lock. The id is made of the ms since the epoch, the
+   * server number and a sequence within the ms, in that order, so ids from one server
+   * increase and no 2 servers with different numbers can produce the same id. If more
+   * than 4096 ids are needed in a ms the sequence carries into the next ms, the same as
+   * the rollover of {@link #nextIdNum()}.
+   *
+   * @return the next id.
+   */
+  public long nextIdLong() {
+    if (serverId < 0 || serverId > MAX_COMPACT_SERVER_ID) {
+      throw new IllegalStateException("Server number " + serverId
+          + " is too large for compact ids, the limit is " + MAX_COMPACT_SERVER_ID);
+    }
+    long now = (System.currentTimeMillis() - epoch) << SEQUENCE_BITS;
+    long previous;
+    long next;
+    do {
+      previous = compactState.get();
+      // the same ms, or the clock went back, continue the sequence.
+      next = (now > previous) ? now : previous + 1;
+    } while (!compactState.compareAndSet(previous, next));
+    long sequenceMask = (1L << SEQUENCE_BITS) - 1;
+    return ((next & ~sequenceMask) << SERVER_BITS) | ((long) serverId << SEQUENCE_BITS)
+        | (next & sequenceMask);
+  }
+
+  /**
+   * @return the next 64 bit id, encoded as {@link #COMPACT_ID_LENGTH} url safe base 62
+   *         characters.
+   */
+  public String nextCompactId() {
+    return encodeCompactId(nextIdLong());
+  }
+
+  /**
+   * Encode a positive long as a fixed length base 62 string. Encoded ids sort in the same
+   * order as the numbers.
+   *
+   * @param id
+   * @return the encoded id.
+   */
+  public static String encodeCompactId(long id) {
+    char[] c = new char[COMPACT_ID_LENGTH];
+    for (int i = COMPACT_ID_LENGTH - 1; i >= 0; i--) {
+      c[i] = BASE62[(int) (id % 62)];
+      id = id / 62;
+    }
+    return new String(c);
+  }
+
+  /**
+   * @param id
+   *          an id encoded by {@link #encodeCompactId(long)}
+   * @return the number.
+   */
+  public static long decodeCompactId(String id) {
+    long n = 0;
+    for (int i = 0; i < id.length(); i++) {
+      char c = id.charAt(i);
+      int d;
+      if (c >= '0' && c <= '9') {
+        d = c - '0';
+      } else if (c >= 'A' && c <= 'Z') {
+        d = c - 'A' + 10;
+      } else if (c >= 'a' && c <= 'z') {
+        d = c - 'a' + 36;
+      } else {
+        throw new IllegalArgumentException("Not a compact id " + id);
+      }
+      n = n * 62 + d;
+    }
+    return n;
+  }
+
   public int getRollover() {
     return rollover;
   }
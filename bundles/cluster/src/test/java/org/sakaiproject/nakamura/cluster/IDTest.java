@@ -125,4 +125,97 @@ public class IDTest {
         + uniqueIdGenerator.getRollover());
   }
 
+  @Test
+  public void testCompactId() throws InterruptedException {
+    final Map<Long, Long> ids = new ConcurrentHashMap<Long, Long>();
+    final int perThread = 10000;
+    Thread[] threads = new Thread[20];
+    for (int i = 0; i < threads.length; i += 2) {
+      // 2 threads share each generator, as the threads of a server do.
+      UniqueIdGenerator idGenerator = new UniqueIdGenerator(i / 2);
+      threads[i] = new Thread(new CompactIdRunner(idGenerator, ids, perThread));
+      threads[i + 1] = new Thread(new CompactIdRunner(idGenerator, ids, perThread));
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(threads.length * perThread, ids.size());
+  }
+
+  @Test
+  public void testCompactIdEncoding() {
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(3);
+    String last = "";
+    for (int i = 0; i < 10000; i++) {
+      long id = uniqueIdGenerator.nextIdLong();
+      String encoded = UniqueIdGenerator.encodeCompactId(id);
+      Assert.assertEquals(UniqueIdGenerator.COMPACT_ID_LENGTH, encoded.length());
+      Assert.assertEquals(id, UniqueIdGenerator.decodeCompactId(encoded));
+      Assert.assertTrue(encoded.compareTo(last) > 0);
+      last = encoded;
+    }
+    Assert.assertEquals("00000000000", UniqueIdGenerator.encodeCompactId(0));
+    Assert.assertEquals(Long.MAX_VALUE, UniqueIdGenerator.decodeCompactId(UniqueIdGenerator
+        .encodeCompactId(Long.MAX_VALUE)));
+  }
+
+  /**
+   * Compares the legacy and compact ids with several threads sharing one generator, as
+   * they do in a server.
+   */
+  @Test
+  public void testCompactRate() throws InterruptedException {
+    final UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
+    final int testSize = 100000;
+    for (int mode = 0; mode < 2; mode++) {
+      final boolean compact = (mode == 1);
+      Thread[] threads = new Thread[4];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread(new Runnable() {
+          public void run() {
+            for (int j = 0; j < testSize; j++) {
+              if (compact) {
+                uniqueIdGenerator.nextCompactId();
+              } else {
+                uniqueIdGenerator.nextId();
+              }
+            }
+          }
+        });
+      }
+      long s = System.nanoTime();
+      for (Thread t : threads) {
+        t.start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      double t = (double) (System.nanoTime() - s) / (testSize * threads.length);
+      LOGGER.info((compact ? "Compact" : "Legacy") + " time per Id " + t + " ns with "
+          + threads.length + " threads");
+    }
+  }
+
+  private static class CompactIdRunner implements Runnable {
+    private final UniqueIdGenerator idGenerator;
+    private final Map<Long, Long> ids;
+    private final int n;
+
+    private CompactIdRunner(UniqueIdGenerator idGenerator, Map<Long, Long> ids, int n) {
+      this.idGenerator = idGenerator;
+      this.ids = ids;
+      this.n = n;
+    }
+
+    public void run() {
+      for (int j = 0; j < n; j++) {
+        long id = idGenerator.nextIdLong();
+        ids.put(id, id);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+
+/**
+ *
+ */
+public class JmsCacheEventTransportTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testActivateFailsWithoutAConnection() throws Exception {
+    ConnectionFactoryService connectionFactoryService = createMock(ConnectionFactoryService.class);
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        connectionFactory);
+    expect(connectionFactory.createConnection()).andThrow(
+        new JMSException("Broker is not running"));
+    replay();
+
+    JmsCacheEventTransport transport = new JmsCacheEventTransport();
+    transport.connFactoryService = connectionFactoryService;
+    try {
+      transport.activate(null);
+      fail("Activation should fail, so that the transport is not registered");
+    } catch (JMSException e) {
+      // expected
+    }
+    try {
+      transport.send("node1", null);
+      fail("Should not be able to send without a connection");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    verify();
+  }
+}
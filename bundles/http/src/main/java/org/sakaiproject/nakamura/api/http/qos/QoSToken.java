@@ -47,4 +47,12 @@ public interface QoSToken {
    */
   void queue(Continuation continuation);
 
+  /**
+   * Take a permit for a request that has been queued but not yet suspended. A permit
+   * released after a failed acquire, but before the request was queued, is handed to
+   * nobody, so this is checked after queuing and before suspending.
+   * @return true if a permit was taken, the request carries on and is not suspended.
+   */
+  boolean acquireQueued();
+
 }
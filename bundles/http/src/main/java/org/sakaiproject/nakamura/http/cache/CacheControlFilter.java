@@ -36,6 +36,9 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
 import javax.servlet.Filter;
@@ -98,6 +101,20 @@ public class CacheControlFilter implements Filter {
   @Property(intValue=5)
   private static final String FILTER_PRIORITY_CONF = "filter.priority";
 
+  /**
+   * The time in seconds after a cached response expires that it is still sent while one
+   * request renders its replacement.
+   */
+  @Property(intValue=60)
+  static final String SAKAI_CACHE_STALE = "sakai.cache.stale";
+
+  /**
+   * The renders of cacheable responses in progress, by cache key.
+   */
+  private ConcurrentMap<String, CountDownLatch> renders = new ConcurrentHashMap<String, CountDownLatch>();
+
+  private long staleTime = 60000L;
+
   
   @Reference 
   protected CacheManagerService cacheManagerService;
@@ -160,22 +177,28 @@ public class CacheControlFilter implements Filter {
       sresponse.flushBuffer();
     } else {
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
-        if ( cachedResponseManager.isValid() ) {
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache(), renders, staleTime);
+        if ( cachedResponseManager.isValid() || !cachedResponseManager.acquireRender() ) {
           cachedResponseManager.send(sresponse);
           return;
         }
       }
-      if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
-        fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
-      }
-      if ( fresponse != null ) {
-        chain.doFilter(request, fresponse);
+      try {
+        if ( !withLastModfied || !withCookies || cachedResponseManager != null ) {
+          fresponse = new FilterResponseWrapper(sresponse, withLastModfied, withCookies, cachedResponseManager != null);
+        }
+        if ( fresponse != null ) {
+          chain.doFilter(request, fresponse);
+          if ( cachedResponseManager != null ) {
+            cachedResponseManager.save(fresponse.getResponseOperation());
+          }
+        } else {
+          chain.doFilter(request, response);
+        }
+      } finally {
         if ( cachedResponseManager != null ) {
-          cachedResponseManager.save(fresponse.getResponseOperation());
+          cachedResponseManager.releaseRender();
         }
-      } else {
-        chain.doFilter(request, response);
       }
     }
   }
@@ -261,6 +284,7 @@ public class CacheControlFilter implements Filter {
     }
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),0);
+    staleTime = OsgiUtil.toInteger(properties.get(SAKAI_CACHE_STALE), 60) * 1000L;
 
     extHttpService.registerFilter(this, ".*", null, filterPriority, null);
 
@@ -17,13 +17,22 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content, with a strong ETag computed when
+  the response is saved and a gzipped copy of compressible content. The gzipped copy is a
+  different representation, so it is sent with its own ETag, the identity tag with -gzip
+  appended.
  */
 public class CachedResponse implements Serializable {
 
@@ -31,28 +40,289 @@ public class CachedResponse implements Serializable {
    * 
    */
   private static final long serialVersionUID = -533080549451000116L;
+  /**
+   * Content smaller than this is not worth compressing.
+   */
+  private static final int MIN_GZIP_SIZE = 256;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  /**
+   * The headers of a 200 that must also be sent with a 304, RFC 7232 4.1. The ETag is
+   * set separately.
+   */
+  private static final String NOT_MODIFIED_HEADERS = ":cache-control:content-location:date:expires:vary:";
   private long expires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private String etag;
+  private long lastModified = -1;
+  private byte[] gzipContent;
+  private String gzipEtag;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
     responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
-    operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+
+    String contentType = null;
+    String characterEncoding = null;
+    for (Operation o : responseOperation.getRedoLog()) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        contentType = o.get(0);
+        break;
+      case OperationResponseCapture.SET_CHARACTER_ENCODING:
+        characterEncoding = o.get(0);
+        break;
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_HEADER:
+        if ("ETag".equalsIgnoreCase((String) o.get(0))) {
+          etag = o.get(1);
+        }
+        break;
+      case OperationResponseCapture.SET_DATE_HEADER:
+      case OperationResponseCapture.ADD_DATE_HEADER:
+        if ("Last-Modified".equalsIgnoreCase((String) o.get(0))) {
+          lastModified = (Long) o.get(1);
+        }
+        break;
+      }
+    }
+    byte[] content = getContentBytes(contentType, characterEncoding);
+    if (etag == null) {
+      etag = computeEtag(content);
+      responseOperation.setHeader("ETag", etag);
+    }
+    if (content != null && content.length >= MIN_GZIP_SIZE && isCompressible(contentType)) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 2);
+      GZIPOutputStream gzip = new GZIPOutputStream(baos);
+      gzip.write(content);
+      gzip.close();
+      if (baos.size() < content.length) {
+        gzipContent = baos.toByteArray();
+        gzipEtag = variantEtag(etag, "-gzip");
+      }
+    }
+    operations = responseOperation.getRedoLog();
   }
 
   public boolean isValid() {
     return expires > System.currentTimeMillis();
   }
 
+  /**
+   * @param staleTime
+   *          the time in ms after expiry that a stale response may still be sent.
+   * @return true if the response has expired but is still within the stale time.
+   */
+  public boolean isStale(long staleTime) {
+    long now = System.currentTimeMillis();
+    return expires <= now && expires + staleTime > now;
+  }
+
   public void replay(HttpServletResponse response) throws IOException {
     OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
     responseOperation.replay(response);
   }
-  
+
+  /**
+   * Replay the response for a request, sending a 304 if the client already has it and
+   * the gzipped content if the client accepts it.
+   *
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  public void replay(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    boolean gzip = gzipContent != null && acceptsGzip(request);
+    String selectedEtag = gzip ? gzipEtag : etag;
+    if (isNotModified(request, selectedEtag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      if (gzipContent != null) {
+        response.setHeader("Vary", "Accept-Encoding");
+      }
+      replayNotModifiedHeaders(response);
+      response.setHeader("ETag", selectedEtag);
+      return;
+    }
+    if (gzipContent != null) {
+      response.setHeader("Vary", "Accept-Encoding");
+      if (gzip) {
+        OperationResponseReplay responseOperation = new OperationResponseReplay(operations,
+            gzipContent, null, true, gzipEtag);
+        responseOperation.replay(response);
+        return;
+      }
+    }
+    replay(response);
+  }
+
+  /**
+   * @return the strong ETag of the content.
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @return the strong ETag of the gzipped content, or null if there is none.
+   */
+  public String getGzipEtag() {
+    return gzipEtag;
+  }
+
+  /**
+   * @return true if there is a gzipped copy of the content.
+   */
+  public boolean hasGzipContent() {
+    return gzipContent != null;
+  }
+
+  /**
+   * Send the cache headers of the recorded response with a 304.
+   */
+  private void replayNotModifiedHeaders(HttpServletResponse response) {
+    for (Operation o : operations) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_HEADER:
+        if (isNotModifiedHeader((String) o.get(0))) {
+          response.setHeader((String) o.get(0), (String) o.get(1));
+        }
+        break;
+      case OperationResponseCapture.SET_DATE_HEADER:
+      case OperationResponseCapture.ADD_DATE_HEADER:
+        if (isNotModifiedHeader((String) o.get(0))) {
+          response.setDateHeader((String) o.get(0), (Long) o.get(1));
+        }
+        break;
+      }
+    }
+  }
+
+  private boolean isNotModifiedHeader(String name) {
+    return NOT_MODIFIED_HEADERS.indexOf(":" + name.toLowerCase() + ":") >= 0;
+  }
+
+  /**
+   * @param selectedEtag
+   *          the ETag of the representation that would be sent.
+   */
+  private boolean isNotModified(HttpServletRequest request, String selectedEtag) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if ("*".equals(tag) || tag.equals(selectedEtag)) {
+          return true;
+        }
+      }
+      // If-Modified-Since is ignored when there is an If-None-Match.
+      return false;
+    }
+    if (lastModified > 0) {
+      try {
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        // http dates have a resolution of a second.
+        return ifModifiedSince > 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+        for (int i = 1; i < parts.length; i++) {
+          String q = parts[i].trim();
+          if (q.startsWith("q=")) {
+            try {
+              return Double.parseDouble(q.substring(2)) > 0;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private byte[] getContentBytes(String contentType, String characterEncoding) {
+    if (byteContent != null) {
+      return byteContent;
+    }
+    if (stringContent == null) {
+      return null;
+    }
+    if (characterEncoding == null && contentType != null) {
+      int i = contentType.toLowerCase().indexOf("charset=");
+      if (i >= 0) {
+        characterEncoding = contentType.substring(i + 8).trim();
+      }
+    }
+    try {
+      // the servlet default when no encoding is set.
+      return stringContent.getBytes(characterEncoding == null ? "ISO-8859-1"
+          : characterEncoding);
+    } catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the tag with the suffix added inside its quotes.
+   */
+  private String variantEtag(String tag, String suffix) {
+    if (tag.length() > 1 && tag.endsWith("\"")) {
+      return tag.substring(0, tag.length() - 1) + suffix + "\"";
+    }
+    return tag + suffix;
+  }
+
+  private String computeEtag(byte[] content) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      if (content != null) {
+        md.update(content);
+      } else if (stringContent != null) {
+        md.update(stringContent.getBytes("UTF-8"));
+      }
+      byte[] digest = md.digest();
+      char[] c = new char[digest.length * 2 + 2];
+      c[0] = '"';
+      for (int i = 0; i < digest.length; i++) {
+        c[i * 2 + 1] = HEX[(digest[i] >> 4) & 0xf];
+        c[i * 2 + 2] = HEX[digest[i] & 0xf];
+      }
+      c[c.length - 1] = '"';
+      return new String(c);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("MD5 is not available " + e.getMessage());
+    }
+  }
+
+  private boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String ct = contentType.toLowerCase();
+    return ct.startsWith("text/") || ct.indexOf("javascript") >= 0
+        || ct.indexOf("json") >= 0 || ct.indexOf("xml") >= 0;
+  }
+
   @Override
   public String toString() {
     return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
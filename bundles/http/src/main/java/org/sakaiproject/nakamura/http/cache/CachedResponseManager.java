@@ -23,23 +23,60 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Manages the cached response for one request. When there is no current response only
+ * one request for a key renders it, the others either send the stale response, if there
+ * is one within the stale time, or wait for the render to finish and send what it saved.
+ */
 public class CachedResponseManager {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
+  /**
+   * The longest a request waits for another request to render the response, after which
+   * it renders the response itself.
+   */
+  private static final long RENDER_WAIT = 30000L;
   private int cacheAge;
   private String key;
   private Cache<CachedResponse> cache;
   private CachedResponse cachedResponse;
+  private CachedResponse staleResponse;
+  private ConcurrentMap<String, CountDownLatch> renders;
+  private CountDownLatch render;
+  private HttpServletRequest request;
 
   public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+    this(request, cacheAge, cache, new ConcurrentHashMap<String, CountDownLatch>(), 0);
+  }
+
+  /**
+   * @param request
+   * @param cacheAge
+   *          the time in s a saved response is current for.
+   * @param cache
+   * @param renders
+   *          the renders in progress, shared by all requests.
+   * @param staleTime
+   *          the time in ms after expiry that a response may be sent while another
+   *          request renders a new one.
+   */
+  public CachedResponseManager(HttpServletRequest request, int cacheAge,
+      Cache<CachedResponse> cache, ConcurrentMap<String, CountDownLatch> renders,
+      long staleTime) {
+    this.request = request;
     this.cacheAge = cacheAge;
     this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
     this.cache = cache;
-    this.cachedResponse = load();
+    this.renders = renders;
+    this.cachedResponse = load(staleTime);
   }
 
   private String hashKey(String key) {
@@ -53,6 +90,53 @@ public class CachedResponseManager {
     return cachedResponse != null;
   }
 
+  /**
+   * Decide if this request renders the response. Only one request for a key renders at a
+   * time, the others get a response to send, either the stale one or the one the render
+   * saved.
+   *
+   * @return true if this request must render the response, false if there is a response
+   *         to {@link #send(HttpServletResponse)}.
+   */
+  public boolean acquireRender() {
+    CountDownLatch latch = new CountDownLatch(1);
+    CountDownLatch current = renders.putIfAbsent(key, latch);
+    if (current == null) {
+      render = latch;
+      return true;
+    }
+    if (staleResponse != null) {
+      cachedResponse = staleResponse;
+      return false;
+    }
+    try {
+      if (current.await(RENDER_WAIT, TimeUnit.MILLISECONDS)) {
+        cachedResponse = load(0);
+        if (cachedResponse != null) {
+          return false;
+        }
+      } else {
+        LOGGER.warn("Gave up waiting for {} to be rendered ", key);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // the render did not leave a response that can be used, render without coalescing.
+    return true;
+  }
+
+  /**
+   * Release the requests waiting for this render, must be called if
+   * {@link #acquireRender()} returned true.
+   */
+  public void releaseRender() {
+    if (render != null) {
+      renders.remove(key, render);
+      render.countDown();
+      render = null;
+    }
+  }
+
   public void save(OperationResponseCapture responseOperation) {
     try {
       if ( responseOperation.canCache() ) {
@@ -63,18 +147,28 @@ public class CachedResponseManager {
     }
   }
 
-  private CachedResponse load() {
+  private CachedResponse load(long staleTime) {
     CachedResponse cachedResponse = null;
     cachedResponse = cache.get(key);
     if ( cachedResponse != null && !cachedResponse.isValid() ) {
+      if (cachedResponse.isStale(staleTime)) {
+        staleResponse = cachedResponse;
+      } else {
+        cache.remove(key);
+      }
       cachedResponse = null;
-      cache.remove(key);
     }
     return cachedResponse;
   }
 
+  /**
+   * Send the cached response, or a 304 if the client already has it.
+   *
+   * @param response
+   * @throws IOException
+   */
   public void send(HttpServletResponse response) throws IOException {
-    cachedResponse.replay(response);
+    cachedResponse.replay(request, response);
   }
   
   @Override
@@ -33,11 +33,39 @@ public class OperationResponseReplay implements Serializable {
   private Operation[] operations;
   private String stringContent;
   private byte[] byteContent;
+  private boolean gzipped;
+  private String etag;
 
   public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent) {
+    this(operations, byteContent, stringContent, false);
+  }
+
+  /**
+   * @param operations
+   * @param byteContent
+   * @param stringContent
+   * @param gzipped
+   *          true if the byte content is gzipped, the recorded content length is replaced.
+   */
+  public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent, boolean gzipped) {
+    this(operations, byteContent, stringContent, gzipped, null);
+  }
+
+  /**
+   * @param operations
+   * @param byteContent
+   * @param stringContent
+   * @param gzipped
+   *          true if the byte content is gzipped, the recorded content length is replaced.
+   * @param etag
+   *          if not null, replaces the recorded ETag, so a variant can carry its own tag.
+   */
+  public OperationResponseReplay(Operation[] operations, byte[] byteContent, String stringContent, boolean gzipped, String etag) {
     this.operations = operations;
     this.byteContent = byteContent;
     this.stringContent = stringContent;
+    this.gzipped = gzipped;
+    this.etag = etag;
   }
 
   /**
@@ -63,7 +91,9 @@ public class OperationResponseReplay implements Serializable {
         response.setCharacterEncoding((String)o.get(0));
         break;
       case OperationResponseCapture.SET_CONTENT_LENGTH:
-        response.setContentLength((Integer)o.get(0));
+        if ( !gzipped ) {
+          response.setContentLength((Integer)o.get(0));
+        }
         break;
       case OperationResponseCapture.SET_CONTENT_TYPE:
         response.setContentType((String)o.get(0));
@@ -89,6 +119,13 @@ public class OperationResponseReplay implements Serializable {
       }
     }
 
+     if ( gzipped ) {
+       response.setHeader("Content-Encoding", "gzip");
+       response.setContentLength(byteContent.length);
+     }
+     if ( etag != null ) {
+       response.setHeader("ETag", etag);
+     }
      if ( stringContent != null  ) {
        response.getWriter().write(stringContent);
      } else if ( byteContent != null ){
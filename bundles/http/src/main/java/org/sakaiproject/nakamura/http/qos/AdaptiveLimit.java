@@ -0,0 +1,89 @@
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * A gradient concurrency limit. The latency of each request is compared with the lowest
+ * latency seen recently; while requests complete within {@link #TOLERANCE} times that
+ * latency the limit grows, and as latency rises above it the limit is cut in proportion,
+ * by at most half per sample. The limit is only grown while the category is using at
+ * least half of it, so that a quiet category does not accumulate a limit it has never
+ * been tested at. The lowest latency is forgotten every {@link #PROBE_INTERVAL} samples
+ * so that the baseline follows changes in the cost of the requests.
+ */
+public class AdaptiveLimit {
+
+  /**
+   * How much slower than the baseline a request may be before the limit is reduced.
+   */
+  private static final double TOLERANCE = 2.0;
+  /**
+   * The weight of each new sample in the smoothed latency and limit.
+   */
+  private static final double SMOOTHING = 0.2;
+  /**
+   * The number of samples after which the baseline latency is measured again.
+   */
+  private static final int PROBE_INTERVAL = 1000;
+
+  private final ResizableSemaphore semaphore;
+  private final int minLimit;
+  private final int maxLimit;
+  private double estimatedLimit;
+  private double smoothedLatency;
+  private long minLatency;
+  private int samples;
+
+  public AdaptiveLimit(ResizableSemaphore semaphore, int minLimit, int maxLimit) {
+    this.semaphore = semaphore;
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    estimatedLimit = Math.min(this.maxLimit, Math.max(this.minLimit, semaphore.getLimit()));
+    semaphore.setLimit((int) estimatedLimit);
+  }
+
+  /**
+   * Record the latency of a completed request and adjust the limit.
+   *
+   * @param latency
+   *          the time the request held its permit, in ns.
+   * @param inFlight
+   *          the number of permits held when the request completed, including its own.
+   */
+  public synchronized void sample(long latency, int inFlight) {
+    latency = Math.max(1L, latency);
+    if (++samples % PROBE_INTERVAL == 0) {
+      minLatency = 0;
+    }
+    if (minLatency == 0 || latency < minLatency) {
+      minLatency = latency;
+    }
+    if (smoothedLatency == 0) {
+      smoothedLatency = latency;
+    } else {
+      smoothedLatency = smoothedLatency * (1 - SMOOTHING) + latency * SMOOTHING;
+    }
+
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * minLatency
+        / smoothedLatency));
+    if (gradient >= 1.0 && inFlight < estimatedLimit / 2) {
+      return;
+    }
+    double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+    newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+    estimatedLimit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+    semaphore.setLimit((int) estimatedLimit);
+  }
+
+  /**
+   * @return the current limit.
+   */
+  public int getLimit() {
+    return semaphore.getLimit();
+  }
+
+  /**
+   * @return the smoothed latency of recent requests in ns.
+   */
+  public synchronized long getLatency() {
+    return (long) smoothedLatency;
+  }
+}
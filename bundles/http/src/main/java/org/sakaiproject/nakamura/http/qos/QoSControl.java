@@ -1,36 +1,116 @@
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
-
-import java.util.Queue;
-import java.util.concurrent.Semaphore;
-
 import javax.servlet.ServletRequest;
 
+/**
+ * A QoS category. Each category has its own permits and its own queue of suspended
+ * requests, so a permit released in one category only ever resumes a request of the same
+ * category. A resumed request is handed the permit, it does not compete for it again.
+ */
 public class QoSControl {
 
-  private Semaphore semaphore;
+  private String name;
+  private ResizableSemaphore semaphore;
+  private AdaptiveLimit adaptiveLimit;
   private int priority;
-  private Queue<Continuation>[] priorityQueue;
+  private WeightedFairQueue<QoSTokenImpl> priorityQueue;
   private long timeout;
+  private QoSStatistics statistics;
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
+  /**
+   * @param name
+   * @param maxPriority
+   *          the highest priority of the queue of suspended requests.
+   * @param nRequests
+   * @param priority
+   * @param timeout
+   */
+  public QoSControl(String name, int maxPriority, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    this.name = name;
+    semaphore = new ResizableSemaphore(nRequests);
     this.priority = priority;
-    this.priorityQueue = priorityQueue;
+    this.priorityQueue = new WeightedFairQueue<QoSTokenImpl>(maxPriority);
     this.timeout = timeout;
+    statistics = new QoSStatistics(this);
+  }
+
+  /**
+   * Create a control whose limit adapts to the latency of its requests, starting from
+   * nRequests.
+   */
+  public QoSControl(String name, int maxPriority, int nRequests, int priority,
+      long timeout, int minLimit, int maxLimit) {
+    this(name, maxPriority, nRequests, priority, timeout);
+    adaptiveLimit = new AdaptiveLimit(semaphore, minLimit, maxLimit);
   }
 
-  public Semaphore getSemaphore() {
+  public String getName() {
+    return name;
+  }
+
+  public ResizableSemaphore getSemaphore() {
     return semaphore;
   }
 
+  /**
+   * Release a permit, and hand free permits to suspended requests. Sampling the latency
+   * may raise the limit, which frees more than one permit.
+   *
+   * @param latency
+   *          the time in ns the permit was held.
+   */
+  public void release(long latency) {
+    if (adaptiveLimit != null) {
+      adaptiveLimit.sample(latency, semaphore.getInFlight());
+    }
+    semaphore.release();
+    statistics.completed(latency);
+    resumeWaiting();
+  }
+
+  /**
+   * Queue a suspended request until a permit is handed to it.
+   *
+   * @param token
+   */
+  void queue(QoSTokenImpl token) {
+    priorityQueue.add(token.getPriority(), token);
+  }
+
+  /**
+   * Take a free permit for each suspended request still waiting and resume it, skipping
+   * those that have already timed out.
+   */
+  void resumeWaiting() {
+    while (priorityQueue.size() > 0 && semaphore.tryAcquire()) {
+      QoSTokenImpl token = priorityQueue.poll();
+      while (token != null && !token.resumeWithPermit()) {
+        token = priorityQueue.poll();
+      }
+      if (token == null) {
+        semaphore.release();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Resume every suspended request without a permit, used when the filter is removed.
+   */
+  void resumeAll() {
+    QoSTokenImpl token = priorityQueue.poll();
+    while (token != null) {
+      token.resume();
+      token = priorityQueue.poll();
+    }
+  }
+
   public int getPriority(ServletRequest request) {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
+  public WeightedFairQueue<QoSTokenImpl> getPriorityQueue() {
     return priorityQueue;
   }
 
@@ -38,4 +118,8 @@ public class QoSControl {
     return timeout;
   }
 
+  public QoSStatistics getStatistics() {
+    return statistics;
+  }
+
 }
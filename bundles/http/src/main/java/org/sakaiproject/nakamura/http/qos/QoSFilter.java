@@ -17,11 +17,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -88,6 +91,29 @@ public class QoSFilter implements Filter {
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * If true the maxrequests of each category is only the starting limit, the limit is
+   * then raised while requests complete quickly and reduced as their latency rises.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONFIG = "qos.adaptive";
+  /**
+   * The lowest limit an adaptive category may be reduced to.
+   */
+  @Property(intValue=1)
+  private static final String QOS_ADAPTIVE_MIN_LIMIT_CONFIG = "qos.adaptive.minlimit";
+  /**
+   * The highest limit an adaptive category may be raised to, categories configured with
+   * a higher maxrequests may be reduced but are not raised above it.
+   */
+  @Property(intValue=200)
+  private static final String QOS_ADAPTIVE_MAX_LIMIT_CONFIG = "qos.adaptive.maxlimit";
+  /**
+   * The name the statistics of each category are registered with JMX under, with the
+   * category added as a key.
+   */
+  static final String JMX_NAME = "org.sakaiproject.nakamura.http.qos:type=QoSStatistics";
+  private static final String DEFAULT_CATEGORY = "default";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -97,7 +123,10 @@ public class QoSFilter implements Filter {
   private long waitMs;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private int maxPriorityNumber;
+  private boolean adaptive;
+  private int adaptiveMinLimit;
+  private int adaptiveMaxLimit;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -120,16 +149,29 @@ public class QoSFilter implements Filter {
         } else {
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
-          qoSToken.queue(continuation);
-          return;
+          // queue before suspending, a suspend may not return until the request is resumed.
+          // Resumes hold the mutex, so none can happen before the suspend. A permit
+          // released before the request was queued is taken here rather than waited for.
+          synchronized (qoSToken.getMutex()) {
+            qoSToken.queue(continuation);
+            accepted = qoSToken.acquireQueued();
+            if (accepted) {
+              request.setAttribute(suspendedAttributeName, Boolean.FALSE);
+            } else {
+              continuation.suspend(qoSToken.getSuspendTime());
+            }
+          }
+          if (!accepted) {
+            return;
+          }
         }
       } else {
         Boolean suspended = (Boolean) request.getAttribute(suspendedAttributeName);
 
         if (suspended.booleanValue()) {
           request.setAttribute(suspendedAttributeName, Boolean.FALSE);
-          if (request.getAttribute("javax.servlet.resumed") == Boolean.TRUE) {
+          if (request.getAttribute(QoSTokenImpl.RESUMED_ATTR) == Boolean.TRUE) {
+            // resumed by a release in the same category, which handed over its permit.
             qoSToken.acquire();
             accepted = true;
           } else {
@@ -199,13 +241,13 @@ public class QoSFilter implements Filter {
     Dictionary<String, Object> properties = componentContext.getProperties();
 
     long defaultTimeout = OsgiUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
-    int maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
-    for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
-    }
+    maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
+    adaptive = OsgiUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONFIG), false);
+    adaptiveMinLimit = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MIN_LIMIT_CONFIG), 1);
+    adaptiveMaxLimit = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MAX_LIMIT_CONFIG), 200);
 
     // path, max requests, priority, timeout
+    unregisterStatistics();
     qoSControMap.clear();
     String[] qosLocations = (String[])properties.get(QOS_CATEGORIES_CONFIG);
     if ( qosLocations != null ) {
@@ -213,11 +255,11 @@ public class QoSFilter implements Filter {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
           if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
-          } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+          } else if ( settings.length > 1 ) {
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
           }
         }
       }
@@ -229,7 +271,8 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = OsgiUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = OsgiUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = createQoSControl(DEFAULT_CATEGORY, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    registerStatistics();
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -240,13 +283,54 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterStatistics();
     // resume any continuations held by the filter
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+    for (QoSControl qoSControl : qoSControMap.values()) {
+      qoSControl.resumeAll();
+    }
+    if (defaultQoSControl != null) {
+      defaultQoSControl.resumeAll();
+    }
+  }
+
+  private QoSControl createQoSControl(String name, int nRequests, int priority, long timeout) {
+    if (adaptive) {
+      return new QoSControl(name, maxPriorityNumber, nRequests, priority, timeout,
+          adaptiveMinLimit, Math.max(nRequests, adaptiveMaxLimit));
+    }
+    return new QoSControl(name, maxPriorityNumber, nRequests, priority, timeout);
+  }
+
+  private void registerStatistics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      for (QoSControl qoSControl : qoSControMap.values()) {
+        registerStatistics(mBeanServer, qoSControl);
+      }
+      registerStatistics(mBeanServer, defaultQoSControl);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register QoS statistics {} ", e.getMessage());
+    }
+  }
+
+  private void registerStatistics(MBeanServer mBeanServer, QoSControl qoSControl)
+      throws JMException {
+    ObjectName name = new ObjectName(JMX_NAME + ",category="
+        + ObjectName.quote(qoSControl.getName()));
+    if (mBeanServer.isRegistered(name)) {
+      mBeanServer.unregisterMBean(name);
+    }
+    mBeanServer.registerMBean(qoSControl.getStatistics(), name);
+  }
+
+  private void unregisterStatistics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      for (ObjectName name : mBeanServer.queryNames(new ObjectName(JMX_NAME + ",*"), null)) {
+        mBeanServer.unregisterMBean(name);
       }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister QoS statistics {} ", e.getMessage());
     }
   }
 
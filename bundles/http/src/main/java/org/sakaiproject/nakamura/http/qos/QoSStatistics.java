@@ -0,0 +1,182 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the requests accepted, suspended and rejected by one QoS category, and the time
+ * they spent waiting for and holding a permit.
+ */
+public class QoSStatistics implements QoSStatisticsMBean {
+
+  private static final double NANOS_PER_MS = 1000000.0;
+
+  private final QoSControl qoSControl;
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong suspended = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong waitTime = new AtomicLong();
+  private final AtomicLong maxWaitTime = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+
+  public QoSStatistics(QoSControl qoSControl) {
+    this.qoSControl = qoSControl;
+  }
+
+  /**
+   * A request was granted a permit.
+   *
+   * @param wait
+   *          the time in ns since the request first reached the filter.
+   */
+  void accepted(long wait) {
+    accepted.incrementAndGet();
+    waitTime.addAndGet(wait);
+    long max = maxWaitTime.get();
+    while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+      max = maxWaitTime.get();
+    }
+  }
+
+  /**
+   * A request was suspended until a permit is released.
+   */
+  void suspended() {
+    suspended.incrementAndGet();
+    queueDepth.incrementAndGet();
+  }
+
+  /**
+   * A suspended request was dispatched again, resumed or timed out.
+   */
+  void redispatched() {
+    queueDepth.decrementAndGet();
+  }
+
+  /**
+   * A suspended request could not be granted a permit.
+   */
+  void rejected() {
+    rejected.incrementAndGet();
+  }
+
+  /**
+   * A request released its permit.
+   *
+   * @param held
+   *          the time in ns the permit was held.
+   */
+  void completed(long held) {
+    completed.incrementAndGet();
+    latency.addAndGet(held);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getCategory()
+   */
+  public String getCategory() {
+    return qoSControl.getName();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getLimit()
+   */
+  public int getLimit() {
+    return qoSControl.getSemaphore().getLimit();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getInFlight()
+   */
+  public int getInFlight() {
+    return qoSControl.getSemaphore().getInFlight();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    return Math.max(0, queueDepth.get());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getAccepted()
+   */
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getSuspended()
+   */
+  public long getSuspended() {
+    return suspended.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getRejected()
+   */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getAverageWaitTime()
+   */
+  public double getAverageWaitTime() {
+    long n = accepted.get();
+    return n == 0 ? 0 : waitTime.get() / NANOS_PER_MS / n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getMaxWaitTime()
+   */
+  public long getMaxWaitTime() {
+    return (long) (maxWaitTime.get() / NANOS_PER_MS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#getAverageLatency()
+   */
+  public double getAverageLatency() {
+    long n = completed.get();
+    return n == 0 ? 0 : latency.get() / NANOS_PER_MS / n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.http.qos.QoSStatisticsMBean#reset()
+   */
+  public void reset() {
+    accepted.set(0);
+    suspended.set(0);
+    rejected.set(0);
+    waitTime.set(0);
+    maxWaitTime.set(0);
+    completed.set(0);
+    latency.set(0);
+  }
+}
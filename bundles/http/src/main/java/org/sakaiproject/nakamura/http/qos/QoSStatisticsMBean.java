@@ -0,0 +1,63 @@
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * The JMX view of a QoS category.
+ */
+public interface QoSStatisticsMBean {
+
+  /**
+   * @return the category these statistics are for, method:firstPathElement or default.
+   */
+  String getCategory();
+
+  /**
+   * @return the current concurrency limit of the category.
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests of the category being processed now.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of requests of the category suspended waiting for a permit now.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of requests that were granted a permit.
+   */
+  long getAccepted();
+
+  /**
+   * @return the number of requests that were suspended because no permit was available.
+   */
+  long getSuspended();
+
+  /**
+   * @return the number of requests that were sent a 503 because no permit became
+   *         available.
+   */
+  long getRejected();
+
+  /**
+   * @return the average time in ms accepted requests waited for a permit.
+   */
+  double getAverageWaitTime();
+
+  /**
+   * @return the longest time in ms an accepted request waited for a permit.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * @return the average time in ms requests held a permit.
+   */
+  double getAverageLatency();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
@@ -3,19 +3,33 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
+  /**
+   * Set on a suspended request when it is resumed with a permit handed to it by the
+   * release of another request of the same category.
+   */
+  public static final String RESUMED_ATTR = QoSFilter.class.getName() + ".resumed";
+
   private QoSControl qoSControl;
+  private ServletRequest request;
   private int priority;
+  private long created;
+  private long acquiredAt;
+  private boolean accepted;
+  private boolean queued;
+  private Continuation continuation;
+  private volatile boolean handedPermit;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
+    this.request = request;
     priority = qoSControl.getPriority(request);
+    created = System.nanoTime();
   }
 
 
@@ -24,15 +38,8 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
-      Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
-      }
-    }
-    qoSControl.getSemaphore().release();
+    // resumes the next suspended request of the category that is still waiting.
+    qoSControl.release(System.nanoTime() - acquiredAt);
   }
 
   public long getSuspendTime() {
@@ -40,15 +47,104 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    queued = true;
+    this.continuation = continuation;
+    qoSControl.getStatistics().suspended();
+    qoSControl.queue(this);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    boolean redispatched = redispatched();
+    if (takeHandedPermit() || qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+      acquired();
+      return true;
+    }
+    if (redispatched) {
+      qoSControl.getStatistics().rejected();
+    }
+    return false;
+  }
+
+  public boolean acquireQueued() {
+    synchronized (getMutex()) {
+      if (!qoSControl.getSemaphore().tryAcquire()) {
+        return false;
+      }
+      // the token stays in the queue, without a continuation it is skipped when polled.
+      continuation = null;
+      redispatched();
+      acquired();
+      return true;
+    }
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    redispatched();
+    if (!takeHandedPermit()) {
+      qoSControl.getSemaphore().acquire();
+    }
+    acquired();
+  }
+
+  /**
+   * @return the priority the request is queued at.
+   */
+  int getPriority() {
+    return priority;
+  }
+
+  /**
+   * Hand a permit already taken from the semaphore to this request and resume it.
+   *
+   * @return false if the request is no longer suspended, the caller keeps the permit.
+   */
+  boolean resumeWithPermit() {
+    synchronized (getMutex()) {
+      if (continuation == null || !continuation.isPending()) {
+        return false;
+      }
+      handedPermit = true;
+      request.setAttribute(RESUMED_ATTR, Boolean.TRUE);
+      continuation.resume();
+      return true;
+    }
+  }
+
+  /**
+   * Resume the request without a permit.
+   */
+  void resume() {
+    synchronized (getMutex()) {
+      if (continuation != null && continuation.isPending()) {
+        continuation.resume();
+      }
+    }
+  }
+
+  private boolean takeHandedPermit() {
+    if (handedPermit) {
+      handedPermit = false;
+      request.removeAttribute(RESUMED_ATTR);
+      return true;
+    }
+    return false;
+  }
+
+  private boolean redispatched() {
+    if (queued) {
+      queued = false;
+      qoSControl.getStatistics().redispatched();
+      return true;
+    }
+    return false;
+  }
+
+  private void acquired() {
+    acquiredAt = System.nanoTime();
+    if (!accepted) {
+      accepted = true;
+      qoSControl.getStatistics().accepted(acquiredAt - created);
+    }
   }
 
 }
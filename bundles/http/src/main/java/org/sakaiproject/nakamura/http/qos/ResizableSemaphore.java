@@ -0,0 +1,47 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fair semaphore whose number of permits can be changed while permits are held. When
+ * the limit is reduced below the number of permits in use, the available permits go
+ * negative and no new permits are granted until enough have been released.
+ */
+public class ResizableSemaphore extends Semaphore {
+
+  private static final long serialVersionUID = 2135405227045011347L;
+  private int limit;
+
+  public ResizableSemaphore(int limit) {
+    super(limit, true);
+    this.limit = limit;
+  }
+
+  /**
+   * @param newLimit
+   *          the new total number of permits.
+   */
+  public synchronized void setLimit(int newLimit) {
+    int delta = newLimit - limit;
+    limit = newLimit;
+    if (delta > 0) {
+      release(delta);
+    } else if (delta < 0) {
+      reducePermits(-delta);
+    }
+  }
+
+  /**
+   * @return the total number of permits.
+   */
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  /**
+   * @return the number of permits currently held.
+   */
+  public synchronized int getInFlight() {
+    return limit - availablePermits();
+  }
+}
@@ -0,0 +1,78 @@
+package org.sakaiproject.nakamura.http.qos;
+
+import java.util.LinkedList;
+
+/**
+ * A set of priority queues served by stride scheduling. Priority p has a weight of p+1,
+ * so when every queue has entries, priority 2 is served three times for each time
+ * priority 0 is served, and no priority is starved by a burst in a higher one. A queue
+ * that has been empty rejoins at the current virtual time rather than with the credit
+ * it would have built up while idle.
+ *
+ * @param <T>
+ *          the type of the queued items.
+ */
+public class WeightedFairQueue<T> {
+
+  private final LinkedList<T>[] queues;
+  private final double[] pass;
+  private double virtualTime;
+  private int size;
+
+  @SuppressWarnings("unchecked")
+  public WeightedFairQueue(int maxPriority) {
+    queues = new LinkedList[maxPriority + 1];
+    pass = new double[queues.length];
+    for (int i = 0; i < queues.length; i++) {
+      queues[i] = new LinkedList<T>();
+    }
+  }
+
+  /**
+   * @param priority
+   *          the priority to queue the item at, 0 is the lowest, out of range priorities
+   *          are clamped.
+   * @param item
+   */
+  public synchronized void add(int priority, T item) {
+    int p = Math.max(0, Math.min(queues.length - 1, priority));
+    if (queues[p].isEmpty()) {
+      pass[p] = Math.max(pass[p], virtualTime);
+    }
+    queues[p].add(item);
+    size++;
+  }
+
+  /**
+   * @return the next item by weighted fair order, or null if all the queues are empty.
+   */
+  public synchronized T poll() {
+    int next = -1;
+    for (int p = queues.length; p-- > 0;) {
+      if (!queues[p].isEmpty() && (next < 0 || pass[p] < pass[next])) {
+        next = p;
+      }
+    }
+    if (next < 0) {
+      return null;
+    }
+    virtualTime = pass[next];
+    pass[next] += 1.0 / (next + 1);
+    size--;
+    return queues[next].removeFirst();
+  }
+
+  /**
+   * @return the number of items queued at all priorities.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return the highest priority.
+   */
+  public int getMaxPriority() {
+    return queues.length - 1;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.http.HttpServletRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachedResponseManagerTest {
+
+  @Mock
+  private HttpServletRequest request;
+
+  private Cache<CachedResponse> cache;
+
+  private ConcurrentMap<String, CountDownLatch> renders;
+
+  @Before
+  public void setup() {
+    when(request.getPathInfo()).thenReturn("/var/widgets.json");
+    cache = new MapCacheImpl<CachedResponse>();
+    renders = new ConcurrentHashMap<String, CountDownLatch>();
+  }
+
+  @Test
+  public void onlyOneRequestRenders() throws Exception {
+    CachedResponseManager leader = new CachedResponseManager(request, 900, cache,
+        renders, 0);
+    assertFalse(leader.isValid());
+    assertTrue(leader.acquireRender());
+
+    final AtomicReference<Boolean> followerRendered = new AtomicReference<Boolean>();
+    final CachedResponseManager follower = new CachedResponseManager(request, 900, cache,
+        renders, 0);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        followerRendered.set(follower.acquireRender());
+      }
+    };
+    t.start();
+    Thread.sleep(50);
+    // the follower waits for the render.
+    assertNull(followerRendered.get());
+
+    leader.save(capture("ABCDEF"));
+    leader.releaseRender();
+    t.join(5000);
+    assertFalse(followerRendered.get());
+    assertTrue(renders.isEmpty());
+  }
+
+  @Test
+  public void staleResponseIsSentWhileRendering() throws Exception {
+    // expires immediately
+    cache.put("/var/widgets.json?null", new CachedResponse(capture("OLD"), 0));
+    CachedResponseManager leader = new CachedResponseManager(request, 900, cache,
+        renders, 60000);
+    assertFalse(leader.isValid());
+    assertTrue(leader.acquireRender());
+
+    CachedResponseManager follower = new CachedResponseManager(request, 900, cache,
+        renders, 60000);
+    assertFalse(follower.isValid());
+    // does not wait, the stale response is sent.
+    assertFalse(follower.acquireRender());
+    leader.releaseRender();
+  }
+
+  @Test
+  public void expiredResponseIsNotSentAfterTheStaleTime() throws Exception {
+    cache.put("/var/widgets.json?null", new CachedResponse(capture("OLD"), 0));
+    CachedResponseManager manager = new CachedResponseManager(request, 900, cache,
+        renders, 0);
+    assertFalse(manager.isValid());
+    assertNull(cache.get("/var/widgets.json?null"));
+    assertTrue(manager.acquireRender());
+    manager.releaseRender();
+  }
+
+  private OperationResponseCapture capture(String content) throws IOException {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("application/json");
+    capture.setStatus(200);
+    capture.getWriter(new PrintWriter(new StringWriter())).write(content);
+    return capture;
+  }
+}
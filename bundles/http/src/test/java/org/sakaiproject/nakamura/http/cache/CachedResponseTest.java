@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachedResponseTest {
+
+  private static final String CONTENT = "var widgets = { \"a\": \"the first widget\", \"b\": \"the second widget\" };\n";
+
+  @Mock
+  private HttpServletRequest request;
+
+  @Mock
+  private HttpServletResponse response;
+
+  @Test
+  public void notModifiedWhenEtagMatches() throws Exception {
+    CachedResponse cachedResponse = new CachedResponse(capture(CONTENT, -1), 60);
+    assertTrue(cachedResponse.getEtag().startsWith("\""));
+    when(request.getHeader("If-None-Match")).thenReturn("\"other\", " + cachedResponse.getEtag());
+
+    cachedResponse.replay(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getEtag());
+    verify(response, never()).getWriter();
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void notModifiedSendsCacheHeaders() throws Exception {
+    OperationResponseCapture capture = capture(CONTENT, -1);
+    capture.setHeader("Cache-Control", "max-age=900");
+    capture.setDateHeader("Expires", 1234000L);
+    CachedResponse cachedResponse = new CachedResponse(capture, 60);
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getEtag());
+
+    cachedResponse.replay(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("Cache-Control", "max-age=900");
+    verify(response).setDateHeader("Expires", 1234000L);
+  }
+
+  @Test
+  public void gzipVariantHasItsOwnEtag() throws Exception {
+    CachedResponse cachedResponse = new CachedResponse(capture(repeatedContent(), -1), 60);
+    assertTrue(cachedResponse.hasGzipContent());
+    assertFalse(cachedResponse.getEtag().equals(cachedResponse.getGzipEtag()));
+    assertTrue(cachedResponse.getGzipEtag().endsWith("-gzip\""));
+
+    // a gzip client that only has the identity tag gets the gzip body.
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getEtag());
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+      }
+    });
+    cachedResponse.replay(request, response);
+    verify(response, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getGzipEtag());
+  }
+
+  @Test
+  public void notModifiedForGzipEtagSendsVary() throws Exception {
+    CachedResponse cachedResponse = new CachedResponse(capture(repeatedContent(), -1), 60);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getGzipEtag());
+
+    cachedResponse.replay(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(response).setHeader("ETag", cachedResponse.getGzipEtag());
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response, never()).getOutputStream();
+  }
+
+  @Test
+  public void etagIsStableForTheSameContent() throws Exception {
+    assertEquals(new CachedResponse(capture(CONTENT, -1), 60).getEtag(),
+        new CachedResponse(capture(CONTENT, -1), 60).getEtag());
+    assertFalse(new CachedResponse(capture(CONTENT, -1), 60).getEtag().equals(
+        new CachedResponse(capture(CONTENT + " ", -1), 60).getEtag()));
+  }
+
+  @Test
+  public void notModifiedSinceLastModified() throws Exception {
+    long lastModified = System.currentTimeMillis() - 60000;
+    CachedResponse cachedResponse = new CachedResponse(capture(CONTENT, lastModified), 60);
+    when(request.getDateHeader("If-Modified-Since")).thenReturn(lastModified + 1000);
+
+    cachedResponse.replay(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+  }
+
+  @Test
+  public void sendsStoredGzipWhenAccepted() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      sb.append(CONTENT);
+    }
+    CachedResponse cachedResponse = new CachedResponse(capture(sb.toString(), -1), 60);
+    assertTrue(cachedResponse.hasGzipContent());
+    when(request.getHeader("Accept-Encoding")).thenReturn("deflate, gzip;q=0.8");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    });
+
+    cachedResponse.replay(request, response);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response, never()).getWriter();
+    InputStream in = new GZIPInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[1024];
+    for (int n = in.read(b); n >= 0; n = in.read(b)) {
+      out.write(b, 0, n);
+    }
+    assertEquals(sb.toString(), out.toString("UTF-8"));
+  }
+
+  @Test
+  public void sendsIdentityWhenGzipRefused() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      sb.append(CONTENT);
+    }
+    CachedResponse cachedResponse = new CachedResponse(capture(sb.toString(), -1), 60);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip;q=0");
+    StringWriter writer = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+
+    cachedResponse.replay(request, response);
+
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+    assertEquals(sb.toString(), writer.toString());
+  }
+
+  private String repeatedContent() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      sb.append(CONTENT);
+    }
+    return sb.toString();
+  }
+
+  private OperationResponseCapture capture(String content, long lastModified) {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("application/javascript");
+    capture.setCharacterEncoding("UTF-8");
+    if (lastModified > 0) {
+      capture.setDateHeader("Last-Modified", lastModified);
+    }
+    capture.setStatus(200);
+    capture.getWriter(new PrintWriter(new StringWriter())).write(content);
+    return capture;
+  }
+}
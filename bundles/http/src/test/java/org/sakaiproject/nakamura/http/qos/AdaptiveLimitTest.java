@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveLimitTest {
+
+  private static final long MS = 1000000L;
+
+  @Test
+  public void growsWhileLatencyIsSteady() {
+    ResizableSemaphore semaphore = new ResizableSemaphore(10);
+    AdaptiveLimit limit = new AdaptiveLimit(semaphore, 1, 50);
+    for (int i = 0; i < 100; i++) {
+      limit.sample(10 * MS, limit.getLimit());
+    }
+    assertEquals(50, limit.getLimit());
+    assertEquals(50, semaphore.availablePermits());
+  }
+
+  @Test
+  public void doesNotGrowWhenUnderUsed() {
+    AdaptiveLimit limit = new AdaptiveLimit(new ResizableSemaphore(10), 1, 50);
+    for (int i = 0; i < 100; i++) {
+      limit.sample(10 * MS, 2);
+    }
+    assertEquals(10, limit.getLimit());
+  }
+
+  @Test
+  public void shrinksAsLatencyRises() {
+    ResizableSemaphore semaphore = new ResizableSemaphore(40);
+    AdaptiveLimit limit = new AdaptiveLimit(semaphore, 2, 50);
+    limit.sample(10 * MS, 40);
+    int before = limit.getLimit();
+    for (int i = 0; i < 100; i++) {
+      limit.sample(100 * MS, limit.getLimit());
+    }
+    assertTrue(limit.getLimit() < before);
+    assertTrue(limit.getLimit() >= 2);
+  }
+
+  @Test
+  public void shrinkingBelowHeldPermitsBlocksNewPermits() throws Exception {
+    ResizableSemaphore semaphore = new ResizableSemaphore(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(semaphore.tryAcquire());
+    }
+    semaphore.setLimit(2);
+    assertEquals(4, semaphore.getInFlight());
+    semaphore.release();
+    semaphore.release();
+    assertEquals(false, semaphore.tryAcquire());
+    semaphore.release();
+    assertTrue(semaphore.tryAcquire());
+  }
+}
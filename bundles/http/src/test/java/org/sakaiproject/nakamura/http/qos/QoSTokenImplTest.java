@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mortbay.util.ajax.Continuation;
+
+import javax.servlet.ServletRequest;
+
+@RunWith(MockitoJUnitRunner.class)
+public class QoSTokenImplTest {
+
+  @Mock
+  private ServletRequest request;
+
+  @Mock
+  private Continuation timedOut;
+
+  @Mock
+  private Continuation pending;
+
+  @Test
+  public void releaseResumesTheNextPendingRequest() throws Exception {
+    QoSControl control = new QoSControl("get:p", 2, 1, 1, 1000);
+    when(pending.isPending()).thenReturn(true);
+
+    QoSTokenImpl first = new QoSTokenImpl(control, request);
+    assertTrue(first.acquire(0));
+    QoSTokenImpl second = new QoSTokenImpl(control, request);
+    assertFalse(second.acquire(0));
+    second.queue(timedOut);
+    QoSTokenImpl third = new QoSTokenImpl(control, request);
+    assertFalse(third.acquire(0));
+    third.queue(pending);
+    assertEquals(2, control.getStatistics().getQueueDepth());
+
+    first.release();
+    verify(timedOut, never()).resume();
+    verify(pending).resume();
+    verify(request).setAttribute(QoSTokenImpl.RESUMED_ATTR, Boolean.TRUE);
+    assertEquals(0, control.getPriorityQueue().size());
+
+    assertTrue(third.acquire(0));
+    assertFalse(second.acquire(0));
+    QoSStatistics statistics = control.getStatistics();
+    assertEquals(0, statistics.getQueueDepth());
+    assertEquals(2, statistics.getAccepted());
+    assertEquals(2, statistics.getSuspended());
+    assertEquals(1, statistics.getRejected());
+    assertEquals(1, statistics.getInFlight());
+  }
+
+  @Test
+  public void releaseOnlyResumesTheSameCategory() throws Exception {
+    QoSControl a = new QoSControl("get:a", 2, 1, 1, 1000);
+    QoSControl b = new QoSControl("get:b", 2, 1, 1, 1000);
+    when(pending.isPending()).thenReturn(true);
+
+    QoSTokenImpl holderB = new QoSTokenImpl(b, request);
+    assertTrue(holderB.acquire(0));
+    QoSTokenImpl waiterB = new QoSTokenImpl(b, request);
+    assertFalse(waiterB.acquire(0));
+    waiterB.queue(pending);
+
+    QoSTokenImpl holderA = new QoSTokenImpl(a, request);
+    assertTrue(holderA.acquire(0));
+    holderA.release();
+    verify(pending, never()).resume();
+    assertEquals(1, b.getPriorityQueue().size());
+
+    holderB.release();
+    verify(pending).resume();
+    // the resumed request holds the permit released by holderB.
+    assertTrue(waiterB.acquire(0));
+    assertEquals(1, b.getStatistics().getInFlight());
+  }
+
+  @Test
+  public void raisingTheLimitResumesQueuedRequests() throws Exception {
+    QoSControl control = new QoSControl("get:p", 2, 1, 1, 1000);
+    when(pending.isPending()).thenReturn(true);
+
+    QoSTokenImpl holder = new QoSTokenImpl(control, request);
+    assertTrue(holder.acquire(0));
+    QoSTokenImpl waiter = new QoSTokenImpl(control, request);
+    assertFalse(waiter.acquire(0));
+    waiter.queue(pending);
+
+    control.getSemaphore().setLimit(2);
+    control.resumeWaiting();
+    verify(pending).resume();
+    assertTrue(waiter.acquire(0));
+    assertEquals(2, control.getStatistics().getInFlight());
+  }
+
+  @Test
+  public void permitReleasedBeforeQueueingIsTaken() throws Exception {
+    QoSControl control = new QoSControl("get:p", 2, 1, 1, 1000);
+    when(pending.isPending()).thenReturn(true);
+
+    QoSTokenImpl holder = new QoSTokenImpl(control, request);
+    assertTrue(holder.acquire(0));
+    QoSTokenImpl waiter = new QoSTokenImpl(control, request);
+    assertFalse(waiter.acquire(0));
+    // released with nothing queued, so the permit is handed to nobody.
+    holder.release();
+    waiter.queue(pending);
+    assertTrue(waiter.acquireQueued());
+    assertEquals(0, control.getStatistics().getQueueDepth());
+    assertEquals(1, control.getStatistics().getInFlight());
+
+    // the token left in the queue is skipped.
+    QoSTokenImpl other = new QoSTokenImpl(control, request);
+    assertFalse(other.acquire(0));
+    waiter.release();
+    verify(pending, never()).resume();
+    assertEquals(0, control.getPriorityQueue().size());
+    assertTrue(other.acquire(0));
+  }
+
+  @Test
+  public void queuedRequestWithoutAPermitIsNotTaken() throws Exception {
+    QoSControl control = new QoSControl("get:p", 2, 1, 1, 1000);
+    QoSTokenImpl holder = new QoSTokenImpl(control, request);
+    assertTrue(holder.acquire(0));
+    QoSTokenImpl waiter = new QoSTokenImpl(control, request);
+    assertFalse(waiter.acquire(0));
+    waiter.queue(pending);
+    assertFalse(waiter.acquireQueued());
+    assertEquals(1, control.getStatistics().getQueueDepth());
+  }
+}
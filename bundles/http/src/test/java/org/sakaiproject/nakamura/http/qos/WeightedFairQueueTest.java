@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class WeightedFairQueueTest {
+
+  @Test
+  public void servesPrioritiesByWeight() {
+    WeightedFairQueue<Integer> queue = new WeightedFairQueue<Integer>(2);
+    for (int i = 0; i < 60; i++) {
+      queue.add(0, 0);
+      queue.add(1, 1);
+      queue.add(2, 2);
+    }
+    int[] served = new int[3];
+    for (int i = 0; i < 60; i++) {
+      served[queue.poll()]++;
+    }
+    assertEquals(10, served[0]);
+    assertEquals(20, served[1]);
+    assertEquals(30, served[2]);
+    assertEquals(120, queue.size());
+  }
+
+  @Test
+  public void idleQueueGetsNoCredit() {
+    WeightedFairQueue<Integer> queue = new WeightedFairQueue<Integer>(1);
+    for (int i = 0; i < 20; i++) {
+      queue.add(1, 1);
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Integer.valueOf(1), queue.poll());
+    }
+    // priority 0 has been idle, it should now get its share, not the 10 turns it missed.
+    for (int i = 0; i < 10; i++) {
+      queue.add(0, 0);
+    }
+    int low = 0;
+    for (int i = 0; i < 9; i++) {
+      low += queue.poll() == 0 ? 1 : 0;
+    }
+    assertEquals(3, low);
+  }
+
+  @Test
+  public void emptyQueuePollsNull() {
+    WeightedFairQueue<String> queue = new WeightedFairQueue<String>(2);
+    assertNull(queue.poll());
+    queue.add(5, "clamped");
+    assertEquals("clamped", queue.poll());
+    assertNull(queue.poll());
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+import java.io.Serializable;
+
+/**
+ * The answer of the lock coordinator to a lease request. A granted lease carries a
+ * fencing token that is larger than the token of any earlier grant, so that a write
+ * tagged with the token of a lease that has since expired can be recognised and refused.
+ */
+public class LockGrant implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2216838616352376123L;
+  private final String id;
+  private final String holder;
+  private final long token;
+  private final boolean granted;
+
+  /**
+   * @param id
+   *          the id that was requested.
+   * @param holder
+   *          the holder of the lease, the requester if granted.
+   * @param token
+   *          the fencing token of the current lease.
+   * @param granted
+   *          true if the lease was granted to the requester.
+   */
+  public LockGrant(String id, String holder, long token, boolean granted) {
+    this.id = id;
+    this.holder = holder;
+    this.token = token;
+    this.granted = granted;
+  }
+
+  /**
+   * @return the id that was requested.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the holder of the lease.
+   */
+  public String getHolder() {
+    return holder;
+  }
+
+  /**
+   * @return the fencing token of the lease.
+   */
+  public long getToken() {
+    return token;
+  }
+
+  /**
+   * @return true if the lease was granted to the requester.
+   */
+  public boolean isGranted() {
+    return granted;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.locking;
+
+/**
+ * Carries lease requests from a node to the lock coordinator of the cluster. An
+ * implementation must deliver each call to the same coordinator and return its answer.
+ */
+public interface LockTransport {
+
+  /**
+   * Acquire a lease on an id.
+   *
+   * @param id
+   *          the id being locked.
+   * @param holder
+   *          the identity of the node and thread that will hold the lease.
+   * @param leaseTime
+   *          the time in ms the lease is valid for unless renewed.
+   * @param timeout
+   *          the time in ms to wait for the lease, 0 to not wait.
+   * @return the grant, which may have been refused.
+   */
+  LockGrant acquire(String id, String holder, long leaseTime, long timeout);
+
+  /**
+   * Extend a lease that is still held.
+   *
+   * @param id
+   * @param holder
+   * @param token
+   *          the fencing token of the grant being renewed.
+   * @param leaseTime
+   *          the time in ms from now the lease is extended to.
+   * @return true if the lease was extended, false if it has expired or was taken over.
+   */
+  boolean renew(String id, String holder, long token, long leaseTime);
+
+  /**
+   * Release a lease, if it is still held.
+   *
+   * @param id
+   * @param holder
+   * @param token
+   */
+  void release(String id, String holder, long token);
+}
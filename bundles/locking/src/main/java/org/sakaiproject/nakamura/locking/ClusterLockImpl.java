@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockGrant;
+import org.sakaiproject.nakamura.api.memory.ThreadBound;
+
+/**
+ * A lock backed by a lease from the cluster lock coordinator and a lock in the JVM of
+ * this node. The lock id is the fencing token of the lease. A lock that could not be
+ * acquired is also represented by this class, it is locked but not owned.
+ */
+public class ClusterLockImpl implements Lock, ThreadBound {
+
+  /**
+   * For serialization.
+   */
+  private static final long serialVersionUID = 3906471432316410529L;
+  /**
+   * The manager that holds the lease, null for a lock held elsewhere.
+   */
+  private transient ClusterLockManagerImpl manager;
+  /**
+   * The lock in this JVM, null for a lock held elsewhere.
+   */
+  private transient Lock local;
+  private String id;
+  private String holder;
+  private long token;
+  private boolean granted;
+  private volatile boolean locked;
+  /**
+   * When the lease expires by the clock of this node.
+   */
+  private volatile long expires;
+
+  /**
+   * @param manager
+   *          the manager that holds the lease, null if the lease was not granted.
+   * @param local
+   *          the lock in this JVM, null if the lease was not granted.
+   * @param grant
+   *          the answer of the coordinator.
+   * @param expires
+   *          when the lease expires by the clock of this node.
+   */
+  ClusterLockImpl(ClusterLockManagerImpl manager, Lock local, LockGrant grant,
+      long expires) {
+    this.manager = manager;
+    this.local = local;
+    this.id = grant.getId();
+    this.holder = grant.getHolder();
+    this.token = grant.getToken();
+    this.granted = grant.isGranted();
+    this.locked = true;
+    this.expires = expires;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getLocked()
+   */
+  public String getLocked() {
+    return id;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getOwner()
+   */
+  public String getOwner() {
+    return holder;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @return true if the lease is held by this node.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isLocal()
+   */
+  public boolean isLocal() {
+    return granted;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @return true if the lease is held by this node, has not expired, and the lock in this
+   *         JVM is held by the current thread.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isOwner()
+   */
+  public boolean isOwner() {
+    return granted && isLocked() && local.isOwner();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.Lock#unlock()
+   */
+  public void unlock() {
+    if (manager != null) {
+      manager.unlock(this);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @return true if the lease has not been released or expired. A lock held elsewhere is
+   *         always locked.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#isLocked()
+   */
+  public boolean isLocked() {
+    if (!granted) {
+      return true;
+    }
+    return locked && System.currentTimeMillis() < expires;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @return the fencing token of the lease.
+   * @see org.sakaiproject.nakamura.api.locking.Lock#getLockId()
+   */
+  public long getLockId() {
+    return token;
+  }
+
+  /**
+   * {@inheritDoc}
+   * unbind this lock, releasing the lease in the process.
+   * @see org.sakaiproject.nakamura.api.memory.ThreadBound#unbind()
+   */
+  public void unbind() {
+    unlock();
+  }
+
+  /**
+   * @return the lock in this JVM.
+   */
+  Lock getLocal() {
+    return local;
+  }
+
+  /**
+   * @param expires
+   *          the new expiry of a renewed lease.
+   */
+  void setExpires(long expires) {
+    this.expires = expires;
+  }
+
+  /**
+   * @param locked
+   *          false once the lease has been released or lost.
+   */
+  void setLocked(boolean locked) {
+    this.locked = locked;
+  }
+}
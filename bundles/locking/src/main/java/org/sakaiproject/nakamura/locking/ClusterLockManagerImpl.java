@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockGrant;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.locking.LockTransport;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A lock manager for a cluster of app servers. A lock is first taken in this JVM, through
+ * the registered {@link LockManagerImpl}, so threads of the same node queue locally and
+ * share one lock table with its other users, and then as a lease from the cluster lock coordinator over a {@link LockTransport}. Leases are renewed
+ * in the background while held; a lease that cannot be renewed is lost and the lock stops
+ * being owned. Every lease carries a fencing token, returned as the lock id, that
+ * increases with each grant.
+ *
+ * When no LockTransport service is registered, leases are granted by a coordinator in
+ * this JVM, which is correct for a single app server. A transport registered later takes
+ * over; leases granted locally are then lost at their next renewal.
+ *
+ * The component is only activated once it has been configured, so that it does not
+ * replace the in JVM lock manager unless a cluster has been set up for it.
+ */
+@Component(immediate = true, policy = ConfigurationPolicy.REQUIRE)
+@Service(value = LockManager.class)
+public class ClusterLockManagerImpl implements LockManager {
+
+  private static final String REQUEST_LOCKS = "lockmanager.clusterrequestmap";
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterLockManagerImpl.class);
+  private static final long DEFAULT_LEASE_TIME = 30000L;
+  private static final long DEFAULT_LOCK_TIMEOUT = 140000L;
+
+  @Property(value = "The Sakai Foundation")
+  static final String SERVICE_VENDOR = "service.vendor";
+
+  @Property(value = "Cluster Lock Manager")
+  static final String SERVICE_DESCRIPTION = "service.description";
+
+  @Property(intValue = 100)
+  static final String SERVICE_RANKING = "service.ranking";
+
+  @Property(longValue = DEFAULT_LEASE_TIME, description = "The time in ms a lease is granted for, leases are renewed every third of this while held.")
+  static final String LEASE_TIME = "lock.lease";
+
+  @Property(longValue = DEFAULT_LOCK_TIMEOUT, description = "The time in ms waitForLock will wait for a lock before throwing a LockTimeoutException.")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  @Property(value = "", description = "The identity of this node in lease requests, defaults to a random id.")
+  static final String NODE_ID = "lock.node";
+
+  @Reference
+  private CacheManagerService cacheManagerService;
+
+  @Reference(referenceInterface = LockManager.class, target = "(component.name=org.sakaiproject.nakamura.locking.LockManagerImpl)", bind = "bindLocalManager", unbind = "unbindLocalManager")
+  private LockManagerImpl localManager;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  private volatile LockTransport lockTransport;
+
+  /**
+   * Used while no LockTransport service is bound.
+   */
+  private final LockTransport localTransport = new LocalLockTransport(new LeaseCoordinator());
+  private final ConcurrentMap<String, ClusterLockImpl> heldLocks = new ConcurrentHashMap<String, ClusterLockImpl>();
+  private ScheduledExecutorService renewer;
+  private long leaseTime = DEFAULT_LEASE_TIME;
+  private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+  private String nodeId;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    Object lease = properties.get(LEASE_TIME);
+    if (lease != null) {
+      leaseTime = Long.parseLong(String.valueOf(lease));
+    }
+    Object timeout = properties.get(LOCK_TIMEOUT);
+    if (timeout != null) {
+      lockTimeout = Long.parseLong(String.valueOf(timeout));
+    }
+    Object node = properties.get(NODE_ID);
+    if (node != null && String.valueOf(node).trim().length() > 0) {
+      nodeId = String.valueOf(node).trim();
+    } else {
+      nodeId = String.valueOf(localManager.getInstanceId());
+    }
+    renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Lease renewal for " + nodeId);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    long interval = Math.max(1, leaseTime / 3);
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        renewLeases();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    stopRenewal();
+    for (ClusterLockImpl lock : heldLocks.values()) {
+      if (heldLocks.remove(lock.getLocked(), lock)) {
+        lock.setLocked(false);
+        release(lock);
+      }
+    }
+  }
+
+  /**
+   * Stop renewing leases, they will expire unless released.
+   */
+  void stopRenewal() {
+    if (renewer != null) {
+      renewer.shutdownNow();
+      renewer = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#getLock(java.lang.String)
+   */
+  public Lock getLock(String id) {
+    return getLock(id, true);
+  }
+
+  /**
+   * {@inheritDoc} Without create only locks held by this node are known.
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#getLock(java.lang.String,
+   *      boolean)
+   */
+  public Lock getLock(String id, boolean create) {
+    ClusterLockImpl held = heldLocks.get(id);
+    if ((held != null && held.isOwner()) || !create) {
+      return held;
+    }
+    Lock local = localManager.getLock(id);
+    if (!local.isOwner()) {
+      if (held != null) {
+        return held;
+      }
+      // another thread of this node has the lock and is still asking for the lease.
+      return new ClusterLockImpl(null, null, new LockGrant(id, nodeId + ":"
+          + local.getOwner(), 0, false), 0);
+    }
+    return acquire(id, local, 0);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#waitForLock(java.lang.String)
+   */
+  public Lock waitForLock(String id) throws LockTimeoutException {
+    long start = System.currentTimeMillis();
+    Lock local = localManager.waitForLock(id);
+    ClusterLockImpl held = heldLocks.get(id);
+    if (held != null && held.isOwner()) {
+      return held;
+    }
+    long remaining = lockTimeout - (System.currentTimeMillis() - start);
+    ClusterLockImpl lock = acquire(id, local, Math.max(0, remaining));
+    if (!lock.isOwner()) {
+      throw new LockTimeoutException("Failed to lock node " + id + " held by "
+          + lock.getOwner());
+    }
+    return lock;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockManager#clearLocks()
+   */
+  public void clearLocks() {
+    // clearing the requestLocks will invoke unbind which will release the leases.
+    getRequestLocks().clear();
+    localManager.clearLocks();
+  }
+
+  /**
+   * Ask the coordinator for a lease on an id that is locked in this JVM by the current
+   * thread.
+   *
+   * @param id
+   * @param local
+   * @param timeout
+   * @return the lock, which is not owned if the lease was refused.
+   */
+  private ClusterLockImpl acquire(String id, Lock local, long timeout) {
+    long start = System.currentTimeMillis();
+    LockGrant grant;
+    try {
+      grant = getTransport().acquire(id, getHolder(), leaseTime, timeout);
+    } catch (RuntimeException e) {
+      local.unlock();
+      throw e;
+    }
+    if (!grant.isGranted()) {
+      local.unlock();
+      return new ClusterLockImpl(null, null, grant, 0);
+    }
+    // the lease is timed from before the request so this node never outlives it.
+    ClusterLockImpl lock = new ClusterLockImpl(this, local, grant, start + leaseTime);
+    heldLocks.put(id, lock);
+    getRequestLocks().put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Release the lease and the lock in this JVM, only if the current thread is the owner.
+   *
+   * @param lock
+   */
+  protected void unlock(ClusterLockImpl lock) {
+    if (lock.getLocal().isOwner()) {
+      if (heldLocks.remove(lock.getLocked(), lock)) {
+        lock.setLocked(false);
+        release(lock);
+      }
+      lock.getLocal().unlock();
+    }
+  }
+
+  private void release(ClusterLockImpl lock) {
+    try {
+      getTransport().release(lock.getLocked(), lock.getOwner(), lock.getLockId());
+    } catch (RuntimeException e) {
+      // the lease will expire.
+      LOGGER.warn("Unable to release lease on {} {} ", lock.getLocked(), e.getMessage());
+    }
+  }
+
+  /**
+   * Renew every lease held by this node, giving up on those the coordinator refuses or
+   * that expire before the coordinator can be reached.
+   */
+  void renewLeases() {
+    for (ClusterLockImpl lock : heldLocks.values()) {
+      long start = System.currentTimeMillis();
+      try {
+        if (getTransport().renew(lock.getLocked(), lock.getOwner(), lock.getLockId(),
+            leaseTime)) {
+          lock.setExpires(start + leaseTime);
+          continue;
+        }
+        LOGGER.warn("Lost lease on {} ", lock.getLocked());
+      } catch (RuntimeException e) {
+        if (lock.isLocked()) {
+          LOGGER.warn("Unable to renew lease on {}, will retry {} ", lock.getLocked(), e
+              .getMessage());
+          continue;
+        }
+        LOGGER.warn("Lease on {} expired before it could be renewed {} ", lock
+            .getLocked(), e.getMessage());
+      }
+      lock.setLocked(false);
+      heldLocks.remove(lock.getLocked(), lock);
+    }
+  }
+
+  /**
+   * @return the bound transport, or the transport to the coordinator in this JVM.
+   */
+  private LockTransport getTransport() {
+    LockTransport transport = lockTransport;
+    return (transport == null) ? localTransport : transport;
+  }
+
+  private String getHolder() {
+    return nodeId + ":" + localManager.getThreadId();
+  }
+
+  /**
+   * @return
+   */
+  private Cache<ClusterLockImpl> getRequestLocks() {
+    return cacheManagerService.getCache(REQUEST_LOCKS, CacheScope.REQUEST);
+  }
+
+  /**
+   * @param cacheManagerService
+   */
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @param cacheManagerService
+   */
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+  /**
+   * @param lockManager
+   *          the in JVM lock manager, which is always a LockManagerImpl.
+   */
+  protected void bindLocalManager(LockManager lockManager) {
+    this.localManager = (LockManagerImpl) lockManager;
+  }
+
+  /**
+   * @param lockManager
+   */
+  protected void unbindLocalManager(LockManager lockManager) {
+    if (this.localManager == lockManager) {
+      this.localManager = null;
+    }
+  }
+
+  /**
+   * @param lockTransport
+   */
+  protected void bindLockTransport(LockTransport lockTransport) {
+    this.lockTransport = lockTransport;
+  }
+
+  /**
+   * @param lockTransport
+   */
+  protected void unbindLockTransport(LockTransport lockTransport) {
+    if (this.lockTransport == lockTransport) {
+      LOGGER.info("Lock transport {} removed, leases are now granted in this JVM ",
+          lockTransport);
+      this.lockTransport = null;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.LockGrant;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Grants leases on ids to the nodes of the cluster. There is one coordinator for the
+ * cluster, every node reaches it through a {@link org.sakaiproject.nakamura.api.locking.LockTransport}.
+ * A lease that is not renewed expires and can then be granted to another holder with a
+ * larger fencing token. Each id has its own lock, so requests for different ids do not
+ * wait for each other. The state of an id is dropped when its lease is released or has
+ * expired with no one waiting.
+ */
+public class LeaseCoordinator {
+
+  /**
+   * The shortest time in ms between sweeps for expired leases.
+   */
+  private static final long SWEEP_INTERVAL = 10000L;
+
+  /**
+   * The current lease on an id, present while the id is leased or has waiters.
+   */
+  private static class LeaseState {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private String holder;
+    private long token;
+    private long expires;
+    private int waiters;
+    /**
+     * Set once the state has been taken out of the table, a thread that finds it so must
+     * look the id up again.
+     */
+    private boolean removed;
+
+    private boolean isFree(long now) {
+      return holder == null || expires <= now;
+    }
+  }
+
+  private final ConcurrentMap<String, LeaseState> leases = new ConcurrentHashMap<String, LeaseState>();
+  private final AtomicLong lastToken = new AtomicLong();
+  private final AtomicLong nextSweep = new AtomicLong();
+
+  /**
+   * @param id
+   * @param holder
+   * @param leaseTime
+   * @param timeout
+   * @return a grant to the holder, or a refusal naming the current holder if the lease
+   *         could not be granted within the timeout.
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#acquire(String, String, long,
+   *      long)
+   */
+  public LockGrant acquire(String id, String holder, long leaseTime, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    sweep(System.currentTimeMillis());
+    LeaseState state = lockState(id);
+    try {
+      while (true) {
+        long now = System.currentTimeMillis();
+        boolean free = state.isFree(now);
+        if (free || state.holder.equals(holder)) {
+          if (free) {
+            state.token = lastToken.incrementAndGet();
+            state.holder = holder;
+          }
+          state.expires = now + leaseTime;
+          return new LockGrant(id, holder, state.token, true);
+        }
+        if (now >= deadline) {
+          return new LockGrant(id, state.holder, state.token, false);
+        }
+        state.waiters++;
+        try {
+          state.released.await(Math.min(deadline, state.expires) - now,
+              TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return new LockGrant(id, state.holder, state.token, false);
+        } finally {
+          state.waiters--;
+        }
+      }
+    } finally {
+      state.lock.unlock();
+    }
+  }
+
+  /**
+   * @param id
+   * @param holder
+   * @param token
+   * @param leaseTime
+   * @return true if the lease was extended.
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#renew(String, String, long,
+   *      long)
+   */
+  public boolean renew(String id, String holder, long token, long leaseTime) {
+    LeaseState state = leases.get(id);
+    if (state == null) {
+      return false;
+    }
+    state.lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      if (!state.removed && state.token == token && holder.equals(state.holder)
+          && state.expires > now) {
+        state.expires = now + leaseTime;
+        return true;
+      }
+      return false;
+    } finally {
+      state.lock.unlock();
+    }
+  }
+
+  /**
+   * @param id
+   * @param holder
+   * @param token
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#release(String, String, long)
+   */
+  public void release(String id, String holder, long token) {
+    LeaseState state = leases.get(id);
+    if (state == null) {
+      return;
+    }
+    state.lock.lock();
+    try {
+      if (!state.removed && state.token == token && holder.equals(state.holder)) {
+        state.holder = null;
+        if (state.waiters > 0) {
+          state.released.signal();
+        } else {
+          remove(id, state);
+        }
+      }
+    } finally {
+      state.lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of ids with a lease or waiters, including expired leases that
+   *         have not yet been swept.
+   */
+  public int getLeaseCount() {
+    return leases.size();
+  }
+
+  /**
+   * Drop the state of every id whose lease has expired and that has no waiters.
+   */
+  public void sweep() {
+    long now = System.currentTimeMillis();
+    for (Iterator<LeaseState> i = leases.values().iterator(); i.hasNext();) {
+      LeaseState state = i.next();
+      if (state.lock.tryLock()) {
+        try {
+          if (!state.removed && state.waiters == 0 && state.isFree(now)) {
+            state.removed = true;
+            i.remove();
+          }
+        } finally {
+          state.lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Sweep at most once every {@link #SWEEP_INTERVAL}, from whichever thread gets there
+   * first.
+   */
+  private void sweep(long now) {
+    long next = nextSweep.get();
+    if (now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+      sweep();
+    }
+  }
+
+  /**
+   * @return the state of the id, created if needed, with its lock held.
+   */
+  private LeaseState lockState(String id) {
+    while (true) {
+      LeaseState state = leases.get(id);
+      if (state == null) {
+        LeaseState created = new LeaseState();
+        state = leases.putIfAbsent(id, created);
+        if (state == null) {
+          state = created;
+        }
+      }
+      state.lock.lock();
+      if (!state.removed) {
+        return state;
+      }
+      state.lock.unlock();
+    }
+  }
+
+  /**
+   * Must be called holding the lock of the state.
+   */
+  private void remove(String id, LeaseState state) {
+    state.removed = true;
+    leases.remove(id, state);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import org.sakaiproject.nakamura.api.locking.LockGrant;
+import org.sakaiproject.nakamura.api.locking.LockTransport;
+
+/**
+ * A transport that calls a coordinator in the same JVM, used to run several lock managers
+ * as nodes of one cluster inside a single process.
+ */
+public class LocalLockTransport implements LockTransport {
+
+  private final LeaseCoordinator coordinator;
+
+  /**
+   * @param coordinator
+   *          the coordinator shared by all the nodes using this transport.
+   */
+  public LocalLockTransport(LeaseCoordinator coordinator) {
+    this.coordinator = coordinator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#acquire(java.lang.String,
+   *      java.lang.String, long, long)
+   */
+  public LockGrant acquire(String id, String holder, long leaseTime, long timeout) {
+    return coordinator.acquire(id, holder, leaseTime, timeout);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#renew(java.lang.String,
+   *      java.lang.String, long, long)
+   */
+  public boolean renew(String id, String holder, long token, long leaseTime) {
+    return coordinator.renew(id, holder, token, leaseTime);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.locking.LockTransport#release(java.lang.String,
+   *      java.lang.String, long)
+   */
+  public void release(String id, String holder, long token) {
+    coordinator.release(id, holder, token);
+  }
+}
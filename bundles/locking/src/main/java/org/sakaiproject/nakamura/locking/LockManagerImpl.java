@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -33,23 +35,32 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that holds the locks of this JVM in striped tables. A thread waiting for
+ * a lock waits on a condition for that id and is signalled as soon as the lock is
+ * released, rather than polling. A lock is a lease: one held for longer than
+ * lock.lease without being released is treated as abandoned and may be taken by
+ * another thread, as the entries of the old lock map cache expired.
  */
 @Component(immediate = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
 
-  /**
-   * The name of the cluster replicated cache. This cache must be configured with a
-   * suitable expiry to allow removal o stale locks and configured with a cluster wide
-   * replication.
-   */
-  private static final String LOCKMAP = "lockmanager.lockmap";
   /**
    *
    */
@@ -62,6 +73,22 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * The number of stripes the lock table is split into, a power of 2.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * About the same as the 300 polls of the old implementation.
+   */
+  private static final long DEFAULT_LOCK_TIMEOUT = 140000L;
+  /**
+   * The time to live of the old lockmanager.lockmap cache.
+   */
+  private static final long DEFAULT_LOCK_LEASE = 600000L;
+  /**
+   * The name the lock statistics are registered with JMX under.
+   */
+  static final String JMX_NAME = "org.sakaiproject.nakamura.locking:type=LockStatistics";
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -69,15 +96,17 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(longValue = DEFAULT_LOCK_TIMEOUT, description = "The time in ms waitForLock will wait for a lock before throwing a LockTimeoutException.")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  @Property(longValue = DEFAULT_LOCK_LEASE, description = "The time in ms after which a lock that has not been released is considered abandoned and can be taken by another thread.")
+  static final String LOCK_LEASE = "lock.lease";
+
   /**
    * Service dependency, the Cache Manager
    */
   @Reference
   private CacheManagerService cacheManagerService;
-  /**
-   * container for Locks.
-   */
-  private Cache<LockImpl> lockMap;
   /**
    * The id of this instance of this class.
    */
@@ -100,7 +129,39 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final LockStatistics statistics = new LockStatistics();
+  private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+  private long lockLease = DEFAULT_LOCK_LEASE;
+
+  /**
+   * The state of one locked id, present while the id is locked or has waiters.
+   */
+  private static class KeyState {
+    private LockImpl owner;
+    /**
+     * When the lease of the owner ends, in ms.
+     */
+    private long expires;
+    private int waiters;
+    private final Condition released;
+
+    private KeyState(Condition released) {
+      this.released = released;
+    }
+  }
+
+  /**
+   * A part of the lock table, guarded by its own lock.
+   */
+  private static class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, KeyState> keys = new HashMap<String, KeyState>();
+    /**
+     * When the stripe should next be swept of expired leases, in ms.
+     */
+    private long nextSweep;
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -110,6 +171,60 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    Object timeout = properties.get(LOCK_TIMEOUT);
+    if (timeout != null) {
+      setLockTimeout(Long.parseLong(String.valueOf(timeout)));
+    }
+    Object lease = properties.get(LOCK_LEASE);
+    if (lease != null) {
+      setLockLease(Long.parseLong(String.valueOf(lease)));
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(statistics, name);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register lock statistics {} ", e.getMessage());
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister lock statistics {} ", e.getMessage());
+    }
+  }
+
+  /**
+   * @param lockTimeout
+   *          the time in ms waitForLock waits before giving up.
+   */
+  void setLockTimeout(long lockTimeout) {
+    this.lockTimeout = lockTimeout;
+  }
+
+  /**
+   * @param lockLease
+   *          the time in ms after which an unreleased lock may be taken by another thread.
+   */
+  void setLockLease(long lockLease) {
+    this.lockLease = lockLease;
   }
 
   public Lock getLock(String id) {
@@ -121,19 +236,34 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
-          }
+    Stripe stripe = stripe(id);
+    LockImpl lock;
+    boolean created = false;
+    stripe.lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      sweep(stripe, now);
+      KeyState state = stripe.keys.get(id);
+      if (state != null) {
+        expire(id, state, now);
+      }
+      lock = (state == null) ? null : state.owner;
+      if (create && lock == null) {
+        if (state == null) {
+          state = new KeyState(stripe.lock.newCondition());
+          stripe.keys.put(id, state);
         }
+        lock = newLock(id);
+        state.owner = lock;
+        state.expires = now + lockLease;
+        created = true;
       }
+    } finally {
+      stripe.lock.unlock();
+    }
+    if (created) {
+      statistics.acquired(0);
+      getRequestLocks().put(id, lock);
     }
     if (lock != null) {
       lock.bind(this);
@@ -149,7 +279,8 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * Unlock only if the current thread is the owner.
+   * Unlock only if the current thread is the owner, and wake one thread waiting for the
+   * lock.
    *
    * @param lock
    */
@@ -159,8 +290,20 @@ public class LockManagerImpl implements LockManager {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      Stripe stripe = stripe(lock.getLocked());
+      stripe.lock.lock();
+      try {
+        KeyState state = stripe.keys.get(lock.getLocked());
+        if (state != null && state.owner == lock) {
+          state.owner = null;
+          if (state.waiters > 0) {
+            state.released.signal();
+          } else {
+            stripe.keys.remove(lock.getLocked());
+          }
+        }
+      } finally {
+        stripe.lock.unlock();
       }
     }
   }
@@ -179,42 +322,89 @@ public class LockManagerImpl implements LockManager {
     return threadId.get();
   }
 
+  /**
+   * @return the contention statistics of this lock manager.
+   */
+  public LockStatistics getStatistics() {
+    return statistics;
+  }
+
   /**
    * {@inheritDoc}
    *
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+    Stripe stripe = stripe(id);
+    long start = System.nanoTime();
+    long waitTime = 0;
+    boolean interrupted = false;
+    LockImpl lock;
+    stripe.lock.lock();
+    try {
+      sweep(stripe, System.currentTimeMillis());
+      KeyState state = stripe.keys.get(id);
+      if (state == null) {
+        state = new KeyState(stripe.lock.newCondition());
+        stripe.keys.put(id, state);
       }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
+      expire(id, state, System.currentTimeMillis());
+      if (state.owner != null) {
+        state.owner.bind(this);
+        if (state.owner.isOwner()) {
+          return state.owner;
         }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        state.waiters++;
+        statistics.startWaiting(id);
+        try {
+          long remaining = TimeUnit.MILLISECONDS.toNanos(lockTimeout);
+          while (state.owner != null) {
+            if (remaining <= 0) {
+              waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+              statistics.timedOut(waitTime);
+              LOGGER.warn(Thread.currentThread() + " Timed out after " + waitTime
+                  + " ms waiting for " + id);
+              throw new LockTimeoutException("Failed to lock node " + id);
+            }
+            // wake when the lease of the owner ends, in case it is never released.
+            long untilExpiry = TimeUnit.MILLISECONDS.toNanos(Math.max(1, state.expires
+                - System.currentTimeMillis()));
+            try {
+              state.released.awaitNanos(Math.min(remaining, untilExpiry));
+            } catch (InterruptedException e) {
+              interrupted = true;
+            }
+            remaining = TimeUnit.MILLISECONDS.toNanos(lockTimeout)
+                - (System.nanoTime() - start);
+            expire(id, state, System.currentTimeMillis());
+          }
+        } finally {
+          // the state stays in the table, it is either still owned or about to be.
+          state.waiters--;
+          statistics.stopWaiting();
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+        // never report a contended wait as 0.
+        waitTime = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+      }
+      lock = newLock(id);
+      state.owner = lock;
+      state.expires = System.currentTimeMillis() + lockLease;
+    } finally {
+      stripe.lock.unlock();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    statistics.acquired(waitTime);
+    getRequestLocks().put(id, lock);
+    lock.bind(this);
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    }
+    return lock;
   }
 
   /**
@@ -228,21 +418,63 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+  /**
+   * Release the lock on an id if its lease has ended. Must be called holding the stripe
+   * lock.
+   */
+  private void expire(String id, KeyState state, long now) {
+    if (state.owner != null && state.expires <= now) {
+      LOGGER.warn("Lock on {} was not released within {} ms, releasing it ", id, lockLease);
+      state.owner.setLocked(false);
+      state.owner = null;
+      statistics.expired();
+    }
+  }
+
+  /**
+   * Remove the expired leases without waiters from a stripe, at most once every quarter
+   * of a lease, so locks that are abandoned and never asked for again do not stay in the
+   * table. Must be called holding the stripe lock.
+   */
+  private void sweep(Stripe stripe, long now) {
+    if (now < stripe.nextSweep) {
+      return;
+    }
+    stripe.nextSweep = now + Math.max(1, lockLease / 4);
+    for (Iterator<Map.Entry<String, KeyState>> i = stripe.keys.entrySet().iterator(); i
+        .hasNext();) {
+      Map.Entry<String, KeyState> e = i.next();
+      KeyState state = e.getValue();
+      expire(e.getKey(), state, now);
+      if (state.owner == null && state.waiters == 0) {
+        i.remove();
+      }
+    }
+  }
+
+  private LockImpl newLock(String id) {
+    return new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
+  }
+
+  private Stripe stripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
   }
   /**
    * @param cacheManagerService
    */
   protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = null;
-    lockMap = null;
   }
- 
- 
+
+
 }
@@ -0,0 +1,263 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts lock acquisitions, waits and timeouts. The per id wait counts are kept for the
+ * most recently contended ids only, so that the hottest keys can be reported without
+ * holding a counter for every id ever locked.
+ */
+public class LockStatistics implements LockStatisticsMBean {
+
+  /**
+   * The upper bounds of the wait time buckets in ms.
+   */
+  private static final long[] BUCKETS = { 1, 10, 100, 1000, 10000, 60000 };
+  /**
+   * The number of contended ids tracked.
+   */
+  private static final int MAX_TRACKED_KEYS = 1000;
+  /**
+   * The number of ids reported by {@link #getHottestKeys()}.
+   */
+  private static final int HOTTEST_KEYS = 20;
+
+  private final AtomicLong acquisitions = new AtomicLong();
+  private final AtomicLong contendedAcquisitions = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong expiries = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length + 1);
+  private final Map<String, Long> contendedKeys = new LinkedHashMap<String, Long>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+      return size() > MAX_TRACKED_KEYS;
+    }
+  };
+
+  /**
+   * A lock was granted.
+   *
+   * @param waitTime
+   *          the time spent waiting in ms, 0 if granted without waiting.
+   */
+  void acquired(long waitTime) {
+    acquisitions.incrementAndGet();
+    if (waitTime > 0) {
+      contendedAcquisitions.incrementAndGet();
+      recordWait(waitTime);
+    }
+  }
+
+  /**
+   * A wait for a lock gave up.
+   *
+   * @param waitTime
+   */
+  void timedOut(long waitTime) {
+    timeouts.incrementAndGet();
+    recordWait(waitTime);
+  }
+
+  /**
+   * A lock was released because its lease ended.
+   */
+  void expired() {
+    expiries.incrementAndGet();
+  }
+
+  /**
+   * A thread has started waiting for the lock on id.
+   *
+   * @param id
+   */
+  void startWaiting(String id) {
+    waiting.incrementAndGet();
+    synchronized (contendedKeys) {
+      Long count = contendedKeys.get(id);
+      contendedKeys.put(id, count == null ? 1L : count + 1);
+    }
+  }
+
+  /**
+   * A thread has stopped waiting, with or without the lock.
+   */
+  void stopWaiting() {
+    waiting.decrementAndGet();
+  }
+
+  private void recordWait(long waitTime) {
+    int i = 0;
+    while (i < BUCKETS.length && waitTime > BUCKETS[i]) {
+      i++;
+    }
+    histogram.incrementAndGet(i);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getAcquisitions()
+   */
+  public long getAcquisitions() {
+    return acquisitions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getContendedAcquisitions()
+   */
+  public long getContendedAcquisitions() {
+    return contendedAcquisitions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getTimeouts()
+   */
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getExpiries()
+   */
+  public long getExpiries() {
+    return expiries.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getWaiting()
+   */
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getWaitTimeBuckets()
+   */
+  public long[] getWaitTimeBuckets() {
+    long[] buckets = new long[BUCKETS.length];
+    System.arraycopy(BUCKETS, 0, buckets, 0, BUCKETS.length);
+    return buckets;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getWaitTimeHistogram()
+   */
+  public long[] getWaitTimeHistogram() {
+    long[] counts = new long[histogram.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = histogram.get(i);
+    }
+    return counts;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#getHottestKeys()
+   */
+  public String[] getHottestKeys() {
+    List<Entry<String, Long>> entries;
+    synchronized (contendedKeys) {
+      entries = new ArrayList<Entry<String, Long>>();
+      for (Entry<String, Long> e : contendedKeys.entrySet()) {
+        entries.add(new KeyCount(e.getKey(), e.getValue()));
+      }
+    }
+    Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+      public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+        return o2.getValue().compareTo(o1.getValue());
+      }
+    });
+    int n = Math.min(HOTTEST_KEYS, entries.size());
+    String[] hottest = new String[n];
+    for (int i = 0; i < n; i++) {
+      hottest[i] = entries.get(i).getKey() + "=" + entries.get(i).getValue();
+    }
+    return hottest;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.locking.LockStatisticsMBean#reset()
+   */
+  public void reset() {
+    acquisitions.set(0);
+    contendedAcquisitions.set(0);
+    timeouts.set(0);
+    expiries.set(0);
+    for (int i = 0; i < histogram.length(); i++) {
+      histogram.set(i, 0);
+    }
+    synchronized (contendedKeys) {
+      contendedKeys.clear();
+    }
+  }
+
+  /**
+   * A copy of a tracked id and its count, taken so sorting happens outside the lock.
+   */
+  private static class KeyCount implements Entry<String, Long> {
+    private final String key;
+    private final Long value;
+
+    private KeyCount(String key, Long value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public Long getValue() {
+      return value;
+    }
+
+    public Long setValue(Long value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * The JMX view of the contention on the locks of a {@link LockManagerImpl}.
+ */
+public interface LockStatisticsMBean {
+
+  /**
+   * @return the number of locks granted.
+   */
+  long getAcquisitions();
+
+  /**
+   * @return the number of locks that were only granted after waiting for another owner.
+   */
+  long getContendedAcquisitions();
+
+  /**
+   * @return the number of waits that ended in a LockTimeoutException.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of locks released because they were held beyond their lease.
+   */
+  long getExpiries();
+
+  /**
+   * @return the number of threads waiting for a lock now.
+   */
+  int getWaiting();
+
+  /**
+   * @return the upper bound of each wait time bucket in ms, the last bucket is unbounded.
+   */
+  long[] getWaitTimeBuckets();
+
+  /**
+   * @return the number of waits that fell in each bucket of {@link #getWaitTimeBuckets()}
+   *         , with one extra count for waits longer than the last bound.
+   */
+  long[] getWaitTimeHistogram();
+
+  /**
+   * @return the most contended lock ids as id=waits, most contended first.
+   */
+  String[] getHottestKeys();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockGrant;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs several cluster lock managers as nodes sharing one coordinator.
+ */
+public class ClusterLockManagerImplTest {
+
+  private LeaseCoordinator coordinator;
+  private ClusterLockManagerImpl nodeA;
+  private ClusterLockManagerImpl nodeB;
+  private LockManagerImpl localManagerA;
+
+  @Before
+  public void setUp() throws Exception {
+    coordinator = new LeaseCoordinator();
+    localManagerA = createLocalManager();
+    nodeA = createNode("a", 30000, new LocalLockTransport(coordinator), localManagerA);
+    nodeB = createNode("b", 30000);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.deactivate(null);
+    nodeB.deactivate(null);
+  }
+
+  private ClusterLockManagerImpl createNode(String nodeId, long leaseTime)
+      throws Exception {
+    return createNode(nodeId, leaseTime, new LocalLockTransport(coordinator));
+  }
+
+  private ClusterLockManagerImpl createNode(String nodeId, long leaseTime,
+      LocalLockTransport transport) throws Exception {
+    return createNode(nodeId, leaseTime, transport, createLocalManager());
+  }
+
+  private ClusterLockManagerImpl createNode(String nodeId, long leaseTime,
+      LocalLockTransport transport, LockManagerImpl localManager) throws Exception {
+    ClusterLockManagerImpl node = new ClusterLockManagerImpl();
+    node.bindCacheManagerService(createCacheManagerService());
+    node.bindLocalManager(localManager);
+    if (transport != null) {
+      node.bindLockTransport(transport);
+    }
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(ClusterLockManagerImpl.NODE_ID, nodeId);
+    properties.put(ClusterLockManagerImpl.LEASE_TIME, leaseTime);
+    properties.put(ClusterLockManagerImpl.LOCK_TIMEOUT, 5000L);
+    node.activate(properties);
+    return node;
+  }
+
+  /**
+   * The in JVM lock manager a node delegates to, as registered by SCR.
+   */
+  private LockManagerImpl createLocalManager() throws Exception {
+    LockManagerImpl localManager = new LockManagerImpl();
+    localManager.bindCacheManagerService(createCacheManagerService());
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_TIMEOUT, 5000L);
+    localManager.activate(properties);
+    return localManager;
+  }
+
+  private CacheManagerService createCacheManagerService() {
+    Cache<Object> requestCache = new MapCacheImpl<Object>();
+    Cache<Object> clusterRequestCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("lockmanager.requestmap", CacheScope.REQUEST))
+        .andReturn(requestCache).anyTimes();
+    expect(
+        cacheManagerService.getCache("lockmanager.clusterrequestmap",
+            CacheScope.REQUEST)).andReturn(clusterRequestCache).anyTimes();
+    replay(cacheManagerService);
+    return cacheManagerService;
+  }
+
+  @Test
+  public void testLockIsExclusiveAcrossNodes() {
+    Lock a = nodeA.getLock("foo");
+    assertTrue(a.isOwner());
+    Lock b = nodeB.getLock("foo");
+    assertFalse(b.isOwner());
+    assertTrue(b.isLocked());
+    assertEquals(a.getOwner(), b.getOwner());
+
+    a.unlock();
+    assertNull(nodeA.getLock("foo", false));
+    b = nodeB.getLock("foo");
+    assertTrue(b.isOwner());
+    // the fencing token always increases.
+    assertTrue(b.getLockId() > a.getLockId());
+  }
+
+  @Test
+  public void testSharesLocksWithRegisteredLockManager() throws Exception {
+    final AtomicReference<Lock> local = new AtomicReference<Lock>();
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        local.set(localManagerA.getLock("foo"));
+      }
+    };
+    other.start();
+    other.join(5000);
+    assertTrue(local.get().isLocked());
+    // a thread using the registered lock manager holds the id on this node.
+    assertFalse(nodeA.getLock("foo").isOwner());
+    assertEquals(0, coordinator.getLeaseCount());
+  }
+
+  @Test
+  public void testWaitForLockAcrossNodes() throws Exception {
+    Lock a = nodeA.waitForLock("foo");
+    final AtomicReference<Lock> granted = new AtomicReference<Lock>();
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Lock b = nodeB.waitForLock("foo");
+          granted.set(b);
+          b.unlock();
+        } catch (LockTimeoutException e) {
+          // granted stays null
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(50);
+    assertNull(granted.get());
+    a.unlock();
+    waiter.join(5000);
+    assertTrue(granted.get().getLockId() > a.getLockId());
+  }
+
+  @Test
+  public void testRenewalKeepsLease() throws Exception {
+    nodeA.deactivate(null);
+    nodeA = createNode("a", 100);
+    Lock a = nodeA.getLock("foo");
+    Thread.sleep(350);
+    assertTrue(a.isOwner());
+    assertFalse(nodeB.getLock("foo").isOwner());
+  }
+
+  @Test
+  public void testExpiredLeaseIsFenced() throws Exception {
+    nodeA.deactivate(null);
+    nodeA = createNode("a", 100);
+    Lock a = nodeA.getLock("foo");
+    // node a stops renewing, as if it had been partitioned from the coordinator.
+    nodeA.stopRenewal();
+    Thread.sleep(250);
+    assertFalse(a.isOwner());
+    Lock b = nodeB.getLock("foo");
+    assertTrue(b.isOwner());
+    assertTrue(b.getLockId() > a.getLockId());
+    // the stale lock can not release the new lease.
+    a.unlock();
+    assertTrue(b.isOwner());
+    assertFalse(nodeA.getLock("foo").isOwner());
+  }
+
+  @Test
+  public void testClearLocksReleasesLeases() {
+    assertTrue(nodeA.getLock("foo").isOwner());
+    nodeA.clearLocks();
+    assertTrue(nodeB.getLock("foo").isOwner());
+    assertEquals(1, coordinator.getLeaseCount());
+  }
+
+  @Test
+  public void testWithoutTransportLeasesAreLocal() throws Exception {
+    ClusterLockManagerImpl single = createNode("single", 30000, null);
+    try {
+      Lock lock = single.getLock("foo");
+      assertTrue(lock.isOwner());
+      assertEquals(0, coordinator.getLeaseCount());
+      lock.unlock();
+      assertNull(single.getLock("foo", false));
+    } finally {
+      single.deactivate(null);
+    }
+  }
+
+  @Test
+  public void testExpiredLeasesAreSwept() throws Exception {
+    LockGrant grant = coordinator.acquire("foo", "a:1", 10, 0);
+    assertTrue(grant.isGranted());
+    assertEquals(1, coordinator.getLeaseCount());
+    Thread.sleep(50);
+    coordinator.sweep();
+    assertEquals(0, coordinator.getLeaseCount());
+    // a renewal after the sweep is refused and a new holder gets a larger token.
+    assertFalse(coordinator.renew("foo", "a:1", grant.getToken(), 10));
+    assertTrue(coordinator.acquire("foo", "b:1", 10, 0).getToken() > grant.getToken());
+  }
+}
@@ -22,16 +22,28 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
@@ -97,4 +109,77 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockIsSignalled() throws Exception {
+    final Lock held = lockManager.waitForLock("foo");
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> waiter = executor.submit(new Callable<String>() {
+        public String call() throws LockTimeoutException {
+          Lock l = lockManager.waitForLock("foo");
+          String locked = l.getLocked();
+          l.unlock();
+          return locked;
+        }
+      });
+      while (lockManager.getStatistics().getWaiting() == 0) {
+        Thread.sleep(1);
+      }
+      held.unlock();
+      // any failure in the waiter is rethrown here.
+      assertEquals("foo", waiter.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    assertEquals(1, lockManager.getStatistics().getContendedAcquisitions());
+    assertEquals("foo=1", lockManager.getStatistics().getHottestKeys()[0]);
+    assertEquals(null, lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testAbandonedLockExpires() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_LEASE, 50L);
+    lockManager.activate(properties);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      // taken on another thread and never released.
+      final Lock abandoned = executor.submit(new Callable<Lock>() {
+        public Lock call() throws LockTimeoutException {
+          return lockManager.waitForLock("foo");
+        }
+      }).get(5, TimeUnit.SECONDS);
+      Lock l = lockManager.waitForLock("foo");
+      assertTrue(l.isOwner());
+      assertFalse(abandoned.isLocked());
+      assertEquals(1, lockManager.getStatistics().getExpiries());
+    } finally {
+      executor.shutdownNow();
+      lockManager.deactivate(properties);
+    }
+  }
+
+  @Test
+  public void testWaitForLockTimeout() throws Exception {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(LockManagerImpl.LOCK_TIMEOUT, 50L);
+    lockManager.activate(properties);
+    lockManager.waitForLock("foo");
+    final CountDownLatch timedOut = new CountDownLatch(1);
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          timedOut.countDown();
+        }
+      }
+    };
+    waiter.start();
+    assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+    assertEquals(1, lockManager.getStatistics().getTimeouts());
+    lockManager.deactivate(properties);
+  }
+
 }
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.io.Serializable;
+
+/**
+ * A single change to a cluster scoped cache, sent between nodes by a
+ * {@link CacheEventTransport}. Events are immutable and must be serializable since they
+ * travel over the wire.
+ */
+public class CacheEvent implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 4627134178716829093L;
+
+  /**
+   * The operation the event represents.
+   */
+  public enum Type {
+    /**
+     * Replace the value of a key, only sent for CLUSTERREPLICATED caches.
+     */
+    PUT(),
+    /**
+     * Remove a key.
+     */
+    REMOVE(),
+    /**
+     * Remove a key and all its child keys.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * Remove everything from the cache.
+     */
+    CLEAR();
+  }
+
+  private final String cacheName;
+  private final Type type;
+  private final String key;
+  private final Serializable value;
+
+  /**
+   * @param cacheName
+   *          the name of the cache the event applies to.
+   * @param type
+   *          the operation.
+   * @param key
+   *          the key, null for {@link Type#CLEAR}.
+   * @param value
+   *          the new value, only used for {@link Type#PUT}.
+   */
+  public CacheEvent(String cacheName, Type type, String key, Serializable value) {
+    this.cacheName = cacheName;
+    this.type = type;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * @return the name of the cache the event applies to.
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the operation.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the key, null for {@link Type#CLEAR}.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value for a {@link Type#PUT}, otherwise null.
+   */
+  public Serializable getValue() {
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return type + " " + cacheName + " " + key;
+  }
+}
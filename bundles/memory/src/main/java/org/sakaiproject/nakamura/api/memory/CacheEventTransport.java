@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.util.List;
+
+/**
+ * Carries batches of {@link CacheEvent}s between the nodes of a cluster. The cache
+ * manager registers a {@link CacheEventListener} with the transport and sends batches of
+ * coalesced events through it. An implementation registered as an OSGi service will be
+ * used by the cache manager in place of the default in JVM loopback transport.
+ */
+public interface CacheEventTransport {
+
+  /**
+   * Send a batch of events to all nodes in the cluster. Implementations may deliver the
+   * batch back to the sender, listeners are expected to ignore their own batches.
+   *
+   * @param sourceId
+   *          the id of the node sending the batch.
+   * @param events
+   *          the events, in the order they happened.
+   */
+  void send(String sourceId, List<CacheEvent> events);
+
+  /**
+   * @param listener
+   *          a listener that will receive all batches sent over the transport.
+   */
+  void addListener(CacheEventListener listener);
+
+  /**
+   * @param listener
+   *          the listener to remove.
+   */
+  void removeListener(CacheEventListener listener);
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Usage statistics for a named cache in a scope. Request and thread scoped caches are
+ * counted together for all threads. The interface is also the management interface of
+ * the JMX bean registered for each cache.
+ */
+public interface CacheStatistics {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the name of the {@link CacheScope} of the cache.
+   */
+  String getScope();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that found nothing.
+   */
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), or 0 if there have been no gets.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the number of puts.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of explicit removes, not including removeChildren or clear.
+   */
+  long getRemoves();
+
+  /**
+   * @return the number of entries evicted or expired by the cache.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of times removeChildren was called.
+   */
+  long getRemoveChildrenCalls();
+
+  /**
+   * @return the total number of keys examined by removeChildren calls.
+   */
+  long getRemoveChildrenKeysVisited();
+
+  /**
+   * @return the total time spent in removeChildren calls, in ms.
+   */
+  long getRemoveChildrenTime();
+
+  /**
+   * @return the number of entries in the cache, or -1 if this is not known, as for thread
+   *         bound caches.
+   */
+  long getSize();
+
+  /**
+   * @return an estimate of the memory used by the entries in the cache in bytes, based on
+   *         the serialized size of a sample of the entries, or -1 if this is not known.
+   */
+  long getEstimatedMemory();
+
+}
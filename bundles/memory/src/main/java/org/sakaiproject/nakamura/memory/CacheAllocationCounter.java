@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the cache objects created and reused for a thread bound scope.
+ */
+public class CacheAllocationCounter {
+
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong reuses = new AtomicLong();
+
+  /**
+   * A new cache object was created.
+   */
+  public void allocated() {
+    allocations.incrementAndGet();
+  }
+
+  /**
+   * An existing cache object was recycled for a new scope.
+   */
+  public void reused() {
+    reuses.incrementAndGet();
+  }
+
+  /**
+   * @return the number of cache objects created.
+   */
+  public long getAllocations() {
+    return allocations.get();
+  }
+
+  /**
+   * @return the number of times a cache object was recycled.
+   */
+  public long getReuses() {
+    return reuses.get();
+  }
+}
@@ -18,26 +18,50 @@
 package org.sakaiproject.nakamura.memory;
 
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  *
  */
-public class CacheImpl<V> implements Cache<V> {
+public class CacheImpl<V> implements Cache<V>, SizedCache {
 
+  /**
+   * The number of elements serialized to estimate the memory used by the cache.
+   */
+  private static final int MEMORY_SAMPLE_SIZE = 20;
   private String cacheName;
-  private net.sf.ehcache.Cache cache;
+  protected net.sf.ehcache.Cache cache;
+  protected final CacheStatisticsImpl statistics;
 
   /**
    * @param cacheManager
    * @param name
    */
   public CacheImpl(CacheManager cacheManager, String name) {
+    this(cacheManager, name, new CacheStatisticsImpl(name == null ? "default" : name,
+        CacheScope.INSTANCE));
+  }
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param statistics
+   *          the statistics to record usage in.
+   */
+  public CacheImpl(CacheManager cacheManager, String name, CacheStatisticsImpl statistics) {
+    this.statistics = statistics;
     if (name == null) {
       cacheName = "default";
     } else {
@@ -53,6 +77,8 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    cache.getCacheEventNotificationService().registerListener(new EvictionListener());
+    statistics.setSizedCache(this);
   }
 
   /**
@@ -82,8 +108,10 @@ public class CacheImpl<V> implements Cache<V> {
   public V get(String key) {
     Element e = cache.get(key);
     if (e == null) {
+      statistics.miss();
       return null;
     }
+    statistics.hit();
     return (V) e.getObjectValue();
   }
 
@@ -102,6 +130,7 @@ public class CacheImpl<V> implements Cache<V> {
       }
     }
     cache.put(new Element(key, payload));
+    statistics.put();
     return previous;
   }
 
@@ -112,6 +141,7 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void remove(String key) {
     cache.remove(key);
+    statistics.remove();
   }
 
   /**
@@ -120,6 +150,7 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    long start = System.nanoTime();
     cache.remove(key);
     if (!key.endsWith("/")) {
       key = key + "/";
@@ -130,6 +161,7 @@ public class CacheImpl<V> implements Cache<V> {
         cache.remove(k);
       }
     }
+    statistics.removeChildren(keys.size() + 1, System.nanoTime() - start);
   }
 
   /**
@@ -150,4 +182,98 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.SizedCache#getSize()
+   */
+  public long getSize() {
+    return cache.getSize();
+  }
+
+  /**
+   * {@inheritDoc} Serializes a sample of the elements and scales the average size up to
+   * the size of the cache.
+   *
+   * @see org.sakaiproject.nakamura.memory.SizedCache#estimateMemory()
+   */
+  public long estimateMemory() {
+    List<?> keys = cache.getKeys();
+    if (keys.size() == 0) {
+      return 0;
+    }
+    CountingOutputStream counter = new CountingOutputStream();
+    int sampled = 0;
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(counter);
+      for (int i = 0; i < keys.size() && sampled < MEMORY_SAMPLE_SIZE; i++) {
+        Element e = cache.getQuiet(keys.get(i));
+        if (e != null && e.getObjectValue() instanceof Serializable) {
+          out.writeObject(keys.get(i));
+          out.writeObject(e.getObjectValue());
+          out.reset();
+          sampled++;
+        }
+      }
+      out.close();
+    } catch (IOException e) {
+      return -1;
+    }
+    if (sampled == 0) {
+      return -1;
+    }
+    return (counter.count / sampled) * keys.size();
+  }
+
+  /**
+   * Counts bytes written and discards them.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * Counts elements removed by ehcache.
+   */
+  private class EvictionListener implements CacheEventListener {
+
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      statistics.evicted();
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+      statistics.evicted();
+    }
+
+    public void notifyElementPut(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+    }
+
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException("The eviction listener is bound to one cache");
+    }
+  }
+
 }
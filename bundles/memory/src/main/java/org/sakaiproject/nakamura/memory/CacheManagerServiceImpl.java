@@ -20,12 +20,18 @@ package org.sakaiproject.nakamura.memory;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.management.ManagementService;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheEventTransport;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,15 +40,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.management.MBeanServer;
 
 /**
- * The <code>CacheManagerServiceImpl</code>
+ * The <code>CacheManagerServiceImpl</code>. CLUSTERINVALIDATED and CLUSTERREPLICATED caches
+ * are local caches that publish their changes through a {@link ClusterCacheEventBus}. If a
+ * {@link CacheEventTransport} service is present it is used to reach other nodes,
+ * otherwise a loopback transport is used and the caches behave as instance caches.
  */
 @Component(immediate = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
 @Service
+@Reference(name = "cacheEventTransport", referenceInterface = CacheEventTransport.class, cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindCacheEventTransport", unbind = "unbindCacheEventTransport")
 public class CacheManagerServiceImpl implements CacheManagerService {
 
   @Property(value = "The Sakai Foundation")
@@ -51,15 +65,55 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property(value = "Cache Manager Service Implementation")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(value = { "" }, description = "Names of caches with path like keys that should keep a key index, making removeChildren proportional to the number of children rather than the size of the cache. Only worth it for caches that are invalidated by subtree, the index is maintained on every put. eg contentCache, accessControlCache, authorizableCache for sparse storage.")
+  static final String PATH_INDEXED_CACHES = "path-indexed-caches";
+
+  @Property(value = { "lockmanager.requestmap" }, description = "Names of request scoped caches that are created up front for each worker thread and recycled between requests.")
+  static final String REQUEST_CACHE_NAMES = "request-cache-names";
+
+  @Property(value = { "" }, description = "Caches that keep elements evicted from the heap in a serialized off heap tier, as name:megabytes. eg contentCache:256, authorizableCache:64, accessControlCache:64 for sparse storage. The JVM must be given enough -XX:MaxDirectMemorySize for the total.")
+  static final String OFF_HEAP_CACHES = "off-heap-caches";
+
+  @Property(intValue = 600, description = "The time to live in seconds of elements in the off heap tier, measured from when the element was put in the cache.")
+  static final String OFF_HEAP_TTL = "off-heap-ttl";
+
+  /**
+   * The largest off heap tier, a direct buffer is indexed by an int.
+   */
+  private static final int MAX_OFF_HEAP_MB = 2047;
+
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
-  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
+  private Map<String, Cache<?>> caches = new ConcurrentHashMap<String, Cache<?>>();
+  private ThreadLocal<RequestCacheArena> requestArenaHolder = new ThreadLocal<RequestCacheArena>();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private Map<String, Cache<?>> clusterCaches = new ConcurrentHashMap<String, Cache<?>>();
+  private CacheEventTransport loopbackTransport = new LoopbackCacheEventTransport();
+  private ClusterCacheEventBus clusterEventBus;
+  private Set<String> pathIndexedCaches = new HashSet<String>();
+  private String[] requestCacheNames = new String[0];
+  private Map<String, Integer> offHeapCaches = new HashMap<String, Integer>();
+  private long offHeapTimeToLive = 600000L;
+  private CacheAllocationCounter requestAllocations = new CacheAllocationCounter();
+  private CacheAllocationCounter threadAllocations = new CacheAllocationCounter();
+  private CacheStatisticsRegistry statisticsRegistry;
 
   public CacheManagerServiceImpl() throws IOException {
     create();
+    clusterEventBus = new ClusterCacheEventBus(loopbackTransport);
+  }
+
+  /**
+   * Create a cache manager that uses the supplied bus for cluster scoped caches, used
+   * when testing several nodes in one JVM.
+   *
+   * @param clusterEventBus
+   * @throws IOException
+   */
+  public CacheManagerServiceImpl(ClusterCacheEventBus clusterEventBus) throws IOException {
+    create();
+    this.clusterEventBus = clusterEventBus;
   }
 
   private void create() throws IOException {
@@ -94,13 +148,69 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
     ManagementService.registerMBeans(cacheManager, mBeanServer, true, true,
         true, true);
+    statisticsRegistry = new CacheStatisticsRegistry(mBeanServer);
+
+  }
+
+  @Activate
+  public void activate(Map<String, Object> properties) {
+    Set<String> names = new HashSet<String>();
+    for (String name : toStringArray(properties.get(PATH_INDEXED_CACHES))) {
+      if (name.length() > 0) {
+        names.add(name);
+      }
+    }
+    pathIndexedCaches = names;
+    requestCacheNames = toStringArray(properties.get(REQUEST_CACHE_NAMES));
+    Map<String, Integer> offHeap = new HashMap<String, Integer>();
+    for (String spec : toStringArray(properties.get(OFF_HEAP_CACHES))) {
+      int i = spec.lastIndexOf(':');
+      if (i <= 0) {
+        if (spec.length() > 0) {
+          logger.warn("Ignoring off heap cache {}, expected name:megabytes ", spec);
+        }
+        continue;
+      }
+      try {
+        int mb = Integer.parseInt(spec.substring(i + 1).trim());
+        if (mb > MAX_OFF_HEAP_MB) {
+          logger.warn("Limiting off heap cache {} to {} MB ", spec, MAX_OFF_HEAP_MB);
+          mb = MAX_OFF_HEAP_MB;
+        }
+        if (mb > 0) {
+          offHeap.put(spec.substring(0, i).trim(), mb);
+        }
+      } catch (NumberFormatException e) {
+        logger.warn("Ignoring off heap cache {}, expected name:megabytes ", spec);
+      }
+    }
+    offHeapCaches = offHeap;
+    Object ttl = properties.get(OFF_HEAP_TTL);
+    if (ttl != null) {
+      offHeapTimeToLive = Long.parseLong(String.valueOf(ttl).trim()) * 1000L;
+    }
+  }
 
+  private String[] toStringArray(Object value) {
+    if (value instanceof String[]) {
+      String[] values = (String[]) value;
+      String[] trimmed = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        trimmed[i] = values[i].trim();
+      }
+      return trimmed;
+    } else if (value instanceof String) {
+      return new String[] { ((String) value).trim() };
+    }
+    return new String[0];
   }
 
   /**
    * perform a shutdown
    */
   public void stop() {
+    clusterEventBus.stop();
+    statisticsRegistry.unregisterAll();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -113,17 +223,17 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   public <V> Cache<V> getCache(String name, CacheScope scope) {
     switch (scope) {
     case INSTANCE:
-      return getInstanceCache(name);
+      return getInstanceCache(name, CacheScope.INSTANCE);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, false);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, true);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
       return getThreadCache(name);
     default:
-      return getInstanceCache(name);
+      return getInstanceCache(name, CacheScope.INSTANCE);
     }
   }
 
@@ -138,8 +248,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
     Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
+      threadCache = new MapCacheImpl<V>(statisticsRegistry.get(name, CacheScope.THREAD));
       threadCacheMap.put(name, threadCache);
+      threadAllocations.allocated();
     }
     return threadCache;
   }
@@ -150,32 +261,90 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
-    if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
-      requestCacheMap.put(name, requestCache);
+    RequestCacheArena arena = requestArenaHolder.get();
+    if (arena == null) {
+      arena = new RequestCacheArena(requestCacheNames, requestAllocations,
+          statisticsRegistry);
+      requestArenaHolder.set(arena);
     }
-    return requestCache;
+    return arena.get(name);
   }
 
   /**
    * @param name
+   * @param scope
+   *          the scope the statistics of the cache are recorded under.
    * @return
    */
   @SuppressWarnings("unchecked")
-  private <V> Cache<V> getInstanceCache(String name) {
+  private <V> Cache<V> getInstanceCache(String name, CacheScope scope) {
     if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
-    } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+      name = "default";
+    }
+    Cache<V> c = (Cache<V>) caches.get(name);
+    if (c == null) {
+      synchronized (caches) {
+        c = (Cache<V>) caches.get(name);
+        if (c == null) {
+          CacheStatisticsImpl statistics = statisticsRegistry.get(name, scope);
+          Integer offHeapMb = offHeapCaches.get(name);
+          if (offHeapMb != null) {
+            OffHeapStore offHeap = new OffHeapStore(offHeapMb * 1024 * 1024,
+                offHeapTimeToLive);
+            c = new TieredCacheImpl<V>(cacheManager, name, offHeap, statistics);
+          } else if (pathIndexedCaches.contains(name)) {
+            c = new PathIndexedCacheImpl<V>(cacheManager, name, statistics);
+          } else {
+            c = new CacheImpl<V>(cacheManager, name, statistics);
+          }
+          caches.put(name, c);
+        }
       }
-      return c;
+    }
+    return c;
+  }
+
+  /**
+   * Get a cache that publishes its changes to the rest of the cluster. The local copy is
+   * the instance cache of the same name.
+   *
+   * @param name
+   * @param replicated
+   *          true to send values to other nodes, false to only invalidate them.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, boolean replicated) {
+    String cacheName = (name == null) ? "default" : name;
+    Cache<V> c = (Cache<V>) clusterCaches.get(cacheName);
+    if (c == null) {
+      synchronized (clusterCaches) {
+        c = (Cache<V>) clusterCaches.get(cacheName);
+        if (c == null) {
+          Cache<V> localCache = getInstanceCache(cacheName, replicated ? CacheScope.CLUSTERREPLICATED
+              : CacheScope.CLUSTERINVALIDATED);
+          ClusterCacheImpl<V> clusterCache = new ClusterCacheImpl<V>(cacheName, localCache,
+              clusterEventBus, replicated);
+          clusterEventBus.register(clusterCache);
+          clusterCaches.put(cacheName, clusterCache);
+          c = clusterCache;
+        }
+      }
+    }
+    return c;
+  }
+
+  protected void bindCacheEventTransport(CacheEventTransport transport) {
+    logger.info("Cluster cache events will be sent using {} ", transport);
+    clusterEventBus.setTransport(transport);
+  }
+
+  protected void unbindCacheEventTransport(CacheEventTransport transport) {
+    if (clusterEventBus.getTransport() == transport) {
+      logger.info("Cluster cache transport {} removed, caches are now local only",
+          transport);
+      clusterEventBus.setTransport(loopbackTransport);
     }
   }
 
@@ -210,11 +379,36 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    *
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
+    RequestCacheArena arena = requestArenaHolder.get();
+    if (arena != null) {
+      arena.release();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#getStatistics()
+   */
+  public List<CacheStatistics> getStatistics() {
+    return statisticsRegistry.list();
+  }
+
+  /**
+   * @param scope
+   *          REQUEST or THREAD.
+   * @return the counter of cache objects created and reused for the scope, or null if the
+   *         scope is not thread bound.
+   */
+  public CacheAllocationCounter getAllocationCounter(CacheScope scope) {
+    switch (scope) {
+    case REQUEST:
+      return requestAllocations;
+    case THREAD:
+      return threadAllocations;
+    default:
+      return null;
     }
-    requestCacheMapHolder.remove();
   }
 
 }
@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one named cache in one scope, updated by the cache implementations.
+ */
+public class CacheStatisticsImpl implements CacheStatistics {
+
+  private final String name;
+  private final CacheScope scope;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong removes = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong removeChildrenCalls = new AtomicLong();
+  private final AtomicLong removeChildrenKeysVisited = new AtomicLong();
+  private final AtomicLong removeChildrenNanos = new AtomicLong();
+  private volatile SizedCache sizedCache;
+
+  /**
+   * @param name
+   * @param scope
+   */
+  public CacheStatisticsImpl(String name, CacheScope scope) {
+    this.name = name;
+    this.scope = scope;
+  }
+
+  /**
+   * @param sizedCache
+   *          the cache to ask for the size and memory estimate, if known.
+   */
+  public void setSizedCache(SizedCache sizedCache) {
+    this.sizedCache = sizedCache;
+  }
+
+  public void hit() {
+    hits.incrementAndGet();
+  }
+
+  public void miss() {
+    misses.incrementAndGet();
+  }
+
+  public void put() {
+    puts.incrementAndGet();
+  }
+
+  public void remove() {
+    removes.incrementAndGet();
+  }
+
+  public void evicted() {
+    evictions.incrementAndGet();
+  }
+
+  /**
+   * Record a call to removeChildren.
+   *
+   * @param keysVisited
+   *          the number of keys examined.
+   * @param nanos
+   *          the time taken in ns.
+   */
+  public void removeChildren(long keysVisited, long nanos) {
+    removeChildrenCalls.incrementAndGet();
+    removeChildrenKeysVisited.addAndGet(keysVisited);
+    removeChildrenNanos.addAndGet(nanos);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getName()
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getScope()
+   */
+  public String getScope() {
+    return scope.name();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getHits()
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getMisses()
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getHitRatio()
+   */
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0) {
+      return 0.0;
+    }
+    return ((double) h) / ((double) total);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getPuts()
+   */
+  public long getPuts() {
+    return puts.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getRemoves()
+   */
+  public long getRemoves() {
+    return removes.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getEvictions()
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getRemoveChildrenCalls()
+   */
+  public long getRemoveChildrenCalls() {
+    return removeChildrenCalls.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getRemoveChildrenKeysVisited()
+   */
+  public long getRemoveChildrenKeysVisited() {
+    return removeChildrenKeysVisited.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getRemoveChildrenTime()
+   */
+  public long getRemoveChildrenTime() {
+    return removeChildrenNanos.get() / 1000000L;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getSize()
+   */
+  public long getSize() {
+    SizedCache c = sizedCache;
+    return (c == null) ? -1 : c.getSize();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatistics#getEstimatedMemory()
+   */
+  public long getEstimatedMemory() {
+    SizedCache c = sizedCache;
+    return (c == null) ? -1 : c.estimateMemory();
+  }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Holds the {@link CacheStatisticsImpl} for every cache by name and scope, and registers
+ * each one as a JMX bean when it is first created.
+ */
+public class CacheStatisticsRegistry {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheStatisticsRegistry.class);
+
+  /**
+   * The JMX domain the statistics beans are registered under.
+   */
+  public static final String JMX_DOMAIN = "org.sakaiproject.nakamura.memory";
+
+  private final ConcurrentMap<String, CacheStatisticsImpl> statistics = new ConcurrentHashMap<String, CacheStatisticsImpl>();
+  private final MBeanServer mBeanServer;
+
+  /**
+   * @param mBeanServer
+   *          the server to register beans with, may be null.
+   */
+  public CacheStatisticsRegistry(MBeanServer mBeanServer) {
+    this.mBeanServer = mBeanServer;
+  }
+
+  /**
+   * Get the statistics for a cache, creating them if this is the first time.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  public CacheStatisticsImpl get(String name, CacheScope scope) {
+    String key = scope.name() + ":" + name;
+    CacheStatisticsImpl stats = statistics.get(key);
+    if (stats == null) {
+      CacheStatisticsImpl newStats = new CacheStatisticsImpl(name, scope);
+      stats = statistics.putIfAbsent(key, newStats);
+      if (stats == null) {
+        stats = newStats;
+        register(stats);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @return all the statistics.
+   */
+  public List<CacheStatistics> list() {
+    return new ArrayList<CacheStatistics>(statistics.values());
+  }
+
+  /**
+   * Unregister all the JMX beans.
+   */
+  public void unregisterAll() {
+    if (mBeanServer == null) {
+      return;
+    }
+    for (CacheStatisticsImpl stats : statistics.values()) {
+      try {
+        ObjectName name = getObjectName(stats);
+        if (mBeanServer.isRegistered(name)) {
+          mBeanServer.unregisterMBean(name);
+        }
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  private void register(CacheStatisticsImpl stats) {
+    if (mBeanServer == null) {
+      return;
+    }
+    try {
+      ObjectName name = getObjectName(stats);
+      if (!mBeanServer.isRegistered(name)) {
+        mBeanServer.registerMBean(new StandardMBean(stats, CacheStatistics.class), name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register cache statistics for {} {} ", stats.getName(),
+          e.getMessage());
+    }
+  }
+
+  private ObjectName getObjectName(CacheStatisticsImpl stats) throws JMException {
+    return new ObjectName(JMX_DOMAIN + ":type=CacheStatistics,scope=" + stats.getScope()
+        + ",name=" + ObjectName.quote(stats.getName()));
+  }
+}
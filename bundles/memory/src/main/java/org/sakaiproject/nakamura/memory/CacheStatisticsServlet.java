@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the statistics of every cache as JSON, for the admin user only. Memory estimates
+ * are only calculated when the request has the parameter <code>memory=true</code> since
+ * they serialize a sample of every cache.
+ *
+ * <pre>
+ * [
+ *   {
+ *     &quot;name&quot;: &quot;contentCache&quot;,
+ *     &quot;scope&quot;: &quot;CLUSTERINVALIDATED&quot;,
+ *     &quot;hits&quot;: 1023,
+ *     &quot;misses&quot;: 12,
+ *     &quot;hitRatio&quot;: 0.988,
+ *     &quot;puts&quot;: 20,
+ *     &quot;removes&quot;: 3,
+ *     &quot;evictions&quot;: 0,
+ *     &quot;removeChildrenCalls&quot;: 0,
+ *     &quot;removeChildrenKeysVisited&quot;: 0,
+ *     &quot;removeChildrenTime&quot;: 0,
+ *     &quot;size&quot;: 17
+ *   }
+ * ]
+ * </pre>
+ */
+@SlingServlet(methods = { "GET" }, paths = { "/system/cache/statistics" }, generateComponent = true, generateService = true)
+public class CacheStatisticsServlet extends SlingSafeMethodsServlet {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -2436283920134568763L;
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    if (!"admin".equals(request.getRemoteUser())) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN,
+          "Only the admin user may view cache statistics");
+      return;
+    }
+    boolean withMemory = "true".equals(request.getParameter("memory"));
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.array();
+      for (CacheStatistics stats : cacheManagerService.getStatistics()) {
+        writer.object();
+        writer.key("name").value(stats.getName());
+        writer.key("scope").value(stats.getScope());
+        writer.key("hits").value(stats.getHits());
+        writer.key("misses").value(stats.getMisses());
+        writer.key("hitRatio").value(stats.getHitRatio());
+        writer.key("puts").value(stats.getPuts());
+        writer.key("removes").value(stats.getRemoves());
+        writer.key("evictions").value(stats.getEvictions());
+        writer.key("removeChildrenCalls").value(stats.getRemoveChildrenCalls());
+        writer.key("removeChildrenKeysVisited").value(stats.getRemoveChildrenKeysVisited());
+        writer.key("removeChildrenTime").value(stats.getRemoveChildrenTime());
+        writer.key("size").value(stats.getSize());
+        if (withMemory) {
+          writer.key("estimatedMemory").value(stats.getEstimatedMemory());
+        }
+        writer.endObject();
+      }
+      writer.endArray();
+    } catch (JSONException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+}
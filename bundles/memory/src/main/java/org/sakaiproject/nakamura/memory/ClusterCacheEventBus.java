@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheEvent;
+import org.sakaiproject.nakamura.api.memory.CacheEventListener;
+import org.sakaiproject.nakamura.api.memory.CacheEventTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects changes made to cluster scoped caches on this node and sends them to the other
+ * nodes in batches. Pending events are coalesced before they are sent, so a key that is
+ * written many times in a flush interval results in one event, a removeChildren replaces
+ * any pending events for keys under it and a clear replaces everything pending for that
+ * cache. Batches are sent when the flush interval expires or when the number of pending
+ * events reaches the maximum batch size, whichever is first.
+ *
+ * Events from other nodes are applied to the local caches without being published again.
+ */
+public class ClusterCacheEventBus implements CacheEventListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheEventBus.class);
+
+  /**
+   * The default time pending events are held before being sent, in ms.
+   */
+  public static final long DEFAULT_FLUSH_INTERVAL = 100L;
+
+  /**
+   * The default number of pending events that will force a flush.
+   */
+  public static final int DEFAULT_MAX_BATCH = 500;
+
+  /**
+   * Prefixes used to key non key specific events in the pending map, these can't clash
+   * with real keys.
+   */
+  private static final String CHILDREN_PREFIX = "\u0000children:";
+  private static final String CLEAR_KEY = "\u0000clear";
+
+  private final String nodeId;
+  private final int maxBatch;
+  private final Map<String, ClusterCacheImpl<?>> caches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private final Object sendLock = new Object();
+  private Map<String, LinkedHashMap<String, CacheEvent>> pending = new LinkedHashMap<String, LinkedHashMap<String, CacheEvent>>();
+  private int pendingCount;
+  private volatile CacheEventTransport transport;
+  private ScheduledExecutorService flusher;
+
+  /**
+   * Create a bus with the default flush interval and batch size.
+   *
+   * @param transport
+   */
+  public ClusterCacheEventBus(CacheEventTransport transport) {
+    this(UUID.randomUUID().toString(), transport, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_BATCH);
+  }
+
+  /**
+   * @param nodeId
+   *          the id of this node, must be unique in the cluster.
+   * @param transport
+   *          the transport to send batches over.
+   * @param flushInterval
+   *          the time to hold events before sending, in ms. If 0 or less, events will
+   *          only be sent when the batch is full or {@link #flush()} is called.
+   * @param maxBatch
+   *          the number of pending events that forces a flush.
+   */
+  public ClusterCacheEventBus(String nodeId, CacheEventTransport transport,
+      long flushInterval, int maxBatch) {
+    this.nodeId = nodeId;
+    this.maxBatch = maxBatch;
+    setTransport(transport);
+    if (flushInterval > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Cluster Cache Event Flusher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            flush();
+          } catch (Throwable t) {
+            LOGGER.warn("Failed to flush cluster cache events {} ", t.getMessage(), t);
+          }
+        }
+      }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Switch to a new transport, pending events will be sent over the new transport.
+   *
+   * @param newTransport
+   */
+  public void setTransport(CacheEventTransport newTransport) {
+    synchronized (sendLock) {
+      if (transport != null) {
+        transport.removeListener(this);
+      }
+      transport = newTransport;
+      if (transport != null) {
+        transport.addListener(this);
+      }
+    }
+  }
+
+  /**
+   * @return the transport in use.
+   */
+  public CacheEventTransport getTransport() {
+    return transport;
+  }
+
+  /**
+   * @return the id of this node.
+   */
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Register a cache so that events from other nodes for the cache name are applied to it.
+   *
+   * @param cache
+   */
+  public void register(ClusterCacheImpl<?> cache) {
+    caches.put(cache.getCacheName(), cache);
+  }
+
+  /**
+   * Queue an event for sending, coalescing it with anything pending for the same cache.
+   *
+   * @param event
+   */
+  public void publish(CacheEvent event) {
+    boolean full = false;
+    synchronized (this) {
+      LinkedHashMap<String, CacheEvent> cachePending = pending.get(event.getCacheName());
+      if (cachePending == null) {
+        cachePending = new LinkedHashMap<String, CacheEvent>();
+        pending.put(event.getCacheName(), cachePending);
+      }
+      pendingCount -= cachePending.size();
+      switch (event.getType()) {
+      case CLEAR:
+        cachePending.clear();
+        cachePending.put(CLEAR_KEY, event);
+        break;
+      case REMOVE_CHILDREN:
+        String key = event.getKey();
+        String childPrefix = key.endsWith("/") ? key : key + "/";
+        for (Iterator<CacheEvent> i = cachePending.values().iterator(); i.hasNext();) {
+          CacheEvent e = i.next();
+          String k = e.getKey();
+          if (k != null && (k.equals(key) || k.startsWith(childPrefix))) {
+            i.remove();
+          }
+        }
+        cachePending.put(CHILDREN_PREFIX + key, event);
+        break;
+      default:
+        // remove first so that the event moves to the end of the batch.
+        cachePending.remove(event.getKey());
+        cachePending.put(event.getKey(), event);
+        break;
+      }
+      pendingCount += cachePending.size();
+      full = pendingCount >= maxBatch;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Send everything pending now.
+   */
+  public void flush() {
+    synchronized (sendLock) {
+      Map<String, LinkedHashMap<String, CacheEvent>> toSend;
+      synchronized (this) {
+        if (pendingCount == 0) {
+          return;
+        }
+        toSend = pending;
+        pending = new LinkedHashMap<String, LinkedHashMap<String, CacheEvent>>();
+        pendingCount = 0;
+      }
+      List<CacheEvent> batch = new ArrayList<CacheEvent>();
+      for (LinkedHashMap<String, CacheEvent> cachePending : toSend.values()) {
+        batch.addAll(cachePending.values());
+      }
+      CacheEventTransport t = transport;
+      if (t != null && batch.size() > 0) {
+        try {
+          t.send(nodeId, batch);
+        } catch (RuntimeException e) {
+          LOGGER.warn("Failed to send {} cache events, other nodes may be stale: {} ",
+              batch.size(), e.getMessage());
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventListener#onCacheEvents(java.lang.String,
+   *      java.util.List)
+   */
+  public void onCacheEvents(String sourceId, List<CacheEvent> events) {
+    if (nodeId.equals(sourceId)) {
+      return;
+    }
+    for (CacheEvent event : events) {
+      ClusterCacheImpl<?> cache = caches.get(event.getCacheName());
+      if (cache != null) {
+        cache.apply(event);
+      }
+    }
+  }
+
+  /**
+   * Flush anything pending and stop the flusher.
+   */
+  public void stop() {
+    if (flusher != null) {
+      flusher.shutdown();
+    }
+    flush();
+    setTransport(null);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheEvent;
+import org.sakaiproject.nakamura.api.memory.CacheEvent.Type;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A cache in the CLUSTERINVALIDATED or CLUSTERREPLICATED scope. All reads are served from
+ * the local cache, changes are applied locally and then published through the
+ * {@link ClusterCacheEventBus}. An invalidated cache only tells other nodes to drop the
+ * key, a replicated cache sends the new value.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private final String cacheName;
+  private final Cache<V> localCache;
+  private final ClusterCacheEventBus eventBus;
+  private final boolean replicated;
+
+  /**
+   * @param cacheName
+   *          the name of the cache, must be the same on all nodes.
+   * @param localCache
+   *          the cache holding the local copy.
+   * @param eventBus
+   *          the bus used to publish changes.
+   * @param replicated
+   *          true if values should be sent to other nodes, false if other nodes should
+   *          just be invalidated.
+   */
+  public ClusterCacheImpl(String cacheName, Cache<V> localCache,
+      ClusterCacheEventBus eventBus, boolean replicated) {
+    this.cacheName = cacheName;
+    this.localCache = localCache;
+    this.eventBus = eventBus;
+    this.replicated = replicated;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = localCache.put(key, payload);
+    if (replicated && (payload == null || payload instanceof Serializable)) {
+      eventBus.publish(new CacheEvent(cacheName, Type.PUT, key, (Serializable) payload));
+    } else {
+      eventBus.publish(new CacheEvent(cacheName, Type.REMOVE, key, null));
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return localCache.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return localCache.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    localCache.clear();
+    eventBus.publish(new CacheEvent(cacheName, Type.CLEAR, null, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    localCache.remove(key);
+    eventBus.publish(new CacheEvent(cacheName, Type.REMOVE, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    localCache.removeChildren(key);
+    eventBus.publish(new CacheEvent(cacheName, Type.REMOVE_CHILDREN, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return localCache.list();
+  }
+
+  /**
+   * Apply an event that came from another node, to the local cache only.
+   *
+   * @param event
+   */
+  @SuppressWarnings("unchecked")
+  protected void apply(CacheEvent event) {
+    switch (event.getType()) {
+    case PUT:
+      if (replicated) {
+        localCache.put(event.getKey(), (V) event.getValue());
+      } else {
+        localCache.remove(event.getKey());
+      }
+      break;
+    case REMOVE:
+      localCache.remove(event.getKey());
+      break;
+    case REMOVE_CHILDREN:
+      localCache.removeChildren(event.getKey());
+      break;
+    case CLEAR:
+      localCache.clear();
+      break;
+    }
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  public String getCacheName() {
+    return cacheName;
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheEvent;
+import org.sakaiproject.nakamura.api.memory.CacheEventListener;
+import org.sakaiproject.nakamura.api.memory.CacheEventTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A transport that delivers batches synchronously to every listener registered in the
+ * same JVM. With a single listener this is the single node case, with several listeners
+ * it connects several in process nodes, which is what the tests use.
+ */
+public class LoopbackCacheEventTransport implements CacheEventTransport {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(LoopbackCacheEventTransport.class);
+  private final List<CacheEventListener> listeners = new CopyOnWriteArrayList<CacheEventListener>();
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#send(java.lang.String,
+   *      java.util.List)
+   */
+  public void send(String sourceId, List<CacheEvent> events) {
+    List<CacheEvent> batch = Collections.unmodifiableList(events);
+    for (CacheEventListener listener : listeners) {
+      try {
+        listener.onCacheEvents(sourceId, batch);
+      } catch (RuntimeException e) {
+        LOGGER.warn("Cache event listener failed {} ", e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#addListener(org.sakaiproject.nakamura.api.memory.CacheEventListener)
+   */
+  public void addListener(CacheEventListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheEventTransport#removeListener(org.sakaiproject.nakamura.api.memory.CacheEventListener)
+   */
+  public void removeListener(CacheEventListener listener) {
+    listeners.remove(listener);
+  }
+
+}
@@ -22,8 +22,8 @@ import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 /**
  *
@@ -36,6 +36,22 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   private static final long serialVersionUID = -5400056532743570231L;
 
+  /**
+   * Shared by all thread bound caches of the same name, may be null.
+   */
+  private transient CacheStatisticsImpl statistics;
+
+  public MapCacheImpl() {
+  }
+
+  /**
+   * @param statistics
+   *          the statistics to record usage in.
+   */
+  public MapCacheImpl(CacheStatisticsImpl statistics) {
+    this.statistics = statistics;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
@@ -49,7 +65,27 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
    */
   public V get(String key) {
-    return super.get(key);
+    V value = super.get(key);
+    if (statistics != null) {
+      if (value == null) {
+        statistics.miss();
+      } else {
+        statistics.hit();
+      }
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V value) {
+    if (statistics != null) {
+      statistics.put();
+    }
+    return super.put(key, value);
   }
 
   /**
@@ -58,6 +94,9 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   public void remove(String key) {
     V o = super.remove(key);
+    if (statistics != null) {
+      statistics.remove();
+    }
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
     }
@@ -71,7 +110,7 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
   @Override
   public void clear() {
     for ( String k : super.keySet() ) {
-      Object o = get(k);
+      Object o = super.get(k);
       if( o instanceof ThreadBound ) {
         ((ThreadBound) o).unbind();
       }
@@ -84,16 +123,20 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
    */
   public void removeChildren(String key) {
+    long start = System.nanoTime();
+    int visited = size();
     super.remove(key);
     if ( !key.endsWith("/") ) {
       key = key + "/";
     }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
+    for ( Iterator<String> keys = super.keySet().iterator(); keys.hasNext(); ) {
+      if ( keys.next().startsWith(key) ) {
+        keys.remove();
       }
     }
+    if ( statistics != null ) {
+      statistics.removeChildren(visited, System.nanoTime() - start);
+    }
   }
 
   /**
@@ -0,0 +1,291 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A store of serialized values held outside the java heap in a direct ByteBuffer. The
+ * buffer is used as a circular log, new entries are appended at the head and when the
+ * buffer is full the oldest entries are evicted to make space. Only the index of keys
+ * and positions is held on the heap. Keys are held sorted so that a subtree of path like
+ * keys can be removed without scanning the whole store.
+ */
+public class OffHeapStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapStore.class);
+
+  /**
+   * The position and age of one value in the buffer.
+   */
+  private static class Entry {
+    private final String key;
+    private final long start;
+    private final int length;
+    private final long expires;
+    private final ClassLoader classLoader;
+
+    private Entry(String key, long start, int length, long expires,
+        ClassLoader classLoader) {
+      this.key = key;
+      this.start = start;
+      this.length = length;
+      this.expires = expires;
+      this.classLoader = classLoader;
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int capacity;
+  private final long timeToLive;
+  private final SortedMap<String, Entry> index = new TreeMap<String, Entry>();
+  /**
+   * Every entry in the buffer, live or dead, oldest first.
+   */
+  private final LinkedList<Entry> log = new LinkedList<Entry>();
+  /**
+   * Logical positions, that increase forever, the physical position is modulo capacity.
+   */
+  private long head;
+  private long tail;
+  private long evictions;
+
+  /**
+   * @param capacity
+   *          the size of the buffer in bytes.
+   * @param timeToLive
+   *          the maximum age of a value in ms, 0 or less for no limit.
+   */
+  public OffHeapStore(int capacity, long timeToLive) {
+    this.capacity = capacity;
+    this.timeToLive = timeToLive;
+    this.buffer = ByteBuffer.allocateDirect(capacity);
+  }
+
+  /**
+   * Store a value, replacing any current value for the key. Values that are not
+   * serializable or are larger than the store are not stored.
+   *
+   * @param key
+   * @param value
+   * @param created
+   *          the time the value was created, used with the time to live.
+   * @return true if the value was stored.
+   */
+  public boolean put(String key, Object value, long created) {
+    if (!(value instanceof Serializable)) {
+      remove(key);
+      return false;
+    }
+    byte[] data;
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(baos);
+      out.writeObject(value);
+      out.close();
+      data = baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {} for the off heap store {} ", key, e.getMessage());
+      remove(key);
+      return false;
+    }
+    if (data.length > capacity) {
+      remove(key);
+      return false;
+    }
+    long expires = (timeToLive > 0) ? created + timeToLive : Long.MAX_VALUE;
+    synchronized (this) {
+      // values may not wrap around the end of the buffer.
+      int physical = (int) (head % capacity);
+      if (physical + data.length > capacity) {
+        head += capacity - physical;
+        physical = 0;
+      }
+      while (head + data.length - tail > capacity) {
+        evictOldest();
+      }
+      buffer.position(physical);
+      buffer.put(data);
+      Entry entry = new Entry(key, head, data.length, expires, value.getClass()
+          .getClassLoader());
+      head += data.length;
+      log.addLast(entry);
+      index.put(key, entry);
+    }
+    return true;
+  }
+
+  /**
+   * @param key
+   * @return the value or null if not present or expired.
+   */
+  public Object get(String key) {
+    Entry entry;
+    byte[] data;
+    synchronized (this) {
+      entry = index.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expires < System.currentTimeMillis()) {
+        index.remove(key);
+        return null;
+      }
+      data = new byte[entry.length];
+      buffer.position((int) (entry.start % capacity));
+      buffer.get(data);
+    }
+    try {
+      ObjectInputStream in = new LoaderObjectInputStream(new ByteArrayInputStream(data),
+          entry.classLoader);
+      return in.readObject();
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read {} from the off heap store {} ", key, e.getMessage());
+    } catch (ClassNotFoundException e) {
+      LOGGER.warn("Unable to read {} from the off heap store {} ", key, e.getMessage());
+    }
+    remove(key);
+    return null;
+  }
+
+  /**
+   * @param key
+   * @return true if there is a value for the key that has not expired.
+   */
+  public synchronized boolean containsKey(String key) {
+    Entry entry = index.get(key);
+    return entry != null && entry.expires >= System.currentTimeMillis();
+  }
+
+  /**
+   * @param key
+   */
+  public synchronized void remove(String key) {
+    index.remove(key);
+  }
+
+  /**
+   * Remove the key and all keys below it in the path hierarchy.
+   *
+   * @param key
+   */
+  public synchronized void removeChildren(String key) {
+    index.remove(key);
+    String prefix = key.endsWith("/") ? key : key + "/";
+    String end = prefix.substring(0, prefix.length() - 1) + '0';
+    index.subMap(prefix, end).clear();
+  }
+
+  /**
+   * Remove everything.
+   */
+  public synchronized void clear() {
+    index.clear();
+    log.clear();
+    tail = head;
+  }
+
+  /**
+   * @return the keys of all values, some of which may have expired.
+   */
+  public synchronized List<String> keys() {
+    return new ArrayList<String>(index.keySet());
+  }
+
+  /**
+   * @return the number of values in the store.
+   */
+  public synchronized int size() {
+    return index.size();
+  }
+
+  /**
+   * @return the number of values evicted to make space.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return the size of the buffer in bytes.
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  private void evictOldest() {
+    if (log.isEmpty()) {
+      tail = head;
+      return;
+    }
+    Entry oldest = log.removeFirst();
+    if (index.get(oldest.key) == oldest) {
+      index.remove(oldest.key);
+      evictions++;
+    }
+    if (log.isEmpty()) {
+      tail = head;
+    } else {
+      tail = log.getFirst().start;
+    }
+  }
+
+  /**
+   * Resolves classes with the class loader of the value that was stored, so that values
+   * from other bundles can be read back.
+   */
+  private static class LoaderObjectInputStream extends ObjectInputStream {
+
+    private final ClassLoader classLoader;
+
+    private LoaderObjectInputStream(InputStream in, ClassLoader classLoader)
+        throws IOException {
+      super(in);
+      this.classLoader = classLoader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      if (classLoader != null) {
+        try {
+          return Class.forName(desc.getName(), false, classLoader);
+        } catch (ClassNotFoundException e) {
+          // fall through to the default resolution.
+        }
+      }
+      return super.resolveClass(desc);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * A cache for path like keys that keeps a sorted index of the keys alongside the ehcache,
+ * so that {@link #removeChildren(String)} only touches the keys under the path rather than
+ * scanning every key in the cache. The index is maintained from ehcache events so that
+ * evicted and expired elements are also removed from it.
+ */
+public class PathIndexedCacheImpl<V> extends CacheImpl<V> {
+
+  private final SortedSet<String> index = new TreeSet<String>();
+
+  /**
+   * @param cacheManager
+   * @param name
+   */
+  public PathIndexedCacheImpl(CacheManager cacheManager, String name) {
+    this(cacheManager, name, new CacheStatisticsImpl(name, CacheScope.INSTANCE));
+  }
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param statistics
+   */
+  public PathIndexedCacheImpl(CacheManager cacheManager, String name,
+      CacheStatisticsImpl statistics) {
+    super(cacheManager, name, statistics);
+    synchronized (index) {
+      for (Object k : cache.getKeys()) {
+        index.add((String) k);
+      }
+    }
+    cache.getCacheEventNotificationService().registerListener(new IndexListener());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    long start = System.nanoTime();
+    cache.remove(key);
+    String prefix = key.endsWith("/") ? key : key + "/";
+    // '0' is the character after '/' so this is every key starting with prefix.
+    String end = prefix.substring(0, prefix.length() - 1) + '0';
+    List<String> children;
+    synchronized (index) {
+      children = new ArrayList<String>(index.subSet(prefix, end));
+    }
+    for (String child : children) {
+      cache.remove(child);
+    }
+    statistics.removeChildren(children.size() + 1, System.nanoTime() - start);
+  }
+
+  /**
+   * @return the number of keys in the index, which may include keys of expired elements
+   *         that ehcache has not yet noticed.
+   */
+  public int getIndexSize() {
+    synchronized (index) {
+      return index.size();
+    }
+  }
+
+  /**
+   * Keeps the index in step with the ehcache.
+   */
+  private class IndexListener implements CacheEventListener {
+
+    public void notifyElementPut(Ehcache ehcache, Element element) throws CacheException {
+      add(element);
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element)
+        throws CacheException {
+      add(element);
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element)
+        throws CacheException {
+      remove(element);
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+      remove(element);
+    }
+
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      remove(element);
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+      synchronized (index) {
+        index.clear();
+      }
+    }
+
+    public void dispose() {
+      synchronized (index) {
+        index.clear();
+      }
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException("The path index listener is bound to one cache");
+    }
+
+    private void add(Element element) {
+      if (element != null && element.getObjectKey() instanceof String) {
+        synchronized (index) {
+          index.add((String) element.getObjectKey());
+        }
+      }
+    }
+
+    private void remove(Element element) {
+      if (element != null) {
+        synchronized (index) {
+          index.remove(element.getObjectKey());
+        }
+      }
+    }
+  }
+}
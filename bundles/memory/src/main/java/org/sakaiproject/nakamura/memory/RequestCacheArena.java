@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The request scoped caches of one thread. Rather than creating a map of caches per
+ * request and discarding it when the request is unbound, the arena keeps the caches and
+ * clears them, so a worker thread serving many requests reuses the same cache objects.
+ * Every cache holding entries is cleared on release, including one written through a
+ * reference kept from an earlier request, so nothing leaks into the next request. An
+ * arena is only ever accessed by its own thread, so there is no locking.
+ */
+public class RequestCacheArena {
+
+  /**
+   * Caches that held more than this number of entries are discarded rather than recycled,
+   * so that one large request does not pin a large hash table to the thread.
+   */
+  static final int MAX_RECYCLED_ENTRIES = 256;
+
+  /**
+   * The maximum number of slots retained between requests.
+   */
+  static final int MAX_SLOTS = 64;
+
+  /**
+   * A cache and the request generation it was last used in.
+   */
+  private static class Slot {
+    private final MapCacheImpl<?> cache;
+    private final String name;
+    private final boolean preallocated;
+    private int generation = -1;
+
+    private Slot(String name, boolean preallocated, CacheStatisticsImpl statistics) {
+      this.name = name;
+      this.preallocated = preallocated;
+      this.cache = new MapCacheImpl<Object>(statistics);
+    }
+  }
+
+  private final Map<String, Slot> slots = new HashMap<String, Slot>();
+  private final CacheAllocationCounter counter;
+  private final CacheStatisticsRegistry statisticsRegistry;
+  private int generation;
+
+  /**
+   * @param preallocatedNames
+   *          names of caches to create slots for when the arena is created.
+   * @param counter
+   *          counts allocations and reuses.
+   * @param statisticsRegistry
+   *          the source of statistics for each cache name, may be null.
+   */
+  public RequestCacheArena(String[] preallocatedNames, CacheAllocationCounter counter,
+      CacheStatisticsRegistry statisticsRegistry) {
+    this.counter = counter;
+    this.statisticsRegistry = statisticsRegistry;
+    for (String name : preallocatedNames) {
+      slots.put(name, newSlot(name, true));
+    }
+  }
+
+  private Slot newSlot(String name, boolean preallocated) {
+    counter.allocated();
+    CacheStatisticsImpl statistics = null;
+    if (statisticsRegistry != null) {
+      statistics = statisticsRegistry.get(name, CacheScope.REQUEST);
+    }
+    return new Slot(name, preallocated, statistics);
+  }
+
+  /**
+   * Get the cache for the current request.
+   *
+   * @param name
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public <V> Cache<V> get(String name) {
+    Slot slot = slots.get(name);
+    if (slot == null) {
+      slot = newSlot(name, false);
+      slots.put(name, slot);
+    } else if (slot.generation != generation) {
+      counter.reused();
+    }
+    slot.generation = generation;
+    return (Cache<V>) slot.cache;
+  }
+
+  /**
+   * End the request, clearing the caches ready for the next request. Slots that were not
+   * fetched in this request are still cleared if they hold entries, since a caller may
+   * have kept the cache from an earlier request.
+   */
+  public void release() {
+    List<Slot> discard = null;
+    for (Slot slot : slots.values()) {
+      if (slot.cache.isEmpty()) {
+        continue;
+      }
+      boolean tooLarge = slot.cache.size() > MAX_RECYCLED_ENTRIES;
+      slot.cache.clear();
+      if (tooLarge) {
+        if (discard == null) {
+          discard = new ArrayList<Slot>();
+        }
+        discard.add(slot);
+      }
+    }
+    if (discard != null) {
+      for (Slot slot : discard) {
+        slots.remove(slot.name);
+        if (slot.preallocated) {
+          slots.put(slot.name, newSlot(slot.name, true));
+        }
+      }
+    }
+    generation++;
+    if (slots.size() > MAX_SLOTS) {
+      for (Iterator<Slot> i = slots.values().iterator(); i.hasNext()
+          && slots.size() > MAX_SLOTS;) {
+        if (!i.next().preallocated) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of slots held by the arena.
+   */
+  public int getSlotCount() {
+    return slots.size();
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * A cache that can report its size, used by {@link CacheStatisticsImpl}.
+ */
+public interface SizedCache {
+
+  /**
+   * @return the number of entries in the cache.
+   */
+  long getSize();
+
+  /**
+   * @return an estimate of the memory used by the entries in bytes, or -1 if it can't be
+   *         estimated.
+   */
+  long estimateMemory();
+
+}
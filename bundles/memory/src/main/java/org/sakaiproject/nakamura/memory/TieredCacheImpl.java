@@ -0,0 +1,336 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache with two tiers, the ehcache on the heap in front of an {@link OffHeapStore}.
+ * Elements the ehcache evicts to stay within its size are serialized into the off heap
+ * store, and are promoted back onto the heap when they are next read. A key is only ever
+ * held in one of the tiers so an update never has to find a stale copy. Promotion, put and
+ * remove of a key hold the same striped lock across both tiers, so a promotion cannot
+ * overwrite a value put or removed while it was moving the old value between the tiers.
+ * removeChildren and clear hold every stripe.
+ *
+ * Demotion happens inside the put that caused the eviction, which already holds the
+ * stripe of the key being put, so it only tries the stripe of the evicted key. Every
+ * change to a stripe is counted, and an evicted element is only demoted if its stripe
+ * has not changed since that put started, otherwise it is dropped, which a cache may
+ * always do, rather than written over a later put or remove.
+ */
+public class TieredCacheImpl<V> extends CacheImpl<V> {
+
+  /**
+   * The number of lock stripes, a power of two.
+   */
+  private static final int STRIPES = 64;
+
+  private final OffHeapStore offHeap;
+  private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+  private final AtomicLongArray changes = new AtomicLongArray(STRIPES);
+  /**
+   * The change counts of the stripes when the current thread started putting onto the
+   * heap, null while it is not.
+   */
+  private final ThreadLocal<long[]> putStarted = new ThreadLocal<long[]>();
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param offHeap
+   *          the store for elements evicted from the heap.
+   */
+  public TieredCacheImpl(CacheManager cacheManager, String name, OffHeapStore offHeap) {
+    this(cacheManager, name, offHeap, new CacheStatisticsImpl(name, CacheScope.INSTANCE));
+  }
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param offHeap
+   *          the store for elements evicted from the heap.
+   * @param statistics
+   */
+  public TieredCacheImpl(CacheManager cacheManager, String name, OffHeapStore offHeap,
+      CacheStatisticsImpl statistics) {
+    super(cacheManager, name, statistics);
+    this.offHeap = offHeap;
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    cache.getCacheEventNotificationService().registerListener(new DemotionListener());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#get(java.lang.String)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(String key) {
+    Element e = cache.get(key);
+    if (e != null) {
+      statistics.hit();
+      return (V) e.getObjectValue();
+    }
+    ReentrantLock lock = locks[stripeFor(key)];
+    lock.lock();
+    try {
+      e = cache.get(key);
+      if (e != null) {
+        statistics.hit();
+        return (V) e.getObjectValue();
+      }
+      V value = (V) offHeap.get(key);
+      if (value == null) {
+        statistics.miss();
+        return null;
+      }
+      statistics.hit();
+      offHeap.remove(key);
+      putOnHeap(key, value);
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(String key, V payload) {
+    V previous = null;
+    int stripe = stripeFor(key);
+    locks[stripe].lock();
+    try {
+      changes.incrementAndGet(stripe);
+      Element e = cache.get(key);
+      if (e != null) {
+        previous = (V) e.getObjectValue();
+      } else {
+        previous = (V) offHeap.get(key);
+      }
+      offHeap.remove(key);
+      putOnHeap(key, payload);
+    } finally {
+      locks[stripe].unlock();
+    }
+    statistics.put();
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#containsKey(java.lang.String)
+   */
+  @Override
+  public boolean containsKey(String key) {
+    return cache.isKeyInCache(key) || offHeap.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#remove(java.lang.String)
+   */
+  @Override
+  public void remove(String key) {
+    int stripe = stripeFor(key);
+    locks[stripe].lock();
+    try {
+      changes.incrementAndGet(stripe);
+      offHeap.remove(key);
+      super.remove(key);
+    } finally {
+      locks[stripe].unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#removeChildren(java.lang.String)
+   */
+  @Override
+  public void removeChildren(String key) {
+    lockAll();
+    try {
+      offHeap.removeChildren(key);
+      super.removeChildren(key);
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#clear()
+   */
+  @Override
+  public void clear() {
+    lockAll();
+    try {
+      offHeap.clear();
+      super.clear();
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * {@inheritDoc} Includes the values held off the heap, which are not promoted.
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#list()
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<V> list() {
+    List<V> values = super.list();
+    for (String k : offHeap.keys()) {
+      V value = (V) offHeap.get(k);
+      if (value != null) {
+        values.add(value);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * {@inheritDoc} Includes the values held off the heap.
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#getSize()
+   */
+  @Override
+  public long getSize() {
+    return super.getSize() + offHeap.size();
+  }
+
+  private int stripeFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return h & (STRIPES - 1);
+  }
+
+  /**
+   * Put onto the heap, holding the stripe of the key, noting the state of the stripes
+   * for the demotion of any element the put evicts.
+   */
+  private void putOnHeap(String key, V value) {
+    long[] started = new long[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      started[i] = changes.get(i);
+    }
+    putStarted.set(started);
+    try {
+      cache.put(new Element(key, value));
+    } finally {
+      putStarted.remove();
+    }
+  }
+
+  /**
+   * Take every stripe, always in the same order, and count a change to each.
+   */
+  private void lockAll() {
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i].lock();
+      changes.incrementAndGet(i);
+    }
+  }
+
+  private void unlockAll() {
+    for (int i = STRIPES - 1; i >= 0; i--) {
+      locks[i].unlock();
+    }
+  }
+
+  /**
+   * @return the off heap tier of this cache.
+   */
+  public OffHeapStore getOffHeapStore() {
+    return offHeap;
+  }
+
+  /**
+   * Moves elements evicted from the heap into the off heap store. Expired elements, and
+   * elements whose key may have been changed since they were evicted, are dropped.
+   */
+  private class DemotionListener implements CacheEventListener {
+
+    public void notifyElementEvicted(Ehcache ehcache, Element element) {
+      long[] started = putStarted.get();
+      if (started == null || element == null || !(element.getObjectKey() instanceof String)) {
+        return;
+      }
+      String key = (String) element.getObjectKey();
+      int stripe = stripeFor(key);
+      // waiting for the stripe while holding the stripe of the put could deadlock.
+      if (!locks[stripe].tryLock()) {
+        return;
+      }
+      try {
+        if (changes.get(stripe) == started[stripe]) {
+          offHeap.put(key, element.getObjectValue(), element.getCreationTime());
+        }
+      } finally {
+        locks[stripe].unlock();
+      }
+    }
+
+    public void notifyElementExpired(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyElementPut(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyElementUpdated(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyElementRemoved(Ehcache ehcache, Element element) {
+    }
+
+    public void notifyRemoveAll(Ehcache ehcache) {
+    }
+
+    public void dispose() {
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+      throw new CloneNotSupportedException("The demotion listener is bound to one cache");
+    }
+  }
+}
@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -28,10 +29,14 @@ import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 public class TestCache {
 
@@ -107,4 +112,72 @@ public class TestCache {
     verify(testItem);
   }
 
+  @Test
+  public void testPathIndexedCache() throws IOException {
+    CacheManagerServiceImpl pathCacheManagerService = new CacheManagerServiceImpl();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("path-indexed-caches", new String[] { "PathTestCache" });
+    pathCacheManagerService.activate(properties);
+    Cache<String> cache = pathCacheManagerService.getCache("PathTestCache",
+        CacheScope.INSTANCE);
+    cache.put("fish", "cat");
+    cache.put("fish/child", "childcat");
+    cache.put("fish/child/child", "childcatchild");
+    cache.put("fish/childless", "sibling");
+    cache.put("fish0", "notachild");
+    cache.removeChildren("fish/child");
+    assertNull("Expected key to be removed", cache.get("fish/child"));
+    assertNull("Expected key to be removed", cache.get("fish/child/child"));
+    assertEquals("sibling", cache.get("fish/childless"));
+    cache.removeChildren("fish");
+    assertNull("Expected key to be removed", cache.get("fish"));
+    assertNull("Expected key to be removed", cache.get("fish/childless"));
+    assertEquals("notachild", cache.get("fish0"));
+    cache.clear();
+    pathCacheManagerService.stop();
+  }
+
+  @Test
+  public void testMapCacheRemoveChildren() {
+    // removing several children used to modify the key set while iterating over it.
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    cache.put("fish", "cat");
+    for (int i = 0; i < 100; i++) {
+      cache.put("fish/child" + i, "childcat");
+      cache.put("fish" + i, "notachild");
+    }
+    cache.removeChildren("fish");
+    assertNull("Expected key to be removed", cache.get("fish"));
+    assertEquals(100, cache.size());
+    for (int i = 0; i < 100; i++) {
+      assertNull("Expected key to be removed", cache.get("fish/child" + i));
+      assertEquals("notachild", cache.get("fish" + i));
+    }
+  }
+
+  @Test
+  public void testStatistics() {
+    for (CacheScope scope : new CacheScope[] { CacheScope.INSTANCE, CacheScope.REQUEST }) {
+      Cache<String> cache = cacheManagerService.getCache("StatsTestCache", scope);
+      cache.put("fish", "cat");
+      cache.get("fish");
+      cache.get("fish");
+      cache.get("dog");
+      cache.removeChildren("fish");
+      CacheStatistics stats = null;
+      for (CacheStatistics s : cacheManagerService.getStatistics()) {
+        if ("StatsTestCache".equals(s.getName()) && scope.name().equals(s.getScope())) {
+          stats = s;
+        }
+      }
+      assertNotNull("Expected statistics for " + scope, stats);
+      assertEquals(2, stats.getHits());
+      assertEquals(1, stats.getMisses());
+      assertEquals(1, stats.getPuts());
+      assertEquals(1, stats.getRemoveChildrenCalls());
+      assertEquals(2.0 / 3.0, stats.getHitRatio(), 0.001);
+      cacheManagerService.unbind(scope);
+    }
+  }
+
 }
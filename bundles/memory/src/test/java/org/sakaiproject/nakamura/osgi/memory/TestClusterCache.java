@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheEvent;
+import org.sakaiproject.nakamura.api.memory.CacheEventListener;
+import org.sakaiproject.nakamura.memory.ClusterCacheEventBus;
+import org.sakaiproject.nakamura.memory.ClusterCacheImpl;
+import org.sakaiproject.nakamura.memory.LoopbackCacheEventTransport;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestClusterCache {
+
+  private LoopbackCacheEventTransport transport;
+  private ClusterCacheEventBus busA;
+  private ClusterCacheEventBus busB;
+
+  @Before
+  public void setUp() {
+    transport = new LoopbackCacheEventTransport();
+    // no flush timer, the tests flush explicitly.
+    busA = new ClusterCacheEventBus("nodeA", transport, 0, 1000);
+    busB = new ClusterCacheEventBus("nodeB", transport, 0, 1000);
+  }
+
+  @After
+  public void tearDown() {
+    busA.stop();
+    busB.stop();
+  }
+
+  private Cache<String> createCache(ClusterCacheEventBus bus, boolean replicated) {
+    ClusterCacheImpl<String> cache = new ClusterCacheImpl<String>("test",
+        new MapCacheImpl<String>(), bus, replicated);
+    bus.register(cache);
+    return cache;
+  }
+
+  @Test
+  public void testInvalidation() {
+    Cache<String> a = createCache(busA, false);
+    Cache<String> b = createCache(busB, false);
+    a.put("fish", "cat");
+    b.put("fish", "dog");
+    busB.flush();
+    assertNull("Expected remote put to invalidate", a.get("fish"));
+    assertEquals("dog", b.get("fish"));
+    b.put("a/b", "1");
+    b.put("a/b/c", "2");
+    a.put("a/b", "1");
+    a.put("a/b/c", "2");
+    a.put("a/bc", "3");
+    busB.flush();
+    b.put("a/b", "1");
+    b.put("a/b/c", "2");
+    busA.flush();
+    assertNull(b.get("a/b"));
+    assertNull(b.get("a/b/c"));
+    a.removeChildren("a/b");
+    a.put("a/b/c", "4");
+    busA.flush();
+    assertNull(a.get("a/b"));
+    assertEquals("4", a.get("a/b/c"));
+    assertNull(b.get("a/b/c"));
+  }
+
+  @Test
+  public void testReplication() {
+    Cache<String> a = createCache(busA, true);
+    Cache<String> b = createCache(busB, true);
+    a.put("fish", "cat");
+    busA.flush();
+    assertEquals("cat", b.get("fish"));
+    b.remove("fish");
+    busB.flush();
+    assertTrue(!a.containsKey("fish"));
+    a.put("foo", "bar");
+    a.clear();
+    a.put("bar", "foo");
+    busA.flush();
+    assertNull(b.get("foo"));
+    assertEquals("foo", b.get("bar"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    final List<CacheEvent> received = new ArrayList<CacheEvent>();
+    transport.addListener(new CacheEventListener() {
+      public void onCacheEvents(String sourceId, List<CacheEvent> events) {
+        received.addAll(events);
+      }
+    });
+    Cache<String> a = createCache(busA, false);
+    for (int i = 0; i < 100; i++) {
+      a.put("fish", "cat" + i);
+    }
+    a.put("fish/1", "x");
+    a.put("fish/2", "x");
+    a.removeChildren("fish");
+    busA.flush();
+    assertEquals(1, received.size());
+    assertEquals(CacheEvent.Type.REMOVE_CHILDREN, received.get(0).getType());
+    received.clear();
+    a.put("fish", "cat");
+    a.put("dog", "cat");
+    a.clear();
+    busA.flush();
+    assertEquals(1, received.size());
+    assertEquals(CacheEvent.Type.CLEAR, received.get(0).getType());
+  }
+
+  @Test
+  public void testBatchSize() {
+    ClusterCacheEventBus smallBus = new ClusterCacheEventBus("nodeC", transport, 0, 10);
+    Cache<String> c = createCache(smallBus, false);
+    Cache<String> b = createCache(busB, false);
+    b.put("key0", "x");
+    for (int i = 0; i < 10; i++) {
+      c.put("key" + i, "x");
+    }
+    assertNull("Expected a full batch to be sent", b.get("key0"));
+    smallBus.stop();
+  }
+}
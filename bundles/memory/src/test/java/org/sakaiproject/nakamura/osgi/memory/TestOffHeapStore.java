@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.memory.OffHeapStore;
+
+import java.util.HashMap;
+
+public class TestOffHeapStore {
+
+  @Test
+  public void testPutGet() {
+    OffHeapStore store = new OffHeapStore(64 * 1024, 0);
+    HashMap<String, String> value = new HashMap<String, String>();
+    value.put("title", "a title");
+    assertTrue(store.put("/a/b", value, System.currentTimeMillis()));
+    assertEquals(value, store.get("/a/b"));
+    assertTrue(store.containsKey("/a/b"));
+    assertNull(store.get("/a/c"));
+    assertFalse(store.put("/a/c", new Object(), System.currentTimeMillis()));
+    assertEquals(1, store.size());
+
+    value.put("title", "another title");
+    store.put("/a/b", value, System.currentTimeMillis());
+    assertEquals(value, store.get("/a/b"));
+    assertEquals(1, store.size());
+    store.remove("/a/b");
+    assertNull(store.get("/a/b"));
+  }
+
+  @Test
+  public void testEviction() {
+    OffHeapStore store = new OffHeapStore(4096, 0);
+    for (int i = 0; i < 1000; i++) {
+      store.put("/key" + i, "value" + i, System.currentTimeMillis());
+    }
+    assertTrue(store.getEvictions() > 0);
+    assertEquals(1000, store.size() + store.getEvictions());
+    // the newest values survive and the oldest are gone.
+    assertEquals("value999", store.get("/key999"));
+    assertNull(store.get("/key0"));
+    for (String key : store.keys()) {
+      assertEquals("value" + key.substring(4), store.get(key));
+    }
+  }
+
+  @Test
+  public void testExpiry() {
+    OffHeapStore store = new OffHeapStore(4096, 1000);
+    store.put("/old", "value", System.currentTimeMillis() - 2000);
+    store.put("/new", "value", System.currentTimeMillis());
+    assertFalse(store.containsKey("/old"));
+    assertNull(store.get("/old"));
+    assertEquals("value", store.get("/new"));
+  }
+
+  @Test
+  public void testRemoveChildren() {
+    OffHeapStore store = new OffHeapStore(64 * 1024, 0);
+    store.put("/a", "a", System.currentTimeMillis());
+    store.put("/a/b", "b", System.currentTimeMillis());
+    store.put("/a/b/c", "c", System.currentTimeMillis());
+    store.put("/ab", "ab", System.currentTimeMillis());
+    store.removeChildren("/a");
+    assertNull(store.get("/a"));
+    assertNull(store.get("/a/b"));
+    assertNull(store.get("/a/b/c"));
+    assertEquals("ab", store.get("/ab"));
+    store.clear();
+    assertEquals(0, store.size());
+    store.put("/a", "a", System.currentTimeMillis());
+    assertEquals("a", store.get("/a"));
+  }
+}
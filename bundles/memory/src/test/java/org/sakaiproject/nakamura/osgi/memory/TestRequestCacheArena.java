@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.memory.CacheAllocationCounter;
+import org.sakaiproject.nakamura.memory.RequestCacheArena;
+
+public class TestRequestCacheArena {
+
+  private CacheAllocationCounter counter;
+  private RequestCacheArena arena;
+
+  @Before
+  public void setUp() {
+    counter = new CacheAllocationCounter();
+    arena = new RequestCacheArena(new String[] { "known" }, counter, null);
+  }
+
+  @Test
+  public void testRecycling() {
+    assertEquals(1, counter.getAllocations());
+    Cache<String> known = arena.get("known");
+    Cache<String> other = arena.get("other");
+    assertSame(known, arena.get("known"));
+    known.put("a", "b");
+    other.put("c", "d");
+    assertEquals(2, counter.getAllocations());
+    // the preallocated cache is reused on first use.
+    assertEquals(1, counter.getReuses());
+    arena.release();
+    assertNull(known.get("a"));
+    assertNull(other.get("c"));
+    assertSame(known, arena.get("known"));
+    assertSame(other, arena.get("other"));
+    assertEquals(2, counter.getAllocations());
+    assertEquals(3, counter.getReuses());
+  }
+
+  @Test
+  public void testCacheHeldAcrossRequestsIsCleared() {
+    Cache<String> held = arena.get("held");
+    arena.release();
+    // written in the second request without going through the arena.
+    held.put("a", "b");
+    arena.release();
+    assertNull(held.get("a"));
+  }
+
+  @Test
+  public void testLargeCachesAreNotRecycled() {
+    Cache<String> large = arena.get("large");
+    for (int i = 0; i < 1000; i++) {
+      large.put(String.valueOf(i), "x");
+    }
+    arena.release();
+    assertNotSame(large, arena.get("large"));
+  }
+
+  @Test
+  public void testSlotsAreBounded() {
+    for (int i = 0; i < 200; i++) {
+      arena.get("cache" + i);
+    }
+    arena.release();
+    assertEquals(64, arena.getSlotCount());
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.osgi.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.TieredCacheImpl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class TestTieredCache {
+
+  private static final int ROUNDS = 500;
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private TieredCacheImpl<String> cache;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheManagerService = new CacheManagerServiceImpl();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("off-heap-caches", new String[] { "TieredTestCache:1" });
+    cacheManagerService.activate(properties);
+    cache = (TieredCacheImpl<String>) cacheManagerService.<String> getCache(
+        "TieredTestCache", CacheScope.INSTANCE);
+  }
+
+  @After
+  public void tearDown() {
+    cache.clear();
+    cacheManagerService.stop();
+  }
+
+  @Test
+  public void testPromotion() {
+    cache.getOffHeapStore().put("/a", "offheap", System.currentTimeMillis());
+    assertEquals("offheap", cache.get("/a"));
+    assertFalse(cache.getOffHeapStore().containsKey("/a"));
+    assertEquals("offheap", cache.get("/a"));
+  }
+
+  @Test
+  public void testPromotionDoesNotOverwriteConcurrentPut() throws Exception {
+    for (int i = 0; i < ROUNDS; i++) {
+      final String key = "/put/" + i;
+      cache.getOffHeapStore().put(key, "old", System.currentTimeMillis());
+      race(new Runnable() {
+        public void run() {
+          cache.get(key);
+        }
+      }, new Runnable() {
+        public void run() {
+          cache.put(key, "new");
+        }
+      });
+      assertEquals("Promotion overwrote a put in round " + i, "new", cache.get(key));
+    }
+  }
+
+  @Test
+  public void testPromotionDoesNotResurrectConcurrentRemove() throws Exception {
+    for (int i = 0; i < ROUNDS; i++) {
+      final String key = "/remove/" + i;
+      cache.getOffHeapStore().put(key, "old", System.currentTimeMillis());
+      race(new Runnable() {
+        public void run() {
+          cache.get(key);
+        }
+      }, new Runnable() {
+        public void run() {
+          cache.remove(key);
+        }
+      });
+      assertNull("Promotion resurrected a removed key in round " + i, cache.get(key));
+    }
+  }
+
+  @Test
+  public void testDemotionDoesNotResurrectConcurrentRemove() throws Exception {
+    for (int i = 0; i < ROUNDS; i++) {
+      final String key = "/demote/" + i;
+      final String other = "/other/" + i;
+      cache.put(key, "old");
+      // the heap holds one element, so putting the other key evicts the first.
+      race(new Runnable() {
+        public void run() {
+          cache.put(other, "other");
+        }
+      }, new Runnable() {
+        public void run() {
+          cache.remove(key);
+        }
+      });
+      assertNull("Demotion resurrected a removed key in round " + i, cache.get(key));
+      cache.remove(other);
+    }
+  }
+
+  /**
+   * Run two tasks on their own threads, released together.
+   */
+  private void race(Runnable a, Runnable b) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[] { starter(start, a), starter(start, b) };
+    for (Thread t : threads) {
+      t.start();
+    }
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  private Thread starter(final CountDownLatch start, final Runnable task) {
+    return new Thread() {
+      @Override
+      public void run() {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        task.run();
+      }
+    };
+  }
+}
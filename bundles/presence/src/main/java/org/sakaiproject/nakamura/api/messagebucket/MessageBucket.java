@@ -2,11 +2,16 @@ package org.sakaiproject.nakamura.api.messagebucket;
 
 
 
+import java.util.Map;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * A message bucket contains stuff to be transported
+ * A message bucket contains stuff to be transported. Each message put into the bucket
+ * is an event with a sequence number, a client that remembers the last sequence number it
+ * saw can come back for the events it has not seen. Only a limited number of recent
+ * events are kept.
  */
 public interface MessageBucket {
 
@@ -15,6 +20,28 @@ public interface MessageBucket {
    */
   boolean isReady();
 
+  /**
+   * @param lastSeen
+   *          the sequence number of the last event the client has seen, -1 if none.
+   * @return true if the bucket has events after lastSeen.
+   */
+  boolean isReady(long lastSeen);
+
+  /**
+   * @return the sequence number of the last event put into the bucket, 0 if there has
+   *         been none.
+   */
+  long getSequence();
+
+  /**
+   * Put an event into the bucket and wake any waiters.
+   *
+   * @param event
+   *          the event payload.
+   * @return the sequence number of the event.
+   */
+  long publish(Map<String, Object> event);
+
   /**
    * @param waiter to be added to the list of waiters waiting
    */
@@ -27,10 +54,19 @@ public interface MessageBucket {
 
   /**
    * @param response send the contents of the bucket out over the response.
-   * @throws MessageBucketException 
+   * @throws MessageBucketException
    */
   void send(HttpServletResponse response) throws  MessageBucketException;
 
+  /**
+   * @param response
+   *          send the events after lastSeen out over the response.
+   * @param lastSeen
+   *          the sequence number of the last event the client has seen, -1 if none.
+   * @throws MessageBucketException
+   */
+  void send(HttpServletResponse response, long lastSeen) throws MessageBucketException;
+
   /**
    * Unbind the request that was bound to this bucket using this token.
    * @param token the token that was used to bind with.
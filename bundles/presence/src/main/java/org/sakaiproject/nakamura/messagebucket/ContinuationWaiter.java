@@ -4,7 +4,8 @@ import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 
 /**
- * Waits using a continuation
+ * Waits using a continuation. Waiters on the same continuation are equal, so that a
+ * request that is dispatched again after being suspended replaces its earlier waiter.
  */
 public class ContinuationWaiter implements Waiter {
 
@@ -15,7 +16,18 @@ public class ContinuationWaiter implements Waiter {
   }
 
   public void resume() {
-    continuation.resume();    
+    continuation.resume();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return (obj instanceof ContinuationWaiter)
+        && ((ContinuationWaiter) obj).continuation == continuation;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(continuation);
   }
 
 }
@@ -1,6 +1,7 @@
 package org.sakaiproject.nakamura.messagebucket;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.sling.commons.json.JSONException;
@@ -10,20 +11,77 @@ import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Holds the most recent events for a bucket in a ring buffer. The buffer is only
+ * allocated while there are events, and events are dropped once they are older than the
+ * retention time, so a bucket that nobody is publishing to costs very little. Access to
+ * the events is synchronized on the bucket, which is also the mutex the continuations of
+ * the waiting requests are created with. Events are written to clients outside the
+ * lock.
+ */
 public class MessageBucketImpl implements MessageBucket {
 
-  private Map<Waiter, Waiter> waiters = Maps.newConcurrentHashMap();
-  private Map<String, HttpServletRequest> bound = Maps.newConcurrentHashMap();
-  private boolean ready = false;
-  private Map<String, Object> messagePayload;
+  private final Map<Waiter, Waiter> waiters = Maps.newConcurrentHashMap();
+  private final Map<String, HttpServletRequest> bound = Maps.newConcurrentHashMap();
+  private final int capacity;
+  private final long retention;
+  private Event[] events;
+  private int head;
+  private int count;
+  private long sequence;
+  private volatile long lastAccess = System.currentTimeMillis();
+
+  /**
+   * @param capacity
+   *          the maximum number of events held.
+   * @param retention
+   *          the time in ms that an event is held for.
+   */
+  public MessageBucketImpl(int capacity, long retention) {
+    this.capacity = Math.max(1, capacity);
+    this.retention = retention;
+  }
 
   public boolean isReady() {
-    return ready;
+    return isReady(-1);
+  }
+
+  public synchronized boolean isReady(long lastSeen) {
+    trim(System.currentTimeMillis());
+    return count > 0 && sequence > effective(lastSeen);
+  }
+
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  public long publish(Map<String, Object> payload) {
+    long seq;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      trim(now);
+      if (events == null) {
+        events = new Event[capacity];
+      }
+      if (count == capacity) {
+        events[head] = null;
+        head = (head + 1) % capacity;
+        count--;
+      }
+      seq = ++sequence;
+      events[(head + count) % capacity] = new Event(seq, now, payload);
+      count++;
+    }
+    for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
+      w.resume();
+    }
+    return seq;
   }
 
   public void addWaiter(Waiter waiter) {
@@ -35,13 +93,50 @@ public class MessageBucketImpl implements MessageBucket {
   }
 
   public void send(HttpServletResponse response) throws MessageBucketException {
+    send(response, -1);
+  }
+
+  public void send(HttpServletResponse response, long lastSeen)
+      throws MessageBucketException {
+    lastAccess = System.currentTimeMillis();
+    // take the events to send under the lock, and write them to the client after
+    // releasing it, so that a slow client does not hold up publishers.
+    long seq;
+    boolean missed;
+    List<Event> toSend = Lists.newArrayList();
+    synchronized (this) {
+      trim(lastAccess);
+      long after = effective(lastSeen);
+      seq = sequence;
+      missed = lastSeen > sequence
+          || (count > 0 && lastSeen >= 0 && events[head].seq > after + 1)
+          || (count == 0 && lastSeen >= 0 && lastSeen < sequence);
+      for (int i = 0; i < count; i++) {
+        Event event = events[(head + i) % capacity];
+        if (event.seq > after) {
+          toSend.add(event);
+        }
+      }
+    }
     try {
-      if (ready) {
-        ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
-        e.valueMap(messagePayload);
-      } else {
-        throw new MessageBucketException("Message not ready");
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
+      writer.object();
+      writer.key("seq");
+      writer.value(seq);
+      writer.key("missed");
+      writer.value(missed);
+      writer.key("events");
+      writer.array();
+      for (Event event : toSend) {
+        writer.object();
+        writer.key("id");
+        writer.value(event.seq);
+        writer.key("payload");
+        writer.valueMap(event.payload);
+        writer.endObject();
       }
+      writer.endArray();
+      writer.endObject();
     } catch (IOException e) {
       throw new MessageBucketException(e.getMessage(), e);
     } catch (JSONException e) {
@@ -50,19 +145,53 @@ public class MessageBucketImpl implements MessageBucket {
   }
 
   public void unbind(String token, HttpServletRequest request) {
-    bound.put(token, request);
+    bound.remove(token);
   }
 
   public void bind(String token, HttpServletRequest request) {
-    bound.remove(token);
+    lastAccess = System.currentTimeMillis();
+    bound.put(token, request);
   }
 
-  public void markReady(Map<String, Object> messagePayload) {
-    this.messagePayload = messagePayload;
-    ready = true;
-    for (Waiter w : ImmutableSet.copyOf(waiters.keySet())) {
-      w.resume();
+  /**
+   * @param now
+   * @param idleTime
+   * @return true if no request has used this bucket within the idle time, and none is
+   *         waiting on it.
+   */
+  public boolean isIdle(long now, long idleTime) {
+    return waiters.isEmpty() && bound.isEmpty() && lastAccess < now - idleTime;
+  }
+
+  /**
+   * A client that has seen a sequence number beyond the end of this bucket was using a
+   * bucket that has since been evicted, it gets everything in this one.
+   */
+  private long effective(long lastSeen) {
+    return lastSeen > sequence ? -1 : lastSeen;
+  }
+
+  private void trim(long now) {
+    while (count > 0 && events[head].time < now - retention) {
+      events[head] = null;
+      head = (head + 1) % capacity;
+      count--;
+    }
+    if (count == 0) {
+      events = null;
+      head = 0;
     }
   }
 
+  private static final class Event {
+    private final long seq;
+    private final long time;
+    private final Map<String, Object> payload;
+
+    Event(long seq, long time, Map<String, Object> payload) {
+      this.seq = seq;
+      this.time = time;
+      this.payload = payload;
+    }
+  }
 }
@@ -57,30 +57,47 @@ public class UIEventServlet extends HttpServlet {
 
   
   
+  /**
+   * Sends the events in the bucket after the sequence number in the since parameter,
+   * waiting for up to the poll timeout if there are none. The response always carries the
+   * sequence number of the last event, which the client passes back as since on the next
+   * poll, so no events are lost between polls; a response with no events means the wait
+   * timed out.
+   */
   @Override
   protected void doGet(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
     String token = request.getParameter("token");
+    long lastSeen = -1;
+    String since = request.getParameter("since");
+    if (since != null) {
+      try {
+        lastSeen = Long.parseLong(since);
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid since " + since);
+        return;
+      }
+    }
     try {
-      MessageBucket mb =  bucketService.getBucket(token);
-       mb.bind(token, request);
+      MessageBucket mb = bucketService.getBucket(token);
+      mb.bind(token, request);
       try {
-      synchronized (mb) {
-        if ( mb.isReady() ) {
-          mb.send(response);
-        } else {
-          Continuation continuation = ContinuationSupport.getContinuation(request, mb);
-          Waiter waiter = new ContinuationWaiter(continuation);
-          mb.addWaiter(waiter);
-          continuation.suspend(timeout);
-          mb.removeWaiter(waiter);
-          if ( mb.isReady() ) {
-            mb.send(response);
-          } else {
-            response.sendError(HttpServletResponse.SC_NOT_FOUND,"Timed out waiting for message bucket to fill");
+        Continuation continuation = ContinuationSupport.getContinuation(request, mb);
+        Waiter waiter = new ContinuationWaiter(continuation);
+        synchronized (mb) {
+          if (!mb.isReady(lastSeen)) {
+            // events are published holding the bucket, so none can be missed between
+            // the check and the waiter being added. With a selecting connector suspend
+            // throws and this request is dispatched again once resumed or expired, the
+            // waiter stays registered until then.
+            mb.addWaiter(waiter);
+            continuation.suspend(timeout);
           }
-        }      
-      }
+        }
+        mb.removeWaiter(waiter);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        mb.send(response, lastSeen);
       } finally {
         mb.unbind(token, request);
       }
@@ -89,5 +106,5 @@ public class UIEventServlet extends HttpServlet {
     }
   }
 
-  
+
 }
@@ -4,6 +4,7 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -18,7 +19,9 @@ import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
 import java.text.MessageFormat;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -32,9 +35,19 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
 
   private static final String DEFAULT_URL_PATTERN = "http://localhost:8080/system/uievent/default?token={3}&server={6}&user={7}";
   private static final String BUCKETURLPATTERN_CONFIG = "bucketurlpattern";
+
+  @Property(intValue = 32)
+  private static final String BUCKET_SIZE_CONFIG = "bucketsize";
+
+  @Property(longValue = 300000L)
+  private static final String BUCKET_IDLE_CONFIG = "bucketidletime";
+
   private String sharedSecret;
-  private Map<String, MessageBucket> messageBuckets = new ConcurrentHashMap<String, MessageBucket>();
+  private ConcurrentMap<String, MessageBucketImpl> messageBuckets = new ConcurrentHashMap<String, MessageBucketImpl>();
   private String urlPattern;
+  private int bucketSize = 32;
+  private long idleTime = 300000L;
+  private volatile long nextEviction;
   
   @Reference
   private ClusterTrackingService clusterService;
@@ -43,6 +56,9 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
   public void activate(Map<String, Object> properties) {
     sharedSecret = String.valueOf(System.currentTimeMillis()); // not that secure !
     urlPattern = OsgiUtil.toString(properties.get(BUCKETURLPATTERN_CONFIG), DEFAULT_URL_PATTERN);
+    bucketSize = OsgiUtil.toInteger(properties.get(BUCKET_SIZE_CONFIG), 32);
+    idleTime = OsgiUtil.toLong(properties.get(BUCKET_IDLE_CONFIG), 300000L);
+    nextEviction = System.currentTimeMillis() + idleTime;
   }
 
   public MessageBucket getBucket(String token) throws MessageBucketException {
@@ -50,14 +66,42 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     if (key == null) {
       throw new MessageBucketException("Invalid Token " + token);
     }
-    MessageBucket mb = messageBuckets.get(key);
+    evictIdleBuckets();
+    MessageBucketImpl mb = messageBuckets.get(key);
     if (mb == null) {
-      mb = new MessageBucketImpl();
-      messageBuckets.put(key, mb);
+      // events are held for as long as a bucket may be idle, so a client that comes back
+      // before its bucket is evicted gets what it missed.
+      mb = new MessageBucketImpl(bucketSize, idleTime);
+      MessageBucketImpl existing = messageBuckets.putIfAbsent(key, mb);
+      if (existing != null) {
+        mb = existing;
+      }
     }
     return mb;
   }
 
+  /**
+   * Remove the buckets that no client has used for the idle time. This is done at most
+   * once per idle time, by whichever request comes along first.
+   */
+  private void evictIdleBuckets() {
+    long now = System.currentTimeMillis();
+    if (now < nextEviction) {
+      return;
+    }
+    synchronized (this) {
+      if (now < nextEviction) {
+        return;
+      }
+      nextEviction = now + idleTime;
+    }
+    for (Entry<String, MessageBucketImpl> e : messageBuckets.entrySet()) {
+      if (e.getValue().isIdle(now, idleTime)) {
+        messageBuckets.remove(e.getKey(), e.getValue());
+      }
+    }
+  }
+
   public String getToken(String userId, String context) throws MessageBucketException {
     try {
       String timeStamp = Long.toHexString(System.currentTimeMillis());
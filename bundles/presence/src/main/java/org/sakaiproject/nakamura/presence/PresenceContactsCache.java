@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds, for a short time, the accepted contacts of a user and the profiles of those
+ * contacts as that user is allowed to see them, so that a client polling the presence of
+ * its contacts does not reload every profile from the repository on each poll. Presence
+ * itself is not held here, it is always read from the presence service. The entry for a
+ * user is dropped when a connection to or from that user changes.
+ */
+@Component(immediate = true, metatype = true, label = "Sakai Presence Contacts Cache", description = "Caches the contacts and contact profiles used by the presence contacts listing")
+@Services(value = { @Service(value = PresenceContactsCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.description", value = { "Caches the contacts and contact profiles used by the presence contacts listing." }),
+    @Property(name = "service.vendor", value = { "The Sakai Foundation" }),
+    @Property(name = "event.topics", value = { ConnectionConstants.EVENT_TOPIC_BASE + "*" }, propertyPrivate = true) })
+public class PresenceContactsCache implements EventHandler {
+
+  @Property(longValue = 30000L, label = "TTL", description = "The time in ms that the contacts and profiles of a user are held for.")
+  static final String TTL = "presence.contacts.ttl";
+
+  @Property(intValue = 1000, label = "Max Users", description = "The maximum number of users whose contacts are held.")
+  static final String MAX_USERS = "presence.contacts.maxusers";
+
+  /**
+   * Marks a contact that has no profile, so that the repository is not asked again.
+   */
+  private static final ValueMap NO_PROFILE = new ValueMapDecorator(
+      Collections.<String, Object> emptyMap());
+
+  private long ttl = 30000L;
+  private int maxUsers = 1000;
+  private final Map<String, Contacts> contacts = new LinkedHashMap<String, Contacts>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = -3426416325473409454L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Contacts> eldest) {
+      return size() > maxUsers;
+    }
+  };
+
+  protected void activate(ComponentContext componentContext) {
+    @SuppressWarnings("unchecked")
+    Dictionary<String, Object> props = componentContext.getProperties();
+    ttl = OsgiUtil.toLong(props.get(TTL), 30000L);
+    synchronized (contacts) {
+      maxUsers = OsgiUtil.toInteger(props.get(MAX_USERS), 1000);
+      contacts.clear();
+    }
+  }
+
+  /**
+   * @param user
+   * @return the accepted contacts of the user, or null if they are not held.
+   */
+  public List<String> getContacts(String user) {
+    Contacts c = getEntry(user);
+    return c == null ? null : c.userIds;
+  }
+
+  /**
+   * Hold the accepted contacts of a user, replacing any profiles held for them.
+   *
+   * @param user
+   * @param userIds
+   */
+  public void putContacts(String user, List<String> userIds) {
+    Contacts c = new Contacts(userIds, System.currentTimeMillis() + ttl);
+    synchronized (contacts) {
+      contacts.put(user, c);
+    }
+  }
+
+  /**
+   * @param user
+   *          the user viewing the profiles.
+   * @param userIds
+   *          the contacts to get the profiles of.
+   * @return the profiles held for the contacts, a contact that is held but has no profile
+   *         maps to null, a contact that is not held is not in the map.
+   */
+  public Map<String, ValueMap> getProfiles(String user, List<String> userIds) {
+    Map<String, ValueMap> result = new HashMap<String, ValueMap>();
+    Contacts c = getEntry(user);
+    if (c != null) {
+      for (String userId : userIds) {
+        ValueMap profile = c.profiles.get(userId);
+        if (profile != null) {
+          result.put(userId, profile == NO_PROFILE ? null : profile);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Hold the profile of a contact as seen by the user. Ignored if the contacts of the
+   * user are not held.
+   *
+   * @param user
+   *          the user viewing the profile.
+   * @param userId
+   *          the contact.
+   * @param profile
+   *          the profile, may be null.
+   */
+  public void putProfile(String user, String userId, ValueMap profile) {
+    Contacts c = getEntry(user);
+    if (c != null) {
+      c.profiles.put(userId, profile == null ? NO_PROFILE : profile);
+    }
+  }
+
+  /**
+   * Drop anything held for the user.
+   *
+   * @param user
+   */
+  public void invalidate(String user) {
+    if (user != null) {
+      synchronized (contacts) {
+        contacts.remove(user);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    invalidate((String) event.getProperty("userid"));
+    invalidate((String) event.getProperty("target"));
+  }
+
+  private Contacts getEntry(String user) {
+    synchronized (contacts) {
+      Contacts c = contacts.get(user);
+      if (c != null && c.expires < System.currentTimeMillis()) {
+        contacts.remove(user);
+        c = null;
+      }
+      return c;
+    }
+  }
+
+  private static final class Contacts {
+    private final List<String> userIds;
+    private final Map<String, ValueMap> profiles = new ConcurrentHashMap<String, ValueMap>();
+    private final long expires;
+
+    Contacts(List<String> userIds, long expires) {
+      this.userIds = Collections.unmodifiableList(userIds);
+      this.expires = expires;
+    }
+  }
+}
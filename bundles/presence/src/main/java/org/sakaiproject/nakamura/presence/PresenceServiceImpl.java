@@ -17,67 +17,112 @@
  */
 package org.sakaiproject.nakamura.presence;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.Service;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 
 @Component(immediate = true,label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
 @Service(value = PresenceService.class)
 @Properties(value = {
     @Property(name = "service.description", value = { "Gets the presence status and locations for users." }),
     @Property(name = "service.vendor", value = { "The Sakai Foundation" }) })
-public class PresenceServiceImpl implements PresenceService {
+public class PresenceServiceImpl implements PresenceService, MessageListener {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
-  private static final String LOCATION_CACHE = "presence.location";
-  private static final String USER_STATUS_CACHE = "presence.status";
+  /**
+   * Posted when the presence of a user changes on this server, and bridged onto a JMS
+   * topic of the same name so that the other servers in the cluster can apply it.
+   */
+  static final String TOPIC = "org/sakaiproject/nakamura/presence/UPDATED";
+  static final String UUID_PROPERTY = "uuid";
+  static final String TICK_PROPERTY = "tick";
+  static final String LOCATION_PROPERTY = "location";
+  /**
+   * Not set when the user has been cleared.
+   */
+  static final String STATUS_PROPERTY = "status";
+  private static final String SERVER_ID_PROPERTY = "clusterServerId";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  private static final long TICK = 20000L; // 20s resolution
 
-  private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  /**
+   * Presence of the users seen by any server in the cluster. Changes made here are
+   * published as they happen, and changes published by other servers are applied as they
+   * arrive, so that reads never leave this server. A server that has just started sees a
+   * user once they are next seen, which is within a tick for a user that is active.
+   */
+  private final PresenceStore presenceStore = new PresenceStore(PRESENCE_TTL / TICK);
 
   @Reference
-  protected transient CacheManagerService cacheManagerService;
+  protected EventAdmin eventAdmin;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+  protected ConnectionFactoryService connFactoryService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+  protected ClusterTrackingService clusterTrackingService;
+
+  private Connection connection;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    if (connFactoryService != null) {
+      try {
+        connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+        javax.jms.Session session = connection.createSession(false,
+            javax.jms.Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+        consumer.setMessageListener(this);
+        connection.start();
+      } catch (JMSException e) {
+        LOGGER.error("Unable to listen for presence changes on other servers "
+            + e.getMessage(), e);
+        closeConnection();
+      }
+    }
+  }
 
-  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
-    this.cacheManagerService = cacheManagerService;
-    // the caches must be replicating in the cluster.
-    locationCache = cacheManagerService.getCache(LOCATION_CACHE,
-        CacheScope.CLUSTERREPLICATED);
-    userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
-        CacheScope.CLUSTERREPLICATED);
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    closeConnection();
   }
 
-  protected void unbindCacheManagerService(
-      CacheManagerService cacheManagerService) {
-    if (this.cacheManagerService == cacheManagerService) {
-      locationCache = null;
-      userStatusCache = null;
-      this.cacheManagerService = null;
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
     }
   }
 
@@ -87,7 +132,7 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    update(uuid, getTimeStamp(), null, status);
   }
 
   /**
@@ -95,31 +140,9 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
-    }
+    long now = getTimeStamp();
+    presenceStore.remove(uuid);
+    publish(uuid, now, null, null);
   }
 
   /**
@@ -128,16 +151,11 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+    PresenceStore.Record record = presenceStore.get(uuid, getTimeStamp());
+    if (record != null) {
+      return record.getStatus();
     }
-    return result;
+    return PresenceStatus.offline.name();
   }
 
   /**
@@ -145,38 +163,21 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+    PresenceStore.Record record = presenceStore.get(uuid, getTimeStamp());
+    if (record != null) {
+      return record.getLocation();
     }
-    return location;
+    return "none";
   }
   
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+    PresenceStore.Record record = presenceStore.get(uuid, getTimeStamp());
+    if (record != null) {
+      return new String[] { record.getUuid(), String.valueOf(record.getTick()),
+          record.getLocation(), record.getStatus() };
     }
-    return result;
+    return null;
   }
 
   /**
@@ -186,9 +187,12 @@ public class PresenceServiceImpl implements PresenceService {
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
+    long now = getTimeStamp();
+    String offline = PresenceStatus.offline.name();
     Map<String, String> online = Maps.newHashMap();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      PresenceStore.Record record = presenceStore.get(uuid, now);
+      online.put(uuid, record == null ? offline : record.getStatus());
     }
     return online;
   }
@@ -199,23 +203,12 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
-    if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
-          }
-        }
-        return onlineMap;
-      }
-    } else {
-      LOGGER.warn("Location cache is null, check the cacheManager");
+    Map<String, String> onlineMap = Maps.newHashMap();
+    for (PresenceStore.Record record : presenceStore.getLocation(location, getTimeStamp())
+        .values()) {
+      onlineMap.put(record.getUuid(), record.getStatus());
     }
-    return ImmutableMap.of();
+    return onlineMap;
   }
 
   /**
@@ -232,26 +225,7 @@ public class PresenceServiceImpl implements PresenceService {
     if (StringUtils.isEmpty(uuid)) {
       uuid = "none";
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
-
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
-        }
-      }
-    }
+    update(uuid, now, location, null);
   }
 
   /**
@@ -260,11 +234,11 @@ public class PresenceServiceImpl implements PresenceService {
   private long getTimeStamp() {
     long now = System.currentTimeMillis();
     // make now slow changing, 20s resolution
-    return now / 20000;
+    return now / TICK;
   }
 
   /**
-   * Update the users location cache.
+   * Update the users presence, and publish it to the cluster if it changed.
    * 
    * @param uuid
    *          the user id
@@ -276,56 +250,79 @@ public class PresenceServiceImpl implements PresenceService {
    *          the status, null if not provided in this update
    * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
+  private boolean update(String uuid, long now, String location, String status) {
+    PresenceStore.Record record = presenceStore.update(uuid, now, location, status);
+    if (record == null) {
+      return false;
+    }
+    publish(uuid, record.getTick(), record.getLocation(), record.getStatus());
+    return true;
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+  /**
+   * Post the presence of the user, so that it is bridged to the other servers.
+   *
+   * @param uuid
+   * @param tick
+   * @param location
+   * @param status
+   *          null if the user has been cleared.
+   */
+  private void publish(String uuid, long tick, String location, String status) {
+    if (eventAdmin == null) {
+      return;
+    }
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put(UUID_PROPERTY, uuid);
+    props.put(TICK_PROPERTY, tick);
+    if (status != null) {
+      props.put(LOCATION_PROPERTY, location);
+      props.put(STATUS_PROPERTY, status);
     }
-    return update;
+    eventAdmin.postEvent(new Event(TOPIC, props));
   }
 
   /**
+   * Apply a change to the presence of a user made on another server.
+   *
    * @param uuid
+   * @param tick
    * @param location
-   * @return
+   * @param status
+   *          null if the user was cleared.
    */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+  void apply(String uuid, long tick, String location, String status) {
+    if (status == null) {
+      presenceStore.remove(uuid, tick);
+    } else {
+      presenceStore.apply(new PresenceStore.Record(uuid, tick, location, status),
+          getTimeStamp());
+    }
+  }
+
+  /**
+   * {@inheritDoc} Changes bridged from every server; those made on this server have
+   * already been applied and are dropped.
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (clusterTrackingService != null
+          && clusterTrackingService.getCurrentServerId().equals(
+              message.getStringProperty(SERVER_ID_PROPERTY))) {
+        return;
+      }
+      String uuid = message.getStringProperty(UUID_PROPERTY);
+      if (uuid == null || !message.propertyExists(TICK_PROPERTY)) {
+        return;
+      }
+      apply(uuid, message.getLongProperty(TICK_PROPERTY),
+          message.getStringProperty(LOCATION_PROPERTY),
+          message.getStringProperty(STATUS_PROPERTY));
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to read a presence change {} ", e.getMessage());
+    }
   }
 
 }
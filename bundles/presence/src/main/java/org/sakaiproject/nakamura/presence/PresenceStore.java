@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in memory store of presence records. Users are spread over a number of shards, each
+ * with its own map of records and its own timing wheel. Reads do not lock; updates lock
+ * only the shard that holds the user. The timing wheel has one slot per tick of the TTL,
+ * and a user is held in the slot of the tick they were last seen in, so that when a tick
+ * falls out of the TTL only the users in that slot need to be looked at. The wheel is
+ * turned by updates to the shard, and reads check the tick of the record so that a user
+ * in a shard that has not been turned yet is still seen as offline.
+ */
+public class PresenceStore {
+
+  /**
+   * The presence of a single user. Records are immutable, a change of location, status
+   * or tick replaces the record.
+   */
+  public static final class Record {
+    private final String uuid;
+    private final long tick;
+    private final String location;
+    private final String status;
+
+    Record(String uuid, long tick, String location, String status) {
+      this.uuid = uuid;
+      this.tick = tick;
+      this.location = location;
+      this.status = status;
+    }
+
+    public String getUuid() {
+      return uuid;
+    }
+
+    /**
+     * @return the tick the user was last seen in.
+     */
+    public long getTick() {
+      return tick;
+    }
+
+    public String getLocation() {
+      return location;
+    }
+
+    public String getStatus() {
+      return status;
+    }
+  }
+
+  private static final int DEFAULT_SHARDS = 16;
+
+  private final Shard[] shards;
+  private final long ttl;
+  private final ConcurrentMap<String, Map<String, Boolean>> locations = new ConcurrentHashMap<String, Map<String, Boolean>>();
+
+  /**
+   * @param ttl
+   *          the number of ticks a user remains present for after they were last seen.
+   */
+  public PresenceStore(long ttl) {
+    this(ttl, DEFAULT_SHARDS);
+  }
+
+  /**
+   * @param ttl
+   *          the number of ticks a user remains present for after they were last seen.
+   * @param nshards
+   *          the number of shards, rounded up to a power of 2.
+   */
+  public PresenceStore(long ttl, int nshards) {
+    this.ttl = ttl;
+    int n = 1;
+    while (n < nshards) {
+      n <<= 1;
+    }
+    shards = new Shard[n];
+    for (int i = 0; i < n; i++) {
+      shards[i] = new Shard((int) ttl + 1);
+    }
+  }
+
+  /**
+   * @param uuid
+   * @param now
+   *          the current tick.
+   * @return the record for the user, or null if the user has not been seen within the TTL.
+   */
+  public Record get(String uuid, long now) {
+    Record record = shardFor(uuid).records.get(uuid);
+    if (record != null && record.tick > now - ttl) {
+      return record;
+    }
+    return null;
+  }
+
+  /**
+   * @param location
+   * @param now
+   *          the current tick.
+   * @return the records of the users present at the location.
+   */
+  public Map<String, Record> getLocation(String location, long now) {
+    Map<String, Record> result = new HashMap<String, Record>();
+    Map<String, Boolean> members = locations.get(location);
+    if (members != null) {
+      for (String uuid : members.keySet()) {
+        Record record = get(uuid, now);
+        if (record != null && location.equals(record.location)) {
+          result.put(uuid, record);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Record that the user has been seen.
+   *
+   * @param uuid
+   * @param now
+   *          the current tick.
+   * @param location
+   *          the new location, null to keep the current one.
+   * @param status
+   *          the new status, null to keep the current one.
+   * @return the new record, or null if nothing changed.
+   */
+  public Record update(String uuid, long now, String location, String status) {
+    Shard shard = shardFor(uuid);
+    synchronized (shard) {
+      shard.turn(now);
+      Record current = get(uuid, now);
+      boolean seen = current != null;
+      if (current == null) {
+        current = new Record(uuid, now - 1, "none", "online");
+      }
+      String newLocation = location == null ? current.location : location;
+      String newStatus = status == null ? current.status : status;
+      if (seen && current.tick == now && current.location.equals(newLocation)
+          && current.status.equals(newStatus)) {
+        return null;
+      }
+      Record record = new Record(uuid, now, newLocation, newStatus);
+      put(shard, record);
+      return record;
+    }
+  }
+
+  /**
+   * Apply a record made by another server, unless the record held here is newer. A
+   * record from the same tick replaces the one held, as it was made after it.
+   *
+   * @param record
+   * @param now
+   *          the current tick.
+   * @return true if the record was applied.
+   */
+  public boolean apply(Record record, long now) {
+    if (record.tick <= now - ttl) {
+      return false;
+    }
+    Shard shard = shardFor(record.uuid);
+    synchronized (shard) {
+      shard.turn(now);
+      Record current = get(record.uuid, now);
+      if (current != null && current.tick > record.tick) {
+        return false;
+      }
+      put(shard, record);
+      return true;
+    }
+  }
+
+  /**
+   * Remove the user from the store.
+   *
+   * @param uuid
+   * @return the record that was removed, or null if there was none.
+   */
+  public Record remove(String uuid) {
+    Shard shard = shardFor(uuid);
+    synchronized (shard) {
+      return remove(shard, uuid);
+    }
+  }
+
+  /**
+   * Remove the user from the store, unless they have been seen since the tick, for
+   * instance when another server cleared them.
+   *
+   * @param uuid
+   * @param tick
+   *          the tick the user was removed in.
+   * @return the record that was removed, or null if there was none.
+   */
+  public Record remove(String uuid, long tick) {
+    Shard shard = shardFor(uuid);
+    synchronized (shard) {
+      Record current = shard.records.get(uuid);
+      if (current != null && current.tick > tick) {
+        return null;
+      }
+      return remove(shard, uuid);
+    }
+  }
+
+  /**
+   * @return the number of locations that have members.
+   */
+  int locationCount() {
+    return locations.size();
+  }
+
+  /**
+   * @return the number of records held, including any that have expired but have not been
+   *         evicted yet.
+   */
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      size += shard.records.size();
+    }
+    return size;
+  }
+
+  private void put(Shard shard, Record record) {
+    Record previous = shard.records.put(record.uuid, record);
+    if (previous != null) {
+      shard.slot(previous.tick).remove(record.uuid);
+      if (!previous.location.equals(record.location)) {
+        leave(previous.location, record.uuid);
+      }
+    }
+    shard.slot(record.tick).add(record.uuid);
+    if (!"none".equals(record.location)) {
+      join(record.location, record.uuid);
+    }
+  }
+
+  private Record remove(Shard shard, String uuid) {
+    Record previous = shard.records.remove(uuid);
+    if (previous != null) {
+      shard.slot(previous.tick).remove(uuid);
+      leave(previous.location, uuid);
+    }
+    return previous;
+  }
+
+  private void join(String location, String uuid) {
+    for (;;) {
+      Map<String, Boolean> members = locations.get(location);
+      if (members == null) {
+        members = new ConcurrentHashMap<String, Boolean>();
+        Map<String, Boolean> existing = locations.putIfAbsent(location, members);
+        if (existing != null) {
+          members = existing;
+        }
+      }
+      // the map may have been removed by the last member leaving, in which case start
+      // again with a new one.
+      synchronized (members) {
+        if (locations.get(location) == members) {
+          members.put(uuid, Boolean.TRUE);
+          return;
+        }
+      }
+    }
+  }
+
+  private void leave(String location, String uuid) {
+    Map<String, Boolean> members = locations.get(location);
+    if (members != null) {
+      synchronized (members) {
+        members.remove(uuid);
+        if (members.isEmpty()) {
+          locations.remove(location, members);
+        }
+      }
+    }
+  }
+
+  private Shard shardFor(String uuid) {
+    int h = uuid.hashCode();
+    h ^= (h >>> 16);
+    return shards[h & (shards.length - 1)];
+  }
+
+  /**
+   * A shard of the store, updates to the records and the wheel are made holding the
+   * monitor of the shard.
+   */
+  private final class Shard {
+    private final ConcurrentMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+    private final Set<String>[] wheel;
+    private long turnedTo = Long.MIN_VALUE;
+
+    @SuppressWarnings("unchecked")
+    Shard(int slots) {
+      wheel = new Set[slots];
+      for (int i = 0; i < slots; i++) {
+        wheel[i] = new HashSet<String>();
+      }
+    }
+
+    Set<String> slot(long tick) {
+      return wheel[(int) (((tick % wheel.length) + wheel.length) % wheel.length)];
+    }
+
+    /**
+     * Evict the users in the slots of the ticks that have fallen out of the TTL since the
+     * wheel was last turned.
+     */
+    void turn(long now) {
+      long expired = now - ttl;
+      if (turnedTo == Long.MIN_VALUE || expired - turnedTo > wheel.length) {
+        turnedTo = expired - wheel.length;
+      }
+      while (turnedTo < expired) {
+        turnedTo++;
+        for (Iterator<String> i = slot(turnedTo).iterator(); i.hasNext();) {
+          String uuid = i.next();
+          Record record = records.get(uuid);
+          if (record == null) {
+            i.remove();
+          } else if (record.tick <= expired) {
+            records.remove(uuid);
+            leave(record.location, uuid);
+            i.remove();
+          }
+        }
+      }
+    }
+  }
+}
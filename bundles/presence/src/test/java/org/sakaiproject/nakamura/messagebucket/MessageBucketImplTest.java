@@ -0,0 +1,126 @@
+package org.sakaiproject.nakamura.messagebucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.messagebucket.Waiter;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class MessageBucketImplTest {
+
+  @Test
+  public void testSequence() {
+    MessageBucketImpl mb = new MessageBucketImpl(4, 60000L);
+    assertFalse(mb.isReady());
+    assertEquals(0, mb.getSequence());
+    for (int i = 1; i <= 10; i++) {
+      assertEquals(i, mb.publish(event(i)));
+    }
+    assertTrue(mb.isReady(-1));
+    assertTrue(mb.isReady(9));
+    assertFalse(mb.isReady(10));
+    // a client from a bucket that has been evicted gets everything
+    assertTrue(mb.isReady(100));
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(4, 10L);
+    mb.publish(event(1));
+    assertTrue(mb.isReady(0));
+    Thread.sleep(20);
+    assertFalse(mb.isReady(0));
+    assertEquals(1, mb.getSequence());
+  }
+
+  @Test
+  public void testWaiters() throws Exception {
+    MessageBucketImpl mb = new MessageBucketImpl(4, 60000L);
+    final int[] resumed = new int[1];
+    Waiter waiter = new Waiter() {
+      public void resume() {
+        resumed[0]++;
+      }
+    };
+    mb.addWaiter(waiter);
+    assertFalse(mb.isIdle(System.currentTimeMillis() + 1000, 10));
+    mb.publish(event(1));
+    assertEquals(1, resumed[0]);
+    mb.removeWaiter(waiter);
+    mb.publish(event(2));
+    assertEquals(1, resumed[0]);
+    assertTrue(mb.isIdle(System.currentTimeMillis() + 1000, 10));
+  }
+
+  @Test
+  public void testSlowClientDoesNotBlockPublish() throws Exception {
+    final MessageBucketImpl mb = new MessageBucketImpl(4, 60000L);
+    mb.publish(event(1));
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Writer slowWriter = new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+        writing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    final HttpServletResponse response = EasyMock.createMock(HttpServletResponse.class);
+    EasyMock.expect(response.getWriter()).andReturn(new PrintWriter(slowWriter))
+        .anyTimes();
+    EasyMock.replay(response);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> send = executor.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          mb.send(response, 0);
+          return null;
+        }
+      });
+      assertTrue(writing.await(10, TimeUnit.SECONDS));
+      // the client is stuck writing, publishing must not wait for it.
+      assertEquals(2, mb.publish(event(2)));
+      release.countDown();
+      send.get(10, TimeUnit.SECONDS);
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private Map<String, Object> event(int i) {
+    Map<String, Object> event = new HashMap<String, Object>();
+    event.put("n", i);
+    return event;
+  }
+}
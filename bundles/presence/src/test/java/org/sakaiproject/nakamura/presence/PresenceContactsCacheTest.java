@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class PresenceContactsCacheTest {
+
+  @Test
+  public void testProfiles() {
+    PresenceContactsCache cache = new PresenceContactsCache();
+    List<String> contacts = Arrays.asList("mark", "luke");
+    ValueMap profile = new ValueMapDecorator(new HashMap<String, Object>());
+
+    // nothing is held for profiles until the contacts are
+    cache.putProfile("ieb", "mark", profile);
+    assertNull(cache.getContacts("ieb"));
+    assertTrue(cache.getProfiles("ieb", contacts).isEmpty());
+
+    cache.putContacts("ieb", contacts);
+    cache.putProfile("ieb", "mark", profile);
+    cache.putProfile("ieb", "luke", null);
+    assertEquals(contacts, cache.getContacts("ieb"));
+    Map<String, ValueMap> profiles = cache.getProfiles("ieb", contacts);
+    assertEquals(2, profiles.size());
+    assertEquals(profile, profiles.get("mark"));
+    assertTrue(profiles.containsKey("luke"));
+    assertNull(profiles.get("luke"));
+  }
+
+  @Test
+  public void testConnectionEvent() {
+    PresenceContactsCache cache = new PresenceContactsCache();
+    cache.putContacts("ieb", Arrays.asList("mark"));
+    cache.putContacts("mark", Arrays.asList("ieb"));
+    cache.putContacts("luke", Arrays.asList("mark"));
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("userid", "ieb");
+    properties.put("target", "mark");
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/connections/remove",
+        properties));
+
+    assertNull(cache.getContacts("ieb"));
+    assertNull(cache.getContacts("mark"));
+    assertEquals(Arrays.asList("mark"), cache.getContacts("luke"));
+  }
+}
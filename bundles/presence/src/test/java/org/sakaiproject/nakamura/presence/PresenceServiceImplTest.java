@@ -17,25 +17,18 @@
  */
 package org.sakaiproject.nakamura.presence;
 
-import static org.easymock.EasyMock.createMock;
-import static org.easymock.EasyMock.expect;
-import static org.easymock.EasyMock.replay;
-import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 
 import com.google.common.collect.Lists;
 
 import junit.framework.Assert;
 
-import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
-import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.List;
 import java.util.Map;
@@ -45,42 +38,36 @@ import java.util.Map;
  */
 public class PresenceServiceImplTest {
 
-  private CacheManagerService cacheManagerService;
   private PresenceServiceImpl presenceService;
-  private Cache<Object> presenceLocationCache;
-  private Cache<Object> presenceStatusCache;
 
   /**
    * @throws java.lang.Exception
    */
   @Before
   public void setUp() throws Exception {
-
-    presenceLocationCache = new MapCacheImpl<Object>();
-    presenceStatusCache = new MapCacheImpl<Object>();
-
-    cacheManagerService = createMock(CacheManagerService.class);
-    expect(
-        cacheManagerService.getCache("presence.location",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
-        .anyTimes();
-    expect(
-        cacheManagerService.getCache("presence.status",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
-        .anyTimes();
-    replay(cacheManagerService);
-
     presenceService = new PresenceServiceImpl();
-    presenceService.bindCacheManagerService(cacheManagerService);
   }
 
   /**
-   * @throws java.lang.Exception
+   * Deliver the changes posted by one server to another, as the JMS bridge would.
+   *
+   * @param from
+   * @param to
    */
-  @After
-  public void tearDown() throws Exception {
-    presenceService.unbindCacheManagerService(cacheManagerService);
-    verify(cacheManagerService);
+  private void connect(PresenceServiceImpl from, final PresenceServiceImpl to) {
+    from.eventAdmin = new EventAdmin() {
+      public void postEvent(Event event) {
+        sendEvent(event);
+      }
+
+      public void sendEvent(Event event) {
+        Assert.assertEquals(PresenceServiceImpl.TOPIC, event.getTopic());
+        to.apply((String) event.getProperty(PresenceServiceImpl.UUID_PROPERTY),
+            (Long) event.getProperty(PresenceServiceImpl.TICK_PROPERTY),
+            (String) event.getProperty(PresenceServiceImpl.LOCATION_PROPERTY),
+            (String) event.getProperty(PresenceServiceImpl.STATUS_PROPERTY));
+      }
+    };
   }
 
   @Test
@@ -154,6 +141,43 @@ public class PresenceServiceImplTest {
     }
   }
 
+  @Test
+  public void testChangesOnOtherServerAreSeen() {
+    PresenceServiceImpl otherServer = new PresenceServiceImpl();
+    connect(presenceService, otherServer);
+    connect(otherServer, presenceService);
+    presenceService.ping("jack", "locationA");
+    otherServer.setStatus("jack", "busy");
+    assertEquals("busy", presenceService.getStatus("jack"));
+    otherServer.ping("jack", "locationB");
+    assertEquals("locationB", presenceService.getLocation("jack"));
+
+    otherServer.clear("jack");
+    assertEquals(PresenceStatus.offline.name(), presenceService.getStatus("jack"));
+    // a later ping starts again.
+    presenceService.ping("jack", "locationA");
+    assertEquals(PresenceStatus.online.name(), otherServer.getStatus("jack"));
+  }
+
+  @Test
+  public void testLocationSpansServers() {
+    PresenceServiceImpl otherServer = new PresenceServiceImpl();
+    connect(presenceService, otherServer);
+    connect(otherServer, presenceService);
+    presenceService.ping("jack", "locationA");
+    otherServer.ping("jill", "locationA");
+    assertEquals(2, presenceService.online("locationA").size());
+    assertEquals(2, otherServer.online("locationA").size());
+
+    otherServer.ping("jill", "locationB");
+    assertEquals(1, presenceService.online("locationA").size());
+    assertEquals(1, presenceService.online("locationB").size());
+
+    presenceService.clear("jack");
+    assertEquals(0, otherServer.online("locationA").size());
+    assertEquals(0, presenceService.online("locationA").size());
+  }
+
   /**
    * Test method for
    * {@link org.sakaiproject.nakamura.presence.PresenceServiceImpl#ping(java.lang.String, java.lang.String)}
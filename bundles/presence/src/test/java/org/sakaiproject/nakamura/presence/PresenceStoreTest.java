@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PresenceStoreTest {
+
+  @Test
+  public void testUpdate() {
+    PresenceStore store = new PresenceStore(15);
+    assertNotNull(store.update("jack", 100, "locationA", null));
+    assertNull(store.update("jack", 100, "locationA", null));
+    assertNotNull(store.update("jack", 100, null, "busy"));
+
+    PresenceStore.Record record = store.get("jack", 100);
+    assertEquals(100, record.getTick());
+    assertEquals("locationA", record.getLocation());
+    assertEquals("busy", record.getStatus());
+
+    store.update("jack", 101, "locationB", null);
+    assertEquals(0, store.getLocation("locationA", 101).size());
+    assertEquals("busy", store.getLocation("locationB", 101).get("jack").getStatus());
+
+    store.remove("jack");
+    assertNull(store.get("jack", 101));
+    assertEquals(0, store.getLocation("locationB", 101).size());
+  }
+
+  @Test
+  public void testApply() {
+    PresenceStore store = new PresenceStore(15);
+    store.update("jack", 100, "locationA", null);
+    assertFalse(store.apply(new PresenceStore.Record("jack", 99, "locationB", "busy"), 100));
+    assertTrue(store.apply(new PresenceStore.Record("jack", 100, "locationB", "busy"), 100));
+    PresenceStore.Record record = store.get("jack", 100);
+    assertEquals("locationB", record.getLocation());
+    assertEquals("busy", record.getStatus());
+    assertEquals(0, store.getLocation("locationA", 100).size());
+    assertEquals(1, store.getLocation("locationB", 100).size());
+
+    // a later local update carries on from the applied record
+    record = store.update("jack", 101, null, null);
+    assertEquals("locationB", record.getLocation());
+    assertEquals("busy", record.getStatus());
+
+    // too old to be present
+    assertFalse(store.apply(new PresenceStore.Record("jill", 80, "locationA", "busy"), 101));
+    assertNull(store.get("jill", 101));
+  }
+
+  @Test
+  public void testRemoveAtTick() {
+    PresenceStore store = new PresenceStore(15);
+    store.update("jack", 101, "locationA", null);
+    assertNull(store.remove("jack", 100));
+    assertNotNull(store.get("jack", 101));
+    assertNotNull(store.remove("jack", 101));
+    assertNull(store.get("jack", 101));
+    assertEquals(0, store.locationCount());
+  }
+
+  @Test
+  public void testEmptyLocationIsRemoved() {
+    PresenceStore store = new PresenceStore(15);
+    store.update("jack", 100, "locationA", null);
+    store.update("jill", 100, "locationA", null);
+    assertEquals(1, store.locationCount());
+    store.update("jack", 101, "locationB", null);
+    assertEquals(2, store.locationCount());
+    store.remove("jill");
+    assertEquals(1, store.locationCount());
+    assertEquals(0, store.getLocation("locationA", 101).size());
+    store.update("jill", 101, "locationA", null);
+    assertEquals(1, store.getLocation("locationA", 101).size());
+  }
+
+  @Test
+  public void testExpiry() {
+    PresenceStore store = new PresenceStore(15, 1);
+    for (int i = 0; i < 100; i++) {
+      store.update("user" + i, 100 + (i % 10), "location", null);
+    }
+    assertEquals(100, store.getLocation("location", 109).size());
+    // users last seen at 100 and 101 are no longer present, but are still held
+    assertEquals(80, store.getLocation("location", 116).size());
+    assertNull(store.get("user0", 115));
+    assertEquals(100, store.size());
+
+    // an update turns the wheel and evicts them
+    store.update("jack", 116, null, null);
+    assertEquals(81, store.size());
+    assertEquals(80, store.getLocation("location", 116).size());
+
+    // a long gap evicts everything
+    store.update("jack", 1000, null, null);
+    assertEquals(1, store.size());
+    assertEquals(0, store.getLocation("location", 1000).size());
+  }
+}
@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
+import org.sakaiproject.nakamura.presence.PresenceContactsCache;
 import org.sakaiproject.nakamura.presence.PresenceServiceImplTest;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
@@ -76,6 +77,7 @@ public class PresenceContactsServletTest extends AbstractEasyMockTest {
     servlet = new PresenceContactsServlet();
     servlet.presenceService = presenceService;
     servlet.profileService = profileService;
+    servlet.contactsCache = new PresenceContactsCache();
   }
 
   @Test
@@ -21,6 +21,7 @@ import org.apache.commons.httpclient.HttpConnectionManager;
 
 import java.io.InputStream;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.jcr.Node;
 
@@ -61,6 +62,12 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * Set to true to let GET responses of this proxy be cached and shared between users.
+   * Off by default, only set it where the response does not depend on who asks for it.
+   */
+  public static final String SAKAI_PROXY_CACHE = "sakai:proxy-cache";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
@@ -104,6 +111,44 @@ public interface ProxyClientService {
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException;
 
+  /**
+   * Executes a HTTP call in the same way as
+   * {@link #executeCall(Node, Map, Map, InputStream, long, String)}, but without waiting
+   * for the remote server. The node is read and the request built on the calling thread,
+   * the call itself is made on a pooled thread, so the node is not used once this
+   * returns. When too many calls are waiting for a pooled thread the call is made on the
+   * calling thread, and is complete when this returns.
+   *
+   * @param node
+   *          the node containing the proxy end point specification.
+   * @param headers
+   *          a map of headers to set int the request.
+   * @param input
+   *          a map of parameters for all templates (both url and body)
+   * @param requestInputStream
+   *          containing the request body, it must remain readable until the call is
+   *          complete (can be null if the call requires no body or the template will be
+   *          used to generate the body)
+   * @param requestContentLength
+   *          if the requestImputStream is specified, the length specifies the lenght of
+   *          the body.
+   * @param requestContentType
+   *          the content type of the request, if null the node property
+   *          sakai:proxy-request-content-type will be used.
+   * @param callback
+   *          run once the response, or the failure, can be got from the future. May be
+   *          null.
+   * @return the response, getting it throws an ExecutionException caused by a
+   *         ProxyClientException if the call failed, or a CancellationException if the
+   *         service was stopped before the call was made.
+   * @throws ProxyClientException
+   *           if the call could not be built.
+   */
+  public Future<ProxyResponse> executeCallAsync(Node node, Map<String, String> headers,
+      Map<String, Object> input, InputStream requestInputStream,
+      long requestContentLength, String requestContentType, Runnable callback)
+      throws ProxyClientException;
+
   /**
    * Exports the HTTP Connection Manager for use by bundles making HTTP requests
    */
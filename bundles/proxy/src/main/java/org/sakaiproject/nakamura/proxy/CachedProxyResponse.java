@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.proxy;
+
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A response served from the {@link ProxyResponseCache}, the body is either in memory or
+ * in a file.
+ */
+public class CachedProxyResponse implements ProxyResponse {
+
+  private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
+  private final Map<String, String[]> headers;
+  private final byte[] body;
+  private final File file;
+  private final boolean deleteOnClose;
+  private InputStream in;
+
+  /**
+   * @param headers
+   *          the response headers.
+   * @param body
+   *          the body, if held in memory.
+   * @param file
+   *          the file holding the body, if not in memory. It is opened straight away so
+   *          that the body can still be read if the file is removed from the cache.
+   * @param deleteOnClose
+   *          true if the file is only used by this response.
+   * @throws IOException
+   */
+  public CachedProxyResponse(Map<String, String[]> headers, byte[] body, File file,
+      boolean deleteOnClose) throws IOException {
+    this.headers = headers;
+    this.body = body;
+    this.file = file;
+    this.deleteOnClose = deleteOnClose;
+    if (file != null) {
+      in = new FileInputStream(file);
+    } else {
+      in = new ByteArrayInputStream(body);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
+   */
+  public int getResultCode() {
+    return 200;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseHeaders()
+   */
+  public Map<String, String[]> getResponseHeaders() {
+    // the caller may change the headers, the cached ones are shared.
+    return new HashMap<String, String[]>(headers);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
+   */
+  public byte[] getResponseBody() throws IOException {
+    if (body != null) {
+      return body;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+    byte[] buffer = new byte[8192];
+    InputStream stream = getResponseBodyAsInputStream();
+    int n;
+    while ((n = stream.read(buffer)) >= 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
+   */
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    return in;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
+   */
+  public String getResponseBodyAsString() throws IOException {
+    return new String(getResponseBody(), getCharset());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#close()
+   */
+  public void close() {
+    try {
+      in.close();
+    } catch (IOException e) {
+      // nothing to do, the stream is finished with
+    }
+    if (deleteOnClose && file != null && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private String getCharset() {
+    String contentType = ProxyResponseCache.getHeader(headers, "Content-Type");
+    if (contentType != null) {
+      for (String param : contentType.split(";")) {
+        param = param.trim();
+        if (param.toLowerCase().startsWith("charset=")) {
+          return param.substring(8).replace("\"", "").trim();
+        }
+      }
+    }
+    return DEFAULT_CHARSET;
+  }
+}
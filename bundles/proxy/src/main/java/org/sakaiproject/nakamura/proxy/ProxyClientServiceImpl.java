@@ -20,9 +20,11 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
@@ -39,33 +41,43 @@ import org.apache.commons.httpclient.methods.multipart.Part;
 import org.apache.commons.httpclient.methods.multipart.StringPart;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.velocity.Template;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.velocity.CompiledTemplate;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
+import org.sakaiproject.nakamura.proxy.velocity.ProxyTemplateCache;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Reader;
-import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -76,10 +88,22 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -87,7 +111,11 @@ import javax.servlet.http.HttpServletResponse;
  */
 @Service
 @Component(immediate = true)
-public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
+public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource,
+    EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProxyClientServiceImpl.class);
 
   /**
    *
@@ -109,14 +137,72 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private static final String JCR_RESOURCE_LOADER = "jcr";
 
+  /**
+   * Changes to proxy nodes drop their compiled templates.
+   */
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
+  static final String EVENT_TOPICS = "event.topics";
+
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  @Property(intValue = 20, label = "Max Connections Per Host", description = "The maximum number of connections open to any one remote host.")
+  static final String MAX_CONNECTIONS_PER_HOST = "proxy.connections.maxperhost";
+
+  @Property(intValue = 100, label = "Max Connections", description = "The maximum number of connections open to all remote hosts.")
+  static final String MAX_TOTAL_CONNECTIONS = "proxy.connections.maxtotal";
+
+  @Property(intValue = 10000, label = "Connect Timeout", description = "The time in ms to wait for a connection to a remote host to be made.")
+  static final String CONNECT_TIMEOUT = "proxy.connections.connecttimeout";
+
+  @Property(intValue = 30000, label = "Read Timeout", description = "The time in ms to wait for data from a remote host.")
+  static final String READ_TIMEOUT = "proxy.connections.readtimeout";
+
+  @Property(longValue = 10000L, label = "Pool Timeout", description = "The time in ms to wait for a free connection when the limits are reached.")
+  static final String POOL_TIMEOUT = "proxy.connections.pooltimeout";
+
+  @Property(longValue = 60000L, label = "Idle Timeout", description = "The time in ms after which an unused connection is closed.")
+  static final String IDLE_TIMEOUT = "proxy.connections.idletimeout";
+
+  @Property(intValue = 20, label = "Async Threads", description = "The number of threads making calls for requests that do not wait for them.")
+  static final String ASYNC_THREADS = "proxy.async.threads";
+
+  @Property(intValue = 200, label = "Async Queue", description = "The number of calls that may wait for an async thread, further calls are made on the requesting thread.")
+  static final String ASYNC_QUEUE = "proxy.async.queue";
+
+  @Property(longValue = 30000L, label = "Async Shutdown Timeout", description = "The time in ms to wait for calls that have been started or queued to complete when stopping, after which those that have not started are cancelled.")
+  static final String ASYNC_SHUTDOWN_TIMEOUT = "proxy.async.shutdowntimeout";
+
   /**
-   * The shared velocity engine, which should cache all the templates. (need to sort out
-   * how to invalidate).
+   * The name the connection statistics are registered with JMX under.
    */
-  private VelocityEngine velocityEngine;
+  static final String JMX_NAME = "org.sakaiproject.nakamura.proxy:type=ProxyConnectionStatistics";
+
+  @Property(boolValue = true, label = "Response Cache", description = "Cache GET responses that the remote server allows to be cached, for proxies with sakai:proxy-cache set.")
+  static final String CACHE_ENABLED = "proxy.cache.enabled";
+
+  @Property(intValue = 500, label = "Cache Entries", description = "The maximum number of responses held in the cache.")
+  static final String CACHE_MAX_ENTRIES = "proxy.cache.maxentries";
+
+  @Property(intValue = 32768, label = "Cache Memory Threshold", description = "The size in bytes above which a cached body is held in a file rather than in memory.")
+  static final String CACHE_MEMORY_THRESHOLD = "proxy.cache.memorythreshold";
+
+  @Property(longValue = 2097152L, label = "Cache Max Body Size", description = "The size in bytes above which a body is not cached.")
+  static final String CACHE_MAX_BODY_SIZE = "proxy.cache.maxbodysize";
+
+  @Property(longValue = 3600000L, label = "Cache Max TTL", description = "The longest time in ms a response is used without asking the remote server again.")
+  static final String CACHE_MAX_TTL = "proxy.cache.maxttl";
+
+  /**
+   * The shared velocity runtime, the templates it parses are held in the template cache.
+   */
+  private RuntimeInstance velocityRuntime;
+
+  /**
+   * The compiled endpoint and body templates by node path.
+   */
+  private ProxyTemplateCache templateCache;
 
   /**
    * A multi threaded connection manager to provide http connections with pooling.
@@ -128,6 +214,20 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private HttpClient httpClient;
 
+  /**
+   * Closes connections that have not been used for a while.
+   */
+  private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+  /**
+   * Makes the calls that are not waited for.
+   */
+  private ThreadPoolExecutor asyncExecutor;
+
+  private long asyncShutdownTimeout = 30000L;
+
+  private ProxyConnectionStatistics statistics;
+
   /**
    * A Thread local holder to bind the resource being processed to this thread.
    */
@@ -137,6 +237,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
   private Set<String> safeOpenProcessors = new HashSet<String>();
 
+  /**
+   * Cached GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
   /**
    * Create resources used by this component.
    *
@@ -164,25 +269,104 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     } else {
       configProperties = new HashMap<String, Object>();
     }
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
-        this.getClass()));
+    velocityRuntime = new RuntimeInstance();
+    velocityRuntime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM,
+        new VelocityLogger(this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, JCR_RESOURCE_LOADER);
-    velocityEngine.setProperty(JCR_RESOURCE_LOADER_CLASS, JcrResourceLoader.class
+    velocityRuntime.setProperty(RuntimeConstants.RESOURCE_LOADER, JCR_RESOURCE_LOADER);
+    velocityRuntime.setProperty(JCR_RESOURCE_LOADER_CLASS, JcrResourceLoader.class
         .getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty(JCR_RESOURCE_LOADER_PATH
         + ProxyNodeSource.JCR_RESOURCE_LOADER_RESOURCE_SOURCE, this);
-    velocityEngine.setExtendedProperties(configuration);
-    velocityEngine.init();
+    velocityRuntime.setConfiguration(configuration);
+    velocityRuntime.init();
+    templateCache = new ProxyTemplateCache(velocityRuntime);
 
     httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(configProperties
+        .get(MAX_CONNECTIONS_PER_HOST), 20));
+    params.setMaxTotalConnections(OsgiUtil.toInteger(configProperties
+        .get(MAX_TOTAL_CONNECTIONS), 100));
+    params.setConnectionTimeout(OsgiUtil.toInteger(configProperties.get(CONNECT_TIMEOUT),
+        10000));
+    params.setSoTimeout(OsgiUtil.toInteger(configProperties.get(READ_TIMEOUT), 30000));
     httpClientConnectionManager.setParams(params);
 
-    httpClient = new HttpClient(httpClientConnectionManager);
+    long idleTimeout = OsgiUtil.toLong(configProperties.get(IDLE_TIMEOUT), 60000L);
+    idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+    idleConnectionTimeoutThread.setName("Proxy idle connection eviction");
+    idleConnectionTimeoutThread.setConnectionTimeout(idleTimeout);
+    idleConnectionTimeoutThread.setTimeoutInterval(Math.max(1000L, idleTimeout / 2));
+    idleConnectionTimeoutThread.addConnectionManager(httpClientConnectionManager);
+    idleConnectionTimeoutThread.start();
+
+    int asyncThreads = OsgiUtil.toInteger(configProperties.get(ASYNC_THREADS), 20);
+    int asyncQueue = OsgiUtil.toInteger(configProperties.get(ASYNC_QUEUE), 200);
+    asyncShutdownTimeout = OsgiUtil.toLong(configProperties.get(ASYNC_SHUTDOWN_TIMEOUT),
+        30000L);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    // once the queue is full calls are made by the caller, which holds back new requests
+    // in the same way as the connection pool limits do. Calls made once stopping are
+    // cancelled, so that whoever waits for them is not left waiting.
+    asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(asyncQueue),
+        new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Proxy call " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+              ((Future<?>) r).cancel(false);
+            } else {
+              r.run();
+            }
+          }
+        });
+
+    statistics = new ProxyConnectionStatistics(httpClientConnectionManager, asyncExecutor);
+    httpClient = new HttpClient(httpClientConnectionManager) {
+      @Override
+      public int executeMethod(HostConfiguration hostconfig, HttpMethod method,
+          HttpState state) throws IOException {
+        long start = System.nanoTime();
+        statistics.started();
+        try {
+          int result = super.executeMethod(hostconfig, method, state);
+          statistics.completed(System.nanoTime() - start);
+          return result;
+        } catch (IOException e) {
+          statistics.failed(e);
+          throw e;
+        } catch (RuntimeException e) {
+          statistics.failed(e);
+          throw e;
+        }
+      }
+    };
+    httpClient.getParams().setConnectionManagerTimeout(
+        OsgiUtil.toLong(configProperties.get(POOL_TIMEOUT), 10000L));
+    registerStatistics();
+
+    if (OsgiUtil.toBoolean(configProperties.get(CACHE_ENABLED), true)) {
+      File cacheDirectory = null;
+      if (ctx != null) {
+        cacheDirectory = ctx.getBundleContext().getDataFile("proxycache");
+      }
+      if (cacheDirectory == null) {
+        cacheDirectory = new File(System.getProperty("java.io.tmpdir"));
+      }
+      cacheDirectory.mkdirs();
+      responseCache = new ProxyResponseCache(OsgiUtil.toInteger(
+          configProperties.get(CACHE_MAX_ENTRIES), 500), OsgiUtil.toInteger(
+          configProperties.get(CACHE_MEMORY_THRESHOLD), 32768), OsgiUtil.toLong(
+          configProperties.get(CACHE_MAX_BODY_SIZE), 2097152L), OsgiUtil.toLong(
+          configProperties.get(CACHE_MAX_TTL), 3600000L), cacheDirectory);
+    }
   }
 
   /**
@@ -192,9 +376,49 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (responseCache != null) {
+      responseCache.clear();
+      responseCache = null;
+    }
+    unregisterStatistics();
+    templateCache.clear();
+    idleConnectionTimeoutThread.shutdown();
+    // let the calls that have started or are queued complete, then cancel any that are
+    // still queued so their callbacks run, before the connections are closed.
+    asyncExecutor.shutdown();
+    if (!asyncExecutor.awaitTermination(asyncShutdownTimeout, TimeUnit.MILLISECONDS)) {
+      for (Runnable task : asyncExecutor.shutdownNow()) {
+        ((Future<?>) task).cancel(false);
+      }
+    }
     httpClientConnectionManager.shutdown();
   }
 
+  private void registerStatistics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+      mBeanServer.registerMBean(statistics, name);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register proxy connection statistics {} ", e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_NAME);
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister proxy connection statistics {} ", e.getMessage());
+    }
+  }
+
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
    * properties to populate that template with. An example might be a SOAP call.
@@ -236,6 +460,50 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   public ProxyResponse executeCall(Node node, Map<String, String> headers,
       Map<String, Object> input, InputStream requestInputStream,
       long requestContentLength, String requestContentType) throws ProxyClientException {
+    return prepareCall(node, headers, input, requestInputStream, requestContentLength,
+        requestContentType).call();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.proxy.ProxyClientService#executeCallAsync(javax.jcr.Node,
+   *      java.util.Map, java.util.Map, java.io.InputStream, long, java.lang.String,
+   *      java.lang.Runnable)
+   */
+  public Future<ProxyResponse> executeCallAsync(Node node, Map<String, String> headers,
+      Map<String, Object> input, InputStream requestInputStream,
+      long requestContentLength, String requestContentType, final Runnable callback)
+      throws ProxyClientException {
+    ProxyCall call = prepareCall(node, headers, input, requestInputStream,
+        requestContentLength, requestContentType);
+    FutureTask<ProxyResponse> task = new FutureTask<ProxyResponse>(call) {
+      @Override
+      protected void set(ProxyResponse response) {
+        super.set(response);
+        if (isCancelled()) {
+          // nobody will read the response, give the connection back.
+          response.close();
+        }
+      }
+
+      @Override
+      protected void done() {
+        if (callback != null) {
+          callback.run();
+        }
+      }
+    };
+    asyncExecutor.execute(task);
+    return task;
+  }
+
+  /**
+   * Build the call specified by the node, everything that needs the node is done here.
+   */
+  private ProxyCall prepareCall(Node node, Map<String, String> headers,
+      Map<String, Object> input, InputStream requestInputStream,
+      long requestContentLength, String requestContentType) throws ProxyClientException {
     try {
       bindNode(node);
 
@@ -289,7 +557,7 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         // add in the config properties from the bundle overwriting everythign else.
         context.put("config", configProperties);
 
-        endpointURL = processUrlTemplate(endpointURL, context);
+        endpointURL = processUrlTemplate(node.getPath(), endpointURL, context);
 
         ProxyMethod proxyMethod = ProxyMethod.GET;
         if (node.hasProperty(SAKAI_REQUEST_PROXY_METHOD)) {
@@ -301,33 +569,23 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
         HttpMethod method = null;
+        HttpMethod limitMethod = null;
+        long maxSize = -1;
+        boolean cacheable = false;
         switch (proxyMethod) {
         case GET:
           if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
+            maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+            limitMethod = new HeadMethod(endpointURL);
+            HttpMethodParams params = new HttpMethodParams(limitMethod.getParams());
             // make certain we reject the body of a head
             params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
-                }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
-            }
+            limitMethod.setParams(params);
+            limitMethod.setFollowRedirects(true);
+            populateMethod(limitMethod, node, headers);
           }
+          cacheable = node.hasProperty(SAKAI_PROXY_CACHE)
+              && node.getProperty(SAKAI_PROXY_CACHE).getBoolean();
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
           // post
@@ -408,7 +666,7 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
                   requestContentLength, contentType));
             } else {
               // build the request
-              Template template = velocityEngine.getTemplate(node.getPath());
+              CompiledTemplate template = templateCache.getBodyTemplate(node);
               StringWriter body = new StringWriter();
               template.merge(context, body);
               byte[] soapBodyContent = body.toString().getBytes("UTF-8");
@@ -419,10 +677,98 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
+        return new ProxyCall(String.valueOf(node), method, limitMethod, maxSize,
+            cacheable);
+      }
+
+    } catch ( ProxyClientException e ) {
+      throw e;
+    } catch (Exception e) {
+      throw new ProxyClientException("The Proxy request specified by  " + node
+          + " failed, cause follows:", e);
+    } finally {
+      unbindNode();
+    }
+    throw new ProxyClientException("The Proxy request specified by " + node
+        + " does not contain a valid endpoint specification ");
+  }
+
+  /**
+   * A call that has been built from its node, and can be made on any thread.
+   */
+  private final class ProxyCall implements Callable<ProxyResponse> {
+    private final String source;
+    private HttpMethod method;
+    private final HttpMethod limitMethod;
+    private final long maxSize;
+    private final boolean cacheable;
+
+    /**
+     * @param source
+     *          what the call was built from, for messages.
+     * @param method
+     *          the request.
+     * @param limitMethod
+     *          a HEAD request to check the size of the response before making the request,
+     *          or null.
+     * @param maxSize
+     *          the largest response accepted if there is a limitMethod.
+     * @param cacheable
+     *          true if the proxy allows its response to be shared through the cache.
+     */
+    ProxyCall(String source, HttpMethod method, HttpMethod limitMethod, long maxSize,
+        boolean cacheable) {
+      this.source = source;
+      this.method = method;
+      this.limitMethod = limitMethod;
+      this.maxSize = maxSize;
+      this.cacheable = cacheable;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.util.concurrent.Callable#call()
+     */
+    public ProxyResponse call() throws ProxyClientException {
+      try {
+        boolean useCache = cacheable && responseCache != null
+            && method instanceof GetMethod;
+        if (useCache && limitMethod != null) {
+          // a fresh response no larger than the limit needs no check of its size.
+          ProxyResponse cached = responseCache.getFresh(method, maxSize);
+          if (cached != null) {
+            return cached;
+          }
+        }
+        if (limitMethod != null) {
+          int result = httpClient.executeMethod(limitMethod);
+          if (result == 200) {
+            // Check if the content-length is smaller than the maximum (if any).
+            Header contentLengthHeader = limitMethod.getResponseHeader("Content-Length");
+            if (contentLengthHeader != null) {
+              long length = Long.parseLong(contentLengthHeader.getValue());
+              if (length > maxSize) {
+                return new ProxyResponseImpl(HttpServletResponse.SC_PRECONDITION_FAILED,
+                    "Response too large", limitMethod);
+              }
+            }
+          } else {
+            return new ProxyResponseImpl(result, limitMethod);
+          }
+          // hand the connection back before taking another one for the request.
+          limitMethod.releaseConnection();
+        }
+
+        if (useCache) {
+          return responseCache.execute(httpClient, method);
+        }
+
         int result = httpClient.executeMethod(method);
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
+          method.releaseConnection();
           method = new GetMethod(url);
           method.setFollowRedirects(true);
           method.setDoAuthentication(false);
@@ -430,18 +776,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         }
 
         return new ProxyResponseImpl(result, method);
+      } catch (Exception e) {
+        throw new ProxyClientException("The Proxy request specified by  " + source
+            + " failed, cause follows:", e);
       }
-
-    } catch ( ProxyClientException e ) {
-      throw e;
-    } catch (Exception e) {
-      throw new ProxyClientException("The Proxy request specified by  " + node
-          + " failed, cause follows:", e);
-    } finally {
-      unbindNode();
     }
-    throw new ProxyClientException("The Proxy request specified by " + node
-        + " does not contain a valid endpoint specification ");
   }
 
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
@@ -453,13 +792,27 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
     return true;
   }
 
-  private String processUrlTemplate(String endpointURL, VelocityContext context) throws ParseErrorException, MethodInvocationException, ResourceNotFoundException, IOException {
-    Reader urlTemplateReader = new StringReader(endpointURL);
+  private String processUrlTemplate(String path, String endpointURL,
+      VelocityContext context) throws ParseException, ParseErrorException,
+      MethodInvocationException, ResourceNotFoundException, IOException {
+    if (endpointURL.indexOf('$') < 0 && endpointURL.indexOf('#') < 0) {
+      // nothing to replace
+      return endpointURL;
+    }
     StringWriter urlWriter = new StringWriter();
-    velocityEngine.evaluate(context, urlWriter, "urlprocessing", urlTemplateReader);
+    templateCache.getUrlTemplate(path, endpointURL).merge(context, urlWriter);
     return urlWriter.toString();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    templateCache.invalidate((String) event.getProperty(SlingConstants.PROPERTY_PATH));
+  }
+
   /**
    * @param method
    * @throws RepositoryException
@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the requests made by the proxy http client, and reports on its connection pool.
+ */
+public class ProxyConnectionStatistics implements ProxyConnectionStatisticsMBean {
+
+  private static final double NANOS_PER_MS = 1000000.0;
+
+  private final MultiThreadedHttpConnectionManager connectionManager;
+  private final ThreadPoolExecutor executor;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+
+  public ProxyConnectionStatistics(MultiThreadedHttpConnectionManager connectionManager,
+      ThreadPoolExecutor executor) {
+    this.connectionManager = connectionManager;
+    this.executor = executor;
+  }
+
+  /**
+   * A request is about to be sent.
+   */
+  void started() {
+    inFlight.incrementAndGet();
+  }
+
+  /**
+   * A request got a response.
+   *
+   * @param time
+   *          the time in ns it took to get the response headers.
+   */
+  void completed(long time) {
+    inFlight.decrementAndGet();
+    completed.incrementAndGet();
+    latency.addAndGet(time);
+    long max = maxLatency.get();
+    while (time > max && !maxLatency.compareAndSet(max, time)) {
+      max = maxLatency.get();
+    }
+  }
+
+  /**
+   * A request failed.
+   *
+   * @param e
+   *          the cause.
+   */
+  void failed(Exception e) {
+    inFlight.decrementAndGet();
+    failed.incrementAndGet();
+    // connect, read and pool timeouts are all interrupted IO.
+    if (e instanceof InterruptedIOException) {
+      timedOut.incrementAndGet();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getMaxConnectionsPerHost()
+   */
+  public int getMaxConnectionsPerHost() {
+    return connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getMaxTotalConnections()
+   */
+  public int getMaxTotalConnections() {
+    return connectionManager.getParams().getMaxTotalConnections();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getConnectionsInPool()
+   */
+  public int getConnectionsInPool() {
+    return connectionManager.getConnectionsInPool();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getInFlight()
+   */
+  public int getInFlight() {
+    return Math.max(0, inFlight.get());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getCompleted()
+   */
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getFailed()
+   */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getTimedOut()
+   */
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getAverageLatency()
+   */
+  public double getAverageLatency() {
+    long n = completed.get();
+    return n == 0 ? 0 : latency.get() / NANOS_PER_MS / n;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#getMaxLatency()
+   */
+  public long getMaxLatency() {
+    return (long) (maxLatency.get() / NANOS_PER_MS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.proxy.ProxyConnectionStatisticsMBean#reset()
+   */
+  public void reset() {
+    completed.set(0);
+    failed.set(0);
+    timedOut.set(0);
+    latency.set(0);
+    maxLatency.set(0);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+/**
+ * The use of the outbound connections made by the proxy, as seen through JMX.
+ */
+public interface ProxyConnectionStatisticsMBean {
+
+  /**
+   * @return the maximum number of connections open to any one host.
+   */
+  int getMaxConnectionsPerHost();
+
+  /**
+   * @return the maximum number of connections open in all.
+   */
+  int getMaxTotalConnections();
+
+  /**
+   * @return the number of connections open now, in use or idle.
+   */
+  int getConnectionsInPool();
+
+  /**
+   * @return the number of requests waiting for a response from a remote server now.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of calls waiting for a thread to make them in the non blocking
+   *         mode.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of requests that got a response.
+   */
+  long getCompleted();
+
+  /**
+   * @return the number of requests that failed, including those that timed out.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of requests that timed out waiting for a connection from the pool,
+   *         to connect or to read.
+   */
+  long getTimedOut();
+
+  /**
+   * @return the average time in ms requests took to get the response headers.
+   */
+  double getAverageLatency();
+
+  /**
+   * @return the longest time in ms a request took to get the response headers.
+   */
+  long getMaxLatency();
+
+  /**
+   * Reset all the counters.
+   */
+  void reset();
+}
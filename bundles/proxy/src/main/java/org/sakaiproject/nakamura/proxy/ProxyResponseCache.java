@@ -0,0 +1,485 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A cache of proxied GET responses, shared between users and keyed on the endpoint URL.
+ * A response is held for as long as its Cache-Control or Expires headers allow, and only
+ * used for requests that have the same values for the headers it varies on. Once stale,
+ * a response with an ETag or Last-Modified header is revalidated with a conditional
+ * request, so that an unchanged body is not fetched again. Requests that carry credentials
+ * or the identity of the user (Authorization, Cookie or a trusted token) go to the remote
+ * server, and responses that set cookies or are marked private or no-store are not held. Bodies larger than the memory threshold are held in files.
+ */
+public class ProxyResponseCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  /**
+   * Request headers that make the response specific to a user.
+   */
+  private static final String[] IDENTITY_HEADERS = { "Authorization", "Cookie",
+      TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME };
+
+  private final int maxEntries;
+  private final int memoryThreshold;
+  private final long maxBodySize;
+  private final long maxTtl;
+  private final File directory;
+  private final Map<String, CacheEntry> entries;
+
+  /**
+   * @param maxEntries
+   *          the maximum number of responses held.
+   * @param memoryThreshold
+   *          the size in bytes above which a body is held in a file.
+   * @param maxBodySize
+   *          the size in bytes above which a body is not held.
+   * @param maxTtl
+   *          the longest time in ms a response is held without revalidation.
+   * @param directory
+   *          where bodies are held in files.
+   */
+  public ProxyResponseCache(int maxEntries, int memoryThreshold, long maxBodySize,
+      long maxTtl, File directory) {
+    this.maxEntries = maxEntries;
+    this.memoryThreshold = memoryThreshold;
+    this.maxBodySize = maxBodySize;
+    this.maxTtl = maxTtl;
+    this.directory = directory;
+    this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      private static final long serialVersionUID = -2853452207432931856L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        if (size() > ProxyResponseCache.this.maxEntries) {
+          eldest.getValue().discard();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get the response to a GET, from the cache if it holds a fresh one.
+   *
+   * @param httpClient
+   * @param method
+   *          the GET, with all the request headers set.
+   * @return the response.
+   * @throws IOException
+   */
+  public ProxyResponse execute(HttpClient httpClient, HttpMethod method)
+      throws IOException {
+    if (hasIdentity(method)) {
+      return new ProxyResponseImpl(httpClient.executeMethod(method), method);
+    }
+    String key = method.getURI().toString();
+    CacheEntry entry = lookup(key, method);
+    if (entry == null) {
+      return store(key, httpClient.executeMethod(method), method);
+    }
+    // only one request revalidates an entry, the others wait for it
+    synchronized (entry) {
+      long now = System.currentTimeMillis();
+      if (entry.isFresh(now)) {
+        return entry.open();
+      }
+      if (entry.etag != null) {
+        method.setRequestHeader("If-None-Match", entry.etag);
+      }
+      if (entry.lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", entry.lastModified);
+      }
+      int result = httpClient.executeMethod(method);
+      if (result == 304) {
+        Map<String, String[]> headers = new ProxyResponseImpl(result, method)
+            .getResponseHeaders();
+        method.releaseConnection();
+        entry.revalidated(headers, now);
+        LOGGER.debug("Revalidated {} ", key);
+        return entry.open();
+      }
+      return store(key, result, method);
+    }
+  }
+
+  /**
+   * Get the response to a GET from the cache, without calling the remote server.
+   *
+   * @param method
+   *          the GET, with all the request headers set.
+   * @param maxLength
+   *          the largest body that may be returned, -1 for no limit.
+   * @return the response held, or null if there is none that is fresh and no larger than
+   *         maxLength.
+   * @throws IOException
+   */
+  public ProxyResponse getFresh(HttpMethod method, long maxLength) throws IOException {
+    if (hasIdentity(method)) {
+      return null;
+    }
+    CacheEntry entry = lookup(method.getURI().toString(), method);
+    if (entry == null) {
+      return null;
+    }
+    synchronized (entry) {
+      if (entry.isFresh(System.currentTimeMillis())
+          && (maxLength < 0 || entry.length <= maxLength)) {
+        return entry.open();
+      }
+    }
+    return null;
+  }
+
+  private boolean hasIdentity(HttpMethod method) {
+    for (String header : IDENTITY_HEADERS) {
+      if (method.getRequestHeader(header) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the entry held for the key, if it varies in the same way as the request.
+   */
+  private CacheEntry lookup(String key, HttpMethod method) {
+    CacheEntry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry == null || !entry.matches(method)) {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Hold the response if it may be, otherwise pass it through.
+   */
+  private ProxyResponse store(String key, int result, HttpMethod method)
+      throws IOException {
+    ProxyResponseImpl response = new ProxyResponseImpl(result, method);
+    Map<String, String[]> headers = response.getResponseHeaders();
+    long now = System.currentTimeMillis();
+    long ttl = result == 200 ? freshness(headers, now) : -1;
+    Map<String, String> varies = ttl < 0 ? null : varies(headers, method);
+    String contentLength = getHeader(headers, "Content-Length");
+    if (varies == null
+        || (contentLength != null && parseLong(contentLength) > maxBodySize)) {
+      remove(key);
+      return response;
+    }
+
+    CacheEntry entry = new CacheEntry(headers, varies);
+    try {
+      InputStream in = method.getResponseBodyAsStream();
+      if (in != null) {
+        entry.read(in);
+      } else {
+        entry.body = new byte[0];
+      }
+    } catch (IOException e) {
+      entry.discard();
+      throw e;
+    } finally {
+      method.releaseConnection();
+    }
+    entry.expires = now + Math.min(ttl, maxTtl);
+    if (entry.length > maxBodySize) {
+      // too large to hold, the file goes when the response is closed.
+      remove(key);
+      return new CachedProxyResponse(entry.headers, entry.body, entry.file, true);
+    }
+    synchronized (entries) {
+      CacheEntry old = entries.put(key, entry);
+      if (old != null && old != entry) {
+        old.discard();
+      }
+    }
+    LOGGER.debug("Cached {} for {} ms ", key, ttl);
+    return entry.open();
+  }
+
+  private void remove(String key) {
+    synchronized (entries) {
+      CacheEntry old = entries.remove(key);
+      if (old != null) {
+        old.discard();
+      }
+    }
+  }
+
+  /**
+   * Drop all the responses held.
+   */
+  public void clear() {
+    synchronized (entries) {
+      for (CacheEntry entry : entries.values()) {
+        entry.discard();
+      }
+      entries.clear();
+    }
+  }
+
+  int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @param headers
+   *          the response headers.
+   * @param now
+   * @return the time in ms the response is fresh for, 0 if it can be held but has to be
+   *         revalidated before each use, -1 if it can not be held.
+   */
+  static long freshness(Map<String, String[]> headers, long now) {
+    if (getHeader(headers, "Set-Cookie") != null) {
+      return -1;
+    }
+    long maxAge = -1;
+    long sharedMaxAge = -1;
+    boolean noCache = false;
+    for (String directive : getDirectives(headers, "Cache-Control")) {
+      String d = directive.toLowerCase();
+      if (d.equals("no-store") || d.startsWith("private")) {
+        return -1;
+      } else if (d.startsWith("no-cache")) {
+        noCache = true;
+      } else if (d.startsWith("max-age=")) {
+        maxAge = parseLong(d.substring(8)) * 1000L;
+      } else if (d.startsWith("s-maxage=")) {
+        sharedMaxAge = parseLong(d.substring(9)) * 1000L;
+      }
+    }
+    boolean validators = getHeader(headers, "ETag") != null
+        || getHeader(headers, "Last-Modified") != null;
+    long ttl = -1;
+    if (noCache) {
+      ttl = 0;
+    } else if (sharedMaxAge >= 0) {
+      ttl = sharedMaxAge;
+    } else if (maxAge >= 0) {
+      ttl = maxAge;
+    } else if (getHeader(headers, "Expires") != null) {
+      long expires = parseDate(getHeader(headers, "Expires"), 0);
+      long date = parseDate(getHeader(headers, "Date"), now);
+      ttl = Math.max(0, expires - date);
+    } else if (validators) {
+      ttl = 0;
+    }
+    if (ttl == 0 && !validators) {
+      // it would never be used
+      return -1;
+    }
+    return ttl;
+  }
+
+  /**
+   * @return the values of the request headers the response varies on, or null if it
+   *         varies on everything.
+   */
+  private static Map<String, String> varies(Map<String, String[]> headers,
+      HttpMethod method) {
+    Map<String, String> varies = new HashMap<String, String>();
+    for (String name : getDirectives(headers, "Vary")) {
+      if ("*".equals(name)) {
+        return null;
+      }
+      Header header = method.getRequestHeader(name);
+      varies.put(name, header == null ? null : header.getValue());
+    }
+    return varies;
+  }
+
+  private static Iterable<String> getDirectives(Map<String, String[]> headers, String name) {
+    LinkedHashMap<String, Boolean> directives = new LinkedHashMap<String, Boolean>();
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey())) {
+        for (String value : e.getValue()) {
+          for (String directive : value.split(",")) {
+            if (directive.trim().length() > 0) {
+              directives.put(directive.trim(), Boolean.TRUE);
+            }
+          }
+        }
+      }
+    }
+    return directives.keySet();
+  }
+
+  static String getHeader(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> e : headers.entrySet()) {
+      if (name.equalsIgnoreCase(e.getKey()) && e.getValue().length > 0) {
+        return e.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value.trim().replace("\"", ""));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static long parseDate(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return DateUtil.parseDate(value).getTime();
+    } catch (DateParseException e) {
+      // an invalid date is in the past
+      return 0;
+    }
+  }
+
+  /**
+   * A response held in the cache.
+   */
+  final class CacheEntry {
+    private Map<String, String[]> headers;
+    private final Map<String, String> varies;
+    private String etag;
+    private String lastModified;
+    private byte[] body;
+    private File file;
+    private long length;
+    private volatile long expires;
+
+    CacheEntry(Map<String, String[]> headers, Map<String, String> varies) {
+      this.varies = varies;
+      setHeaders(headers);
+    }
+
+    private void setHeaders(Map<String, String[]> headers) {
+      this.headers = Collections.unmodifiableMap(new HashMap<String, String[]>(headers));
+      etag = getHeader(headers, "ETag");
+      lastModified = getHeader(headers, "Last-Modified");
+    }
+
+    /**
+     * Read the body, into memory up to the threshold and into a file after that.
+     */
+    void read(InputStream in) throws IOException {
+      ByteArrayOutputStream memory = new ByteArrayOutputStream();
+      OutputStream out = memory;
+      byte[] buffer = new byte[8192];
+      try {
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+          length += n;
+          if (file == null && length > memoryThreshold) {
+            file = File.createTempFile("proxy", ".body", directory);
+            out = new FileOutputStream(file);
+            memory.writeTo(out);
+          } else if (file == null) {
+            memory.write(buffer, 0, n);
+            continue;
+          }
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        if (out != memory) {
+          out.close();
+        }
+        in.close();
+      }
+      if (file == null) {
+        body = memory.toByteArray();
+      }
+    }
+
+    boolean matches(HttpMethod method) {
+      for (Entry<String, String> e : varies.entrySet()) {
+        Header header = method.getRequestHeader(e.getKey());
+        String value = header == null ? null : header.getValue();
+        if (value == null ? e.getValue() != null : !value.equals(e.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    /**
+     * The remote server said the body has not changed, take the new headers and
+     * freshness.
+     */
+    void revalidated(Map<String, String[]> notModified, long now) {
+      Map<String, String[]> merged = new HashMap<String, String[]>(headers);
+      for (Entry<String, String[]> e : notModified.entrySet()) {
+        for (Iterator<String> i = merged.keySet().iterator(); i.hasNext();) {
+          if (i.next().equalsIgnoreCase(e.getKey())) {
+            i.remove();
+          }
+        }
+        merged.put(e.getKey(), e.getValue());
+      }
+      setHeaders(merged);
+      long ttl = freshness(merged, now);
+      expires = now + Math.min(Math.max(0, ttl), maxTtl);
+    }
+
+    ProxyResponse open() throws IOException {
+      return new CachedProxyResponse(headers, body, file, false);
+    }
+
+    /**
+     * No longer held, the file is removed. Responses already reading from it carry on.
+     */
+    void discard() {
+      if (file != null && !file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+}
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -59,7 +60,9 @@ import javax.xml.stream.events.XMLEvent;
 
 /**
  * Will check if the response we get from an RSS file is valid. It will do basic checks
- * such as checking if the Content-Length is < 10K and Content-Type is a valid type.
+ * such as checking if the Content-Length is < 10K and Content-Type is a valid type. The
+ * feed is validated against its format from the first elements, once it is valid it is
+ * streamed to the client after a bounded look-ahead rather than held in memory whole.
  */
 @Service(value = ProxyPostProcessor.class)
 @Component(label = "ProxyPostProcessor for RSS", description = "Post processor who checks if requests are valid RSS requests.", immediate = true)
@@ -67,19 +70,33 @@ import javax.xml.stream.events.XMLEvent;
     @Property(name = "service.vendor", value = "The Sakai foundation"),
     @Property(name = "service.description", value = "Post processor who checks if requests are valid RSS requests."),
     @Property(name = RSSProxyPostProcessor.EVENTS_THRESHOLD, intValue = RSSProxyPostProcessor.DEFAULT_EVENTS_THRESHOLD),
-    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH)
+    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH),
+    @Property(name = RSSProxyPostProcessor.STREAMING, boolValue = true),
+    @Property(name = RSSProxyPostProcessor.LOOK_AHEAD, intValue = RSSProxyPostProcessor.DEFAULT_LOOK_AHEAD)
 })
 public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   public static final int DEFAULT_MAX_LENGTH = 10000000;
   public static final int DEFAULT_EVENTS_THRESHOLD = 100;
+  public static final int DEFAULT_LOOK_AHEAD = 65536;
 
   static final String EVENTS_THRESHOLD = "sakai.rss.elements.threshold";
   static final String MAX_LENGTH = "sakai.rss.length.max";
+  /**
+   * If false a valid feed is held in memory until it is complete and sent with a
+   * Content-Length.
+   */
+  static final String STREAMING = "sakai.rss.streaming";
+  /**
+   * The number of bytes of a valid feed held before it starts to stream to the client.
+   */
+  static final String LOOK_AHEAD = "sakai.rss.lookahead";
 
   private XMLInputFactory xmlInputFactory;
+  private XMLOutputFactory xmlOutputFactory;
   private int eventsThreshold;
   private int maxLength;
+  private int lookAhead;
 
   // Maximum size is 10 megabyte.
   public static final Logger logger = LoggerFactory
@@ -94,10 +111,16 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     eventsThreshold = OsgiUtil.toInteger(props.get(EVENTS_THRESHOLD),
         DEFAULT_EVENTS_THRESHOLD);
     maxLength = OsgiUtil.toInteger(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH);
+    if (OsgiUtil.toBoolean(props.get(STREAMING), true)) {
+      lookAhead = OsgiUtil.toInteger(props.get(LOOK_AHEAD), DEFAULT_LOOK_AHEAD);
+    } else {
+      lookAhead = Integer.MAX_VALUE;
+    }
 
     xmlInputFactory = new WstxInputFactory();
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
     xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+    xmlOutputFactory = new WstxOutputFactory();
 
     contentTypes = new ArrayList<String>();
     contentTypes.add("application/rss+xml");
@@ -149,6 +172,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
   @Deactivate
   protected void deactivate(ComponentContext ctxt) {
     this.xmlInputFactory = null;
+    this.xmlOutputFactory = null;
 
     contentTypes = null;
   }
@@ -197,24 +221,20 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     InputStream in = proxyResponse.getResponseBodyAsInputStream();
     InputStreamReader reader = new InputStreamReader(in);
 
-    // XMLStreamWriter writer = null;
     XMLEventWriter writer = null;
-    ByteArrayOutputStream out = null;
+    FeedOutputStream out = new FeedOutputStream(response, headers, lookAhead, maxLength);
 
     int i = 0;
     try {
       XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(reader);
-      // Create a temporary outputstream where we can write to.
-      out = new ByteArrayOutputStream();
+      writer = xmlOutputFactory.createXMLEventWriter(out);
 
       Set<String> checkedElements = null;
 
-      XMLOutputFactory outputFactory = new WstxOutputFactory();
-      writer = outputFactory.createXMLEventWriter(out);
-
       while (eventReader.hasNext()) {
         XMLEvent e = eventReader.nextEvent();
-        // Stream it to an output stream.
+        // Stream it to the output, this only reaches the client once the feed is valid
+        // and more than the look-ahead has been written.
         writer.add(e);
 
         if (!isValid) {
@@ -237,6 +257,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
               if (checkedElements.isEmpty()) {
                 isValid = true;
+                out.setValid();
               }
             }
           }
@@ -256,41 +277,169 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         return;
       }
 
-      // Check if we are not streaming a gigantic file..
-      if (out.size() > maxLength) {
+      writer.flush();
+      out.finish();
+
+    } catch (XMLStreamException e) {
+      if (out.isTooBig()) {
+        tooBig(response, out);
+      } else if (out.isCommitted()) {
+        logger.warn("RSS feed became invalid after it was sent to the client, truncated: {}",
+            e.getMessage());
+      } else {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "This file is too big.");
+            "This is not a valid XML file.");
+      }
+    } catch (FeedTooBigException e) {
+      tooBig(response, out);
+    } catch (Exception e) {
+      logger.warn("Exception reading RSS feed.", e);
+      if (!out.isCommitted()) {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "General exception caught.");
+      }
+    } finally {
+      reader.close();
+      // Nothing more goes out, in particular not after an error has been sent.
+      out.discard();
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (XMLStreamException e) {
+          // Not much we can do, the feed was truncated or is broken.
+          logger.debug("Failed to close the RSS writer: {}", e.getMessage());
+        }
+      }
+    }
+
+  }
+
+  private void tooBig(SlingHttpServletResponse response, FeedOutputStream out)
+      throws IOException {
+    if (out.isCommitted()) {
+      logger.warn("RSS feed is bigger than {} bytes, truncated.", maxLength);
+    } else {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+    }
+  }
+
+  /**
+   * Signals that a feed has grown past the maximum length.
+   */
+  private static class FeedTooBigException extends IOException {
+    private static final long serialVersionUID = 5436437384215426458L;
+
+    FeedTooBigException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Holds the sanitized feed until it has been validated and more than the look-ahead has
+   * been written, and from then on writes straight through to the response. A feed that
+   * fits in the look-ahead is sent with a Content-Length, as it always was.
+   */
+  private static class FeedOutputStream extends OutputStream {
+    private final SlingHttpServletResponse response;
+    private final Map<String, String[]> headers;
+    private final int lookAhead;
+    private final int maxLength;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream target;
+    private long count;
+    private boolean valid;
+    private boolean tooBig;
+    private boolean discarded;
+
+    FeedOutputStream(SlingHttpServletResponse response, Map<String, String[]> headers,
+        int lookAhead, int maxLength) {
+      this.response = response;
+      this.headers = headers;
+      this.lookAhead = lookAhead;
+      this.maxLength = maxLength;
+    }
+
+    void setValid() {
+      valid = true;
+    }
+
+    boolean isCommitted() {
+      return target != null;
+    }
+
+    boolean isTooBig() {
+      return tooBig;
+    }
+
+    void discard() {
+      discarded = true;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (discarded) {
         return;
       }
+      count += len;
+      if (count > maxLength) {
+        // Whatever is left of the current block still goes out so a truncated feed is
+        // cut at the limit.
+        tooBig = true;
+        int remaining = (int) (len - (count - maxLength));
+        if (target != null && remaining > 0) {
+          target.write(b, off, remaining);
+        }
+        throw new FeedTooBigException("The maximum for a feed is: " + maxLength);
+      }
+      if (target != null) {
+        target.write(b, off, len);
+      } else {
+        buffer.write(b, off, len);
+        if (valid && buffer.size() > lookAhead) {
+          commit(false);
+        }
+      }
+    }
 
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
+    @Override
+    public void flush() throws IOException {
+      if (target != null && !discarded) {
+        target.flush();
+      }
+    }
+
+    /**
+     * Send whatever is still held, the whole feed if it fitted in the look-ahead.
+     */
+    void finish() throws IOException {
+      if (target == null) {
+        commit(true);
+      }
+      target.flush();
+    }
+
+    private void commit(boolean complete) throws IOException {
+      for (Entry<String, String[]> h : headers.entrySet()) {
+        if (complete || !"Content-Length".equalsIgnoreCase(h.getKey())) {
+          for (String v : h.getValue()) {
+            response.setHeader(h.getKey(), v);
+          }
         }
       }
       // We always return 200 when we get to this point.
       response.setStatus(200);
-      response.setHeader("Content-Length", Integer.toString(out.size()));
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
-
-    } catch (XMLStreamException e) {
-      response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-          "This is not a valid XML file.");
-    } catch (Exception e) {
-      logger.warn("Exception reading RSS feed.", e);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "General exception caught.");
-    } finally {
-      out.close();
-      reader.close();
-      try {
-        writer.close();
-      } catch (XMLStreamException e) {
-        // Not much we can do?
-        e.printStackTrace();
+      if (complete) {
+        response.setHeader("Content-Length", Integer.toString(buffer.size()));
       }
+      OutputStream os = response.getOutputStream();
+      buffer.writeTo(os);
+      buffer = null;
+      target = os;
     }
-
   }
 }
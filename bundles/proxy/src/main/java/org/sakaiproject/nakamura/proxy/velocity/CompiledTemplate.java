@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy.velocity;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+
+/**
+ * A template that has been parsed and initialised once, in the same way as a Velocity
+ * Template loaded by the engine, and can then be merged by many threads at once.
+ */
+public class CompiledTemplate {
+
+  private final String name;
+  private final String source;
+  private final long lastModified;
+  private final SimpleNode document;
+
+  /**
+   * @param runtime
+   *          the runtime to parse the template with.
+   * @param name
+   *          the name of the template, used in messages.
+   * @param source
+   *          the template.
+   * @param lastModified
+   *          when the template was last modified, -1 if not known.
+   * @throws ParseException
+   *           if the template is not valid.
+   */
+  public CompiledTemplate(RuntimeInstance runtime, String name, String source,
+      long lastModified) throws ParseException {
+    this.name = name;
+    this.source = source;
+    this.lastModified = lastModified;
+    document = runtime.parse(new StringReader(source), name);
+    InternalContextAdapterImpl ica = new InternalContextAdapterImpl(new VelocityContext());
+    ica.pushCurrentTemplateName(name);
+    try {
+      document.init(ica, runtime);
+    } finally {
+      ica.popCurrentTemplateName();
+    }
+  }
+
+  /**
+   * Merge the template with the context.
+   *
+   * @param context
+   * @param writer
+   * @throws IOException
+   * @throws MethodInvocationException
+   * @throws ParseErrorException
+   * @throws ResourceNotFoundException
+   */
+  public void merge(Context context, Writer writer) throws IOException,
+      MethodInvocationException, ParseErrorException, ResourceNotFoundException {
+    InternalContextAdapterImpl ica = new InternalContextAdapterImpl(context);
+    ica.pushCurrentTemplateName(name);
+    try {
+      document.render(ica, writer);
+    } finally {
+      ica.popCurrentTemplateName();
+    }
+  }
+
+  /**
+   * @return the template.
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return when the template was last modified, -1 if not known.
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy.velocity;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.util.MultiValueInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the compiled endpoint and request body templates of proxy nodes by path, so that
+ * a proxy call does not parse its templates every time. An endpoint template is
+ * recompiled when the endpoint of the node changes, a body template when the last
+ * modified time of the node changes. Both are dropped when a resource at or below the
+ * path of the node changes.
+ */
+public class ProxyTemplateCache {
+
+  private final RuntimeInstance runtime;
+  private final ConcurrentMap<String, CompiledTemplate> urlTemplates = new ConcurrentHashMap<String, CompiledTemplate>();
+  private final ConcurrentMap<String, CompiledTemplate> bodyTemplates = new ConcurrentHashMap<String, CompiledTemplate>();
+  /**
+   * Incremented on every invalidation, so that a template compiled while an invalidation
+   * happened is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param runtime
+   *          the runtime the templates are parsed with.
+   */
+  public ProxyTemplateCache(RuntimeInstance runtime) {
+    this.runtime = runtime;
+  }
+
+  /**
+   * @param path
+   *          the path of the node the endpoint is from.
+   * @param source
+   *          the endpoint template.
+   * @return the compiled endpoint template.
+   * @throws ParseException
+   */
+  public CompiledTemplate getUrlTemplate(String path, String source)
+      throws ParseException {
+    CompiledTemplate template = urlTemplates.get(path);
+    if (template == null || !template.getSource().equals(source)) {
+      long start = generation.get();
+      template = new CompiledTemplate(runtime, path, source, -1);
+      put(urlTemplates, path, template, start);
+    }
+    return template;
+  }
+
+  /**
+   * @param node
+   *          the node with a sakai:proxy-request-template property.
+   * @return the compiled request body template.
+   * @throws RepositoryException
+   * @throws IOException
+   * @throws ParseException
+   */
+  public CompiledTemplate getBodyTemplate(Node node) throws RepositoryException,
+      IOException, ParseException {
+    String path = node.getPath();
+    long lastModified = -1;
+    if (node.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+      lastModified = node.getProperty(JcrConstants.JCR_LASTMODIFIED).getDate()
+          .getTimeInMillis();
+    }
+    CompiledTemplate template = bodyTemplates.get(path);
+    if (template == null || template.getLastModified() != lastModified) {
+      long start = generation.get();
+      template = new CompiledTemplate(runtime, path, readTemplate(node), lastModified);
+      put(bodyTemplates, path, template, start);
+    }
+    return template;
+  }
+
+  /**
+   * Drop the templates at or below the path.
+   *
+   * @param path
+   */
+  public void invalidate(String path) {
+    if (path == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    invalidate(urlTemplates, path);
+    invalidate(bodyTemplates, path);
+  }
+
+  /**
+   * Drop all the templates.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    urlTemplates.clear();
+    bodyTemplates.clear();
+  }
+
+  int size() {
+    return urlTemplates.size() + bodyTemplates.size();
+  }
+
+  private void put(ConcurrentMap<String, CompiledTemplate> templates, String path,
+      CompiledTemplate template, long start) {
+    templates.put(path, template);
+    if (generation.get() != start) {
+      templates.remove(path, template);
+    }
+  }
+
+  private void invalidate(ConcurrentMap<String, CompiledTemplate> templates, String path) {
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String key = i.next();
+      if (key.equals(path) || key.startsWith(path + "/")) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Read the template in the same way the JcrResourceLoader hands it to the engine.
+   */
+  private String readTemplate(Node node) throws RepositoryException, IOException {
+    InputStream in = new MultiValueInputStream(node
+        .getProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE));
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString(runtime.getString(RuntimeConstants.INPUT_ENCODING,
+          RuntimeConstants.ENCODING_DEFAULT));
+    } finally {
+      in.close();
+    }
+  }
+}
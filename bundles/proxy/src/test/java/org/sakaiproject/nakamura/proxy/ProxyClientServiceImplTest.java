@@ -373,8 +373,25 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     testRequest(null, "GET", RESPONSE_BODY, -1);
   }
 
+  @Test
+  public void testInvokeServiceNodeEndPointGetAsync() throws ProxyClientException,
+      RepositoryException, IOException {
+    testRequest("GET", "GET", RESPONSE_BODY, -1, true);
+  }
+
+  @Test
+  public void testInvokeServiceNodeEndPointGetLimitLowAsync()
+      throws ProxyClientException, RepositoryException, IOException {
+    testRequest("GET", "HEAD", null, 1, true);
+  }
+
   private void testRequest(String type, String expectedMethod, String body, long limit)
       throws ProxyClientException, RepositoryException, IOException {
+    testRequest(type, expectedMethod, body, limit, false);
+  }
+
+  private void testRequest(String type, String expectedMethod, String body, long limit,
+      boolean async) throws ProxyClientException, RepositoryException, IOException {
     Node node = createMock(Node.class);
 
     expect(node.getPath()).andReturn("/testing").anyTimes();
@@ -397,6 +414,8 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false)
         .atLeastOnce();
 
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE)).andReturn(false)
+        .anyTimes();
     if (limit == -1) {
       expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false)
           .anyTimes();
@@ -429,8 +448,17 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     input.put("stockName", STOCK_NAME);
 
     Map<String, String> headers = new HashMap<String, String>();
-    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers, input,
-        null, 0, null);
+    ProxyResponse response;
+    if (async) {
+      try {
+        response = proxyClientServiceImpl.executeCallAsync(node, headers, input, null, 0,
+            null, null).get();
+      } catch (Exception e) {
+        throw new ProxyClientException(e.getMessage(), e);
+      }
+    } else {
+      response = proxyClientServiceImpl.executeCall(node, headers, input, null, 0, null);
+    }
 
     CapturedRequest request = dummyServer.getRequest();
     assertEquals("Method not correct ", expectedMethod, request.getMethod());
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.URI;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ProxyResponseCacheTest {
+
+  @Mock
+  private HttpClient httpClient;
+
+  @Mock
+  private HttpMethod method;
+
+  private ProxyResponseCache cache;
+
+  @Before
+  public void setup() throws Exception {
+    cache = new ProxyResponseCache(10, 4, 1024, 3600000L, new File(System
+        .getProperty("java.io.tmpdir")));
+    when(method.getURI()).thenReturn(new URI("http://localhost/feed", false));
+  }
+
+  @Test
+  public void testFreshness() {
+    long now = System.currentTimeMillis();
+    assertEquals(60000L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "public, max-age=60"), now));
+    assertEquals(10000L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "max-age=60, s-maxage=10"), now));
+    assertEquals(-1L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "private, max-age=60"), now));
+    assertEquals(-1L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "no-store"), now));
+    assertEquals(-1L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "max-age=60", "Set-Cookie", "a=b"), now));
+    assertEquals(0L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "no-cache", "ETag", "\"abc\""), now));
+    assertEquals(-1L, ProxyResponseCache.freshness(
+        headers("Cache-Control", "no-cache"), now));
+    assertEquals(0L, ProxyResponseCache.freshness(
+        headers("Last-Modified", "Mon, 01 Nov 2010 10:00:00 GMT"), now));
+    assertEquals(-1L, ProxyResponseCache.freshness(new HashMap<String, String[]>(), now));
+    assertEquals(120000L, ProxyResponseCache.freshness(
+        headers("Date", "Mon, 01 Nov 2010 10:00:00 GMT", "Expires",
+            "Mon, 01 Nov 2010 10:02:00 GMT"), now));
+  }
+
+  @Test
+  public void testFreshResponseIsServedFromCache() throws Exception {
+    when(httpClient.executeMethod(method)).thenReturn(200);
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "max-age=60") });
+    when(method.getResponseBodyAsStream()).thenReturn(
+        new ByteArrayInputStream("hello world".getBytes("UTF-8")));
+
+    assertBody("hello world", cache.execute(httpClient, method));
+    assertBody("hello world", cache.execute(httpClient, method));
+    verify(httpClient, times(1)).executeMethod(method);
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testGetFreshDoesNotCallTheServer() throws Exception {
+    assertNull(cache.getFresh(method, -1));
+    when(httpClient.executeMethod(method)).thenReturn(200);
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "max-age=60") });
+    when(method.getResponseBodyAsStream()).thenReturn(
+        new ByteArrayInputStream("hello world".getBytes("UTF-8")));
+    cache.execute(httpClient, method).close();
+
+    assertBody("hello world", cache.getFresh(method, -1));
+    assertBody("hello world", cache.getFresh(method, 11));
+    // larger than the limit
+    assertNull(cache.getFresh(method, 10));
+    verify(httpClient, times(1)).executeMethod(method);
+  }
+
+  @Test
+  public void testStaleResponseIsRevalidated() throws Exception {
+    when(httpClient.executeMethod(method)).thenReturn(200, 304);
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "no-cache"),
+            new Header("ETag", "\"abc\"") });
+    when(method.getResponseBodyAsStream()).thenReturn(
+        new ByteArrayInputStream("hello".getBytes("UTF-8")));
+
+    assertBody("hello", cache.execute(httpClient, method));
+    assertBody("hello", cache.execute(httpClient, method));
+    verify(httpClient, times(2)).executeMethod(method);
+    verify(method).setRequestHeader("If-None-Match", "\"abc\"");
+  }
+
+  @Test
+  public void testVaryingResponse() throws Exception {
+    when(httpClient.executeMethod(method)).thenReturn(200);
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "max-age=60"),
+            new Header("Vary", "Accept-Language") });
+    when(method.getRequestHeader("Accept-Language")).thenReturn(
+        new Header("Accept-Language", "en"), new Header("Accept-Language", "fr"));
+    when(method.getResponseBodyAsStream()).thenReturn(
+        new ByteArrayInputStream("hello".getBytes("UTF-8")),
+        new ByteArrayInputStream("bonjour".getBytes("UTF-8")));
+
+    assertBody("hello", cache.execute(httpClient, method));
+    assertBody("bonjour", cache.execute(httpClient, method));
+    verify(httpClient, times(2)).executeMethod(method);
+  }
+
+  @Test
+  public void testAuthorizedRequestIsNotCached() throws Exception {
+    when(httpClient.executeMethod(method)).thenReturn(200);
+    when(method.getRequestHeader("Authorization")).thenReturn(
+        new Header("Authorization", "Basic Zm9vOmJhcg=="));
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "max-age=60") });
+
+    cache.execute(httpClient, method);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testRequestWithIdentityIsNotCached() throws Exception {
+    when(httpClient.executeMethod(method)).thenReturn(200);
+    when(method.getRequestHeader("x-sakai-token")).thenReturn(
+        new Header("x-sakai-token", "hmac;ieb;1234"));
+    when(method.getResponseHeaders()).thenReturn(
+        new Header[] { new Header("Cache-Control", "max-age=60") });
+    cache.execute(httpClient, method);
+    assertEquals(0, cache.size());
+
+    when(method.getRequestHeader("x-sakai-token")).thenReturn(null);
+    when(method.getRequestHeader("Cookie")).thenReturn(
+        new Header("Cookie", "JSESSIONID=1234"));
+    cache.execute(httpClient, method);
+    assertEquals(0, cache.size());
+  }
+
+  private void assertBody(String expected, ProxyResponse response) throws Exception {
+    try {
+      assertEquals(expected, new String(response.getResponseBody(), "UTF-8"));
+    } finally {
+      response.close();
+    }
+  }
+
+  private Map<String, String[]> headers(String... namesAndValues) {
+    Map<String, String[]> headers = new HashMap<String, String[]>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      headers.put(namesAndValues[i], new String[] { namesAndValues[i + 1] });
+    }
+    return headers;
+  }
+}
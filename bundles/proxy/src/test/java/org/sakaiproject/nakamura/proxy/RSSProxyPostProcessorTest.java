@@ -18,8 +18,10 @@
 package org.sakaiproject.nakamura.proxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -110,6 +112,60 @@ public class RSSProxyPostProcessorTest {
 
   }
 
+  @Test
+  public void sendsRssThatFitsTheLookAheadWithContentLength() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    responseHasOutputStreamAvailable();
+
+    //when
+    proxyPostProcessor.activate(new HashMap<String, Object>());
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).setStatus(200);
+    verify(response).setHeader(eq("Content-Length"), anyString());
+  }
+
+  @Test
+  public void streamsRssLargerThanTheLookAhead() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    responseHasOutputStreamAvailable();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(RSSProxyPostProcessor.LOOK_AHEAD, 100);
+
+    //when
+    proxyPostProcessor.activate(props);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).setStatus(200);
+    verify(response, never()).setHeader(eq("Content-Length"), anyString());
+    verify(response, never()).sendError(anyInt(), anyString());
+  }
+
+  @Test
+  public void rejectsRssBiggerThanTheMaximum() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    responseHasOutputStreamAvailable();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(RSSProxyPostProcessor.MAX_LENGTH, 5000);
+    props.put(RSSProxyPostProcessor.STREAMING, false);
+
+    //when
+    proxyPostProcessor.activate(props);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    verify(response, never()).setStatus(200);
+  }
+
   @Test
   public void rejectsRssWithoutChannelTitle() throws Exception {
   //given
@@ -20,9 +20,11 @@ package org.sakaiproject.nakamura.proxy;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -35,6 +37,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientException;
 import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
@@ -197,6 +200,55 @@ public class ResourceProxyServletTest {
     servlet.doGet(request, response);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void proxiesOnTheRequestThread() throws Exception {
+    // given
+    requestReturnsAResource();
+    resourceWithLegitimatePath();
+    resourceReturnsANode();
+    requestReturnsHeaderNames();
+    requestReturnsParameterNames();
+    requestReturnsParameterMap();
+    proxyClientServiceReturnsAProxyResponse();
+    proxyResponseHasHelloWorldInputStream();
+    slingResponseHasOutputStream();
+    servlet.proxyClientService = proxyClientService;
+
+    // when
+    servlet.doGet(request, response);
+
+    // then
+    verify(proxyClientService, never()).executeCallAsync((Node) any(),
+        (Map<String, String>) any(), (Map<String, Object>) any(), (InputStream) any(),
+        anyLong(), anyString(), (Runnable) any());
+    verify(proxyResponse).close();
+    verify(response, never()).sendError(anyInt(), anyString());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void failedCallIsAnError() throws Exception {
+    // given
+    requestReturnsAResource();
+    resourceWithLegitimatePath();
+    resourceReturnsANode();
+    requestReturnsHeaderNames();
+    requestReturnsParameterNames();
+    requestReturnsParameterMap();
+    when(
+        proxyClientService.executeCall((Node) any(), (Map<String, String>) any(),
+            (Map<String, Object>) any(), (InputStream) any(), anyLong(), anyString()))
+        .thenThrow(new ProxyClientException("Timeout waiting for connection"));
+    servlet.proxyClientService = proxyClientService;
+
+    // when
+    servlet.doGet(request, response);
+
+    // then
+    verify(response).sendError(500, "Timeout waiting for connection");
+  }
+
   private void requestHasBasicAuthParameters() {
     parameterNames.add(":basic-user");
     parameterNames.add(":basic-password");
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ *
+ */
+public class ProxyTemplateCacheTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProxyTemplateCacheTest.class);
+
+  private static final String URL_TEMPLATE = "http://localhost/feed?q=${q}&n=${config.n}";
+
+  private RuntimeInstance runtime;
+  private ProxyTemplateCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    runtime = new RuntimeInstance();
+    runtime.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+        getClass()));
+    runtime.init();
+    cache = new ProxyTemplateCache(runtime);
+  }
+
+  @Test
+  public void testUrlTemplate() throws Exception {
+    CompiledTemplate template = cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE);
+    assertSame(template, cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE));
+    assertEquals("http://localhost/feed?q=news&n=10", merge(template));
+
+    CompiledTemplate changed = cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE
+        + "&m=1");
+    assertNotSame(template, changed);
+    assertEquals("http://localhost/feed?q=news&n=10&m=1", merge(changed));
+  }
+
+  @Test
+  public void testBodyTemplate() throws Exception {
+    Node node = mock(Node.class);
+    Property lastModified = mock(Property.class);
+    when(node.getPath()).thenReturn("/var/proxy/soap");
+    when(node.hasProperty(JcrConstants.JCR_LASTMODIFIED)).thenReturn(true);
+    when(node.getProperty(JcrConstants.JCR_LASTMODIFIED)).thenReturn(lastModified);
+    when(lastModified.getDate()).thenReturn(calendar(1000L), calendar(1000L),
+        calendar(2000L));
+    Property templateProperty = templateProperty("<q>${q}</q>");
+    when(node.getProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).thenReturn(
+        templateProperty);
+
+    CompiledTemplate template = cache.getBodyTemplate(node);
+    assertEquals("<q>news</q>", merge(template));
+    assertSame(template, cache.getBodyTemplate(node));
+    verify(node, times(1)).getProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE);
+
+    // modified, so read and compiled again
+    Property modifiedProperty = templateProperty("<query>${q}</query>");
+    when(node.getProperty(ProxyClientService.SAKAI_PROXY_REQUEST_TEMPLATE)).thenReturn(
+        modifiedProperty);
+    assertEquals("<query>news</query>", merge(cache.getBodyTemplate(node)));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE);
+    cache.getUrlTemplate("/var/proxy/other", URL_TEMPLATE);
+    cache.getUrlTemplate("/var/proxyother", URL_TEMPLATE);
+    assertEquals(3, cache.size());
+    cache.invalidate("/var/proxy/feed");
+    assertEquals(2, cache.size());
+    cache.invalidate("/var/proxy");
+    assertEquals(1, cache.size());
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Not a test as such, logs the time taken to process a URL template per call with and
+   * without the cache.
+   */
+  @Test
+  public void testTemplateOverhead() throws Exception {
+    VelocityEngine engine = new VelocityEngine();
+    engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+        getClass()));
+    engine.init();
+    int calls = 20000;
+    // warm up both paths before timing them
+    for (int i = 0; i < calls / 10; i++) {
+      evaluate(engine);
+      merge(cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      evaluate(engine);
+    }
+    long evaluated = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < calls; i++) {
+      merge(cache.getUrlTemplate("/var/proxy/feed", URL_TEMPLATE));
+    }
+    long cached = System.nanoTime() - start;
+
+    LOGGER.info("URL template per call: evaluated {} us, cached {} us", evaluated
+        / 1000.0 / calls, cached / 1000.0 / calls);
+  }
+
+  private String evaluate(VelocityEngine engine) throws Exception {
+    StringWriter writer = new StringWriter();
+    engine.evaluate(context(), writer, "urlprocessing", new StringReader(URL_TEMPLATE));
+    return writer.toString();
+  }
+
+  private String merge(CompiledTemplate template) throws Exception {
+    StringWriter writer = new StringWriter();
+    template.merge(context(), writer);
+    return writer.toString();
+  }
+
+  private VelocityContext context() {
+    VelocityContext context = new VelocityContext();
+    context.put("q", "news");
+    Map<String, Object> config = new HashMap<String, Object>();
+    config.put("n", "10");
+    context.put("config", config);
+    return context;
+  }
+
+  private Calendar calendar(long time) {
+    Calendar calendar = new GregorianCalendar();
+    calendar.setTimeInMillis(time);
+    return calendar;
+  }
+
+  private Property templateProperty(String template) throws Exception {
+    Property property = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    Value value = mock(Value.class);
+    Binary binary = mock(Binary.class);
+    when(property.getDefinition()).thenReturn(definition);
+    when(definition.isMultiple()).thenReturn(false);
+    when(property.getValue()).thenReturn(value);
+    when(value.getBinary()).thenReturn(binary);
+    when(binary.getStream()).thenReturn(new ByteArrayInputStream(template.getBytes()));
+    return property;
+  }
+}
@@ -30,6 +30,17 @@ public interface SolrSearchConstants {
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * Request parameter holding the position to page from, * for the first page, or the
+   * token returned in {@link #JSON_NEXT_CURSOR} for the next one. Paging by cursor does not
+   * get slower as the pages get deeper, as paging by {@link #PARAMS_PAGE} does.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The position after the last result written, for the {@link #PARAMS_CURSOR} of the
+   * next page.
+   */
+  public static final String JSON_NEXT_CURSOR = "nextCursor";
   /**
    *
    */
@@ -9,4 +9,11 @@ public interface SolrSearchResultSet {
 
   long getSize();
 
+  /**
+   * @return a token for the position after the last result read from the iterator, to be
+   *         passed as the cursor of the next page, or null if there are no more results or
+   *         the search is not paged by cursor.
+   */
+  String getNextCursor();
+
 }
@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Topic;
+
+/**
+ * Holds the principals each user can read as, and the readers filter query made from
+ * them, so that a search does not walk the groups of the user and build a new filter every
+ * time. Keeping the filter the same from one search to the next also lets Solr reuse the
+ * cached filter. The entry for a user is dropped when the user changes, when a group in
+ * the entry changes, or when a group the user is now a member of changes. Changes made on
+ * other servers arrive as the authorizable events bridged onto JMS; entries also expire
+ * in case one of those is missed. The members of changed groups are found with one
+ * administrative session, held while the component is active.
+ */
+@Component(immediate = true, metatype = true)
+@Services(value = { @Service(value = ReaderPrincipalCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the reader principals used to filter searches."),
+    @Property(name = "event.topics", value = StoreListener.TOPIC_BASE + "authorizables/*", propertyPrivate = true) })
+public class ReaderPrincipalCache implements EventHandler, MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReaderPrincipalCache.class);
+
+  private static final String READERS_FIELD = "readers";
+
+  /**
+   * The property the JMS bridge sets to the id of the server that sent the event.
+   */
+  private static final String SERVER_ID_PROPERTY = "clusterServerId";
+
+  /**
+   * The authorizable events, as bridged onto JMS topics from every server.
+   */
+  private static final String[] CLUSTER_TOPICS = {
+      StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.ADDED_TOPIC,
+      StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.UPDATED_TOPIC,
+      StoreListener.TOPIC_BASE + "authorizables/" + StoreListener.DELETE_TOPIC };
+
+  @Property(longValue = 600000L)
+  private static final String TTL = "readers.ttl";
+
+  @Property(intValue = 10000)
+  private static final String MAX_USERS = "readers.maxusers";
+
+  private long ttl = 600000L;
+  private int maxUsers = 10000;
+
+  @Reference
+  protected Repository repository;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+  protected ConnectionFactoryService connFactoryService;
+
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY)
+  protected ClusterTrackingService clusterTrackingService;
+
+  private Connection connection;
+  /**
+   * Used to find the members of groups, guarded by its own lock as events arrive on both
+   * the event admin and the JMS threads.
+   */
+  private final Object sessionLock = new Object();
+  private Session adminSession;
+  /**
+   * Incremented on every invalidation, so that an entry loaded while an invalidation
+   * happened is not kept.
+   */
+  private long generation;
+  private final Map<String, Readers> readers = new LinkedHashMap<String, Readers>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 2394659236503845316L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Readers> eldest) {
+      return size() > maxUsers;
+    }
+  };
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    synchronized (readers) {
+      ttl = OsgiUtil.toLong(props.get(TTL), 600000L);
+      maxUsers = OsgiUtil.toInteger(props.get(MAX_USERS), 10000);
+      readers.clear();
+    }
+    if (connFactoryService != null) {
+      try {
+        connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+        javax.jms.Session session = connection.createSession(false,
+            javax.jms.Session.AUTO_ACKNOWLEDGE);
+        for (String topic : CLUSTER_TOPICS) {
+          Topic dest = session.createTopic(topic);
+          MessageConsumer consumer = session.createConsumer(dest);
+          consumer.setMessageListener(this);
+        }
+        connection.start();
+      } catch (JMSException e) {
+        LOGGER.error("Unable to listen for authorizable changes on other servers "
+            + e.getMessage(), e);
+        closeConnection();
+      }
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    closeConnection();
+    synchronized (sessionLock) {
+      logoutAdminSession();
+    }
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      connection = null;
+    }
+  }
+
+  /**
+   * @param userId
+   * @param am
+   *          used to find the groups of the user if they are not held.
+   * @return the principals the user can read as, the user and all the groups they are a
+   *         member of.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Set<String> getReaders(String userId, AuthorizableManager am)
+      throws StorageClientException, AccessDeniedException {
+    return get(userId, am).principals;
+  }
+
+  /**
+   * @param userId
+   * @param am
+   *          used to find the groups of the user if they are not held.
+   * @return a filter query that matches the documents the user can read.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getReadersFilter(String userId, AuthorizableManager am)
+      throws StorageClientException, AccessDeniedException {
+    return get(userId, am).filter;
+  }
+
+  /**
+   * Drop the entry for the user, and the entries of any users that read as the principal.
+   *
+   * @param principal
+   *          a user or group id.
+   */
+  public void invalidate(String principal) {
+    if (principal == null) {
+      return;
+    }
+    invalidate(Collections.singleton(principal));
+  }
+
+  /**
+   * Drop the entries for the users, and the entries of any users that read as any of the
+   * principals.
+   *
+   * @param principals
+   *          user or group ids.
+   */
+  private void invalidate(Set<String> principals) {
+    if (principals.isEmpty()) {
+      return;
+    }
+    synchronized (readers) {
+      generation++;
+      for (Iterator<Map.Entry<String, Readers>> i = readers.entrySet().iterator(); i
+          .hasNext();) {
+        Map.Entry<String, Readers> e = i.next();
+        if (principals.contains(e.getKey())
+            || !Collections.disjoint(e.getValue().principals, principals)) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the entries affected by a change to an authorizable. If it is a group, members
+   * may have been added, so the entries of all its current members are dropped as well as
+   * those that read as the group.
+   *
+   * @param id
+   *          the id of the user or group that changed.
+   */
+  void changed(String id) {
+    if (id == null) {
+      return;
+    }
+    invalidate(id);
+    synchronized (readers) {
+      if (readers.isEmpty()) {
+        return;
+      }
+    }
+    invalidate(getMembers(id));
+  }
+
+  /**
+   * @param id
+   * @return the members of the group, empty if the id is not a group.
+   */
+  Set<String> getMembers(String id) {
+    if (repository == null) {
+      return Collections.emptySet();
+    }
+    synchronized (sessionLock) {
+      try {
+        if (adminSession == null) {
+          adminSession = repository.loginAdministrative();
+        }
+        Authorizable authorizable = adminSession.getAuthorizableManager()
+            .findAuthorizable(id);
+        if (authorizable instanceof Group) {
+          String[] members = ((Group) authorizable).getMembers();
+          if (members != null) {
+            return new HashSet<String>(Arrays.asList(members));
+          }
+        }
+      } catch (StorageClientException e) {
+        LOGGER.warn("Unable to find the members of {} {} ", id, e.getMessage());
+        // start again with a new session next time.
+        logoutAdminSession();
+      } catch (AccessDeniedException e) {
+        LOGGER.warn("Unable to find the members of {} {} ", id, e.getMessage());
+        logoutAdminSession();
+      }
+    }
+    return Collections.emptySet();
+  }
+
+  private void logoutAdminSession() {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (Exception e) {
+        LOGGER.warn("Failed to logout of administrative session {} ", e.getMessage());
+      }
+      adminSession = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty("path");
+    if (id == null) {
+      id = (String) event.getProperty("userid");
+    }
+    changed(id);
+  }
+
+  /**
+   * {@inheritDoc} Changes bridged from every server; those made on this server have
+   * already arrived as OSGi events and are dropped.
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      if (clusterTrackingService != null
+          && clusterTrackingService.getCurrentServerId().equals(
+              message.getStringProperty(SERVER_ID_PROPERTY))) {
+        return;
+      }
+      String id = message.getStringProperty("path");
+      if (id == null) {
+        id = message.getStringProperty("userid");
+      }
+      changed(id);
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to read an authorizable change {} ", e.getMessage());
+    }
+  }
+
+  private Readers get(String userId, AuthorizableManager am)
+      throws StorageClientException, AccessDeniedException {
+    long now = System.currentTimeMillis();
+    long loadGeneration;
+    synchronized (readers) {
+      Readers r = readers.get(userId);
+      if (r != null && r.expires > now) {
+        return r;
+      }
+      loadGeneration = generation;
+    }
+    // load outside the lock, two searches by the same user may both load, which is
+    // harmless.
+    ImmutableSet.Builder<String> principals = ImmutableSet.builder();
+    principals.add(userId);
+    Authorizable user = am.findAuthorizable(userId);
+    if (user != null) {
+      for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
+        principals.add(gi.next().getId());
+      }
+    }
+    Readers r = new Readers(principals.build(), now + ttl);
+    synchronized (readers) {
+      if (loadGeneration == generation) {
+        readers.put(userId, r);
+      }
+    }
+    return r;
+  }
+
+  /**
+   * @param principals
+   * @return a filter query on the readers field matching any of the principals.
+   */
+  static String buildFilter(Set<String> principals) {
+    StringBuilder sb = new StringBuilder(READERS_FIELD).append(":(");
+    boolean first = true;
+    for (String principal : principals) {
+      if (!first) {
+        sb.append(" OR ");
+      }
+      sb.append(ClientUtils.escapeQueryChars(principal));
+      first = false;
+    }
+    return sb.append(")").toString();
+  }
+
+  private static final class Readers {
+    private final Set<String> principals;
+    private final String filter;
+    private final long expires;
+
+    Readers(Set<String> principals, long expires) {
+      this.principals = principals;
+      this.filter = buildFilter(principals);
+      this.expires = expires;
+    }
+  }
+}
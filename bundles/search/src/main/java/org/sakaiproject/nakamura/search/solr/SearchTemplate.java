@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.sakaiproject.nakamura.api.search.solr.Query.Type;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * A search node compiled into what a search request needs from it: the default
+ * properties, the names of the processors and property provider, and the query template
+ * and options already split into text and placeholders. Instances are immutable and are
+ * shared between requests.
+ */
+public class SearchTemplate {
+
+  private final String path;
+  private final Type type;
+  private final boolean limitResults;
+  private final String propertyProviderName;
+  private final String batchProcessorName;
+  private final String resultProcessorName;
+  private final Map<String, String> defaults;
+  private final Template queryTemplate;
+  private final Map<String, Template> options;
+
+  private SearchTemplate(Node node) throws RepositoryException, JSONException {
+    path = node.getPath();
+    if ("sakai/sparse-search".equals(node.getProperty("sling:resourceType").getString())) {
+      type = Type.SPARSE;
+    } else {
+      type = Type.SOLR;
+    }
+    limitResults = !node.hasProperty(SAKAI_LIMIT_RESULTS)
+        || node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
+    propertyProviderName = getString(node, SAKAI_PROPERTY_PROVIDER);
+    batchProcessorName = getString(node, SAKAI_BATCHRESULTPROCESSOR);
+    resultProcessorName = getString(node, SAKAI_RESULTPROCESSOR);
+
+    Map<String, String> props = new HashMap<String, String>();
+    PropertyIterator pi = node.getProperties();
+    while (pi.hasNext()) {
+      javax.jcr.Property prop = pi.nextProperty();
+      if (!prop.isMultiple()) {
+        props.put(prop.getName(), prop.getString());
+      }
+    }
+    defaults = Collections.unmodifiableMap(props);
+
+    queryTemplate = new Template(node.getProperty(SAKAI_QUERY_TEMPLATE).getString());
+
+    Map<String, Template> opts = new LinkedHashMap<String, Template>();
+    if (node.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as JSON string
+      JSONObject queryOptions = new JSONObject(node.getProperty(
+          SAKAI_QUERY_TEMPLATE_OPTIONS).getString());
+      Iterator<String> keys = queryOptions.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        opts.put(key, new Template(queryOptions.getString(key)));
+      }
+    } else if (node.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
+      // process the options as a sub-node
+      PropertyIterator optionProps = node.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS)
+          .getProperties();
+      while (optionProps.hasNext()) {
+        javax.jcr.Property prop = optionProps.nextProperty();
+        if (!prop.getName().startsWith("jcr:")) {
+          opts.put(prop.getName(), new Template(prop.getString()));
+        }
+      }
+    }
+    options = Collections.unmodifiableMap(opts);
+  }
+
+  /**
+   * @param node
+   *          a search node.
+   * @return the compiled search, or null if the node has no query template.
+   * @throws RepositoryException
+   * @throws JSONException
+   *           if the query template options are not valid JSON.
+   */
+  public static SearchTemplate compile(Node node) throws RepositoryException,
+      JSONException {
+    if (node == null || !node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
+      return null;
+    }
+    return new SearchTemplate(node);
+  }
+
+  private static String getString(Node node, String name) throws RepositoryException {
+    if (node.hasProperty(name)) {
+      return node.getProperty(name).getString();
+    }
+    return null;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public boolean isLimitResults() {
+    return limitResults;
+  }
+
+  public String getPropertyProviderName() {
+    return propertyProviderName;
+  }
+
+  public String getBatchProcessorName() {
+    return batchProcessorName;
+  }
+
+  public String getResultProcessorName() {
+    return resultProcessorName;
+  }
+
+  /**
+   * @return the single valued properties of the search node.
+   */
+  public Map<String, String> getDefaults() {
+    return defaults;
+  }
+
+  public Template getQueryTemplate() {
+    return queryTemplate;
+  }
+
+  public Map<String, Template> getOptions() {
+    return options;
+  }
+
+  /**
+   * A template split into text and placeholders. Templates that only use plain
+   * <code>${name}</code> references are evaluated here by substitution, anything that
+   * uses more of Velocity than that is passed to the template service.
+   */
+  public static final class Template {
+    private final String source;
+    private final List<String> terms;
+    private final String[] text;
+    private final String[] names;
+
+    Template(String source) {
+      this.source = source;
+      // the terms are found the same way the template service finds them.
+      List<String> t = new ArrayList<String>();
+      int start = source.indexOf("${");
+      while (start > -1) {
+        int end = source.indexOf("}", start);
+        if (end == -1) {
+          break;
+        }
+        t.add(source.substring(start + 2, end));
+        start = source.indexOf("${", end);
+      }
+      terms = Collections.unmodifiableList(t);
+
+      if (isPlain(source)) {
+        text = new String[t.size() + 1];
+        names = t.toArray(new String[t.size()]);
+        int pos = 0;
+        for (int i = 0; i < names.length; i++) {
+          int ref = source.indexOf("${", pos);
+          text[i] = source.substring(pos, ref);
+          pos = ref + names[i].length() + 3;
+        }
+        text[names.length] = source.substring(pos);
+      } else {
+        text = null;
+        names = null;
+      }
+    }
+
+    /**
+     * @return true if every $ in the source starts a <code>${name}</code> reference and
+     *         there are no directives, so that substitution gives the same result as
+     *         Velocity.
+     */
+    private static boolean isPlain(String source) {
+      if (source.indexOf('#') >= 0 || source.indexOf('\\') >= 0) {
+        return false;
+      }
+      int pos = source.indexOf('$');
+      while (pos >= 0) {
+        if (pos + 1 >= source.length() || source.charAt(pos + 1) != '{') {
+          return false;
+        }
+        int end = source.indexOf('}', pos);
+        if (end < 0 || !isIdentifier(source.substring(pos + 2, end))) {
+          return false;
+        }
+        pos = source.indexOf('$', end);
+      }
+      return true;
+    }
+
+    private static boolean isIdentifier(String name) {
+      if (name.length() == 0 || !Character.isLetter(name.charAt(0))) {
+        return false;
+      }
+      for (int i = 1; i < name.length(); i++) {
+        char c = name.charAt(i);
+        if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @param properties
+     * @return the terms in the template that have no value in the properties.
+     */
+    public Collection<String> missingTerms(Map<String, String> properties) {
+      Collection<String> missing = new ArrayList<String>();
+      for (String term : terms) {
+        if (properties.get(term) == null) {
+          missing.add(term);
+        }
+      }
+      return missing;
+    }
+
+    /**
+     * @param properties
+     * @param templateService
+     *          used if the template is not plain.
+     * @return the template with the references replaced by the properties.
+     */
+    public String evaluate(Map<String, String> properties, TemplateService templateService) {
+      if (names == null) {
+        return templateService.evaluateTemplate(properties, source);
+      }
+      StringBuilder sb = new StringBuilder(source.length() + 16 * names.length);
+      for (int i = 0; i < names.length; i++) {
+        sb.append(text[i]);
+        String value = properties.get(names[i]);
+        if (value == null) {
+          // as velocity does, leave the reference in place
+          sb.append("${").append(names[i]).append('}');
+        } else {
+          sb.append(value);
+        }
+      }
+      return sb.append(text[names.length]).toString();
+    }
+
+    /**
+     * @return true if the template is evaluated by substitution.
+     */
+    boolean isPlain() {
+      return names != null;
+    }
+
+    public String getSource() {
+      return source;
+    }
+  }
+}
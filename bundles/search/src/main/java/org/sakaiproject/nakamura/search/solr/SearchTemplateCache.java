@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the compiled search templates by path, so that a search does not read the
+ * properties of the search node and parse its options on every request. An entry is
+ * dropped when a resource at or below its path is added, changed or removed.
+ */
+@Component(immediate = true)
+@Services(value = { @Service(value = SearchTemplateCache.class),
+    @Service(value = EventHandler.class) })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches the compiled search templates."),
+    @Property(name = "event.topics", value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class SearchTemplateCache implements EventHandler {
+
+  private final ConcurrentMap<String, SearchTemplate> templates = new ConcurrentHashMap<String, SearchTemplate>();
+  /**
+   * Incremented on every invalidation, so that a template compiled while an invalidation
+   * happened is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param resource
+   *          the search resource, adapted to a node to compile the template if it is not
+   *          held.
+   * @return the compiled template, or null if the resource is not a search template.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public SearchTemplate get(Resource resource) throws RepositoryException,
+      JSONException {
+    String path = resource.getPath();
+    SearchTemplate template = templates.get(path);
+    if (template == null) {
+      long start = generation.get();
+      template = SearchTemplate.compile(resource.adaptTo(Node.class));
+      if (template != null) {
+        templates.put(path, template);
+        if (generation.get() != start) {
+          templates.remove(path, template);
+        }
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Drop the templates at or below the path.
+   *
+   * @param path
+   */
+  public void invalidate(String path) {
+    if (path == null) {
+      return;
+    }
+    generation.incrementAndGet();
+    for (Iterator<String> i = templates.keySet().iterator(); i.hasNext();) {
+      String key = i.next();
+      if (key.equals(path) || key.startsWith(path + "/") || path.startsWith(key + "/")) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    invalidate((String) event.getProperty(SlingConstants.PROPERTY_PATH));
+  }
+
+  int size() {
+    return templates.size();
+  }
+}
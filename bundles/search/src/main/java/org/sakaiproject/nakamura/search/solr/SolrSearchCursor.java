@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.DateUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+/**
+ * A position in a list of results, after a given document. A page that starts from a
+ * position is found by asking Solr for the documents that sort after it, rather than by
+ * skipping an offset, so a deep page costs Solr no more than the first one. Results paged
+ * this way are sorted on at most one field with the id as a tie break, which makes the
+ * position of every document unique.
+ */
+public final class SolrSearchCursor {
+
+  /**
+   * The cursor of the first page.
+   */
+  public static final String START = "*";
+
+  static final String ID_FIELD = "id";
+
+  private static final char SEPARATOR = '\u0000';
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String sortField;
+  private final boolean ascending;
+  private final String lastValue;
+  private final String lastId;
+
+  /**
+   * @param sortField
+   *          the field sorted on before the id, null if sorted on the id only.
+   * @param ascending
+   * @param lastValue
+   *          the value of the sort field in the last document, null if it had none.
+   * @param lastId
+   *          the id of the last document.
+   */
+  SolrSearchCursor(String sortField, boolean ascending, String lastValue, String lastId) {
+    this.sortField = sortField;
+    this.ascending = ascending;
+    this.lastValue = lastValue;
+    this.lastId = lastId;
+  }
+
+  /**
+   * @param sortField
+   * @param ascending
+   * @param document
+   * @return the position after the document.
+   */
+  static SolrSearchCursor after(String sortField, boolean ascending, SolrDocument document) {
+    String lastValue = null;
+    if (sortField != null) {
+      lastValue = toString(document.getFirstValue(sortField));
+    }
+    return new SolrSearchCursor(sortField, ascending, lastValue,
+        toString(document.getFirstValue(ID_FIELD)));
+  }
+
+  /**
+   * @param token
+   *          a token made by {@link #toToken()}.
+   * @return the cursor.
+   * @throws IllegalArgumentException
+   *           if the token is not a cursor.
+   */
+  public static SolrSearchCursor parse(String token) {
+    String[] parts = decode(token).split(String.valueOf(SEPARATOR), -1);
+    if (parts.length != 4 || parts[3].length() == 0) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    }
+    return new SolrSearchCursor(parts[0].length() == 0 ? null : parts[0],
+        "asc".equals(parts[1]), parts[2].length() == 0 ? null : parts[2].substring(1),
+        parts[3]);
+  }
+
+  /**
+   * @return an opaque token for the cursor, safe to use in a url.
+   */
+  public String toToken() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(sortField == null ? "" : sortField).append(SEPARATOR);
+    sb.append(ascending ? "asc" : "desc").append(SEPARATOR);
+    // the value is prefixed so that an empty value is not taken for a missing one
+    sb.append(lastValue == null ? "" : "=" + lastValue).append(SEPARATOR);
+    sb.append(lastId);
+    return encode(sb.toString());
+  }
+
+  /**
+   * @param sortField
+   * @param ascending
+   * @return true if the cursor was made from results sorted the same way.
+   */
+  public boolean isSortedBy(String sortField, boolean ascending) {
+    if (this.sortField == null) {
+      return sortField == null;
+    }
+    return this.sortField.equals(sortField) && this.ascending == ascending;
+  }
+
+  /**
+   * @return a query that matches the documents that sort after this position.
+   */
+  public String toFilterQuery() {
+    String afterId = ID_FIELD + ":{" + quote(lastId) + " TO *}";
+    if (sortField == null) {
+      return afterId;
+    }
+    String hasValue = sortField + ":[* TO *]";
+    if (lastValue == null) {
+      // documents without a value sort first ascending and last descending
+      if (ascending) {
+        return hasValue + " OR (+" + afterId + " -" + hasValue + ")";
+      }
+      return "+" + afterId + " -" + hasValue;
+    }
+    String value = quote(lastValue);
+    String query;
+    if (ascending) {
+      query = sortField + ":{" + value + " TO *}";
+    } else {
+      query = sortField + ":{* TO " + value + "}";
+    }
+    query = query + " OR (+" + sortField + ":" + value + " +" + afterId + ")";
+    if (!ascending) {
+      query = query + " OR (*:* -" + hasValue + ")";
+    }
+    return query;
+  }
+
+  private static String toString(Object value) {
+    if (value == null) {
+      return null;
+    }
+    if (value instanceof Date) {
+      return DateUtil.getThreadLocalDateFormat().format((Date) value);
+    }
+    return String.valueOf(value);
+  }
+
+  private static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  private static String encode(String s) {
+    try {
+      byte[] bytes = s.getBytes("UTF-8");
+      char[] chars = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; i++) {
+        chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+        chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+      }
+      return new String(chars);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String token) {
+    if (token == null || token.length() % 2 != 0) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    }
+    byte[] bytes = new byte[token.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(token.charAt(i * 2), 16);
+      int low = Character.digit(token.charAt(i * 2 + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid cursor " + token);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    try {
+      return new String(bytes, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A page of results that starts from a cursor. The page is fetched from Solr in batches
+ * as the iterator reaches them, so that only one batch is held however many items are in
+ * the page, and the results of a batch are written out before the next is asked for.
+ */
+public class SolrSearchCursorResultSet implements SolrSearchResultSet {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(SolrSearchCursorResultSet.class);
+
+  /**
+   * Local params that keep a filter query out of the Solr filter cache.
+   */
+  private static final String UNCACHED = "{!cache=false}";
+
+  private final SolrServer server;
+  private final SolrQuery query;
+  private final String sortField;
+  private final boolean ascending;
+  private final long size;
+  private final int batchSize;
+  private final long numFound;
+  private final Iterator<Result> iterator;
+  private SolrSearchCursor position;
+  private String positionFilter;
+  private SolrDocumentList batch;
+  private int batchIndex;
+  private int batchRows;
+  private long read;
+  private boolean exhausted;
+
+  /**
+   * @param server
+   * @param query
+   *          the query, already sorted on the sort field and id.
+   * @param sortField
+   *          the field sorted on before the id, null if sorted on the id only.
+   * @param ascending
+   * @param start
+   *          the position to start after, null to start at the first result.
+   * @param size
+   *          the number of results in the page.
+   * @param batchSize
+   *          the number of results to fetch from Solr at a time.
+   * @throws SolrServerException
+   */
+  public SolrSearchCursorResultSet(SolrServer server, SolrQuery query, String sortField,
+      boolean ascending, SolrSearchCursor start, long size, int batchSize)
+      throws SolrServerException {
+    this.server = server;
+    this.query = query;
+    this.sortField = sortField;
+    this.ascending = ascending;
+    this.size = Math.max(0, size);
+    this.batchSize = Math.max(1, batchSize);
+    this.position = start;
+    fetch();
+    numFound = batch.getNumFound();
+    iterator = new UnmodifiableIterator<Result>() {
+
+      public boolean hasNext() {
+        return advance();
+      }
+
+      public Result next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        SolrDocument document = batch.get(batchIndex);
+        // let go of the document once it has been handed out
+        batch.set(batchIndex, null);
+        batchIndex++;
+        read++;
+        position = SolrSearchCursor.after(SolrSearchCursorResultSet.this.sortField,
+            SolrSearchCursorResultSet.this.ascending, document);
+        return new ResultImpl(document);
+      }
+    };
+  }
+
+  public Iterator<Result> getResultSetIterator() {
+    return iterator;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The number of results after the cursor the page started from.
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getSize()
+   */
+  public long getSize() {
+    return numFound;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getNextCursor()
+   */
+  public String getNextCursor() {
+    if (exhausted || read >= numFound) {
+      return null;
+    }
+    return position == null ? SolrSearchCursor.START : position.toToken();
+  }
+
+  /**
+   * @return true if there is another result in the page, fetching the next batch if
+   *         needed.
+   */
+  private boolean advance() {
+    if (read >= size || exhausted) {
+      return false;
+    }
+    if (batchIndex < batch.size()) {
+      return true;
+    }
+    if (batch.size() < batchRows) {
+      exhausted = true;
+      return false;
+    }
+    try {
+      fetch();
+    } catch (SolrServerException e) {
+      // the results so far have been written, the cursor lets the client carry on
+      // from them.
+      LOGGER.warn("Failed to fetch the next batch of results: {}", e.getMessage());
+      return false;
+    }
+    if (batch.isEmpty()) {
+      exhausted = true;
+      return false;
+    }
+    return true;
+  }
+
+  private void fetch() throws SolrServerException {
+    if (positionFilter != null) {
+      query.removeFilterQuery(positionFilter);
+    }
+    // each position is used for one batch only, so it is kept out of the filter cache.
+    positionFilter = position == null ? null : UNCACHED + position.toFilterQuery();
+    if (positionFilter != null) {
+      query.addFilterQuery(positionFilter);
+    }
+    batchRows = (int) Math.min(batchSize, size - read);
+    query.setStart(0);
+    query.setRows(batchRows);
+    batch = server.query(query).getResults();
+    batchIndex = 0;
+  }
+}
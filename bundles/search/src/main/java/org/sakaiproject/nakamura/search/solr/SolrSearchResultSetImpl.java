@@ -39,6 +39,15 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet {
     loadResponse();
     return responseList.getNumFound();
   }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getNextCursor()
+   */
+  public String getNextCursor() {
+    return null;
+  }
   
   private void loadResponse() {
     if ( responseList == null ) {
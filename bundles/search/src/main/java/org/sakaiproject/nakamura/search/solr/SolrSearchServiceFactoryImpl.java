@@ -1,8 +1,10 @@
 package org.sakaiproject.nakamura.search.solr;
 
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_CURSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+
+import com.google.common.collect.ImmutableList;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
@@ -10,14 +12,11 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanClause.Occur;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.util.Version;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrQuery.ORDER;
@@ -31,9 +30,6 @@ import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -49,12 +45,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
 @Component(immediate = true, metatype = true)
 @Service
@@ -62,16 +56,48 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SolrSearchServiceFactoryImpl.class);
+  private static final String ANON_READERS_FILTER = "readers:" + User.ANON_USER;
+
   @Reference
   private SolrServerService solrSearchService;
 
+  @Reference
+  private ReaderPrincipalCache readerPrincipalCache;
+
   @Property(name = "defaultMaxResults", intValue = 100)
   private int defaultMaxResults = 100; // set to 100 to allow testing
 
+  /**
+   * The sparse properties the store indexes.
+   */
+  @Property(name = "sparseIndexedProperties", value = { "sakai:marker",
+      "sakai:messagestore", "sakai:pooled-content-manager",
+      "sakai:pooled-content-viewer", "sakai:tag-uuid", "sakai:messagebox",
+      "sakai:type", "sling:resourceType" })
+  private List<String> sparseIndexedProperties = ImmutableList.of("sakai:marker",
+      "sakai:messagestore", "sakai:pooled-content-manager",
+      "sakai:pooled-content-viewer", "sakai:tag-uuid", "sakai:messagebox",
+      "sakai:type", "sling:resourceType");
+
+  /**
+   * The number of matching sparse content items a sorted search reads before it stops.
+   */
+  @Property(name = "sparseSortLimit", intValue = 1000)
+  private int sparseSortLimit = 1000;
+
+  @Property(name = "cursorBatchSize", intValue = 100)
+  private int cursorBatchSize = 100;
+
   @Activate
   protected void activate(Map<?, ?> props) {
     defaultMaxResults = OsgiUtil.toInteger(props.get("defaultMaxResults"),
         defaultMaxResults);
+    sparseSortLimit = OsgiUtil.toInteger(props.get("sparseSortLimit"), sparseSortLimit);
+    cursorBatchSize = OsgiUtil.toInteger(props.get("cursorBatchSize"), cursorBatchSize);
+    String[] indexed = OsgiUtil.toStringArray(props.get("sparseIndexedProperties"));
+    if (indexed != null) {
+      sparseIndexedProperties = Arrays.asList(indexed);
+    }
   }
 
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
@@ -115,28 +141,27 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
    * @throws SolrSearchException
    */
   private SolrSearchResultSet processSolrQuery(SlingHttpServletRequest request,
-      Query query, boolean asAnon) throws StorageClientException, AccessDeniedException, SolrServerException {
+      Query query, boolean asAnon) throws StorageClientException, AccessDeniedException,
+      SolrServerException, SolrSearchException {
     String queryString = query.getQueryString();
-    // apply readers restrictions.
+    SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
+    // apply readers restrictions as a filter, the filter for a user stays the same from
+    // one search to the next so Solr can cache it.
     if (asAnon) {
-      queryString = "(" + queryString + ")  AND readers:" + User.ANON_USER;
+      solrQuery.addFilterQuery(ANON_READERS_FILTER);
     } else {
       Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
       if (!User.ADMIN_USER.equals(session.getUserId())) {
-        AuthorizableManager am = session.getAuthorizableManager();
-        Authorizable user = am.findAuthorizable(session.getUserId());
-        Set<String> readers = Sets.newHashSet();
-        for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-          readers.add(gi.next().getId());
-        }
-        readers.add(session.getUserId());
-        queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+        solrQuery.addFilterQuery(readerPrincipalCache.getReadersFilter(
+            session.getUserId(), session.getAuthorizableManager()));
       }
     }
 
-    SolrQuery solrQuery = buildQuery(request, queryString, query.getOptions());
-
     SolrServer solrServer = solrSearchService.getServer();
+    RequestParameter cursor = request.getRequestParameter(PARAMS_CURSOR);
+    if (cursor != null) {
+      return processCursorQuery(request, solrServer, solrQuery, cursor.getString());
+    }
     try {
       LOGGER.info("Performing Query {} ", URLDecoder.decode(solrQuery.toString(),"UTF-8"));
     } catch (UnsupportedEncodingException e) {
@@ -147,6 +172,81 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
     return new SolrSearchResultSetImpl(response);
   }
 
+  /**
+   * Page through the results of a query from a cursor rather than an offset. Results are
+   * sorted on the first sort field of the query with the id as a tie break. Results sorted
+   * by score are paged in id order, as a score can not be compared between queries.
+   *
+   * @param request
+   * @param solrServer
+   * @param solrQuery
+   * @param cursor
+   *          the cursor to start from, {@link SolrSearchCursor#START} for the first page.
+   * @return
+   * @throws SolrSearchException
+   *           if the cursor is not valid for the query.
+   * @throws SolrServerException
+   */
+  private SolrSearchResultSet processCursorQuery(SlingHttpServletRequest request,
+      SolrServer solrServer, SolrQuery solrQuery, String cursor)
+      throws SolrSearchException, SolrServerException {
+    String sortField = null;
+    boolean ascending = true;
+    String sort = solrQuery.get(CommonParams.SORT);
+    if (sort != null) {
+      String[] sorts = StringUtils.split(sort, ',');
+      if (sorts.length > 1) {
+        throw new SolrSearchException(400,
+            "Paging by cursor can only sort on one field, found: " + sort);
+      }
+      String[] parts = StringUtils.split(sorts[0]);
+      ascending = parts.length < 2 || !"desc".equalsIgnoreCase(parts[1]);
+      if ("score".equals(parts[0])
+          || (SolrSearchCursor.ID_FIELD.equals(parts[0]) && ascending)) {
+        ascending = true;
+      } else {
+        sortField = parts[0];
+      }
+    }
+
+    SolrSearchCursor start = null;
+    if (!SolrSearchCursor.START.equals(cursor)) {
+      try {
+        start = SolrSearchCursor.parse(cursor);
+      } catch (IllegalArgumentException e) {
+        throw new SolrSearchException(400, e.getMessage());
+      }
+      if (!start.isSortedBy(sortField, ascending)) {
+        throw new SolrSearchException(400,
+            "The cursor is not from a search with the same sort order");
+      }
+    }
+
+    if (sortField == null) {
+      solrQuery.setSortField(SolrSearchCursor.ID_FIELD, ORDER.asc);
+    } else {
+      solrQuery.setSortField(sortField, ascending ? ORDER.asc : ORDER.desc);
+      solrQuery.addSortField(SolrSearchCursor.ID_FIELD, ORDER.asc);
+    }
+    // the position of the last document is read from its sort field and id
+    if (solrQuery.getFields() != null) {
+      solrQuery.addField(SolrSearchCursor.ID_FIELD);
+      if (sortField != null) {
+        solrQuery.addField(sortField);
+      }
+    }
+
+    long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        DEFAULT_PAGED_ITEMS);
+    try {
+      LOGGER.info("Performing Query from cursor {} {} ", cursor,
+          URLDecoder.decode(solrQuery.toString(), "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+    }
+    return new SolrSearchCursorResultSet(solrServer, solrQuery, sortField, ascending,
+        start, nitems, cursorBatchSize);
+  }
+
   /**
    * Process properties to query sparse content directly.
    *
@@ -165,77 +265,33 @@ public class SolrSearchServiceFactoryImpl implements SolrSearchServiceFactory {
         new TextField().getQueryAnalyzer());
     org.apache.lucene.search.Query luceneQuery = parser.parse(query.getQueryString());
 
-    Map<String, Object> props = Maps.newHashMap();
-    if (luceneQuery instanceof BooleanQuery) {
-      BooleanQuery boolLucQuery = (BooleanQuery) luceneQuery;
-
-      int orCount = 0;
-      List<BooleanClause> clauses = boolLucQuery.clauses();
-      for (BooleanClause clause : clauses) {
-        org.apache.lucene.search.Query clauseQuery = clause.getQuery();
-        Map<String, Object> subOrs = Maps.newHashMap();
-        // we support 1 level of nesting for OR clauses
-        if (clauseQuery instanceof BooleanQuery) {
-          for (BooleanClause subclause : ((BooleanQuery) clauseQuery).clauses()) {
-            org.apache.lucene.search.Query subclauseQuery = subclause.getQuery();
-            extractTerms(subclause, subclauseQuery, props, subOrs);
-          }
-          props.put("orset" + orCount, subOrs);
-          orCount++;
-        } else {
-          extractTerms(clause, clauseQuery, props, subOrs);
-          if (!subOrs.isEmpty()) {
-            props.put("orset" + orCount, subOrs);
-            orCount++;
-          }
-        }
-      }
-    } else {
-      extractTerms(null, luceneQuery, props, null);
-    }
+    SparseQueryPlan plan = SparseQueryPlan.plan(luceneQuery, sparseIndexedProperties);
+    LOGGER.debug("Finding sparse content by {} for {}", plan.getStoreQuery(), luceneQuery);
 
     Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
         .adaptTo(javax.jcr.Session.class));
     ContentManager cm = session.getContentManager();
-    Iterable<Content> items = cm.find(props);
-    SolrSearchResultSet rs = new SparseSearchResultSet(items, defaultMaxResults);
-    return rs;
-  }
-
-  /**
-   * @param clause
-   * @param clauseQuery
-   * @param ands
-   * @param ors
-   */
-  private void extractTerms(BooleanClause clause,
-      org.apache.lucene.search.Query clauseQuery, Map<String, Object> ands,
-      Map<String, Object> ors) {
-    Set<Term> terms = Sets.newHashSet();
-    clauseQuery.extractTerms(terms);
+    Iterable<Content> items = cm.find(plan.getStoreQuery());
 
-    for (Term term : terms) {
-      if (clause != null && clause.getOccur() == Occur.SHOULD) {
-        accumulateValue(ors, term.field(), term.text());
-      } else {
-        accumulateValue(ands, term.field(), term.text());
+    // sort and page as the candidates are read, score has no meaning here
+    String sortField = null;
+    boolean ascending = true;
+    Map<String, String> options = query.getOptions();
+    if (options != null && options.get(CommonParams.SORT) != null) {
+      String[] sort = StringUtils.split(options.get(CommonParams.SORT));
+      if (sort.length > 0 && !"score".equals(sort[0])) {
+        sortField = sort[0];
+        ascending = sort.length < 2 || !sort[1].toLowerCase().startsWith("d");
       }
     }
+    long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+        DEFAULT_PAGED_ITEMS);
+    long offset = SolrSearchUtil.getPaging(request);
+    SolrSearchResultSet rs = new SparseSearchResultSet(items, plan, sortField, ascending,
+        offset, nitems, defaultMaxResults, sparseSortLimit);
+    return rs;
   }
 
-  private void accumulateValue(Map<String, Object> map, String key, Object val) {
-    Object o = map.get(key);
-    if (o != null) {
-      if (o instanceof Collection) {
-        ((Collection) o).add(val);
-      } else {
-        List<Object> os = Lists.newArrayList(o, val);
-        map.put(key, os);
-      }
-    } else {
-      map.put(key, val);
-    }
-  }
   /**
    * @param request
    * @param query
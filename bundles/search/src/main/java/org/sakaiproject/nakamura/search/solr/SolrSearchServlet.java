@@ -18,17 +18,12 @@
 package org.sakaiproject.nakamura.search.solr;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_NEXT_CURSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_BATCH_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROCESSOR_NAMES;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.REG_PROVIDER_NAMES;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_LIMIT_RESULTS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_OPTIONS;
-import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_RESULTPROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_BATCH_RESULT_PROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PATH_PREFIX;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_PROPERTY_PROVIDER;
@@ -53,7 +48,6 @@ import org.apache.sling.api.request.RequestParameterMap;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.osgi.framework.Constants;
 import org.osgi.framework.ServiceReference;
@@ -61,7 +55,6 @@ import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.MissingParameterException;
 import org.sakaiproject.nakamura.api.search.solr.Query;
-import org.sakaiproject.nakamura.api.search.solr.Query.Type;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
@@ -87,11 +80,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.jcr.Node;
-import javax.jcr.PathNotFoundException;
-import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
-import javax.jcr.ValueFormatException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -154,6 +143,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   @Reference
   private transient TemplateService templateService;
 
+  @Reference
+  protected transient SearchTemplateCache searchTemplateCache;
+
   private Pattern homePathPattern = Pattern.compile("^(.*)(~([\\w-]*?))/");
 
   @Override
@@ -168,14 +160,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         return;
       }
 
-      Node node = resource.adaptTo(Node.class);
-      if (node != null && node.hasProperty(SAKAI_QUERY_TEMPLATE)) {
-        // TODO: we might want to use this ?
-        @SuppressWarnings("unused")
-        boolean limitResults = true;
-        if (node.hasProperty(SAKAI_LIMIT_RESULTS)) {
-          limitResults = node.getProperty(SAKAI_LIMIT_RESULTS).getBoolean();
-        }
+      SearchTemplate template = searchTemplateCache.get(resource);
+      if (template != null) {
 
         long nitems = SolrSearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
             DEFAULT_PAGED_ITEMS);
@@ -184,7 +170,7 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         // KERN-1147 Respond better when all parameters haven't been provided for a query
         Query query = null;
         try {
-          query = processQuery(request, node);
+          query = processQuery(request, template);
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
@@ -193,9 +179,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         boolean useBatch = false;
         // Get the
         SolrSearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
-        if (node.hasProperty(SAKAI_BATCHRESULTPROCESSOR)) {
-          searchBatchProcessor = batchProcessors.get(node.getProperty(
-              SAKAI_BATCHRESULTPROCESSOR).getString());
+        if (template.getBatchProcessorName() != null) {
+          searchBatchProcessor = batchProcessors.get(template.getBatchProcessorName());
           useBatch = true;
           if (searchBatchProcessor == null) {
             searchBatchProcessor = defaultSearchBatchProcessor;
@@ -203,9 +188,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         SolrSearchResultProcessor searchProcessor = defaultSearchProcessor;
-        if (node.hasProperty(SAKAI_RESULTPROCESSOR)) {
-          searchProcessor = processors.get(node.getProperty(SAKAI_RESULTPROCESSOR)
-              .getString());
+        if (template.getResultProcessorName() != null) {
+          searchProcessor = processors.get(template.getResultProcessorName());
           if (searchProcessor == null) {
             searchProcessor = defaultSearchProcessor;
           }
@@ -261,6 +245,13 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         write.key(TOTAL);
         write.value(rs.getSize());
 
+        // when paging by cursor, where the next page starts from
+        String nextCursor = rs.getNextCursor();
+        if (nextCursor != null) {
+          write.key(JSON_NEXT_CURSOR);
+          write.value(nextCursor);
+        }
+
         write.endObject();
       }
     } catch (RepositoryException e) {
@@ -301,26 +292,21 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    *
    * @param request
    *          the request.
-   * @param queryTemplate
-   *          the query template.
-   * @param propertyProviderName
+   * @param template
+   *          the compiled search template.
    * @return A processed query template
    * @throws MissingParameterException
    */
-  protected Query processQuery(SlingHttpServletRequest request, Node queryNode)
-      throws RepositoryException, MissingParameterException, JSONException {
-    String propertyProviderName = null;
-    if (queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)) {
-      propertyProviderName = queryNode.getProperty(SAKAI_PROPERTY_PROVIDER).getString();
-    }
-    Map<String, String> propertiesMap = loadProperties(request, propertyProviderName,
-        queryNode);
+  protected Query processQuery(SlingHttpServletRequest request, SearchTemplate template)
+      throws MissingParameterException {
+    Map<String, String> propertiesMap = loadProperties(request,
+        template.getPropertyProviderName(), template.getDefaults());
 
-    String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    SearchTemplate.Template queryTemplate = template.getQueryTemplate();
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = queryTemplate.evaluate(propertiesMap, templateService);
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = expandHomeDirectory(queryString);
@@ -329,93 +315,39 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     queryString = addUserPrincipals(request, queryString);
 
     // check for any missing terms & process the query template
-    Collection<String> missingTerms = templateService.missingTerms(propertiesMap,
-        queryTemplate);
-    if (!missingTerms.isEmpty()) {
-      throw new MissingParameterException(
-          "Your request is missing parameters for the template: "
-              + StringUtils.join(missingTerms, ", "));
-    }
-
-    // collect query options
-    JSONObject queryOptions = accumulateQueryOptions(queryNode);
+    checkMissingTerms(queryTemplate, propertiesMap);
 
     // process the options as templates and check for missing params
-    Map<String, String> options = processOptions(propertiesMap, queryOptions);
-
-    // check the resource type and set the query type appropriately
-    // default to using solr for queries
-    javax.jcr.Property resourceType = queryNode.getProperty("sling:resourceType");
-    Query query = null;
-    if ("sakai/sparse-search".equals(resourceType.getString())) {
-      query = new Query(Type.SPARSE, queryString, options);
-    } else {
-      query = new Query(Type.SOLR, queryString, options);
-    }
-    return query;
+    Map<String, String> options = processOptions(propertiesMap, template.getOptions());
+
+    return new Query(template.getType(), queryString, options);
   }
 
   /**
    * @param propertiesMap
    * @param queryOptions
    * @return
-   * @throws JSONException
    * @throws MissingParameterException
    */
   private Map<String, String> processOptions(Map<String, String> propertiesMap,
-      JSONObject queryOptions) throws JSONException, MissingParameterException {
-    Collection<String> missingTerms;
+      Map<String, SearchTemplate.Template> queryOptions) throws MissingParameterException {
     Map<String, String> options = Maps.newHashMap();
-    if (queryOptions != null) {
-      Iterator<String> keys = queryOptions.keys();
-      while(keys.hasNext()) {
-        String key = keys.next();
-        String val = queryOptions.getString(key);
-        missingTerms = templateService.missingTerms(propertiesMap, val);
-        if (!missingTerms.isEmpty()) {
-          throw new MissingParameterException(
-              "Your request is missing parameters for the template: "
-                  + StringUtils.join(missingTerms, ", "));
-        }
-
-        String processedVal = templateService.evaluateTemplate(propertiesMap, val);
-        options.put(key, processedVal);
-      }
+    for (Entry<String, SearchTemplate.Template> option : queryOptions.entrySet()) {
+      checkMissingTerms(option.getValue(), propertiesMap);
+      options.put(option.getKey(),
+          option.getValue().evaluate(propertiesMap, templateService));
     }
     return options;
   }
 
-  /**
-   * @param queryNode
-   * @param queryOptions
-   * @return
-   * @throws RepositoryException
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
-   * @throws JSONException
-   */
-  private JSONObject accumulateQueryOptions(Node queryNode) throws RepositoryException,
-      ValueFormatException, PathNotFoundException, JSONException {
-    JSONObject queryOptions = null;
-    if (queryNode.hasProperty(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as JSON string
-      String optionsProp = queryNode.getProperty(SAKAI_QUERY_TEMPLATE_OPTIONS).getString();
-      queryOptions = new JSONObject(optionsProp);
-    } else if (queryNode.hasNode(SAKAI_QUERY_TEMPLATE_OPTIONS)) {
-      // process the options as a sub-node
-      Node optionsNode = queryNode.getNode(SAKAI_QUERY_TEMPLATE_OPTIONS);
-      if (optionsNode.hasProperties()) {
-        queryOptions = new JSONObject();
-        PropertyIterator props = optionsNode.getProperties();
-        while (props.hasNext()) {
-          javax.jcr.Property prop = props.nextProperty();
-          if (!prop.getName().startsWith("jcr:")) {
-            queryOptions.put(prop.getName(), prop.getString());
-          }
-        }
-      }
+  private void checkMissingTerms(SearchTemplate.Template template,
+      Map<String, String> propertiesMap) throws MissingParameterException {
+    Collection<String> missingTerms = template.missingTerms(propertiesMap);
+    if (!missingTerms.isEmpty()) {
+      throw new MissingParameterException(
+          "Your request is missing parameters for the template: "
+              + StringUtils.join(missingTerms, ", "));
     }
-    return queryOptions;
   }
 
   /**
@@ -428,11 +360,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * 
    * @param request
    * @param propertyProviderName
+   * @param defaults
+   *          the properties of the query node.
    * @return
-   * @throws RepositoryException
    */
   private Map<String, String> loadProperties(SlingHttpServletRequest request,
-      String propertyProviderName, Node node) throws RepositoryException {
+      String propertyProviderName, Map<String, String> defaults) {
     Map<String, String> propertiesMap = new HashMap<String, String>();
 
     // 0. load authorizable (user) information
@@ -443,14 +376,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
     propertiesMap.put("_userId", ClientUtils.escapeQueryChars(userId));
 
     // 1. load in properties from the query template node so defaults can be set
-    PropertyIterator props = node.getProperties();
-    while (props.hasNext()) {
-      javax.jcr.Property prop = props.nextProperty();
-      if (!propertiesMap.containsKey(prop.getName()) && !prop.isMultiple()) {
-        propertiesMap.put(prop.getName(), prop.getString());
+    for (Entry<String, String> prop : defaults.entrySet()) {
+      if (!propertiesMap.containsKey(prop.getKey())) {
+        propertiesMap.put(prop.getKey(), prop.getValue());
       }
     }
-
     // 2. load in properties from the request
     RequestParameterMap params = request.getRequestParameterMap();
     for (Entry<String, RequestParameter[]> entry : params.entrySet()) {
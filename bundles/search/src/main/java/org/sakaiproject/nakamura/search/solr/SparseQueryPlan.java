@@ -0,0 +1,333 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How a sparse search is run. Content can only be found in the sparse store by the values
+ * of indexed properties, so every required term on an indexed property, and every required
+ * group of or clauses that are all on indexed properties, is given to the store to find
+ * the candidates. The rest of the query, terms on properties that are not indexed,
+ * excluded terms and prefixes, is checked against each candidate as it is read, with the
+ * meaning Lucene gives it.
+ */
+public class SparseQueryPlan {
+
+  private final Map<String, Object> storeQuery;
+  private final Node filter;
+
+  private SparseQueryPlan(Map<String, Object> storeQuery, Node filter) {
+    this.storeQuery = storeQuery;
+    this.filter = filter;
+  }
+
+  /**
+   * @param query
+   *          the parsed query.
+   * @param indexed
+   *          the properties indexed by the store.
+   * @return the plan for the query.
+   */
+  public static SparseQueryPlan plan(Query query, List<String> indexed) {
+    Node root = toNode(query);
+    Map<String, Object> storeQuery = Maps.newHashMap();
+    Node filter = root;
+    if (root instanceof Clause) {
+      Clause clause = (Clause) root;
+      if (!clause.prefix) {
+        storeQuery.put(clause.field, clause.text);
+        if (indexed.contains(clause.field)) {
+          filter = null;
+        }
+      }
+    } else {
+      Bool bool = (Bool) root;
+      List<Node> sent = Lists.newArrayList();
+      int orCount = 0;
+      for (Node node : bool.must) {
+        if (node instanceof Clause && isIndexed(indexed, (Clause) node)) {
+          Clause clause = (Clause) node;
+          accumulateValue(storeQuery, clause.field, clause.text);
+          sent.add(node);
+        } else if (isOrGroup(indexed, node)) {
+          storeQuery.put("orset" + orCount, toMap(((Bool) node).should));
+          orCount++;
+          sent.add(node);
+        }
+      }
+      if (bool.must.isEmpty() && allTerms(indexed, bool.should)) {
+        storeQuery.put("orset0", toMap(bool.should));
+        filter = bool.withoutShould();
+      } else if (!sent.isEmpty()) {
+        filter = bool.withoutMust(sent);
+      } else {
+        // nothing the store indexes, ask it for the required terms and or groups as
+        // before, and check the whole query.
+        for (Node node : bool.must) {
+          if (node instanceof Clause && !((Clause) node).prefix) {
+            accumulateValue(storeQuery, ((Clause) node).field, ((Clause) node).text);
+          } else if (isOrGroup(null, node)) {
+            storeQuery.put("orset" + orCount, toMap(((Bool) node).should));
+            orCount++;
+          }
+        }
+        if (bool.must.isEmpty() && allTerms(null, bool.should)) {
+          storeQuery.put("orset" + orCount, toMap(bool.should));
+        }
+      }
+    }
+    return new SparseQueryPlan(storeQuery, filter);
+  }
+
+  private static Node toNode(Query query) {
+    if (query instanceof PrefixQuery) {
+      Term prefix = ((PrefixQuery) query).getPrefix();
+      return new Clause(prefix.field(), prefix.text(), true);
+    } else if (query instanceof TermQuery) {
+      Term term = ((TermQuery) query).getTerm();
+      return new Clause(term.field(), term.text(), false);
+    } else if (query instanceof BooleanQuery) {
+      List<Node> must = Lists.newArrayList();
+      List<Node> mustNot = Lists.newArrayList();
+      List<Node> should = Lists.newArrayList();
+      for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        Node node = toNode(clause.getQuery());
+        if (clause.getOccur() == Occur.MUST) {
+          must.add(node);
+        } else if (clause.getOccur() == Occur.MUST_NOT) {
+          mustNot.add(node);
+        } else {
+          should.add(node);
+        }
+      }
+      return new Bool(must, mustNot, should, !must.isEmpty());
+    }
+    // any other query must match all of its terms.
+    Set<Term> terms = Sets.newHashSet();
+    query.extractTerms(terms);
+    List<Node> must = Lists.newArrayList();
+    for (Term term : terms) {
+      must.add(new Clause(term.field(), term.text(), false));
+    }
+    return new Bool(must, Collections.<Node> emptyList(), Collections.<Node> emptyList(),
+        true);
+  }
+
+  private static boolean isIndexed(List<String> indexed, Clause clause) {
+    return !clause.prefix && (indexed == null || indexed.contains(clause.field));
+  }
+
+  /**
+   * @param indexed
+   *          the indexed properties, null for any property.
+   * @return true if the nodes are all terms, other than prefixes, on the properties.
+   */
+  private static boolean allTerms(List<String> indexed, List<Node> nodes) {
+    if (nodes.isEmpty()) {
+      return false;
+    }
+    for (Node node : nodes) {
+      if (!(node instanceof Clause) || !isIndexed(indexed, (Clause) node)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param indexed
+   *          the indexed properties, null for any property.
+   * @return true if the node is only a group of or clauses on the properties.
+   */
+  private static boolean isOrGroup(List<String> indexed, Node node) {
+    if (!(node instanceof Bool)) {
+      return false;
+    }
+    Bool bool = (Bool) node;
+    return !bool.required && bool.mustNot.isEmpty() && allTerms(indexed, bool.should);
+  }
+
+  private static Map<String, Object> toMap(List<Node> group) {
+    Map<String, Object> map = Maps.newHashMap();
+    for (Node node : group) {
+      Clause clause = (Clause) node;
+      accumulateValue(map, clause.field, clause.text);
+    }
+    return map;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void accumulateValue(Map<String, Object> map, String key, Object val) {
+    Object o = map.get(key);
+    if (o != null) {
+      if (o instanceof Collection) {
+        ((Collection<Object>) o).add(val);
+      } else {
+        List<Object> os = Lists.newArrayList(o, val);
+        map.put(key, os);
+      }
+    } else {
+      map.put(key, val);
+    }
+  }
+
+  /**
+   * @return the properties to find the candidates with.
+   */
+  public Map<String, Object> getStoreQuery() {
+    return Collections.unmodifiableMap(storeQuery);
+  }
+
+  /**
+   * @param properties
+   *          the properties of a candidate found by the store query.
+   * @return true if the candidate matches the parts of the query the store did not check.
+   */
+  public boolean matches(Map<String, Object> properties) {
+    return filter == null || filter.matches(properties);
+  }
+
+  /**
+   * A part of the query.
+   */
+  private interface Node {
+    boolean matches(Map<String, Object> properties);
+  }
+
+  /**
+   * A boolean query. Every required part has to match and no excluded part may match. The
+   * optional parts only have to match, one of them at least, if there are no required
+   * parts, as in Lucene where they otherwise only add to the score. A query with only
+   * excluded parts matches everything else, as Solr treats it.
+   */
+  private static final class Bool implements Node {
+    private final List<Node> must;
+    private final List<Node> mustNot;
+    private final List<Node> should;
+    /**
+     * True if the query had required parts, even if they have since been given to the
+     * store.
+     */
+    private final boolean required;
+
+    Bool(List<Node> must, List<Node> mustNot, List<Node> should, boolean required) {
+      this.must = must;
+      this.mustNot = mustNot;
+      this.should = should;
+      this.required = required;
+    }
+
+    Bool withoutMust(List<Node> sent) {
+      List<Node> rest = Lists.newArrayList(must);
+      rest.removeAll(sent);
+      return new Bool(rest, mustNot, should, required);
+    }
+
+    Bool withoutShould() {
+      return new Bool(must, mustNot, Collections.<Node> emptyList(), true);
+    }
+
+    public boolean matches(Map<String, Object> properties) {
+      for (Node node : must) {
+        if (!node.matches(properties)) {
+          return false;
+        }
+      }
+      for (Node node : mustNot) {
+        if (node.matches(properties)) {
+          return false;
+        }
+      }
+      if (required || should.isEmpty()) {
+        return true;
+      }
+      for (Node node : should) {
+        if (node.matches(properties)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * A term of the query, a property that has to have a value, or a value that starts
+   * with a prefix.
+   */
+  private static final class Clause implements Node {
+    private final String field;
+    private final String text;
+    private final boolean prefix;
+
+    Clause(String field, String text, boolean prefix) {
+      this.field = field;
+      this.text = text;
+      this.prefix = prefix;
+    }
+
+    public boolean matches(Map<String, Object> properties) {
+      Object value = properties.get(field);
+      if (value instanceof Object[]) {
+        for (Object o : (Object[]) value) {
+          if (matchesValue(o)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (value instanceof Collection<?>) {
+        for (Object o : (Collection<?>) value) {
+          if (matchesValue(o)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return matchesValue(value);
+    }
+
+    private boolean matchesValue(Object value) {
+      if (value == null) {
+        return false;
+      }
+      String s = String.valueOf(value);
+      if (prefix) {
+        // wildcard terms are lower cased by the search servlet
+        return s.toLowerCase().startsWith(text.toLowerCase());
+      }
+      return s.equals(text);
+    }
+  }
+}
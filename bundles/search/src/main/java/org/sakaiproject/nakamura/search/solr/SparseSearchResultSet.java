@@ -19,41 +19,112 @@ package org.sakaiproject.nakamura.search.solr;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.UnmodifiableIterator;
 
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 
 /**
- *
+ * A page of the content found by a sparse search. The candidates from the store are
+ * checked against the query as they are read and counted, and only the content up to the
+ * end of the page is held. When sorted, the page is kept in a bounded heap and reading
+ * stops once the page is full and the sort limit has been counted, so the order is that
+ * of the results read. When not sorted, reading stops once the page is full and the
+ * maximum number of results have been counted. If reading stopped with candidates left,
+ * the size is the negative of the number counted, as it was when the results were
+ * counted by a CountingIterator.
  */
 public class SparseSearchResultSet implements SolrSearchResultSet {
-  private CountingIterator<Result> iterator;
-  
-  public SparseSearchResultSet(Iterable<Content> items, int maxResults) {
-    final Iterator<Content> itemsIter = items.iterator();
-    iterator = new CountingIterator<Result>(new UnmodifiableIterator<Result>() {
+  private final List<Result> results;
+  private final long size;
 
-      public boolean hasNext() {
-        return itemsIter != null && itemsIter.hasNext();
-      }
+  /**
+   * @param items
+   *          the candidates from the store.
+   * @param plan
+   *          the plan the candidates were found by.
+   * @param sortField
+   *          the property to sort on, null to keep the order of the store.
+   * @param ascending
+   * @param offset
+   *          the number of results before the page.
+   * @param nitems
+   *          the number of results in the page.
+   * @param maxResults
+   *          the number of results to count before the size is given as negative, when
+   *          not sorted.
+   * @param sortLimit
+   *          the number of results to read and sort before the size is given as
+   *          negative, when sorted.
+   */
+  public SparseSearchResultSet(Iterable<Content> items, SparseQueryPlan plan,
+      String sortField, boolean ascending, long offset, long nitems, int maxResults,
+      int sortLimit) {
+    long keep = Math.max(0, offset) + Math.max(0, nitems);
+    Comparator<Content> order = null;
+    PriorityQueue<Content> heap = null;
+    List<Content> page = Lists.newArrayList();
+    if (sortField != null) {
+      order = new PropertyComparator(sortField, ascending);
+      // the worst of the results held is at the head
+      heap = new PriorityQueue<Content>(11, Collections.reverseOrder(order));
+    }
 
-      public Result next() {
-        Content c = itemsIter.next();
-        Map<String, Collection<Object>> props = Maps.newHashMap();
-        for (Entry<String, Object> prop : c.getProperties().entrySet()) {
-          props.put(prop.getKey(), Lists.newArrayList(prop.getValue()));
+    long limit = heap == null ? maxResults : sortLimit;
+    long count = 0;
+    boolean hasMore = false;
+    Iterator<Content> itemsIter = items.iterator();
+    while (itemsIter.hasNext()) {
+      if (count >= keep && count >= limit) {
+        hasMore = true;
+        break;
+      }
+      Content c = itemsIter.next();
+      if (c == null || !plan.matches(c.getProperties())) {
+        continue;
+      }
+      count++;
+      if (heap != null) {
+        if (heap.size() < keep) {
+          heap.add(c);
+        } else if (keep > 0 && order.compare(c, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(c);
         }
-        return new GenericResult(c.getPath(), props);
+      } else if (count > offset && count <= keep) {
+        page.add(c);
       }
+    }
+    if (heap != null) {
+      List<Content> sorted = Lists.newArrayList(heap);
+      Collections.sort(sorted, order);
+      if (offset < sorted.size()) {
+        page = sorted.subList((int) Math.max(0, offset), sorted.size());
+      }
+    }
+
+    results = Lists.newArrayListWithExpectedSize(page.size());
+    for (Content c : page) {
+      results.add(toResult(c));
+    }
+    size = hasMore ? -count : count;
+  }
 
-    }, maxResults);
+  private static Result toResult(Content c) {
+    Map<String, Collection<Object>> props = Maps.newHashMap();
+    for (Entry<String, Object> prop : c.getProperties().entrySet()) {
+      props.put(prop.getKey(), Lists.newArrayList(prop.getValue()));
+    }
+    return new GenericResult(c.getPath(), props);
   }
 
   /**
@@ -62,7 +133,7 @@ public class SparseSearchResultSet implements SolrSearchResultSet {
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getResultSetIterator()
    */
   public Iterator<Result> getResultSetIterator() {
-    return iterator;
+    return Collections.unmodifiableList(results).iterator();
   }
 
   /**
@@ -71,7 +142,55 @@ public class SparseSearchResultSet implements SolrSearchResultSet {
    * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getSize()
    */
   public long getSize() {
-    return iterator.getSize();
+    return size;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet#getNextCursor()
+   */
+  public String getNextCursor() {
+    return null;
   }
 
+  /**
+   * Orders content on the first value of a property, numbers and dates by value and
+   * anything else as a string. Content without the property sorts last.
+   */
+  private static final class PropertyComparator implements Comparator<Content> {
+    private final String property;
+    private final boolean ascending;
+
+    PropertyComparator(String property, boolean ascending) {
+      this.property = property;
+      this.ascending = ascending;
+    }
+
+    @SuppressWarnings("unchecked")
+    public int compare(Content o1, Content o2) {
+      Object v1 = first(o1.getProperties().get(property));
+      Object v2 = first(o2.getProperties().get(property));
+      if (v1 == null || v2 == null) {
+        return v1 == null ? (v2 == null ? 0 : 1) : -1;
+      }
+      int result;
+      if (v1 instanceof Number && v2 instanceof Number) {
+        result = Double.compare(((Number) v1).doubleValue(), ((Number) v2).doubleValue());
+      } else if (v1 instanceof Comparable && v1.getClass().isInstance(v2)) {
+        result = ((Comparable<Object>) v1).compareTo(v2);
+      } else {
+        result = String.valueOf(v1).compareTo(String.valueOf(v2));
+      }
+      return ascending ? result : -result;
+    }
+
+    private Object first(Object value) {
+      if (value instanceof Object[]) {
+        Object[] values = (Object[]) value;
+        return values.length == 0 ? null : values[0];
+      }
+      return value;
+    }
+  }
 }
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Set;
+
+import javax.jms.Message;
+
+/**
+ *
+ */
+public class ReaderPrincipalCacheTest {
+
+  @Test
+  public void testBuildFilter() {
+    assertEquals("readers:(ieb OR g\\-physics\\-101)",
+        ReaderPrincipalCache.buildFilter(ImmutableSet.of("ieb", "g-physics-101")));
+  }
+
+  @Test
+  public void testCachedUntilChanged() throws Exception {
+    AuthorizableManager am = createMock(AuthorizableManager.class);
+    expect(am.findAuthorizable("ieb")).andReturn(null).times(2);
+    replay(am);
+
+    ReaderPrincipalCache cache = new ReaderPrincipalCache();
+    cache.activate(ImmutableMap.of());
+    String filter = cache.getReadersFilter("ieb", am);
+    assertEquals("readers:(ieb)", filter);
+    assertSame(filter, cache.getReadersFilter("ieb", am));
+    assertEquals(ImmutableSet.of("ieb"), cache.getReaders("ieb", am));
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", "ieb");
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        properties));
+    assertEquals(filter, cache.getReadersFilter("ieb", am));
+    verify(am);
+  }
+
+  @Test
+  public void testGroupChangeDropsNewMembers() throws Exception {
+    AuthorizableManager am = createMock(AuthorizableManager.class);
+    expect(am.findAuthorizable("ieb")).andReturn(null).times(2);
+    expect(am.findAuthorizable("zach")).andReturn(null).times(1);
+    replay(am);
+
+    ReaderPrincipalCache cache = new ReaderPrincipalCache() {
+      @Override
+      Set<String> getMembers(String id) {
+        if ("g-physics-101".equals(id)) {
+          return ImmutableSet.of("ieb");
+        }
+        return ImmutableSet.of();
+      }
+    };
+    cache.activate(ImmutableMap.of());
+    cache.getReadersFilter("ieb", am);
+    cache.getReadersFilter("zach", am);
+
+    // ieb has been added to the group, the entry does not yet name it.
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", "g-physics-101");
+    cache.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        properties));
+    cache.getReadersFilter("ieb", am);
+    cache.getReadersFilter("zach", am);
+    verify(am);
+  }
+
+  @Test
+  public void testOneAdministrativeSessionForGroupChanges() throws Exception {
+    Repository repository = createMock(Repository.class);
+    Session session = createMock(Session.class);
+    AuthorizableManager adminAm = createMock(AuthorizableManager.class);
+    expect(repository.loginAdministrative()).andReturn(session).once();
+    expect(session.getAuthorizableManager()).andReturn(adminAm).times(2);
+    expect(adminAm.findAuthorizable("g-physics-101")).andReturn(null);
+    expect(adminAm.findAuthorizable("g-maths-101")).andReturn(null);
+    session.logout();
+    AuthorizableManager am = createMock(AuthorizableManager.class);
+    expect(am.findAuthorizable("ieb")).andReturn(null);
+    replay(repository, session, adminAm, am);
+
+    ReaderPrincipalCache cache = new ReaderPrincipalCache();
+    cache.repository = repository;
+    cache.activate(ImmutableMap.of());
+    cache.getReadersFilter("ieb", am);
+    cache.changed("g-physics-101");
+    cache.changed("g-maths-101");
+    cache.deactivate(ImmutableMap.of());
+    verify(repository, session, adminAm, am);
+  }
+
+  @Test
+  public void testMessagesFromThisServerAreDropped() throws Exception {
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("server1").anyTimes();
+    Message local = createMock(Message.class);
+    expect(local.getStringProperty("clusterServerId")).andReturn("server1");
+    Message remote = createMock(Message.class);
+    expect(remote.getStringProperty("clusterServerId")).andReturn("server2");
+    expect(remote.getStringProperty("path")).andReturn("ieb");
+    AuthorizableManager am = createMock(AuthorizableManager.class);
+    expect(am.findAuthorizable("ieb")).andReturn(null).times(2);
+    replay(clusterTrackingService, local, remote, am);
+
+    ReaderPrincipalCache cache = new ReaderPrincipalCache() {
+      @Override
+      Set<String> getMembers(String id) {
+        return ImmutableSet.of();
+      }
+    };
+    cache.clusterTrackingService = clusterTrackingService;
+    cache.activate(ImmutableMap.of());
+    cache.getReadersFilter("ieb", am);
+    cache.onMessage(local);
+    cache.getReadersFilter("ieb", am);
+    cache.onMessage(remote);
+    cache.getReadersFilter("ieb", am);
+    verify(clusterTrackingService, local, remote, am);
+  }
+}
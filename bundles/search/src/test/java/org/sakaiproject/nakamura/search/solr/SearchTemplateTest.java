@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.templates.TemplateService;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SearchTemplateTest {
+
+  @Test
+  public void testSubstitution() {
+    SearchTemplate.Template template = new SearchTemplate.Template(
+        "path:${path} AND title:(${q}) AND title:${q}");
+    assertTrue(template.isPlain());
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("path", "a\\:ieb");
+    props.put("q", "foo");
+    // nothing is asked of the template service for a plain template
+    assertEquals("path:a\\:ieb AND title:(foo) AND title:foo", template.evaluate(props,
+        null));
+  }
+
+  @Test
+  public void testMissingTerms() {
+    SearchTemplate.Template template = new SearchTemplate.Template(
+        "${a} ${b-c} ${a}");
+    Map<String, String> props = new HashMap<String, String>();
+    props.put("b-c", "x");
+    Collection<String> missing = template.missingTerms(props);
+    assertEquals(Arrays.asList("a", "a"), missing);
+    // an unset reference is left in place, as velocity does
+    assertEquals("${a} x ${a}", template.evaluate(props, null));
+  }
+
+  @Test
+  public void testVelocityFallback() {
+    String[] sources = { "#if($q)${q}#end", "$q", "${q.toLowerCase()}", "\\${q}", "$" };
+    for (String source : sources) {
+      SearchTemplate.Template template = new SearchTemplate.Template(source);
+      assertFalse(source, template.isPlain());
+      final Map<String, String> props = new HashMap<String, String>();
+      TemplateService templateService = new TemplateService() {
+        public String evaluateTemplate(Map<String, ? extends Object> parameters,
+            String template) {
+          return "evaluated";
+        }
+
+        public Collection<String> missingTerms(
+            Map<String, ? extends Object> parameters, String template) {
+          return null;
+        }
+      };
+      assertEquals("evaluated", template.evaluate(props, templateService));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SolrSearchCursorTest {
+
+  @Test
+  public void testToken() {
+    SolrSearchCursor cursor = new SolrSearchCursor("title", false, "a \"b\"", "/x/y");
+    String token = cursor.toToken();
+    assertTrue(token.matches("[0-9a-f]+"));
+    SolrSearchCursor parsed = SolrSearchCursor.parse(token);
+    assertTrue(parsed.isSortedBy("title", false));
+    assertFalse(parsed.isSortedBy("title", true));
+    assertEquals(cursor.toFilterQuery(), parsed.toFilterQuery());
+    assertEquals(token, parsed.toToken());
+
+    // an empty value is not a missing one
+    SolrSearchCursor empty = SolrSearchCursor.parse(new SolrSearchCursor("title", true,
+        "", "/x").toToken());
+    assertEquals("title:{\"\" TO *} OR (+title:\"\" +id:{\"/x\" TO *})",
+        empty.toFilterQuery());
+  }
+
+  @Test
+  public void testInvalidToken() {
+    String[] tokens = { "*", "abc", "zz", "6869" };
+    for (String token : tokens) {
+      try {
+        SolrSearchCursor.parse(token);
+        throw new AssertionError("Parsed " + token);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testFilterQuery() {
+    assertEquals("id:{\"/a\\\"b\" TO *}",
+        new SolrSearchCursor(null, true, null, "/a\"b").toFilterQuery());
+    assertTrue(new SolrSearchCursor(null, true, null, "/a").isSortedBy(null, true));
+    assertEquals("created:{* TO \"2010\"} OR (+created:\"2010\" +id:{\"/a\" TO *})"
+        + " OR (*:* -created:[* TO *])", new SolrSearchCursor("created", false, "2010",
+        "/a").toFilterQuery());
+    assertEquals("created:[* TO *] OR (+id:{\"/a\" TO *} -created:[* TO *])",
+        new SolrSearchCursor("created", true, null, "/a").toFilterQuery());
+    assertEquals("+id:{\"/a\" TO *} -created:[* TO *]", new SolrSearchCursor("created",
+        false, null, "/a").toFilterQuery());
+  }
+}
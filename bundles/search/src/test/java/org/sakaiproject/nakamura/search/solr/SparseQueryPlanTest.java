@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SparseQueryPlanTest {
+
+  private static final List<String> INDEXED = Arrays.asList("sakai:marker",
+      "sakai:type", "sling:resourceType");
+
+  @Test
+  public void testIndexedTermsGoToStore() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(term("sling:resourceType", "sakai/message"), Occur.MUST);
+    query.add(term("sakai:marker", "m1"), Occur.MUST);
+    query.add(term("sakai:subject", "hi"), Occur.MUST);
+    query.add(term("sakai:read", "true"), Occur.MUST_NOT);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+
+    assertEquals(ImmutableMap.of("sling:resourceType", "sakai/message", "sakai:marker",
+        "m1"), plan.getStoreQuery());
+    // only the terms the store did not check are checked.
+    assertTrue(plan.matches(props("sakai:subject", "hi")));
+    assertFalse(plan.matches(props("sakai:subject", "bye")));
+    assertFalse(plan.matches(props("sakai:subject", "hi", "sakai:read", "true")));
+  }
+
+  @Test
+  public void testOrGroups() {
+    BooleanQuery ors = new BooleanQuery();
+    ors.add(term("sakai:type", "a"), Occur.SHOULD);
+    ors.add(term("sakai:type", "b"), Occur.SHOULD);
+    BooleanQuery query = new BooleanQuery();
+    query.add(ors, Occur.MUST);
+    query.add(new PrefixQuery(new Term("title", "fo")), Occur.MUST);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+
+    assertEquals(ImmutableMap.of("orset0", ImmutableMap.of("sakai:type", Lists
+        .newArrayList("a", "b"))), plan.getStoreQuery());
+    assertTrue(plan.matches(props("sakai:type", "b", "title", "Foo")));
+    assertFalse(plan.matches(props("sakai:type", "a", "title", "bar")));
+  }
+
+  @Test
+  public void testOrGroupNotIndexed() {
+    BooleanQuery ors = new BooleanQuery();
+    ors.add(term("sakai:subject", "a"), Occur.SHOULD);
+    ors.add(term("sakai:subject", "b"), Occur.SHOULD);
+    BooleanQuery query = new BooleanQuery();
+    query.add(ors, Occur.MUST);
+    query.add(term("sakai:type", "t"), Occur.MUST);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+
+    assertEquals(ImmutableMap.of("sakai:type", "t"), plan.getStoreQuery());
+    assertTrue(plan.matches(props("sakai:subject", new String[] { "c", "a" })));
+    assertFalse(plan.matches(props("sakai:subject", "c")));
+  }
+
+  @Test
+  public void testShouldNextToMustIsOptional() {
+    // +sakai:type:a sakai:subject:hi
+    BooleanQuery query = new BooleanQuery();
+    query.add(term("sakai:type", "a"), Occur.MUST);
+    query.add(term("sakai:subject", "hi"), Occur.SHOULD);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+    assertEquals(ImmutableMap.of("sakai:type", "a"), plan.getStoreQuery());
+    assertTrue(plan.matches(props("sakai:subject", "bye")));
+
+    // without a required term one of the optional terms has to match
+    query = new BooleanQuery();
+    query.add(term("sakai:subject", "hi"), Occur.SHOULD);
+    query.add(term("sakai:subject", "hello"), Occur.SHOULD);
+    plan = SparseQueryPlan.plan(query, INDEXED);
+    assertTrue(plan.matches(props("sakai:subject", "hello")));
+    assertFalse(plan.matches(props("sakai:subject", "bye")));
+  }
+
+  @Test
+  public void testExcludedGroupExcludesWhenAllMatch() {
+    // +sakai:type:a -(+x:1 +y:2)
+    BooleanQuery excluded = new BooleanQuery();
+    excluded.add(term("x", "1"), Occur.MUST);
+    excluded.add(term("y", "2"), Occur.MUST);
+    BooleanQuery query = new BooleanQuery();
+    query.add(term("sakai:type", "a"), Occur.MUST);
+    query.add(excluded, Occur.MUST_NOT);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+
+    assertEquals(ImmutableMap.of("sakai:type", "a"), plan.getStoreQuery());
+    assertTrue(plan.matches(props("x", "1")));
+    assertTrue(plan.matches(props("y", "2")));
+    assertTrue(plan.matches(props("x", "1", "y", "3")));
+    assertFalse(plan.matches(props("x", "1", "y", "2")));
+  }
+
+  @Test
+  public void testNotIndexed() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(term("path", "/a"), Occur.MUST);
+    query.add(term("resourceType", "sakai/page"), Occur.MUST);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+    assertEquals(ImmutableMap.of("path", "/a", "resourceType", "sakai/page"), plan
+        .getStoreQuery());
+    assertTrue(plan.matches(props("path", "/a", "resourceType", "sakai/page")));
+    assertFalse(plan.matches(props("path", "/b", "resourceType", "sakai/page")));
+  }
+
+  @Test
+  public void testSortAndPage() {
+    BooleanQuery query = new BooleanQuery();
+    query.add(term("sakai:type", "a"), Occur.MUST);
+    query.add(term("hidden", "true"), Occur.MUST_NOT);
+    SparseQueryPlan plan = SparseQueryPlan.plan(query, INDEXED);
+    List<Content> items = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      items.add(new Content("/c" + i, props("sakai:type", "a", "hidden",
+          String.valueOf(i == 4), "n", Long.valueOf(i))));
+    }
+    items.add(new Content("/none", props("sakai:type", "a")));
+
+    SparseSearchResultSet rs = new SparseSearchResultSet(items, plan, "n", false, 2, 3,
+        100, 100);
+    assertEquals(10, rs.getSize());
+    assertPaths(rs.getResultSetIterator(), "/c7", "/c6", "/c5");
+
+    rs = new SparseSearchResultSet(items, plan, "n", true, 8, 3, 100, 100);
+    assertPaths(rs.getResultSetIterator(), "/c9", "/none");
+
+    rs = new SparseSearchResultSet(items, plan, null, true, 3, 2, 100, 100);
+    assertPaths(rs.getResultSetIterator(), "/c3", "/c5");
+
+    // a sorted search reads up to the sort limit, however many are counted
+    rs = new SparseSearchResultSet(items, plan, "n", false, 0, 2, 5, 100);
+    assertEquals(10, rs.getSize());
+    assertPaths(rs.getResultSetIterator(), "/c9", "/c8");
+
+    // and sorts only what it read before the limit
+    rs = new SparseSearchResultSet(items, plan, "n", false, 0, 2, 5, 5);
+    assertEquals(-5, rs.getSize());
+    assertPaths(rs.getResultSetIterator(), "/c5", "/c3");
+
+    // reading at least as far as the page
+    rs = new SparseSearchResultSet(items, plan, "n", true, 4, 2, 5, 5);
+    assertEquals(-6, rs.getSize());
+    assertPaths(rs.getResultSetIterator(), "/c5", "/c6");
+
+    // more results than are counted
+    rs = new SparseSearchResultSet(items, plan, null, true, 0, 2, 5, 5);
+    assertEquals(-5, rs.getSize());
+
+    // a page past the count is still found
+    rs = new SparseSearchResultSet(items, plan, null, true, 6, 2, 5, 5);
+    assertEquals(-8, rs.getSize());
+    assertPaths(rs.getResultSetIterator(), "/c7", "/c8");
+  }
+
+  private void assertPaths(Iterator<Result> results, String... paths) {
+    for (String path : paths) {
+      assertEquals(path, results.next().getPath());
+    }
+    assertFalse(results.hasNext());
+  }
+
+  private TermQuery term(String field, String text) {
+    return new TermQuery(new Term(field, text));
+  }
+
+  private Map<String, Object> props(Object... kv) {
+    ImmutableMap.Builder<String, Object> b = ImmutableMap.builder();
+    for (int i = 0; i < kv.length; i += 2) {
+      b.put((String) kv[i], kv[i + 1]);
+    }
+    return b.build();
+  }
+}
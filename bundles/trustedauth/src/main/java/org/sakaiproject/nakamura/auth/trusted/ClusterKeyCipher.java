@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Wraps secret keys before they are published to the other servers, with keys derived
+ * from a secret shared by the cluster. The key is encrypted with AES and the result,
+ * together with the expiry, algorithm and server id, is authenticated with an HMAC, so a
+ * key read off the wire is useless without the shared secret and a forged or altered key
+ * is rejected.
+ */
+public class ClusterKeyCipher {
+
+  /**
+   * The algorithm recorded on wrapped key data, the wrapped key's own algorithm follows.
+   */
+  static final String WRAPPED_PREFIX = "wrapped:";
+  private static final String CIPHER = "AES/CBC/PKCS5Padding";
+  private static final String MAC = "HmacSHA256";
+  private static final int IV_LENGTH = 16;
+  private static final int MAC_LENGTH = 32;
+  private static final String UTF_8 = "UTF-8";
+
+  private final SecretKeySpec encryptionKey;
+  private final SecretKeySpec macKey;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * @param sharedSecret
+   *          the secret configured on every server of the cluster.
+   * @throws GeneralSecurityException
+   */
+  public ClusterKeyCipher(String sharedSecret) throws GeneralSecurityException {
+    byte[] enc = derive(sharedSecret, "encrypt");
+    byte[] aesKey = new byte[16];
+    System.arraycopy(enc, 0, aesKey, 0, aesKey.length);
+    encryptionKey = new SecretKeySpec(aesKey, "AES");
+    macKey = new SecretKeySpec(derive(sharedSecret, "authenticate"), MAC);
+  }
+
+  /**
+   * @param data
+   *          a key as held by this server.
+   * @return the key in a form that may be published.
+   * @throws GeneralSecurityException
+   */
+  public ExpiringSecretKeyData wrap(ExpiringSecretKeyData data)
+      throws GeneralSecurityException {
+    byte[] iv = new byte[IV_LENGTH];
+    synchronized (random) {
+      random.nextBytes(iv);
+    }
+    Cipher cipher = Cipher.getInstance(CIPHER);
+    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    byte[] encrypted = cipher.doFinal(data.getEncoded());
+    String algorithm = WRAPPED_PREFIX + data.getAlgorithm();
+    byte[] mac = mac(iv, encrypted, data.getExpires(), algorithm, data.getServerId());
+    byte[] wrapped = new byte[iv.length + encrypted.length + mac.length];
+    System.arraycopy(iv, 0, wrapped, 0, iv.length);
+    System.arraycopy(encrypted, 0, wrapped, iv.length, encrypted.length);
+    System.arraycopy(mac, 0, wrapped, iv.length + encrypted.length, mac.length);
+    return new ExpiringSecretKeyData(data.getExpires(), algorithm, wrapped, data
+        .getServerId());
+  }
+
+  /**
+   * @param data
+   *          a key published by a server.
+   * @return the key, or null if it was not wrapped with the same shared secret or has been
+   *         altered.
+   * @throws GeneralSecurityException
+   */
+  public ExpiringSecretKeyData unwrap(ExpiringSecretKeyData data)
+      throws GeneralSecurityException {
+    String algorithm = data.getAlgorithm();
+    byte[] wrapped = data.getEncoded();
+    if (algorithm == null || !algorithm.startsWith(WRAPPED_PREFIX) || wrapped == null
+        || wrapped.length < IV_LENGTH + MAC_LENGTH + 16) {
+      return null;
+    }
+    int encryptedLength = wrapped.length - IV_LENGTH - MAC_LENGTH;
+    byte[] iv = new byte[IV_LENGTH];
+    byte[] encrypted = new byte[encryptedLength];
+    byte[] mac = new byte[MAC_LENGTH];
+    System.arraycopy(wrapped, 0, iv, 0, IV_LENGTH);
+    System.arraycopy(wrapped, IV_LENGTH, encrypted, 0, encryptedLength);
+    System.arraycopy(wrapped, IV_LENGTH + encryptedLength, mac, 0, MAC_LENGTH);
+    if (!MessageDigest.isEqual(mac, mac(iv, encrypted, data.getExpires(), algorithm, data
+        .getServerId()))) {
+      return null;
+    }
+    Cipher cipher = Cipher.getInstance(CIPHER);
+    cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    return new ExpiringSecretKeyData(data.getExpires(), algorithm
+        .substring(WRAPPED_PREFIX.length()), cipher.doFinal(encrypted), data.getServerId());
+  }
+
+  private byte[] mac(byte[] iv, byte[] encrypted, long expires, String algorithm,
+      String serverId) throws GeneralSecurityException {
+    Mac m = Mac.getInstance(MAC);
+    m.init(macKey);
+    m.update(iv);
+    m.update(encrypted);
+    m.update(utf8(expires + ":" + algorithm + ":" + serverId));
+    return m.doFinal();
+  }
+
+  private static byte[] derive(String sharedSecret, String purpose)
+      throws GeneralSecurityException {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    md.update(utf8(purpose + ":"));
+    return md.digest(utf8(sharedSecret));
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes(UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+}
@@ -35,9 +35,20 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -46,6 +57,10 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * A Token Storage class that maintains a local ring buffer of keys for encoding and uses
  * a cluster replicated cache for keys to be shared with other servers in the cluster.
+ * The ring buffer is replaced rather than modified when a key is added, so request
+ * threads read it without locking. With cluster keys enabled, keys are rotated by a
+ * background thread and published to the cluster some time before they are used to
+ * encode cookies, and the ring buffer is not saved to the token file.
  */
 public class TokenStore {
 
@@ -118,15 +133,13 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ");
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      Mac m = getMac(serverId, secretKeyId, expiringSecretKey.getSecretKey());
+      String cookieValue = encodeField(m.doFinal(cookiePayload.getBytes(UTF_8)));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -136,6 +149,12 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String decode(String value) throws SecureCookieException {
+      VerifiedCookie verifiedCookie = getVerifiedCookie(value);
+      if (verifiedCookie != null) {
+        this.secretKeyId = verifiedCookie.secretKeyId;
+        this.serverId = verifiedCookie.serverId;
+        return verifiedCookie.userId;
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 4) {        
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -143,7 +162,6 @@ public class TokenStore {
         long cookieTime = Long.parseLong(parts[1].substring(1));
         if (System.currentTimeMillis() < cookieTime) {
           try {
-            
             ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
                 secretKeyId);
             if (expiringSecretKey == null) {
@@ -156,8 +174,14 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId);
-            if (value.equals(hmac)) {
+            // verify the mac of the payload as sent, rather than encoding the cookie again.
+            int payloadStart = value.indexOf('@');
+            Mac m = getMac(serverId, secretKeyId, secretKey);
+            byte[] hmac = m.doFinal(value.substring(payloadStart + 1).getBytes(UTF_8));
+            if (MessageDigest.isEqual(encodeField(hmac).getBytes(UTF_8), value.substring(0,
+                payloadStart).getBytes(UTF_8))) {
+              addVerifiedCookie(value, new VerifiedCookie(userId, serverId, secretKeyId,
+                  secretKey, cookieTime));
               return userId;
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -185,6 +209,41 @@ public class TokenStore {
 
   }
 
+  /**
+   * A Mac and the secret key it was initialised with.
+   */
+  private static final class KeyedMac {
+    private final SecretKey secretKey;
+    private final Mac mac;
+
+    private KeyedMac(SecretKey secretKey, Mac mac) {
+      this.secretKey = secretKey;
+      this.mac = mac;
+    }
+  }
+
+  /**
+   * The contents of a cookie value whose HMAC has been verified, with the key it was
+   * verified against. The entry is only used while that key is still the key in its slot,
+   * so a cookie stops being accepted as soon as its key is rotated out or expires.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final String serverId;
+    private final int secretKeyId;
+    private final SecretKey secretKey;
+    private final long expires;
+
+    private VerifiedCookie(String userId, String serverId, int secretKeyId,
+        SecretKey secretKey, long expires) {
+      this.userId = userId;
+      this.serverId = serverId;
+      this.secretKeyId = secretKeyId;
+      this.secretKey = secretKey;
+      this.expires = expires;
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
   /**
@@ -202,6 +261,20 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+  /**
+   * The number of verified cookie values remembered, so that repeat requests in a session
+   * do not need to compute the HMAC again.
+   */
+  private static final int MAX_VERIFIED_COOKIES = 1000;
+  /**
+   * The key in the replicated cache a joining server puts its request for the current
+   * keys of the other servers under.
+   */
+  static final String KEY_REQUEST = "keyrequest";
+  /**
+   * How often, in ms, each server checks for a request for its keys.
+   */
+  private static final long KEY_REQUEST_POLL = 2000L;
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
@@ -210,15 +283,15 @@ public class TokenStore {
   /**
    * The time when a new token should be created.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile long nextUpdate = System.currentTimeMillis();
   /**
    * The location of the current token.
    */
-  private int secretKeyId = 0;
+  private volatile int secretKeyId = 0;
   /**
-   * A ring of tokens used to encypt.
+   * A ring of tokens used to encypt. Copied on write, never modified once published.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private volatile ExpiringSecretKey[] secretKeyRingBuffer;
   /**
    * A secure random used for generating new tokens.
    */
@@ -246,6 +319,46 @@ public class TokenStore {
 
   private boolean debugCookies;
 
+  /**
+   * If true keys are rotated in the background and shared through the cluster replicated
+   * cache only.
+   */
+  private boolean clusterKeys;
+
+  /**
+   * The time in ms a new key is published to the cluster before it is used.
+   */
+  private long publishDelay;
+
+  /**
+   * Rotates the keys when cluster keys are enabled.
+   */
+  private ScheduledExecutorService rotator;
+
+  /**
+   * Wraps keys published to the replicated cache, null if no cluster secret is set, in
+   * which case keys are not shared.
+   */
+  private volatile ClusterKeyCipher keyCipher;
+
+  /**
+   * The time of the last key request this server answered.
+   */
+  private long lastKeyRequest;
+
+  /**
+   * Mac instances initialised with a secret key, per thread and keyed by secret key id,
+   * so that signing or verifying a cookie does not look up the provider or set up the key
+   * each time. A Mac is reset by doFinal, so may be reused by the same thread.
+   */
+  private ThreadLocal<Map<String, KeyedMac>> macs = new ThreadLocal<Map<String, KeyedMac>>();
+
+  /**
+   * Recently verified cookie values. Reads take no lock; when the map is full, expired
+   * entries and then arbitrary entries are dropped to make room.
+   */
+  private ConcurrentMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
+
   /**
    * @throws NoSuchAlgorithmException
    * @throws InvalidKeyException
@@ -273,6 +386,38 @@ public class TokenStore {
     this.debugCookies = debugCookies;
   }
 
+  /**
+   * @param clusterKeys
+   *          true to rotate keys in the background and share them only through the
+   *          cluster replicated cache, rather than on demand and saved to the token file.
+   * @param publishDelay
+   *          the time in ms a new key is published to the cluster before it is used, at
+   *          most a quarter of the ttl.
+   */
+  public void setClusterKeys(boolean clusterKeys, long publishDelay) {
+    this.clusterKeys = clusterKeys;
+    this.publishDelay = publishDelay;
+  }
+
+  /**
+   * @param clusterSecret
+   *          the secret, the same on every server, that keys are wrapped with before they
+   *          are published to the other servers. If empty, keys are not shared.
+   */
+  public void setClusterSecret(String clusterSecret) {
+    if (clusterSecret == null || clusterSecret.trim().length() == 0) {
+      keyCipher = null;
+      return;
+    }
+    try {
+      keyCipher = new ClusterKeyCipher(clusterSecret);
+    } catch (GeneralSecurityException e) {
+      LOG.error("Unable to wrap keys for the cluster, keys will not be shared "
+          + e.getMessage(), e);
+      keyCipher = null;
+    }
+  }
+
   /**
    * Initialise the token store.
    *
@@ -293,46 +438,201 @@ public class TokenStore {
     this.serverId = serverId;
     this.ttl = ttl;
     this.cacheManager = cacheManager;
+    destroy();
+    if (keyCipher == null) {
+      LOG.warn("No cluster secret is set, secret keys will not be shared with other servers");
+    }
     getActiveToken();
+    if (clusterKeys) {
+      // the slot a key is prepared in must not be reused before its previous key
+      // expires, which allows a quarter of the ttl.
+      publishDelay = Math.max(0L, Math.min(publishDelay, ttl / 4));
+      long period = Math.max(1L, ttl / 2);
+      rotator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "TokenStore key rotation");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      rotator.scheduleAtFixedRate(new Runnable() {
+        public void run() {
+          try {
+            prepareNextSecretKey();
+          } catch (Throwable t) {
+            LOG.error("Failed to rotate secret keys " + t.getMessage(), t);
+          }
+        }
+      }, period - publishDelay, period, TimeUnit.MILLISECONDS);
+      if (keyCipher != null) {
+        rotator.scheduleWithFixedDelay(new Runnable() {
+          public void run() {
+            try {
+              answerKeyRequest();
+            } catch (Throwable t) {
+              LOG.error("Failed to answer a key request " + t.getMessage(), t);
+            }
+          }
+        }, KEY_REQUEST_POLL, KEY_REQUEST_POLL, TimeUnit.MILLISECONDS);
+        requestKeys();
+      }
+    }
   }
 
   /**
-   * Maintain a circular buffer to tokens, and return the current one.
+   * Ask the other servers to publish their current keys again, so that a server that
+   * joins between rotations can decode their cookies straight away.
+   */
+  void requestKeys() {
+    getServerKeyCache().put(KEY_REQUEST,
+        new ExpiringSecretKeyData(System.currentTimeMillis(), KEY_REQUEST, null, serverId));
+  }
+
+  /**
+   * If another server has asked for keys since the last request answered, publish the
+   * current keys of this server again.
+   */
+  synchronized void answerKeyRequest() {
+    ExpiringSecretKeyData request = getServerKeyCache().get(KEY_REQUEST);
+    if (request == null || request.getExpires() <= lastKeyRequest
+        || serverId.equals(request.getServerId())) {
+      return;
+    }
+    lastKeyRequest = request.getExpires();
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    if (ring == null) {
+      return;
+    }
+    for (int i = 0; i < ring.length; i++) {
+      if (!hasExpired(ring[i])) {
+        publishKey(i, ring[i]);
+      }
+    }
+    LOG.info("Published the secret keys of {} at the request of {} ", serverId, request
+        .getServerId());
+  }
+
+  /**
+   * Stop rotating keys in the background.
+   */
+  public void destroy() {
+    if (rotator != null) {
+      rotator.shutdownNow();
+      rotator = null;
+    }
+  }
+
+  /**
+   * Return the current token, rotating the keys first if that is due. Only the rotation
+   * takes a lock. With cluster keys, rotation is done in the background and only happens
+   * here if the current key has expired.
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
+  SecureCookie getActiveToken() {
+    int activeKeyId = secretKeyId;
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    if (ring == null || isRotationDue(ring, activeKeyId)) {
+      activeKeyId = rotateSecretKeys();
+    }
+    return new SecureCookie(serverId, activeKeyId);
+  }
+
+  private boolean isRotationDue(ExpiringSecretKey[] ring, int activeKeyId) {
+    return hasExpired(ring[activeKeyId])
+        || (!clusterKeys && System.currentTimeMillis() > nextUpdate);
+  }
+
+  /**
+   * Maintain a circular buffer to tokens, adding and using a new one if the current one is
+   * due to be replaced.
+   *
+   * @return the id of the current token.
+   */
+  private synchronized int rotateSecretKeys() {
     if (secretKeyRingBuffer == null) {
-      loadLocalSecretKeys();
-    }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
-      // cycle so that during a typical ttl the tokens get completely refreshed.
-      nextUpdate = System.currentTimeMillis() + ttl / 2;
-      byte[] b = new byte[20];
-      random.nextBytes(b);
-
-      // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
-      // the key expires before
-      // being replaced, this is important in a clustered environment.
-      ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
-          .currentTimeMillis()
-          + (ttl * 2), serverId);
-      int nextToken = secretKeyId + 1;
-      if (nextToken == secretKeyRingBuffer.length) {
-        nextToken = 0;
+      if (clusterKeys) {
+        secretKeyRingBuffer = new ExpiringSecretKey[5];
+      } else {
+        loadLocalSecretKeys();
       }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
-      LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
-      if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+    }
+    if (isRotationDue(secretKeyRingBuffer, secretKeyId)) {
+      int nextToken = addSecretKey();
+      activateSecretKey(nextToken, secretKeyRingBuffer[nextToken]);
+    }
+    return secretKeyId;
+  }
+
+  /**
+   * Publish a new key to the cluster, to be used once it has had time to reach the other
+   * servers.
+   */
+  synchronized void prepareNextSecretKey() {
+    final int nextToken = addSecretKey();
+    final ExpiringSecretKey expiringSecretKey = secretKeyRingBuffer[nextToken];
+    Runnable activate = new Runnable() {
+      public void run() {
+        activateSecretKey(nextToken, expiringSecretKey);
       }
-      getServerKeyCache().put(getCacheKey(serverId, nextToken),
-          expiringSecretKey.getSecretKeyData());
-      secretKeyId = nextToken;
+    };
+    if (publishDelay > 0 && rotator != null) {
+      rotator.schedule(activate, publishDelay, TimeUnit.MILLISECONDS);
+    } else {
+      activate.run();
+    }
+  }
+
+  /**
+   * Create a new key in the slot after the current one and publish it to the cluster.
+   *
+   * @return the slot of the new key.
+   */
+  private synchronized int addSecretKey() {
+    byte[] b = new byte[20];
+    random.nextBytes(b);
+
+    // the key will last 2x ttl so far longer than the cookie. There are 5 tokens, to
+    // the key expires before
+    // being replaced, this is important in a clustered environment.
+    ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
+        .currentTimeMillis()
+        + (ttl * 2), serverId);
+    int nextToken = secretKeyId + 1;
+    if (nextToken == secretKeyRingBuffer.length) {
+      nextToken = 0;
+    }
+    ExpiringSecretKey[] newRingBuffer = new ExpiringSecretKey[secretKeyRingBuffer.length];
+    System.arraycopy(secretKeyRingBuffer, 0, newRingBuffer, 0, newRingBuffer.length);
+    newRingBuffer[nextToken] = expiringSecretKey;
+    secretKeyRingBuffer = newRingBuffer;
+    LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
+    publishKey(nextToken, expiringSecretKey);
+    return nextToken;
+  }
+
+  /**
+   * Start encoding cookies with a key added by {@link #addSecretKey()}.
+   *
+   * @param keyId
+   *          the slot of the key
+   * @param expiringSecretKey
+   *          the key, if the slot no longer holds it the key was replaced before it was
+   *          used, and nothing is done.
+   */
+  private synchronized void activateSecretKey(int keyId, ExpiringSecretKey expiringSecretKey) {
+    if (secretKeyRingBuffer[keyId] != expiringSecretKey) {
+      return;
+    }
+    // cycle so that during a typical ttl the tokens get completely refreshed.
+    nextUpdate = System.currentTimeMillis() + ttl / 2;
+    secretKeyId = keyId;
+    if ( debugCookies ) {
+      dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+    }
+    if (!clusterKeys) {
       saveLocalSecretKeys();
     }
-    return new SecureCookie(serverId, secretKeyId);
   }
 
   private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
@@ -438,9 +738,9 @@ public class TokenStore {
             throw new IOException("Failed to read Key no "+i+" from Secret Keys, end of file reached ");
           }
           newKeys[i] = new ExpiringSecretKey(b, HMAC_SHA1, expires, keyServerId);
-          getServerKeyCache()
-              .put(getCacheKey(keyServerId, i), newKeys[i].getSecretKeyData());
-          LOG.info("Loaded Key {} from Local Store into {} ",getCacheKey(keyServerId, i), getServerKeyCache());
+          if (publishKey(i, newKeys[i])) {
+            LOG.info("Loaded Key {} from Local Store into {} ",getCacheKey(keyServerId, i), getServerKeyCache());
+          }
         } else {
           newKeys[i] = null;
         }
@@ -472,6 +772,30 @@ public class TokenStore {
     }
   }
 
+  /**
+   * Publish a key of this server to the others, wrapped with the cluster secret.
+   *
+   * @param keyNumber
+   *          the slot of the key
+   * @param expiringSecretKey
+   * @return true if the key was published, false if keys are not shared.
+   */
+  private boolean publishKey(int keyNumber, ExpiringSecretKey expiringSecretKey) {
+    ClusterKeyCipher cipher = keyCipher;
+    if (cipher == null) {
+      return false;
+    }
+    try {
+      getServerKeyCache().put(getCacheKey(expiringSecretKey.getServerId(), keyNumber),
+          cipher.wrap(expiringSecretKey.getSecretKeyData()));
+      return true;
+    } catch (GeneralSecurityException e) {
+      LOG.error("Unable to publish key " + getCacheKey(expiringSecretKey.getServerId(),
+          keyNumber) + " " + e.getMessage(), e);
+      return false;
+    }
+  }
+
   /**
    * Get a cache key for the secret key.
    *
@@ -494,26 +818,125 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        return secretKeyRingBuffer[keyNumber];
+    ExpiringSecretKey[] ring = secretKeyRingBuffer;
+    if ( ring[keyNumber] != null ) {
+      if ( serverId.equals(ring[keyNumber].getServerId())) {
+        return ring[keyNumber];
       }
     }
+    ClusterKeyCipher cipher = keyCipher;
+    if (cipher == null) {
+      // keys are not shared.
+      return null;
+    }
     String cacheKey = getCacheKey(serverId, keyNumber);
     Cache<ExpiringSecretKeyData> keyCache = getServerKeyCache();
 
     LOG.debug("Looking for off server key {} in {} ", cacheKey, keyCache);
     // load tokens for the server up
-    if (keyCache.containsKey(cacheKey)) {
-      ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
-      if (cachedServerKeyData.getExpires() < System.currentTimeMillis()) {
-        return new ExpiringSecretKey(cachedServerKeyData);
+    ExpiringSecretKeyData cachedServerKeyData = keyCache.get(cacheKey);
+    if (cachedServerKeyData != null
+        && cachedServerKeyData.getExpires() > System.currentTimeMillis()) {
+      try {
+        ExpiringSecretKeyData keyData = cipher.unwrap(cachedServerKeyData);
+        if (keyData != null) {
+          return new ExpiringSecretKey(keyData);
+        }
+        LOG.warn("Key {} was not wrapped with the cluster secret of this server ", cacheKey);
+      } catch (GeneralSecurityException e) {
+        LOG.warn("Unable to unwrap key " + cacheKey + " " + e.getMessage());
       }
     }
     // none found.
     return null;
   }
 
+  /**
+   * Get a Mac initialised with a secret key for the current thread.
+   *
+   * @param serverId
+   *          the server that owns the secret key
+   * @param keyNumber
+   *          the key number
+   * @param secretKey
+   *          the secret key, if this differs from the key the thread's Mac was initialised
+   *          with the key has been replaced and a new Mac is created.
+   * @return
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  private Mac getMac(String serverId, int keyNumber, SecretKey secretKey)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    Map<String, KeyedMac> threadMacs = macs.get();
+    if (threadMacs == null) {
+      threadMacs = new HashMap<String, KeyedMac>();
+      macs.set(threadMacs);
+    }
+    String cacheKey = getCacheKey(serverId, keyNumber);
+    KeyedMac keyedMac = threadMacs.get(cacheKey);
+    if (keyedMac == null || !keyedMac.secretKey.equals(secretKey)) {
+      Mac m = Mac.getInstance(HMAC_SHA1);
+      m.init(secretKey);
+      keyedMac = new KeyedMac(secretKey, m);
+      threadMacs.put(cacheKey, keyedMac);
+    }
+    return keyedMac.mac;
+  }
+
+  /**
+   * @param value
+   *          a cookie value
+   * @return the cookie if the value has been verified recently, otherwise null.
+   */
+  private VerifiedCookie getVerifiedCookie(String value) {
+    VerifiedCookie verifiedCookie = verifiedCookies.get(value);
+    if (verifiedCookie == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() < verifiedCookie.expires) {
+      ExpiringSecretKey current = getSecretKey(verifiedCookie.serverId,
+          verifiedCookie.secretKeyId);
+      if (current != null && current.getSecretKey().equals(verifiedCookie.secretKey)) {
+        return verifiedCookie;
+      }
+    }
+    // expired, or the key it was verified with has been replaced.
+    verifiedCookies.remove(value, verifiedCookie);
+    return null;
+  }
+
+  /**
+   * @param value
+   *          a cookie value that has been verified.
+   * @param verifiedCookie
+   *          the contents of the cookie.
+   */
+  private void addVerifiedCookie(String value, VerifiedCookie verifiedCookie) {
+    if (verifiedCookies.size() >= MAX_VERIFIED_COOKIES) {
+      trimVerifiedCookies();
+    }
+    verifiedCookies.put(value, verifiedCookie);
+  }
+
+  /**
+   * Make room in the verified cookies, dropping the expired entries and then, if that is
+   * not enough, a quarter of the entries in iteration order.
+   */
+  private void trimVerifiedCookies() {
+    long now = System.currentTimeMillis();
+    for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+      if (i.next().expires <= now) {
+        i.remove();
+      }
+    }
+    int excess = verifiedCookies.size() - (MAX_VERIFIED_COOKIES * 3 / 4);
+    for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); excess > 0
+        && i.hasNext(); excess--) {
+      i.next();
+      i.remove();
+    }
+  }
+
   /**
    * @return
    */
@@ -116,6 +116,24 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
   @Property(boolValue=false )
   public static final String DEBUG_COOKIES = "sakai.auth.trusted.token.debugcookies";
 
+  /**
+   * Property to share the secret keys with the other servers through the cluster replicated
+   * cache, rotating them in the background rather than keeping them in the token file.
+   */
+  @Property(boolValue = false)
+  public static final String CLUSTER_KEYS = "sakai.auth.trusted.token.clusterkeys";
+
+  /** Property to indicate how long (ms) a new key is published to the cluster before use */
+  @Property(longValue = 5000)
+  public static final String CLUSTER_KEYS_PUBLISH_DELAY = "sakai.auth.trusted.token.clusterkeys.publishdelay";
+
+  /**
+   * Property for the secret, the same on every server, that keys are wrapped with before
+   * they are shared. Keys are not shared if empty.
+   */
+  @Property(value = "")
+  public static final String CLUSTER_KEYS_SECRET = "sakai.auth.trusted.token.clusterkeys.secret";
+
   /**
    * the name of the header to be trusted, if null or "" then don't trust headers.
    */
@@ -240,12 +258,19 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
 
     String tokenFile = (String) props.get(TOKEN_FILE_NAME);
     String serverId = clusterTrackingService.getCurrentServerId();
+    tokenStore.setClusterKeys(OsgiUtil.toBoolean(props.get(CLUSTER_KEYS), false),
+        OsgiUtil.toLong(props.get(CLUSTER_KEYS_PUBLISH_DELAY), 5000L));
+    tokenStore.setClusterSecret(OsgiUtil.toString(props.get(CLUSTER_KEYS_SECRET), ""));
     tokenStore.doInit(cacheManager, tokenFile, serverId, ttl);
 
     trustedHeaderName = OsgiUtil.toString(props.get(TRUSTED_HEADER_NAME), "");
     trustedParameterName = OsgiUtil.toString(props.get(TRUSTED_PARAMETER_NAME), "");
   }
 
+  protected void deactivate(ComponentContext context) {
+    tokenStore.destroy();
+  }
+
   public void activateForTesting() {
     testing = true;
     calls = new ArrayList<Object[]>();
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookie;
+
+/**
+ * Two token stores sharing one replicated key cache, as two servers in a cluster would.
+ */
+public class TokenStoreTest {
+
+  private static final long TTL = 1200000L;
+  private static final String SECRET = "cluster-secret";
+  private Cache<Object> keyCache;
+  private CacheManagerService cacheManagerService;
+  private TokenStore serverA;
+  private TokenStore serverB;
+
+  @Before
+  public void before() throws Exception {
+    keyCache = new LocalCache<Object>();
+    cacheManagerService = EasyMock.createMock(CacheManagerService.class);
+    EasyMock.expect(
+        cacheManagerService.getCache(TokenStore.class.getName(),
+            CacheScope.CLUSTERREPLICATED)).andReturn(keyCache).anyTimes();
+    EasyMock.replay(cacheManagerService);
+    serverA = new TokenStore();
+    serverA.setClusterKeys(true, 200L);
+    serverA.setClusterSecret(SECRET);
+    serverA.doInit(cacheManagerService, "target/cluster-token-a.bin", "serverA", TTL);
+    serverB = new TokenStore();
+    serverB.setClusterKeys(true, 200L);
+    serverB.setClusterSecret(SECRET);
+    serverB.doInit(cacheManagerService, "target/cluster-token-b.bin", "serverB", TTL);
+  }
+
+  @After
+  public void after() {
+    serverA.destroy();
+    serverB.destroy();
+  }
+
+  @Test
+  public void testCookieDecodesOnOtherServer() throws Exception {
+    String cookie = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    Assert.assertEquals("ieb", serverB.getSecureCookie().decode(cookie));
+    cookie = serverB.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb2");
+    Assert.assertEquals("ieb2", serverA.getSecureCookie().decode(cookie));
+  }
+
+  @Test
+  public void testKeyIsPublishedBeforeUse() throws Exception {
+    String before = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    int activeKeyId = keyId(before);
+    int nextKeyId = (activeKeyId + 1) % 5;
+    Assert.assertFalse(keyCache.containsKey("serverA:" + nextKeyId));
+
+    serverA.prepareNextSecretKey();
+    Assert.assertTrue(keyCache.containsKey("serverA:" + nextKeyId));
+    SecureCookie secureCookie = serverA.getActiveToken();
+    Assert.assertEquals(activeKeyId, keyId(secureCookie.encode(System.currentTimeMillis()
+        + TTL, "ieb")));
+
+    Thread.sleep(500L);
+    String after = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    Assert.assertEquals(nextKeyId, keyId(after));
+    Assert.assertEquals("ieb", serverB.getSecureCookie().decode(after));
+    // cookies from the previous key are still good.
+    Assert.assertEquals("ieb", serverB.getSecureCookie().decode(before));
+  }
+
+  @Test
+  public void testVerifiedCookieIsDroppedWhenItsKeyIsReplaced() throws Exception {
+    String cookie = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    Assert.assertEquals("ieb", serverB.getSecureCookie().decode(cookie));
+    // the slot is given a new key, as a later rotation on serverA would.
+    byte[] replacement = new byte[20];
+    keyCache.put("serverA:" + keyId(cookie), new ClusterKeyCipher(SECRET)
+        .wrap(new ExpiringSecretKeyData(System.currentTimeMillis() + TTL, "HmacSHA1",
+            replacement, "serverA")));
+    try {
+      serverB.getSecureCookie().decode(cookie);
+      Assert.fail("A cookie verified with a replaced key must not be accepted");
+    } catch (TokenStore.SecureCookieException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPublishedKeysAreWrapped() throws Exception {
+    String cookie = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    ExpiringSecretKeyData published = (ExpiringSecretKeyData) keyCache.get("serverA:"
+        + keyId(cookie));
+    Assert.assertTrue(published.getAlgorithm().startsWith(ClusterKeyCipher.WRAPPED_PREFIX));
+
+    // a server with a different secret can not use the keys.
+    TokenStore other = new TokenStore();
+    other.setClusterKeys(true, 200L);
+    other.setClusterSecret("another-secret");
+    other.doInit(cacheManagerService, "target/cluster-token-other.bin", "serverO", TTL);
+    try {
+      other.getSecureCookie().decode(cookie);
+      Assert.fail("A key wrapped with another secret must not be used");
+    } catch (TokenStore.SecureCookieException e) {
+      // expected
+    } finally {
+      other.destroy();
+    }
+  }
+
+  @Test
+  public void testJoiningServerIsSentCurrentKeys() throws Exception {
+    String cookie = serverA.getActiveToken().encode(System.currentTimeMillis() + TTL, "ieb");
+    // the joining server missed the publication of the key.
+    keyCache.remove("serverA:" + keyId(cookie));
+    TokenStore serverC = new TokenStore();
+    serverC.setClusterKeys(true, 200L);
+    serverC.setClusterSecret(SECRET);
+    serverC.doInit(cacheManagerService, "target/cluster-token-c.bin", "serverC", TTL);
+    try {
+      Assert.assertEquals("serverC", ((ExpiringSecretKeyData) keyCache
+          .get(TokenStore.KEY_REQUEST)).getServerId());
+      serverA.answerKeyRequest();
+      Assert.assertEquals("ieb", serverC.getSecureCookie().decode(cookie));
+    } finally {
+      serverC.destroy();
+    }
+  }
+
+  private int keyId(String cookie) {
+    return Integer.parseInt(cookie.substring(cookie.indexOf('@') + 1,
+        cookie.indexOf('@') + 2));
+  }
+}
@@ -227,6 +227,66 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testCookieDecodeVerified() throws InterruptedException {
+    ComponentContext context = configureForCookieFast();
+    replay();
+    trustedTokenService.activate(context);
+    String cookie = trustedTokenService.encodeCookie("ieb");
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie));
+    // the second decode is from the verified cookies, a forged mac must still fail.
+    Assert.assertEquals("ieb", trustedTokenService.decodeCookie(cookie));
+    char c = cookie.charAt(0) == 'A' ? 'B' : 'A';
+    Assert.assertNull(trustedTokenService.decodeCookie(c + cookie.substring(1)));
+    Thread.sleep(150L);
+    Assert.assertNull(trustedTokenService.decodeCookie(cookie));
+    verify();
+  }
+
+  @Test
+  public void testCookieDecodeThroughput() throws InterruptedException {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    final String[] cookies = new String[2000];
+    for (int i = 0; i < cookies.length; i++) {
+      cookies[i] = trustedTokenService.encodeCookie("user" + i);
+    }
+    final int[] failures = new int[1];
+    Thread[] threads = new Thread[4];
+    long start = System.currentTimeMillis();
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < cookies.length; i++) {
+            if (!("user" + i).equals(trustedTokenService.decodeCookie(cookies[i]))) {
+              synchronized (failures) {
+                failures[0]++;
+              }
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    LOGGER.info("Decode Time for " + (threads.length * cookies.length)
+        + " mostly unverified cookies " + (System.currentTimeMillis() - start));
+    start = System.currentTimeMillis();
+    for (int r = 0; r < 100; r++) {
+      for (int i = cookies.length - 500; i < cookies.length; i++) {
+        trustedTokenService.decodeCookie(cookies[i]);
+      }
+    }
+    LOGGER.info("Decode Time for 50000 verified cookies "
+        + (System.currentTimeMillis() - start));
+    Assert.assertEquals(0, failures[0]);
+    verify();
+  }
+
   @Test
   public void testCookieEncodingTokens() throws InterruptedException {
     ComponentContext context = configureForCookieFast();